@@ -21,6 +21,7 @@ package org.forwarder4j;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Properties;
@@ -57,9 +58,8 @@ public class Config extends Properties {
   public static synchronized Config getConfiguration() {
     if (instance == null) {
       instance = new Config();
-      final String location = System.getProperty(CONFIG_FILE_PROP);
-      try (BufferedReader reader = new BufferedReader(new FileReader((location != null) ? location : DEFAULT_CONFIG_FILE))) {
-        instance.load(reader);
+      try {
+        instance.loadFile();
       } catch(Exception e) {
         log.debug(e.getMessage(), e);
       }
@@ -67,6 +67,41 @@ public class Config extends Properties {
     return instance;
   }
 
+  /**
+   * Reload the configuration properties from the configuration file. If the file can be read, the new properties replace
+   * those returned by {@link #getConfiguration()}, otherwise the current configuration is kept.
+   * @return the new configuration, or {@code null} if the file could not be read.
+   */
+  public static synchronized Config reload() {
+    final Config config = new Config();
+    try {
+      config.loadFile();
+    } catch(Exception e) {
+      log.warn("could not reload the configuration from {} : {}", getConfigFile(), e.toString());
+      return null;
+    }
+    instance = config;
+    return config;
+  }
+
+  /**
+   * Get the configuration file, as specified by the "{@code forwarder4j.config}" system property.
+   * @return the path to the configuration file.
+   */
+  public static File getConfigFile() {
+    return new File(System.getProperty(CONFIG_FILE_PROP, DEFAULT_CONFIG_FILE));
+  }
+
+  /**
+   * Load the properties of the configuration file into this object.
+   * @throws IOException if the file cannot be read.
+   */
+  private void loadFile() throws IOException {
+    try (BufferedReader reader = new BufferedReader(new FileReader(getConfigFile()))) {
+      load(reader);
+    }
+  }
+
   /**
    * Get the string value of a property with a specified name.
    * @param key the name of the property to look for.
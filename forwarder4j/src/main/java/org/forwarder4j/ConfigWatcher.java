@@ -0,0 +1,136 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.forwarder4j.admin.Admin;
+import org.forwarder4j.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the configuration file for changes and reconfigures the forwarders accordingly.
+ * Only the forwarders whose definitions changed are started, stopped or reconfigured.
+ * @author Laurent Cohen
+ */
+public class ConfigWatcher implements Runnable {
+  /**
+   * Logger for this class.
+   */
+  private static final Logger log = LoggerFactory.getLogger(ConfigWatcher.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static final boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * Name of the property which enables watching the configuration file.
+   */
+  public static final String WATCH_PROPERTY = "forwarder4j.config.watch";
+  /**
+   * Name of the property which defines how long to wait for the file changes to settle before reloading, in millis.
+   */
+  public static final String DELAY_PROPERTY = "forwarder4j.config.watch.delay";
+  /**
+   * The administration service which holds the forwarders.
+   */
+  private final Admin admin;
+  /**
+   * The forwarding definitions from the last loaded configuration, mapped to their local port.
+   */
+  private Map<Integer, EntryDescriptor> current;
+
+  /**
+   * Initialize this watcher with the specified admin service and the forwarding definitions of the initial configuration.
+   * @param admin the administration service which holds the forwarders.
+   * @param entries the forwarding definitions of the initial configuration.
+   */
+  public ConfigWatcher(final Admin admin, final Collection<EntryDescriptor> entries) {
+    this.admin = admin;
+    this.current = toMap(entries);
+  }
+
+  @Override
+  public void run() {
+    final Path file = Config.getConfigFile().toPath().toAbsolutePath();
+    final Path dir = file.getParent();
+    try (final WatchService watcher = FileSystems.getDefault().newWatchService()) {
+      // watch the parent directory, to also catch files replaced by a rename or re-created
+      dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+      log.info("watching the configuration file {}", file);
+      while (true) {
+        WatchKey key = watcher.take();
+        boolean changed = false;
+        final long delay = Config.getConfiguration().getLong(DELAY_PROPERTY, 500L);
+        // a single save often triggers several events, wait for them to settle
+        while (key != null) {
+          for (final WatchEvent<?> event: key.pollEvents()) {
+            if ((event.kind() == OVERFLOW) || file.getFileName().equals(event.context())) changed = true;
+          }
+          key.reset();
+          key = watcher.poll(delay, TimeUnit.MILLISECONDS);
+        }
+        if (changed) reload();
+      }
+    } catch (@SuppressWarnings("unused") final InterruptedException e) {
+      if (debugEnabled) log.debug("configuration watcher interrupted");
+    } catch (final Exception e) {
+      log.error("error watching the configuration file {}", file, e);
+    }
+  }
+
+  /**
+   * Reload the configuration file and apply the changes to the forwarders.
+   * @throws InterruptedException if the calling thread is interrupted while the new local ports are bound.
+   */
+  void reload() throws InterruptedException {
+    final Config config = Config.reload();
+    if (config == null) return;
+    log.info("configuration file changed, reloading it");
+    Utils.loadSettings(config);
+    final Map<Integer, EntryDescriptor> desired = toMap(EntryDescriptor.fromConfig(config));
+    final List<String> messages = admin.applyChanges(current, desired);
+    for (final String message: messages) log.info(message);
+    if (messages.isEmpty()) log.info("no forwarding definition changed");
+    current = desired;
+  }
+
+  /**
+   * Map the specified forwarding definitions to their local port. When several definitions have the same local port,
+   * only the first one is kept.
+   * @param entries the forwarding definitions.
+   * @return a map of local ports to forwarding definitions.
+   */
+  private static Map<Integer, EntryDescriptor> toMap(final Collection<EntryDescriptor> entries) {
+    final Map<Integer, EntryDescriptor> map = new TreeMap<>();
+    for (final EntryDescriptor desc: entries) map.putIfAbsent(desc.getPort(), desc);
+    return map;
+  }
+}
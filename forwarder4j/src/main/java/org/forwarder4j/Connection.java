@@ -21,12 +21,15 @@ package org.forwarder4j;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.forwarder4j.buffer.AdaptiveBuffer;
+import org.forwarder4j.buffer.BufferPool;
 import org.forwarder4j.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,9 +60,9 @@ class Connection implements Runnable, AutoCloseable {
    */
   private List<ConnectionListener> listeners = new CopyOnWriteArrayList<>();
   /**
-   * Temporary buffer used to read data from the socket connection.
+   * Buffer used to read data from the socket connection.
    */
-  private final byte[] buffer = new byte[Utils.TEMP_BUFFER_SIZE];
+  private final AdaptiveBuffer buffer;
   /**
    * Count of all bytes read.
    */
@@ -84,24 +87,15 @@ class Connection implements Runnable, AutoCloseable {
   /**
    * Initialize from the specified established socket conneciton.
    * @param socket the underlying socket for this connection.
+   * @param buffer the buffer used to read data from the socket connection.
    * @throws IOException if any I/O error occurs.
    */
-  public Connection(final Socket socket) throws IOException {
+  public Connection(final Socket socket, final AdaptiveBuffer buffer) throws IOException {
+    this.buffer = buffer;
     socketWrapper = new SocketWrapper(socket);
     if (debugEnabled) log.debug("created {}", this);
   }
 
-  /**
-   * Initialize this connection with the specified host and port.
-   * @param host the host to connect to.
-   * @param port the port to connect to on the host.
-   * @throws IOException if any I/O error occurs while establishing the connection.
-   */
-  public Connection(final String host, final int port) throws IOException {
-    socketWrapper = new SocketWrapper(host, port);
-    if (debugEnabled) log.debug("opened {}", this);
-  }
-
   @Override
   public void run() {
     try {
@@ -116,13 +110,15 @@ class Connection implements Runnable, AutoCloseable {
   }
 
   /**
-   * Send the specified data through this onnection.
+   * Send the specified data through this onnection. The array is released to the {@link BufferPool} once sent,
+   * so the caller must not use it afterwards.
    * @param data the data to send.
+   * @param length the number of bytes to send, starting at index 0 of the array.
    * @throws IOException if any I/O error occurs.
    */
-  public void offer(final byte[] data) throws IOException {
-    if (debugEnabled) log.debug("offering {} bytes to {}", data.length, this);
-    sender.toSendQueue.offer(data);
+  public void offer(final byte[] data, final int length) throws IOException {
+    if (debugEnabled) log.debug("offering {} bytes to {}", length, this);
+    sender.toSendQueue.offer(new Chunk(data, length));
   }
 
   /**
@@ -171,22 +167,28 @@ class Connection implements Runnable, AutoCloseable {
       try {
         if (debugEnabled) log.debug("starting receiver for {}", Connection.this);
         while (!closed.get() && socketWrapper.isOpened()) {
-          final int n = socketWrapper.read(buffer, 0, buffer.length);
+          final byte[] data = buffer.get();
+          final int n = socketWrapper.read(data, 0, data.length);
           if (n < 0) throw new EOFException("EOF on " + socketWrapper);
           else if (n > 0) {
             if (traceEnabled) log.trace("read {} bytes from {}", n, Connection.this);
             totalRead += n;
-            final byte[] tmp = new byte[n];
-            System.arraycopy(buffer, 0, tmp, 0, n);
-            final ConnectionEvent event = new ConnectionEvent(Connection.this, tmp, null);
+            // the copy is taken from the pool and released by the sender it is forwarded to, once written
+            final byte[] tmp = (n <= BufferPool.MAX_SIZE) ? BufferPool.acquire(BufferPool.sizeClass(n)) : new byte[n];
+            System.arraycopy(data, 0, tmp, 0, n);
+            buffer.record(n);
+            final ConnectionEvent event = new ConnectionEvent(Connection.this, tmp, n, null);
             for (final ConnectionListener listener: listeners) listener.incomingData(event);
           }
         }
       } catch (final Exception e) {
         if (debugEnabled) log.debug("exception in receiver of {} : {}", Connection.this, e.toString());
-        sender.toSendQueue.offer(new byte[0]);
+        sender.toSendQueue.offer(Chunk.END);
         final ConnectionEvent event = new ConnectionEvent(Connection.this, null, e);
         for (final ConnectionListener listener: listeners) listener.throwableRaised(event);
+      } finally {
+        // released by the reading thread, so the array cannot be reused while a read is still writing into it
+        buffer.release();
       }
       if (debugEnabled) log.debug("ending receiver for {}", Connection.this);
     }
@@ -194,26 +196,45 @@ class Connection implements Runnable, AutoCloseable {
 
   /**
    * Writes to the underlying socket in a separate thread.
+   * <p>All the buffers already queued when the sender wakes up, up to {@link Utils#SEND_BATCH_SIZE} bytes, are
+   * coalesced and sent with a single write and flush, rather than one system call per buffer.
    */
   private class Sender implements Runnable {
     /**
      * The queue of buffers to send.
      */
-    private final BlockingQueue<byte[]> toSendQueue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Chunk> toSendQueue = new LinkedBlockingQueue<>();
+    /**
+     * The buffers taken from the queue and not yet sent.
+     */
+    private final List<Chunk> batch = new ArrayList<>();
 
     @Override
     public void run() {
       try {
         if (debugEnabled) log.debug("starting sender for {}", Connection.this);
-        while (!closed.get() && socketWrapper.isOpened()) {
-          final byte[] data = toSendQueue.take();
-          if (data.length == 0) break;
-          if (socketWrapper.isOpened()) {
-            if (traceEnabled) log.trace("writing {} bytes to {}", data.length, Connection.this);
-            socketWrapper.write(data, 0, data.length);
-            totalWritten += data.length;
-            if (traceEnabled) log.trace("sent {} bytes to {}", data.length, Connection.this);
+        boolean end = false;
+        while (!end && !closed.get() && socketWrapper.isOpened()) {
+          final Chunk chunk = toSendQueue.take();
+          if (chunk.length == 0) break;
+          final int budget = Utils.SEND_BATCH_SIZE;
+          batch.add(chunk);
+          int size = chunk.length;
+          Chunk next;
+          // this sender is the only consumer of the queue, so a peeked buffer is still there when polled
+          while ((size < budget) && ((next = toSendQueue.peek()) != null)) {
+            if (next.length == 0) {
+              toSendQueue.poll();
+              end = true;
+              break;
+            }
+            if (size + next.length > budget) break;
+            batch.add(toSendQueue.poll());
+            size += next.length;
           }
+          if (socketWrapper.isOpened()) send(size);
+          for (final Chunk sent: batch) BufferPool.release(sent.data);
+          batch.clear();
         }
       } catch (final Exception e) {
         if (debugEnabled) log.debug("exception in sender of {} : {}", Connection.this, e.toString());
@@ -222,5 +243,59 @@ class Connection implements Runnable, AutoCloseable {
       }
       if (debugEnabled) log.debug("ending sender for {}", Connection.this);
     }
+
+    /**
+     * Send the batched buffers with a single write.
+     * @param size the total size in bytes of the batched buffers.
+     * @throws IOException if any I/O error occurs.
+     */
+    private void send(final int size) throws IOException {
+      if (traceEnabled) log.trace("writing {} bytes in {} buffers to {}", size, batch.size(), Connection.this);
+      if (batch.size() == 1) socketWrapper.write(batch.get(0).data, 0, size);
+      else {
+        // taken from the pool for this write only, so an idle connection does not hold on to it
+        final byte[] batchBuffer = (size <= BufferPool.MAX_SIZE) ? BufferPool.acquire(BufferPool.sizeClass(size)) : new byte[size];
+        try {
+          int pos = 0;
+          for (final Chunk chunk: batch) {
+            System.arraycopy(chunk.data, 0, batchBuffer, pos, chunk.length);
+            pos += chunk.length;
+          }
+          socketWrapper.write(batchBuffer, 0, size);
+        } finally {
+          BufferPool.release(batchBuffer);
+        }
+      }
+      totalWritten += size;
+      if (traceEnabled) log.trace("sent {} bytes to {}", size, Connection.this);
+    }
+  }
+
+  /**
+   * Data queued for sending, which may only use a part of its array.
+   */
+  private static final class Chunk {
+    /**
+     * Marks the end of the data to send.
+     */
+    private static final Chunk END = new Chunk(new byte[0], 0);
+    /**
+     * The array holding the data.
+     */
+    private final byte[] data;
+    /**
+     * The number of bytes of data, starting at index 0 of the array.
+     */
+    private final int length;
+
+    /**
+     * Initialize this chunk with the specified array and data length.
+     * @param data the array holding the data.
+     * @param length the number of bytes of data, starting at index 0 of the array.
+     */
+    private Chunk(final byte[] data, final int length) {
+      this.data = data;
+      this.length = length;
+    }
   }
 }
@@ -29,6 +29,10 @@ class ConnectionEvent extends EventObject {
    * The data that was read from the connection, if any.
    */
   private final byte[] data;
+  /**
+   * The number of bytes of data, starting at index 0 of the data array.
+   */
+  private final int length;
   /**
    * A throwable that was read during an I/O operation on the connection, if any.
    */
@@ -41,8 +45,20 @@ class ConnectionEvent extends EventObject {
    * @param throwable the throwable that was read during an I/O operation on the connection, if any.
    */
   public ConnectionEvent(final Connection connection, final byte[] data, final Throwable throwable) {
+    this(connection, data, (data == null) ? 0 : data.length, throwable);
+  }
+
+  /**
+   * Initialize this event with the specified source connection, data, length of the data and throwable.
+   * @param connection the source of this event.
+   * @param data the data that was read from the connection, if any. The array may be larger than the data.
+   * @param length the number of bytes of data, starting at index 0 of the array.
+   * @param throwable the throwable that was read during an I/O operation on the connection, if any.
+   */
+  public ConnectionEvent(final Connection connection, final byte[] data, final int length, final Throwable throwable) {
     super(connection);
     this.data = data;
+    this.length = length;
     this.throwable = throwable;
   }
 
@@ -62,6 +78,14 @@ class ConnectionEvent extends EventObject {
     return data;
   }
 
+  /**
+   * Get the number of bytes of data, which may be less than the length of the data array.
+   * @return the number of bytes starting at index 0 of the array returned by {@link #getData()}.
+   */
+  public int getLength() {
+    return length;
+  }
+
   /**
    * Get the throwable that was read during an I/O operation on the connection, if any.
    * @return a {@link Throwable}, or {@code null} if no throwable was raised for this event.
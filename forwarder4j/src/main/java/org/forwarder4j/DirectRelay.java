@@ -0,0 +1,222 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forwarder4j.buffer.AdaptiveBuffer;
+import org.forwarder4j.buffer.BdpTuner;
+import org.forwarder4j.stats.ClientStats;
+import org.forwarder4j.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays data between a client socket and a target socket with one thread per direction, each reading from one socket
+ * and writing straight to the other. There is no intermediate queue, so a slow reader on one side slows down the
+ * writer on the other side through TCP flow control.
+ * <p>The end of the input of one socket is passed on as a shutdown of the output of the other, so half-closed
+ * connections keep working. Both sockets are closed once both directions are finished, or as soon as either fails.
+ * @author Laurent Cohen
+ */
+class DirectRelay implements AutoCloseable {
+  /**
+   * Logger for this class.
+   */
+  private static final Logger log = LoggerFactory.getLogger(DirectRelay.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static final boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * Determines whether the trace level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static final boolean traceEnabled = log.isTraceEnabled();
+  /**
+   * The socket connected to the client.
+   */
+  private final Socket clientSocket;
+  /**
+   * The socket connected to the target.
+   */
+  private final Socket targetSocket;
+  /**
+   * The client statistics, or {@code null} if statistics are disabled.
+   */
+  private final ClientStats stats;
+  /**
+   * The client on whose behalf data is relayed, or {@code null} if statistics are disabled.
+   */
+  private final String client;
+  /**
+   * The buffer used to read from the client.
+   */
+  private final AdaptiveBuffer upstreamBuffer;
+  /**
+   * The buffer used to read from the target.
+   */
+  private final AdaptiveBuffer downstreamBuffer;
+  /**
+   * Measures the throughput from the client to the target, or {@code null} if buffer auto-tuning is disabled.
+   */
+  private final BdpTuner.Meter upstreamMeter;
+  /**
+   * Measures the throughput from the target to the client, or {@code null} if buffer auto-tuning is disabled.
+   */
+  private final BdpTuner.Meter downstreamMeter;
+  /**
+   * Whether this relay is closed.
+   */
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  /**
+   * The number of directions which are not yet finished.
+   */
+  private final AtomicInteger running = new AtomicInteger(2);
+
+  /**
+   * Initialize this relay with the specified connected sockets.
+   * @param clientSocket the socket connected to the client.
+   * @param targetSocket the socket connected to the target.
+   * @param stats the client statistics, or {@code null} if statistics are disabled.
+   * @param client the client on whose behalf data is relayed, or {@code null} if statistics are disabled.
+   * @param upstreamBuffer the buffer used to read from the client.
+   * @param downstreamBuffer the buffer used to read from the target.
+   * @param upstreamMeter measures the throughput from the client to the target, or {@code null} if buffer auto-tuning is disabled.
+   * @param downstreamMeter measures the throughput from the target to the client, or {@code null} if buffer auto-tuning is disabled.
+   */
+  DirectRelay(final Socket clientSocket, final Socket targetSocket, final ClientStats stats, final String client,
+    final AdaptiveBuffer upstreamBuffer, final AdaptiveBuffer downstreamBuffer, final BdpTuner.Meter upstreamMeter, final BdpTuner.Meter downstreamMeter) {
+    this.clientSocket = clientSocket;
+    this.targetSocket = targetSocket;
+    this.stats = stats;
+    this.client = client;
+    this.upstreamBuffer = upstreamBuffer;
+    this.downstreamBuffer = downstreamBuffer;
+    this.upstreamMeter = upstreamMeter;
+    this.downstreamMeter = downstreamMeter;
+  }
+
+  /**
+   * Start relaying data in both directions.
+   */
+  void start() {
+    final String name = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
+    if (debugEnabled) log.debug("starting direct relay between {} and {}", clientSocket, targetSocket);
+    new Thread(new Pump(clientSocket, targetSocket, upstreamBuffer, upstreamMeter), name + "-upstream").start();
+    new Thread(new Pump(targetSocket, clientSocket, downstreamBuffer, downstreamMeter), name + "-downstream").start();
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      if (debugEnabled) log.debug("closing direct relay between {} and {}", clientSocket, targetSocket);
+      Utils.closeSilent(clientSocket);
+      Utils.closeSilent(targetSocket);
+    }
+  }
+
+  /**
+   * Copies the data read from one socket to another, until the end of its input or until either is closed.
+   */
+  private class Pump implements Runnable {
+    /**
+     * The socket to read from.
+     */
+    private final Socket from;
+    /**
+     * The socket to write to.
+     */
+    private final Socket to;
+    /**
+     * The buffer used to read from {@link #from}.
+     */
+    private final AdaptiveBuffer buffer;
+    /**
+     * Measures the throughput, or {@code null} if buffer auto-tuning is disabled.
+     */
+    private final BdpTuner.Meter meter;
+
+    /**
+     * Initialize this pump with the specified sockets.
+     * @param from the socket to read from.
+     * @param to the socket to write to.
+     * @param buffer the buffer used to read from {@code from}.
+     * @param meter measures the throughput, or {@code null} if buffer auto-tuning is disabled.
+     */
+    Pump(final Socket from, final Socket to, final AdaptiveBuffer buffer, final BdpTuner.Meter meter) {
+      this.from = from;
+      this.to = to;
+      this.buffer = buffer;
+      this.meter = meter;
+    }
+
+    @Override
+    public void run() {
+      long pendingBytes = 0L;
+      boolean ended = false;
+      try {
+        final InputStream in = SocketWrapper.getInputStream(from);
+        final OutputStream out = SocketWrapper.getOutputStream(to);
+        byte[] data;
+        int n;
+        while (!closed.get() && ((n = in.read(data = buffer.get())) >= 0)) {
+          if (traceEnabled) log.trace("relaying {} bytes from {} to {}", n, from, to);
+          out.write(data, 0, n);
+          buffer.record(n);
+          if (meter != null) meter.record(n);
+          if (client != null) {
+            pendingBytes += n;
+            if (pendingBytes >= Forwarder.STATS_FLUSH_THRESHOLD) {
+              stats.bytesTransferred(client, pendingBytes);
+              pendingBytes = 0L;
+            }
+          }
+        }
+        if (debugEnabled) log.debug("EOF on {}", from);
+        ended = !closed.get();
+      } catch (final Exception e) {
+        if (debugEnabled && !closed.get()) log.debug("exception relaying from {} to {} : {}", from, to, e.toString());
+      } finally {
+        if (client != null) stats.bytesTransferred(client, pendingBytes);
+        if (ended) shutdownOutput();
+        else close();
+        if (running.decrementAndGet() == 0) close();
+        buffer.release();
+      }
+    }
+
+    /**
+     * Pass the end of the input on to the other socket, while the other direction goes on. If the other socket cannot
+     * be half-closed, both sockets are closed instead.
+     */
+    private void shutdownOutput() {
+      try {
+        to.shutdownOutput();
+      } catch (final IOException | UnsupportedOperationException e) {
+        if (debugEnabled) log.debug("could not shut down the output of {} : {}", to, e.toString());
+        close();
+      }
+    }
+  }
+}
@@ -18,8 +18,22 @@
 
 package org.forwarder4j;
 
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
+import org.forwarder4j.acl.AccessControl;
+import org.forwarder4j.acl.DestinationFilter;
+import org.forwarder4j.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,34 +49,493 @@ public class EntryDescriptor {
   /**
    * A simple pattern to validate the CLI args.
    */
-  private static final Pattern CLI_ARG_PATTERN = Pattern.compile("[0-9]+=.*");
+  private static final Pattern CLI_ARG_PATTERN = Pattern.compile("[^=\\s]+=.*");
+  /**
+   * Prefix for the forwarding definitions in the configuration.
+   */
+  public static final String SERVICE_PREFIX = "forwarder4j.service.";
+  /**
+   * Pattern for the names of the options of a forwarding definition, defined in the configuration
+   * as {@code forwarder4j.service.<local_port>.<option_name> = <value>}.
+   */
+  private static final Pattern OPTION_NAME_PATTERN = Pattern.compile("[a-z][a-z0-9_]*(\\.[a-z][a-z0-9_]*)*");
+  /**
+   * Name of the option which defines the comma-separated local addresses to listen on, including unix domain sockets
+   * in the form {@code unix:<path>}.
+   */
+  public static final String LISTEN_OPTION = "listen";
+  /**
+   * Name of the option which defines the comma-separated source addresses of the connections to the target.
+   */
+  public static final String SOURCE_ADDRESSES_OPTION = "source.addresses";
+  /**
+   * Name of the option which defines how long a UDP session can stay idle before it expires, in millis.
+   */
+  public static final String SESSION_TIMEOUT_OPTION = "session.timeout";
+  /**
+   * Name of the option which defines how long the clients of a proxy mode have to name their destination, in millis.
+   */
+  public static final String HANDSHAKE_TIMEOUT_OPTION = "handshake.timeout";
+  /**
+   * Name of the option which defines how long a router waits for the first bytes of a connection, in millis.
+   */
+  public static final String PEEK_TIMEOUT_OPTION = "peek.timeout";
+  /**
+   * Name of the option which defines the maximum number of bytes a router reads to recognize a protocol.
+   */
+  public static final String PEEK_SIZE_OPTION = "peek.size";
+  /**
+   * Name of the option which defines the other forwarder4j instance through which the connections are tunneled.
+   */
+  public static final String TUNNEL_OPTION = "tunnel";
+  /**
+   * Name of the option which defines the number of connections to the other end of the tunnel.
+   */
+  public static final String TUNNEL_CONNECTIONS_OPTION = "tunnel.connections";
+  /**
+   * Name of the option which defines the compression of the tunneled connections, "deflate" or "none".
+   */
+  public static final String TUNNEL_COMPRESSION_OPTION = "tunnel.compression";
+  /**
+   * Name of the option which defines the number of idle connections to the target opened in advance.
+   */
+  public static final String UPSTREAM_POOL_OPTION = "upstream.pool";
+  /**
+   * Name of the option which defines how long a connection opened in advance can stay idle, in millis.
+   */
+  public static final String UPSTREAM_POOL_IDLE_OPTION = "upstream.pool.idle";
+  /**
+   * Default time a connection opened in advance can stay idle, in millis.
+   */
+  private static final int DEFAULT_UPSTREAM_POOL_IDLE = 30_000;
+  /**
+   * Default number of connections to the other end of a tunnel.
+   */
+  private static final int DEFAULT_TUNNEL_CONNECTIONS = 2;
+  /**
+   * Default time a router waits for the first bytes of a connection, in millis.
+   */
+  private static final int DEFAULT_PEEK_TIMEOUT = 1000;
+  /**
+   * Default maximum number of bytes a router reads to recognize a protocol.
+   */
+  private static final int DEFAULT_PEEK_SIZE = 4096;
+  /**
+   * Name of the option which defines the minimum size of the read buffers.
+   */
+  public static final String BUFFER_MIN_OPTION = "buffer.min";
+  /**
+   * Name of the option which defines the maximum size of the read buffers.
+   */
+  public static final String BUFFER_MAX_OPTION = "buffer.max";
+  /**
+   * Name of the option which enables the auto-tuning of the buffer sizes.
+   */
+  public static final String BUFFER_AUTO_OPTION = "buffer.auto";
+  /**
+   * Name of the option which defines the socket profile of the client side.
+   */
+  public static final String CLIENT_PROFILE_OPTION = "socket.client";
+  /**
+   * Name of the option which defines the socket profile of the upstream side.
+   */
+  public static final String UPSTREAM_PROFILE_OPTION = "socket.upstream";
   /**
    * The port to forward through.
    */
   private final int port;
+  /**
+   * The last local port of a port range, equal to {@link #port} if this definition is not a range.
+   */
+  private final int lastPort;
+  /**
+   * The local addresses to listen on, empty to listen on all the local addresses.
+   */
+  private final List<InetAddress> listenAddresses;
+  /**
+   * The paths of the unix domain sockets to listen on.
+   */
+  private final List<String> listenPaths;
   /**
    * The target of the forwarded traffic.
    */
   private final HostPort target;
+  /**
+   * The options of this forwarding definition.
+   */
+  private final Config options;
+  /**
+   * The client access control, or {@code null} if all clients are accepted.
+   */
+  private final AccessControl accessControl;
+  /**
+   * The destinations allowed in a proxy mode, or {@code null} for a fixed target.
+   */
+  private final DestinationFilter destinationFilter;
+  /**
+   * The routes of the {@link ProxyMode#ROUTE} mode, or {@code null} for any other target.
+   */
+  private final Router router;
+  /**
+   * How data is relayed between the clients and the target.
+   */
+  private final RelayMode relayMode;
+  /**
+   * The minimum size of the read buffers, or 0 to use the global setting.
+   */
+  private final int bufferMinSize;
+  /**
+   * The maximum size of the read buffers, or 0 to use the global setting.
+   */
+  private final int bufferMaxSize;
+  /**
+   * Whether the buffer sizes are auto-tuned, or {@code null} to use the global setting.
+   */
+  private final Boolean bufferAutoTuning;
+  /**
+   * The name of the socket profile of the client side, or {@code null} for the default profile.
+   */
+  private final String clientProfile;
+  /**
+   * The name of the socket profile of the upstream side, or {@code null} for the default profile.
+   */
+  private final String upstreamProfile;
+  /**
+   * The source addresses of the connections to the target, or {@code null} to use the global setting.
+   */
+  private final SourceAddressPool sourcePool;
+  /**
+   * The forwarded transport protocol.
+   */
+  private final Protocol protocol;
+  /**
+   * How long a UDP session can stay idle before it expires, in millis, or 0 to use the global setting.
+   */
+  private final int sessionTimeout;
+  /**
+   * How long the clients of a proxy mode have to name their destination, in millis, or 0 to use the global setting.
+   */
+  private final int handshakeTimeout;
+  /**
+   * How long a router waits for the first bytes of a connection, in millis, or 0 to use the default.
+   */
+  private final int peekTimeout;
+  /**
+   * The maximum number of bytes a router reads to recognize a protocol, or 0 to use the default.
+   */
+  private final int peekSize;
+  /**
+   * The version of the PROXY protocol header sent to the target, or {@code null} if no header is sent.
+   */
+  private final ProxyProtocol proxyProtocol;
+  /**
+   * Whether the clients send a PROXY protocol header before their data.
+   */
+  private final boolean proxyProtocolAccepted;
+  /**
+   * The TLS settings, or {@code null} if TLS is neither terminated nor originated.
+   */
+  private final TlsContext tlsContext;
+  /**
+   * The other forwarder4j instance through which the connections are tunneled, or {@code null} if they are not.
+   */
+  private final HostPort tunnel;
+  /**
+   * The number of connections to the other end of the tunnel, or 0 to use the default.
+   */
+  private final int tunnelConnections;
+  /**
+   * Whether the tunneled connections compress their data.
+   */
+  private final boolean tunnelCompressed;
+  /**
+   * The number of idle connections to the target opened in advance, or 0 if none are.
+   */
+  private final int upstreamPoolSize;
+  /**
+   * How long a connection opened in advance can stay idle, in millis, or 0 to use the default.
+   */
+  private final int upstreamPoolIdle;
 
   /**
-   * Initialize with the specified local port and target host:port.
+   * Initialize with the specified local port, target host:port and options.
    * @param port the local port to bind to.
+   * @param lastPort the last local port of a port range, equal to {@code port} if this definition is not a range.
+   * @param addresses the local addresses to listen on, in addition to those of the {@link #LISTEN_OPTION} option.
+   * @param paths the paths of the unix domain sockets to listen on, in addition to those of the {@link #LISTEN_OPTION} option.
    * @param target the target end point to forward to/from.
+   * @param options the options of this forwarding definition.
    */
-  private EntryDescriptor(final int port, final HostPort target) {
+  private EntryDescriptor(final int port, final int lastPort, final List<InetAddress> addresses, final List<String> paths, final HostPort target, final Config options) {
+    if ((port <= 0) || (lastPort < port) || (lastPort > 65535)) {
+      final String message = String.format("'%s' is not a valid local port range, ignoring it", (lastPort == port) ? port : port + "-" + lastPort);
+      log.error(message);
+      throw new IllegalArgumentException(message);
+    }
+    if ((target.getLastPort() != target.getPort()) && (target.getLastPort() - target.getPort() != lastPort - port)) {
+      final String message = String.format("the target port range of %s does not match the local port range, ignoring it", target);
+      log.error(message);
+      throw new IllegalArgumentException(message);
+    }
     this.port = port;
+    this.lastPort = lastPort;
     this.target = target;
+    this.options = options;
+    final List<InetAddress> allAddresses = new ArrayList<>(addresses);
+    final List<String> allPaths = new ArrayList<>(paths);
+    final String listen = options.getString(LISTEN_OPTION);
+    if (listen != null) {
+      for (final String value: listen.split(",")) {
+        final String spec = value.trim();
+        if (spec.isEmpty()) continue;
+        if (spec.startsWith(UnixSocket.PREFIX)) {
+          final String path = parseOption(port, "listen address", () -> parseUnixPath(spec));
+          if (!allPaths.contains(path)) allPaths.add(path);
+        } else {
+          final InetAddress address = parseOption(port, "listen address", () -> parseAddress(spec));
+          if (!allAddresses.contains(address)) allAddresses.add(address);
+        }
+      }
+    }
+    this.listenAddresses = Collections.unmodifiableList(allAddresses);
+    this.listenPaths = Collections.unmodifiableList(allPaths);
+    this.accessControl = parseOption(port, "access control", () -> AccessControl.from(options));
+    this.relayMode = parseOption(port, "relay mode", () -> RelayMode.from(options));
+    this.bufferMinSize = parseOption(port, "minimum buffer size", () -> parseSize(options, BUFFER_MIN_OPTION));
+    this.bufferMaxSize = parseOption(port, "maximum buffer size", () -> parseSize(options, BUFFER_MAX_OPTION));
+    this.bufferAutoTuning = parseOption(port, "buffer auto-tuning", () -> parseBoolean(options, BUFFER_AUTO_OPTION));
+    this.clientProfile = parseOption(port, "client socket profile", () -> parseProfile(options, CLIENT_PROFILE_OPTION));
+    this.upstreamProfile = parseOption(port, "upstream socket profile", () -> parseProfile(options, UPSTREAM_PROFILE_OPTION));
+    final List<InetAddress> sources = parseOption(port, "source address", () -> parseAddresses(options, SOURCE_ADDRESSES_OPTION));
+    this.sourcePool = sources.isEmpty() ? null : SourceAddressPool.of(sources);
+    this.protocol = parseOption(port, "protocol", () -> Protocol.from(options));
+    this.sessionTimeout = parseOption(port, "session timeout", () -> parseSize(options, SESSION_TIMEOUT_OPTION));
+    this.destinationFilter = parseOption(port, "destinations", () -> DestinationFilter.from(options));
+    this.handshakeTimeout = parseOption(port, "handshake timeout", () -> parseSize(options, HANDSHAKE_TIMEOUT_OPTION));
+    this.router = parseOption(port, "routes", () -> Router.from(options));
+    this.peekTimeout = parseOption(port, "peek timeout", () -> parseSize(options, PEEK_TIMEOUT_OPTION));
+    this.peekSize = parseOption(port, "peek size", () -> parseSize(options, PEEK_SIZE_OPTION));
+    this.proxyProtocol = parseOption(port, "PROXY protocol", () -> ProxyProtocol.from(options));
+    this.proxyProtocolAccepted = Boolean.TRUE.equals(parseOption(port, "PROXY protocol", () -> parseBoolean(options, ProxyProtocol.ACCEPT_OPTION)));
+    this.tlsContext = parseOption(port, "TLS", () -> TlsContext.from(options));
+    this.tunnel = parseOption(port, "tunnel", () -> parseTunnel(options));
+    this.tunnelConnections = parseOption(port, "tunnel connections", () -> parseSize(options, TUNNEL_CONNECTIONS_OPTION));
+    this.tunnelCompressed = parseOption(port, "tunnel compression", () -> parseCompression(options));
+    this.upstreamPoolSize = parseOption(port, "upstream pool size", () -> parseSize(options, UPSTREAM_POOL_OPTION));
+    this.upstreamPoolIdle = parseOption(port, "upstream pool idle timeout", () -> parseSize(options, UPSTREAM_POOL_IDLE_OPTION));
+    if ((bufferMaxSize > 0) && (bufferMinSize > bufferMaxSize)) {
+      final String message = String.format("invalid buffer sizes for port %d: %s is greater than %s, ignoring it", port, BUFFER_MIN_OPTION, BUFFER_MAX_OPTION);
+      log.error(message);
+      throw new IllegalArgumentException(message);
+    }
+    if (target.getProxyMode() != null) {
+      String error = null;
+      if (protocol != Protocol.TCP) error = target + " can only forward tcp";
+      else if (target.getProxyMode() == ProxyMode.ROUTE) {
+        if (router == null) error = String.format("the %s option is required by %s", Router.OPTION, target);
+      }
+      // an open proxy must be a deliberate choice
+      else if (destinationFilter == null) error = String.format("the %s option is required by %s", DestinationFilter.OPTION, target);
+      if (error != null) {
+        final String message = String.format("invalid definition for port %d: %s, ignoring it", port, error);
+        log.error(message);
+        throw new IllegalArgumentException(message);
+      }
+    }
+    if (tunnel != null) {
+      String error = null;
+      if (protocol != Protocol.TCP) error = "a tunnel can only forward tcp";
+      else if ((target.getProxyMode() != null) || target.isUnix()) error = "the target of a tunnel must be a host and port";
+      else if (proxyProtocol != null) error = "a tunnel cannot send PROXY protocol headers";
+      if (error != null) {
+        final String message = String.format("invalid definition for port %d: %s, ignoring it", port, error);
+        log.error(message);
+        throw new IllegalArgumentException(message);
+      }
+    } else if (tunnelCompressed) {
+      final String message = String.format("invalid definition for port %d: the %s option requires the %s option, ignoring it", port, TUNNEL_COMPRESSION_OPTION, TUNNEL_OPTION);
+      log.error(message);
+      throw new IllegalArgumentException(message);
+    }
+    if ((upstreamPoolSize > 0) && ((protocol != Protocol.TCP) || (target.getProxyMode() != null) || target.isUnix() || (target.getLastPort() != target.getPort()) || (tunnel != null))) {
+      final String message = String.format("invalid definition for port %d: the %s option requires a single tcp host and port target, without tunnel, ignoring it", port, UPSTREAM_POOL_OPTION);
+      log.error(message);
+      throw new IllegalArgumentException(message);
+    }
+    if (((proxyProtocol != null) || proxyProtocolAccepted || (tlsContext != null)) && (protocol != Protocol.TCP)) {
+      final String message = String.format("invalid definition for port %d: the PROXY protocol and TLS can only be used with tcp, ignoring it", port);
+      log.error(message);
+      throw new IllegalArgumentException(message);
+    }
+    if (!listenPaths.isEmpty() || target.isUnix()) {
+      String error = null;
+      if (!UnixSocket.isSupported()) error = "unix domain sockets require Java 16 or later";
+      else if (protocol != Protocol.TCP) error = "unix domain sockets can only forward tcp";
+      else if (!listenPaths.isEmpty() && isRange()) error = "a unix domain socket cannot listen for a port range";
+      if (error != null) {
+        final String message = String.format("invalid definition for port %d: %s, ignoring it", port, error);
+        log.error(message);
+        throw new IllegalArgumentException(message);
+      }
+    }
+  }
+
+  /**
+   * Parse an option of a forwarding definition, reporting any error with the local port it applies to.
+   * @param <T> the type of the parsed option value.
+   * @param port the local port of the forwarding definition.
+   * @param name a description of the option for the error message.
+   * @param parser the function which parses the option value.
+   * @return the parsed option value.
+   * @throws IllegalArgumentException if the option value is invalid.
+   */
+  private static <T> T parseOption(final int port, final String name, final Supplier<T> parser) {
+    try {
+      return parser.get();
+    } catch (final IllegalArgumentException e) {
+      final String message = String.format("invalid %s for port %d: %s, ignoring it", name, port, e.getMessage());
+      log.error(message);
+      throw new IllegalArgumentException(message);
+    }
+  }
+
+  /**
+   * Parse an option which holds a comma-separated list of addresses.
+   * @param options the options of the forwarding definition.
+   * @param name the name of the option.
+   * @return the addresses, empty if the option is not defined.
+   * @throws IllegalArgumentException if any of the addresses is invalid.
+   */
+  private static List<InetAddress> parseAddresses(final Config options, final String name) {
+    final String value = options.getString(name);
+    final List<InetAddress> result = new ArrayList<>();
+    if (value == null) return result;
+    for (final String address: value.split(",")) {
+      if (!address.trim().isEmpty()) result.add(parseAddress(address));
+    }
+    return result;
+  }
+
+  /**
+   * Parse a host name or IP address. IPv6 addresses may be enclosed in square brackets.
+   * @param value the address to parse.
+   * @return the corresponding address.
+   * @throws IllegalArgumentException if the value is not a valid address or the host is unknown.
+   */
+  private static InetAddress parseAddress(final String value) {
+    String host = value.trim();
+    if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+    if (host.isEmpty()) throw new IllegalArgumentException("'" + value + "' is not a valid address");
+    try {
+      return InetAddress.getByName(host);
+    } catch (@SuppressWarnings("unused") final UnknownHostException e) {
+      throw new IllegalArgumentException("'" + value + "' is not a valid address");
+    }
+  }
+
+  /**
+   * Parse the path of a unix domain socket.
+   * @param value the path, preceded with {@code unix:}.
+   * @return the path without its prefix.
+   * @throws IllegalArgumentException if the path is empty.
+   */
+  private static String parseUnixPath(final String value) {
+    final String path = value.trim().substring(UnixSocket.PREFIX.length());
+    if (path.isEmpty()) throw new IllegalArgumentException("'" + value + "' is not a valid unix socket path");
+    return path;
+  }
+
+  /**
+   * Parse the tunnel option.
+   * @param options the options of the forwarding definition.
+   * @return the other end of the tunnel, or {@code null} if the option is not defined.
+   * @throws IllegalArgumentException if the option value is not a host and port.
+   */
+  private static HostPort parseTunnel(final Config options) {
+    final String value = options.getString(TUNNEL_OPTION);
+    if (value == null) return null;
+    final HostPort endpoint = HostPort.from(value.trim());
+    if ((endpoint.getProxyMode() != null) || endpoint.isUnix() || (endpoint.getLastPort() != endpoint.getPort()))
+      throw new IllegalArgumentException("'" + value + "' is not a valid tunnel end point");
+    return endpoint;
+  }
+
+  /**
+   * Parse the tunnel compression option.
+   * @param options the options of the forwarding definition.
+   * @return whether the tunneled connections compress their data.
+   * @throws IllegalArgumentException if the compression is not supported.
+   */
+  private static boolean parseCompression(final Config options) {
+    final String value = options.getString(TUNNEL_COMPRESSION_OPTION);
+    if ((value == null) || "none".equalsIgnoreCase(value.trim())) return false;
+    if ("deflate".equalsIgnoreCase(value.trim())) return true;
+    throw new IllegalArgumentException("'" + value + "' is not a supported compression, use deflate or none");
+  }
+
+  /**
+   * Parse a boolean option.
+   * @param options the options of the forwarding definition.
+   * @param name the name of the option.
+   * @return the option value, or {@code null} if the option is not defined.
+   * @throws IllegalArgumentException if the value is neither "true" nor "false".
+   */
+  private static Boolean parseBoolean(final Config options, final String name) {
+    final String value = options.getString(name);
+    if (value == null) return null;
+    if ("true".equalsIgnoreCase(value.trim())) return Boolean.TRUE;
+    if ("false".equalsIgnoreCase(value.trim())) return Boolean.FALSE;
+    throw new IllegalArgumentException("'" + value + "' is not a valid boolean value");
+  }
+
+  /**
+   * Parse a socket profile option.
+   * @param options the options of the forwarding definition.
+   * @param name the name of the option.
+   * @return the name of the profile, or {@code null} if the option is not defined.
+   * @throws IllegalArgumentException if the profile is not defined.
+   */
+  private static String parseProfile(final Config options, final String name) {
+    final String value = options.getString(name);
+    if (value == null) return null;
+    final String profile = value.trim();
+    if (!SocketProfile.exists(profile)) throw new IllegalArgumentException("socket profile '" + profile + "' is not defined");
+    return profile;
+  }
+
+  /**
+   * Parse a size option in bytes.
+   * @param options the options of the forwarding definition.
+   * @param name the name of the option.
+   * @return the size in bytes, or 0 if the option is not defined.
+   * @throws IllegalArgumentException if the value is not a strictly positive integer.
+   */
+  private static int parseSize(final Config options, final String name) {
+    final String value = options.getString(name);
+    if (value == null) return 0;
+    final int size;
+    try {
+      size = Integer.parseInt(value.trim());
+    } catch (@SuppressWarnings("unused") final NumberFormatException e) {
+      throw new IllegalArgumentException("'" + value + "' is not a valid size");
+    }
+    if (size <= 0) throw new IllegalArgumentException("'" + value + "' is not a valid size");
+    return size;
   }
 
   /**
    * Factory method to create an {@code EntryDescriptor} from a string. 
-   * @param desc a string in the form {@code local_port=host:port}.
+   * @param desc a string in the form {@code local_port=host:port} or {@code local_address:local_port=host:port}.
+   * Several local addresses with the same port can be specified, separated with commas. A local address can also be a
+   * unix domain socket in the form {@code unix:<path>:local_port}, and the target can be {@code unix:<path>}. The local part can start
+   * with {@code udp:} or {@code tcp:} to select the forwarded protocol. A range of contiguous local
+   * ports is specified as {@code first_port-last_port=host:port} to forward all of them to the same target port, or
+   * {@code first_port-last_port=host:first_target_port-last_target_port} to forward each of them to a distinct target port.
    * @return a new {@code EntryDescriptor} instance.
    */
   public static EntryDescriptor from(final String desc) {
     if (!CLI_ARG_PATTERN.matcher(desc).matches()) {
-      throw new IllegalArgumentException("");
+      throw new IllegalArgumentException(String.format("'%s' is not a valid forwarding definition, ignoring it", desc));
     }
     final int idx = desc.indexOf('=');
     return from(desc.substring(0, idx), desc.substring(idx + 1));
@@ -75,16 +548,133 @@ public class EntryDescriptor {
    * @return a new {@code EntryDescriptor} instance.
    */
   public static EntryDescriptor from(final String portStr, final String target) {
-    int port = -1;
+    return from(portStr, target, null);
+  }
+
+  /**
+   * Factory method to create an {@code EntryDescriptor} from 2 strings representing the local port and host:port target,
+   * along with a set of options.
+   * @param portStr a string representing a port number or a range of ports in the form {@code first-last}, optionally
+   * preceded with a local address in the form {@code address:port}, or a comma-separated list of such addresses with the same port.
+   * @param target a string in the form {@code host:port}.
+   * @param options the options of the forwarding definition, may be {@code null}.
+   * @return a new {@code EntryDescriptor} instance.
+   */
+  public static EntryDescriptor from(final String portStr, final String target, final Config options) {
+    int port = -1, lastPort = -1;
+    final List<InetAddress> addresses = new ArrayList<>();
+    final List<String> paths = new ArrayList<>();
+    Config allOptions = (options == null) ? new Config() : options;
+    String locals = portStr.trim();
+    for (final Protocol protocol: Protocol.values()) {
+      if (!locals.regionMatches(true, 0, protocol.prefix(), 0, protocol.prefix().length())) continue;
+      locals = locals.substring(protocol.prefix().length());
+      final String value = allOptions.getString(Protocol.OPTION);
+      if ((value != null) && !protocol.name().equalsIgnoreCase(value.trim())) {
+        final String message = String.format("'%s' conflicts with the %s option '%s', ignoring it", portStr, Protocol.OPTION, value);
+        log.error(message);
+        throw new IllegalArgumentException(message);
+      }
+      // the prefix is equivalent to the protocol option, so both forms of a definition are equal
+      if (protocol != Protocol.TCP) {
+        allOptions = new Config();
+        if (options != null) allOptions.putAll(options);
+        allOptions.setString(Protocol.OPTION, protocol.name().toLowerCase());
+      }
+      break;
+    }
+    for (final String local: locals.split(",")) {
+      final String spec = local.trim();
+      final int idx = spec.lastIndexOf(':');
+      final String ports = spec.substring(idx + 1);
+      final int idx2 = ports.indexOf('-');
+      final int localPort, localLastPort;
+      try {
+        localPort = Integer.valueOf((idx2 < 0) ? ports : ports.substring(0, idx2));
+        localLastPort = (idx2 < 0) ? localPort : Integer.valueOf(ports.substring(idx2 + 1));
+      } catch(NumberFormatException e) {
+        final String message = String.format("%s. '%s' is not a valid port number, ignoring it", e, portStr);
+        log.error(message);
+        throw new IllegalArgumentException(message);
+      }
+      if ((port >= 0) && ((localPort != port) || (localLastPort != lastPort))) {
+        final String message = String.format("'%s' defines more than one local port, ignoring it", portStr);
+        log.error(message);
+        throw new IllegalArgumentException(message);
+      }
+      port = localPort;
+      lastPort = localLastPort;
+      if ((idx >= 0) && spec.startsWith(UnixSocket.PREFIX)) {
+        final String path = parseOption(port, "listen address", () -> parseUnixPath(spec.substring(0, idx)));
+        if (!paths.contains(path)) paths.add(path);
+      } else if (idx >= 0) {
+        final InetAddress address = parseOption(port, "listen address", () -> parseAddress(spec.substring(0, idx)));
+        if (!addresses.contains(address)) addresses.add(address);
+      }
+    }
+    final HostPort hp;
     try {
-      port = Integer.valueOf(portStr.trim());
-    } catch(NumberFormatException e) {
-      final String message = String.format("%s. '%s' is not a valid port number, ignoring it", e, portStr);
+      hp = HostPort.from(target);
+    } catch (final RuntimeException e) {
+      final String message = String.format("'%s' is not a valid target, ignoring it (%s)", target, e.getMessage());
       log.error(message);
       throw new IllegalArgumentException(message);
     }
-    final HostPort hp = HostPort.from(target);
-    return new EntryDescriptor(port, hp);
+    return new EntryDescriptor(port, lastPort, addresses, paths, hp, allOptions);
+  }
+
+  /**
+   * Factory method to create an {@code EntryDescriptor} from a local port, a target and a set of options.
+   * @param port the local port.
+   * @param target the target host and port.
+   * @param options the options of the forwarding definition, may be {@code null}.
+   * @return a new {@code EntryDescriptor} instance.
+   */
+  public static EntryDescriptor from(final int port, final HostPort target, final Config options) {
+    return new EntryDescriptor(port, port, Collections.<InetAddress>emptyList(), Collections.<String>emptyList(), target, (options == null) ? new Config() : options);
+  }
+
+  /**
+   * Create the forwarding definitions found in the specified configuration, in the form
+   * {@code forwarder4j.service.<local_port> = <host>:<port>} or {@code forwarder4j.service.<local_address>\:<local_port> = <host>:<port>},
+   * along with their options in the form
+   * {@code forwarder4j.service.<local_port>.<option_name> = <value>}. Invalid definitions are reported and ignored.
+   * @param config the configuration to parse.
+   * @return a list of {@code EntryDescriptor} instances, possibly empty.
+   */
+  public static List<EntryDescriptor> fromConfig(final Config config) {
+    final Config defs = config.filter((name, value) -> (name != null) && name.startsWith(SERVICE_PREFIX));
+    final NavigableSet<String> keys = new TreeSet<>();
+    for (final String name: defs.stringPropertyNames()) keys.add(name.substring(SERVICE_PREFIX.length()));
+    final List<EntryDescriptor> result = new ArrayList<>();
+    for (final String key: keys) {
+      if (isOption(key, keys)) continue;
+      try {
+        final Config options = new Config();
+        // all the keys that start with "<key>.", since '/' is the character that follows '.'
+        for (final String other: keys.subSet(key + '.', false, key + '/', false)) {
+          final String optionName = other.substring(key.length() + 1);
+          if (OPTION_NAME_PATTERN.matcher(optionName).matches()) options.setString(optionName, defs.getProperty(SERVICE_PREFIX + other));
+        }
+        result.add(from(key, defs.getProperty(SERVICE_PREFIX + key), options));
+      } catch (final IllegalArgumentException e) {
+        System.out.println(e.getMessage());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Determine whether the specified configuration key denotes an option of another forwarding definition.
+   * @param key the key to check, without the {@link #SERVICE_PREFIX}.
+   * @param keys all the configuration keys, without the {@link #SERVICE_PREFIX}.
+   * @return {@code true} if the key is an option, {@code false} otherwise.
+   */
+  private static boolean isOption(final String key, final Set<String> keys) {
+    for (int idx = key.indexOf('.'); idx >= 0; idx = key.indexOf('.', idx + 1)) {
+      if (keys.contains(key.substring(0, idx)) && OPTION_NAME_PATTERN.matcher(key.substring(idx + 1)).matches()) return true;
+    }
+    return false;
   }
 
   /**
@@ -94,10 +684,264 @@ public class EntryDescriptor {
     return port;
   }
 
+  /**
+   * @return the last local port of a port range, equal to {@link #getPort()} if this definition is not a range.
+   */
+  public int getLastPort() {
+    return lastPort;
+  }
+
+  /**
+   * @return whether this definition forwards a range of local ports.
+   */
+  public boolean isRange() {
+    return lastPort > port;
+  }
+
+  /**
+   * Determine whether this definition and the specified one are bound to the same local ports and addresses.
+   * @param other the definition to compare with.
+   * @return {@code true} if both definitions have the same local ports and listen addresses, {@code false} otherwise.
+   */
+  public boolean hasSameBindings(final EntryDescriptor other) {
+    return (port == other.port) && (lastPort == other.lastPort) && listenAddresses.equals(other.listenAddresses) && listenPaths.equals(other.listenPaths);
+  }
+
+  /**
+   * Determine whether this definition and the specified one may be bound to some of the same local ports or unix domain
+   * sockets, in which case one of them must release its bindings before the other can be bound.
+   * @param other the definition to compare with.
+   * @return {@code true} if both definitions have local ports or unix domain socket paths in common, {@code false} otherwise.
+   */
+  public boolean overlapsBindings(final EntryDescriptor other) {
+    if (listensOnPorts() && other.listensOnPorts() && (port <= other.lastPort) && (other.port <= lastPort)) return true;
+    for (final String path: listenPaths) {
+      if (other.listenPaths.contains(path)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the local addresses to listen on, empty to listen on all the local addresses unless {@link #getListenPaths()} is not empty.
+   */
+  public List<InetAddress> getListenAddresses() {
+    return listenAddresses;
+  }
+
+  /**
+   * @return the paths of the unix domain sockets to listen on.
+   */
+  public List<String> getListenPaths() {
+    return listenPaths;
+  }
+
+  /**
+   * @return whether the local ports are bound, which is the case unless only unix domain sockets are listened on.
+   */
+  public boolean listensOnPorts() {
+    return !listenAddresses.isEmpty() || listenPaths.isEmpty();
+  }
+
   /**
    * @return the target of the forwarded traffic.
    */
   public HostPort getTarget() {
     return target;
   }
+
+  /**
+   * @return the options of this forwarding definition, never {@code null}.
+   */
+  public Config getOptions() {
+    return options;
+  }
+
+  /**
+   * @return the client access control, or {@code null} if all clients are accepted.
+   */
+  public AccessControl getAccessControl() {
+    return accessControl;
+  }
+
+  /**
+   * @return the destinations allowed in a proxy mode, or {@code null} for a fixed target.
+   */
+  public DestinationFilter getDestinationFilter() {
+    return destinationFilter;
+  }
+
+  /**
+   * @return how long the clients of a proxy mode have to name their destination, in millis, the global {@link Utils#HANDSHAKE_TIMEOUT} if it is not defined.
+   */
+  public int getHandshakeTimeout() {
+    return (handshakeTimeout > 0) ? handshakeTimeout : Utils.HANDSHAKE_TIMEOUT;
+  }
+
+  /**
+   * @return the routes of the {@link ProxyMode#ROUTE} mode, or {@code null} if they are not defined.
+   */
+  public Router getRouter() {
+    return router;
+  }
+
+  /**
+   * @return the version of the PROXY protocol header sent to the target, or {@code null} if no header is sent.
+   */
+  public ProxyProtocol getProxyProtocol() {
+    return proxyProtocol;
+  }
+
+  /**
+   * @return the other forwarder4j instance through which the connections are tunneled, or {@code null} if they are not.
+   */
+  public HostPort getTunnel() {
+    return tunnel;
+  }
+
+  /**
+   * @return the number of connections to the other end of the tunnel.
+   */
+  public int getTunnelConnections() {
+    return (tunnelConnections > 0) ? tunnelConnections : DEFAULT_TUNNEL_CONNECTIONS;
+  }
+
+  /**
+   * @return whether the tunneled connections compress their data.
+   */
+  public boolean isTunnelCompressed() {
+    return tunnelCompressed;
+  }
+
+  /**
+   * @return the number of idle connections to the target opened in advance, or 0 if none are.
+   */
+  public int getUpstreamPoolSize() {
+    return upstreamPoolSize;
+  }
+
+  /**
+   * @return how long a connection opened in advance can stay idle, in millis.
+   */
+  public int getUpstreamPoolIdle() {
+    return (upstreamPoolIdle > 0) ? upstreamPoolIdle : DEFAULT_UPSTREAM_POOL_IDLE;
+  }
+
+  /**
+   * @return the TLS settings, or {@code null} if TLS is neither terminated nor originated.
+   */
+  public TlsContext getTlsContext() {
+    return tlsContext;
+  }
+
+  /**
+   * @return whether the clients send a PROXY protocol header before their data.
+   */
+  public boolean isProxyProtocolAccepted() {
+    return proxyProtocolAccepted;
+  }
+
+  /**
+   * @return how long a router waits for the first bytes of a connection, in millis.
+   */
+  public int getPeekTimeout() {
+    return (peekTimeout > 0) ? peekTimeout : DEFAULT_PEEK_TIMEOUT;
+  }
+
+  /**
+   * @return the maximum number of bytes a router reads to recognize a protocol.
+   */
+  public int getPeekSize() {
+    return (peekSize > 0) ? peekSize : DEFAULT_PEEK_SIZE;
+  }
+
+  /**
+   * @return how data is relayed between the clients and the target.
+   */
+  public RelayMode getRelayMode() {
+    return relayMode;
+  }
+
+  /**
+   * @return the minimum size of the read buffers, the global {@link Utils#BUFFER_MIN_SIZE} if it is not defined.
+   */
+  public int getBufferMinSize() {
+    return (bufferMinSize > 0) ? bufferMinSize : Math.min(Utils.BUFFER_MIN_SIZE, getBufferMaxSize());
+  }
+
+  /**
+   * @return the maximum size of the read buffers, the global {@link Utils#BUFFER_MAX_SIZE} if it is not defined.
+   */
+  public int getBufferMaxSize() {
+    return (bufferMaxSize > 0) ? bufferMaxSize : Math.max(Utils.BUFFER_MAX_SIZE, bufferMinSize);
+  }
+
+  /**
+   * @return whether the buffer sizes are tuned from the measured bandwidth-delay product of the target,
+   * the global {@link Utils#BUFFER_AUTO_TUNING} if it is not defined.
+   */
+  public boolean isBufferAutoTuning() {
+    return (bufferAutoTuning != null) ? bufferAutoTuning : Utils.BUFFER_AUTO_TUNING;
+  }
+
+  /**
+   * @return the socket profile of the client side.
+   */
+  public SocketProfile getClientProfile() {
+    return SocketProfile.get(clientProfile);
+  }
+
+  /**
+   * @return the socket profile of the upstream side.
+   */
+  public SocketProfile getUpstreamProfile() {
+    return SocketProfile.get(upstreamProfile);
+  }
+
+  /**
+   * @return the source addresses of the connections to the target, the global {@link SourceAddressPool#getDefault()} if it is not defined.
+   */
+  public SourceAddressPool getSourcePool() {
+    return (sourcePool != null) ? sourcePool : SourceAddressPool.getDefault();
+  }
+
+  /**
+   * @return the forwarded transport protocol.
+   */
+  public Protocol getProtocol() {
+    return protocol;
+  }
+
+  /**
+   * @return how long a UDP session can stay idle before it expires, in millis, the global {@link Utils#UDP_SESSION_TIMEOUT} if it is not defined.
+   */
+  public int getSessionTimeout() {
+    return (sessionTimeout > 0) ? sessionTimeout : Utils.UDP_SESSION_TIMEOUT;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * port + target.hashCode();
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) return true;
+    if ((obj == null) || (getClass() != obj.getClass())) return false;
+    final EntryDescriptor other = (EntryDescriptor) obj;
+    return hasSameBindings(other) && target.equals(other.target) && options.equals(other.options);
+  }
+
+  @Override
+  public String toString() {
+    final String ports = isRange() ? port + "-" + lastPort : Integer.toString(port);
+    final String prefix = (protocol == Protocol.TCP) ? "" : protocol.prefix();
+    if (listenAddresses.isEmpty() && listenPaths.isEmpty()) return prefix + ports + "=" + target;
+    final StringJoiner joiner = new StringJoiner(",", prefix, "=" + target);
+    for (final InetAddress address: listenAddresses) {
+      final String host = address.getHostAddress();
+      joiner.add(((address instanceof Inet6Address) ? "[" + host + "]" : host) + ':' + ports);
+    }
+    for (final String path: listenPaths) joiner.add(UnixSocket.PREFIX + path + ':' + ports);
+    return joiner.toString();
+  }
 }
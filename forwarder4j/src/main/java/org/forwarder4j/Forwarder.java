@@ -21,14 +21,38 @@ package org.forwarder4j;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.List;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.net.ssl.SSLSocket;
+
+import org.forwarder4j.acl.AccessControl;
 import org.forwarder4j.admin.Admin;
+import org.forwarder4j.buffer.AdaptiveBuffer;
+import org.forwarder4j.buffer.BdpTuner;
+import org.forwarder4j.buffer.BufferPool;
+import org.forwarder4j.stats.ClientStats;
+import org.forwarder4j.stats.CompressionStats;
+import org.forwarder4j.stats.HandshakeStats;
 import org.forwarder4j.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,21 +71,28 @@ public class Forwarder implements Runnable, Closeable {
    */
   private static final boolean debugEnabled = log.isDebugEnabled();
   /**
-   * Prefix for all configuration properties.
+   * Number of bytes a tunnel accumulates before updating the client statistics.
    */
-  private final static String PREFIX = "forwarder4j.";
+  static final long STATS_FLUSH_THRESHOLD = 64 * 1024L;
   /**
    * The administration service.
    */
   private static final Admin admin = new Admin();
+  /**
+   * Performs the handshakes of the accepted connections for all the forwarders, along with the connections to the target
+   * of those accepted by a selector thread and to the destination of the tunneled streams, with at most
+   * {@link Utils#HANDSHAKE_THREADS} threads. The connections accepted while all the threads are busy wait for one of
+   * them to be available.
+   */
+  private static final ThreadPoolExecutor handshakeExecutor = newHandshakeExecutor();
   /**
    * The incoming local port.
    */
   private final int inPort;
   /**
-   * The destination remote host and port.
+   * The forwarding definition, which holds the destination and options. It can be replaced while this forwarder is running.
    */
-  private final HostPort outDest;
+  private volatile EntryDescriptor desc;
   /**
    * Whether this forwarder is closed.
    */
@@ -71,9 +102,45 @@ public class Forwarder implements Runnable, Closeable {
    */
   private AtomicBoolean bound = new AtomicBoolean(false);
   /**
-   * A server socket bound to {@link #inPort}.
+   * The server sockets bound to {@link #inPort}, one for each listen address.
+   */
+  private volatile List<ServerSocket> servers = Collections.emptyList();
+  /**
+   * The selector which accepts the connections of several server sockets, or {@code null} if there is a single one.
+   */
+  private volatile Selector selector;
+  /**
+   * The server channels bound to unix domain sockets, mapped to the path of their socket file.
+   */
+  private volatile Map<ServerSocketChannel, String> unixServers = Collections.emptyMap();
+  /**
+   * Relays the datagrams of a UDP forwarding definition, or {@code null} for a TCP one.
+   */
+  private volatile UdpRelay udpRelay;
+  /**
+   * Statistics on the clients of this forwarder, or {@code null} if statistics are disabled.
+   */
+  private final ClientStats stats = ClientStats.ENABLED ? new ClientStats() : null;
+  /**
+   * Statistics on the TLS handshakes with the clients.
+   */
+  private final HandshakeStats clientHandshakes = new HandshakeStats();
+  /**
+   * Statistics on the TLS handshakes with the target.
+   */
+  private final HandshakeStats upstreamHandshakes = new HandshakeStats();
+  /**
+   * Statistics on the compression of the tunneled connections.
+   */
+  private final CompressionStats compression = new CompressionStats();
+  /**
+   * The entry side of the tunnel through which the connections are relayed, or {@code null} if they are not.
+   */
+  private Tunnel tunnel;
+  /**
+   * The idle connections to the target opened in advance, or {@code null} if there are none.
    */
-  private ServerSocket server;
+  private UpstreamPool upstreamPool;
 
   /**
    * This is the entry point for the application.
@@ -84,13 +151,11 @@ public class Forwarder implements Runnable, Closeable {
     try {
       new Thread(admin, "Admin").start();
 
-      final Map<Integer, String> ports = new TreeMap<>();
-      
+      final List<EntryDescriptor> allEntries = new ArrayList<>();
       if ((args != null) && (args.length > 0)) {
         for (final String arg: args) {
           try {
-            final EntryDescriptor desc = EntryDescriptor.from(arg);
-            admin.createForwarder(desc, ports);
+            allEntries.add(EntryDescriptor.from(arg));
           } catch (final IllegalArgumentException e) {
             System.out.println(e.getMessage());
           }
@@ -98,22 +163,16 @@ public class Forwarder implements Runnable, Closeable {
       }
 
       final Config config = Config.getConfiguration();
-      final String servicePrefix = PREFIX + "service.";
-      final Config defs = config.filter((name, value) -> (name != null) && name.startsWith(servicePrefix));
-      final Set<String> names = defs.stringPropertyNames();
-      if ((names != null) && !names.isEmpty()) {
-        for (String name: names) {
-          try {
-            final String s = name.substring(servicePrefix.length());
-            final EntryDescriptor desc = EntryDescriptor.from(s, defs.getProperty(name));
-            admin.createForwarder(desc, ports);
-          } catch (final IllegalArgumentException e) {
-            System.out.println(e.getMessage());
-          }
-        }
+      final List<EntryDescriptor> entries = EntryDescriptor.fromConfig(config);
+      allEntries.addAll(entries);
+      admin.startAll(allEntries);
+      if (config.getBoolean(ConfigWatcher.WATCH_PROPERTY, false)) {
+        final Thread thread = new Thread(new ConfigWatcher(admin, entries), "ConfigWatcher");
+        thread.setDaemon(true);
+        thread.start();
       }
 
-      if (ports.isEmpty()) {
+      if (allEntries.isEmpty()) {
         System.out.println("No entry defined");
       }
     } catch (Exception e) {
@@ -127,53 +186,458 @@ public class Forwarder implements Runnable, Closeable {
    * @param outDest the destination remote host and port.
    */
   public Forwarder(final int inPort, final HostPort outDest) {
-    this.inPort = inPort;
-    this.outDest = outDest;
+    this(EntryDescriptor.from(inPort, outDest, null));
+  }
+
+  /**
+   * Initialize this forwarder with the specified forwarding definition.
+   * @param desc the forwarding definition.
+   */
+  public Forwarder(final EntryDescriptor desc) {
+    this.inPort = desc.getPort();
+    this.desc = desc;
+  }
+
+  /**
+   * Replace the forwarding definition of this forwarder. The connections accepted from then on use the new destination
+   * and options, while the established connections are left untouched.
+   * @param newDesc the new forwarding definition, which must have the same local ports and listen addresses.
+   */
+  public void reconfigure(final EntryDescriptor newDesc) {
+    if (!newDesc.hasSameBindings(desc))
+      throw new IllegalArgumentException(String.format("cannot reconfigure %s with %s", desc, newDesc));
+    if (debugEnabled) log.debug("reconfiguring {} with {}", this, newDesc);
+    desc = newDesc;
+    if (bound.get()) upstreamPool(newDesc);
+  }
+
+  /**
+   * Bind this forwarder to its local port, without accepting connections yet. This method is called by {@link #run()}
+   * if this forwarder is not yet bound, and allows binding several forwarders before any of them accepts connections.
+   * <p>Each port of the forwarding definition is bound on each of its listen addresses, or on all the local addresses
+   * if it has none. If any of them cannot be bound, those already bound are released before retrying.
+   * <p>When the port is in use, the bind is retried up to {@link Utils#BIND_ATTEMPTS} times, with an exponential backoff
+   * whose delays are randomized, so the retries of many ports released at once are spread over time.
+   * @throws Exception if the local port could not be bound.
+   */
+  public void bind() throws Exception {
+    final int max = Utils.BIND_ATTEMPTS;
+    long delay = Utils.BIND_RETRY_DELAY;
+    int attempts = 0;
+    while (!bound.get() && !closed.get() && (attempts < max)) {
+      final EntryDescriptor desc = this.desc;
+      final SocketProfile profile = desc.getClientProfile();
+      final List<ServerSocket> sockets = new ArrayList<>();
+      final Map<ServerSocketChannel, String> unixSockets = new LinkedHashMap<>();
+      final List<InetAddress> addresses = desc.getListenAddresses();
+      // several server sockets are accepted from by a single selector thread, so they must be created from channels
+      final boolean channels = desc.isRange() || (addresses.size() + desc.getListenPaths().size() > 1);
+      try {
+        if (desc.getProtocol() == Protocol.UDP) udpRelay = new UdpRelay(desc, () -> this.desc, stats);
+        else {
+          for (int port=inPort; desc.listensOnPorts() && (port<=desc.getLastPort()); port++) {
+            if (addresses.isEmpty()) bind(sockets, new InetSocketAddress(port), profile, channels);
+            else for (final InetAddress address: addresses) bind(sockets, new InetSocketAddress(address, port), profile, channels);
+          }
+          for (final String path: desc.getListenPaths()) unixSockets.put(UnixSocket.bind(path, profile.getBacklog()), path);
+          servers = sockets;
+          unixServers = unixSockets;
+        }
+        bound.set(true);
+        if (debugEnabled) log.debug("bound {} on attempt {}/{}", desc, attempts + 1, max);
+      } catch (final IOException e) {
+        for (final ServerSocket socket: sockets) Utils.closeSilent(socket);
+        unixSockets.forEach(UnixSocket::unbind);
+        if (!(e instanceof BindException)) throw e;
+        attempts++;
+        if (attempts >= max) {
+          if (debugEnabled) log.debug("failed to bind to port {} after {} attempts", inPort, max);
+          throw e;
+        }
+        final long sleep = delay / 2L + ThreadLocalRandom.current().nextLong(delay / 2L + 1L);
+        if (debugEnabled) log.debug("could not bind to port {} on attempt {}/{}, retrying in {} ms", inPort, attempts, max, sleep);
+        Thread.sleep(sleep);
+        delay = Math.min(2L * delay, Utils.BIND_RETRY_MAX_DELAY);
+      }
+    }
+  }
+
+  /**
+   * Create a server socket and bind it to the specified address.
+   * @param sockets the list to which the server socket is added, even if it could not be bound.
+   * @param address the local address and port to bind to.
+   * @param profile the socket options to apply before binding.
+   * @param channel whether to create the server socket from a {@link ServerSocketChannel}.
+   * @throws IOException if the server socket could not be bound.
+   */
+  private static void bind(final List<ServerSocket> sockets, final InetSocketAddress address, final SocketProfile profile, final boolean channel) throws IOException {
+    final ServerSocket socket = channel ? ServerSocketChannel.open().socket() : new ServerSocket();
+    sockets.add(socket);
+    profile.applyTo(socket);
+    socket.bind(address, profile.getBacklog());
   }
 
   @Override
   public void run() {
     try {
-      if (debugEnabled) log.debug(String.format("Forwarding local port %d to %s", inPort, outDest));
-      final int max = 5;
-      int attempts = 0;
-      while (!bound.get() && (attempts < max)) {
-        try {
-          server = new ServerSocket(inPort);
-          bound.set(true);
-          if (debugEnabled) log.debug("bound to port {} on attempt {}/{}", inPort, attempts + 1, max);
-        } catch (final BindException e) {
-          attempts++;
-          if (attempts >= max) {
-            if (debugEnabled) log.debug("failed to bind to port {} after {} attempts", inPort, max);
-            throw e;
+      if (debugEnabled) log.debug(String.format("Forwarding local port %d to %s", inPort, desc.getTarget()));
+      if (!bound.get()) bind();
+      final List<ServerSocket> servers = this.servers;
+      if (closed.get()) {
+        // closed while binding
+        for (final ServerSocket server: servers) server.close();
+        unixServers.forEach(UnixSocket::unbind);
+        if (udpRelay != null) udpRelay.close();
+        return;
+      }
+      // the connections to the target are opened in advance of the first client
+      upstreamPool(desc);
+      if (udpRelay != null) {
+        udpRelay.run();
+        log.info("Forwarder [{}] was closed", this);
+      } else if ((servers.size() == 1) && unixServers.isEmpty()) {
+        final ServerSocket server = servers.get(0);
+        while (!closed.get()) {
+          Socket socket = null;
+          try {
+            socket = server.accept();
+            accepted(socket, true);
+          } catch (Exception e) {
+            if (socket != null) Utils.closeSilent(socket);
+            if (!closed.get()) log.error(e.getMessage(), e);
+            else log.info("Forwarder [{}] was closed", this);
           }
-          if (debugEnabled) log.debug("could not bind to port {} on attempt {}/{}", inPort, attempts, max);
-          Thread.sleep(1000L);
         }
+      } else acceptAll(servers, unixServers);
+    } catch (final Exception e) {
+      closed.set(true);
+      log.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Accept the connections of several server sockets from a single thread, until this forwarder is closed. All the
+   * ports and addresses share the same access control, statistics and relay.
+   * @param servers the server sockets, created from channels.
+   * @param unixServers the server channels bound to unix domain sockets, mapped to the path of their socket file.
+   * @throws IOException if the selector cannot be opened.
+   */
+  private void acceptAll(final List<ServerSocket> servers, final Map<ServerSocketChannel, String> unixServers) throws IOException {
+    try (final Selector selector = Selector.open()) {
+      for (final ServerSocket server: servers) {
+        final ServerSocketChannel channel = server.getChannel();
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT);
       }
-      server.setReceiveBufferSize(Utils.SOCKET_BUFFER_SIZE);
+      for (final Map.Entry<ServerSocketChannel, String> entry: unixServers.entrySet()) {
+        entry.getKey().configureBlocking(false);
+        // the attachment identifies the unix domain sockets
+        entry.getKey().register(selector, SelectionKey.OP_ACCEPT, entry.getValue());
+      }
+      this.selector = selector;
       while (!closed.get()) {
-        Socket socket = null;
-        try {
-          socket = server.accept();
-          socket.setReceiveBufferSize(Utils.SOCKET_BUFFER_SIZE);
-          socket.setSendBufferSize(Utils.SOCKET_BUFFER_SIZE);
-          if (debugEnabled) log.debug("accepted {}", socket);
-          final Connection in = new Connection(socket);
-          final Connection out = new Connection(outDest.getHost(), outDest.getPort());
-          in.addConnectionListener(new Listener(out));
-          out.addConnectionListener(new Listener(in));
-          out.run();
-          in.run();
-        } catch (Exception e) {
-          if (!closed.get()) log.error(e.getMessage(), e);
-          else log.info("Forwarder [{}] was closed", this);
+        selector.select();
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          final SelectionKey key = it.next();
+          it.remove();
+          Socket socket = null;
+          try {
+            final SocketChannel channel = key.isValid() ? ((ServerSocketChannel) key.channel()).accept() : null;
+            if (channel == null) continue;
+            // the relay uses blocking I/O
+            channel.configureBlocking(true);
+            socket = (key.attachment() == null) ? channel.socket() : new UnixSocket(channel, (String) key.attachment(), inPort);
+            // the selector thread accepts for all the ports, so it never waits for a target to be connected
+            accepted(socket, false);
+          } catch (Exception e) {
+            if (socket != null) Utils.closeSilent(socket);
+            if (!closed.get()) log.error(e.getMessage(), e);
+          }
+        }
+      }
+      log.info("Forwarder [{}] was closed", this);
+    }
+  }
+
+  /**
+   * Handle a newly accepted connection: check it against the access control, then relay it to the target.
+   * @param socket the socket connected to the client.
+   * @param connect whether a fixed target can be connected to by the calling thread, which then holds up the accepts
+   * of this forwarder until it is connected. Otherwise, the connection is made in the handshake pool.
+   * @throws IOException if the target could not be reached.
+   */
+  private void accepted(final Socket socket, final boolean connect) throws IOException {
+    final EntryDescriptor desc = this.desc;
+    final AccessControl accessControl = desc.getAccessControl();
+    if ((accessControl != null) && !accessControl.isAllowed(socket.getInetAddress())) {
+      if (debugEnabled) log.debug("client {} rejected by the access control of {}", socket, this);
+      Utils.closeSilent(socket);
+      return;
+    }
+    desc.getClientProfile().applyTo(socket);
+    if (debugEnabled) log.debug("accepted {}", socket);
+    if (connect && (desc.getTarget().getProxyMode() == null) && !desc.isProxyProtocolAccepted() && (desc.getTlsContext() == null)) {
+      relay(socket, desc, fixedTarget(socket, desc), null, null);
+    } else {
+      // the handshakes, and the connections to the target, take place in the handshake pool, so they cannot hold up the accepts
+      executeHandshake(() -> negotiate(socket, desc));
+    }
+  }
+
+  /**
+   * Create the pool of threads which perform the handshakes.
+   * @return a new executor whose idle threads terminate after a minute.
+   */
+  private static ThreadPoolExecutor newHandshakeExecutor() {
+    final int threads = Utils.HANDSHAKE_THREADS;
+    final AtomicInteger threadCount = new AtomicInteger(0);
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      final Thread thread = new Thread(r, "Handshake-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Run a handshake in the handshake pool, after resizing it if {@link Utils#HANDSHAKE_THREADS} changed when the
+   * configuration was reloaded.
+   * @param task the handshake to run.
+   */
+  static void executeHandshake(final Runnable task) {
+    final int threads = Utils.HANDSHAKE_THREADS;
+    if (handshakeExecutor.getMaximumPoolSize() != threads) {
+      synchronized(handshakeExecutor) {
+        // the core size can never exceed the maximum size
+        if (threads > handshakeExecutor.getMaximumPoolSize()) {
+          handshakeExecutor.setMaximumPoolSize(threads);
+          handshakeExecutor.setCorePoolSize(threads);
+        } else {
+          handshakeExecutor.setCorePoolSize(threads);
+          handshakeExecutor.setMaximumPoolSize(threads);
         }
       }
+    }
+    handshakeExecutor.execute(task);
+  }
+
+  /**
+   * Get the target of a connection for a forwarding definition with a fixed target.
+   * @param socket the socket connected to the client.
+   * @param desc the forwarding definition.
+   * @return the target to connect to.
+   */
+  private HostPort fixedTarget(final Socket socket, final EntryDescriptor desc) {
+    // within a port range, the target port has the same offset as the local port, unless all go to the same target port
+    return desc.getTarget().offset(socket.getLocalPort() - inPort);
+  }
+
+  /**
+   * Read the PROXY protocol header of a client if it sends one, perform the TLS handshake if TLS is terminated, then
+   * the handshake through which the client names its destination if the target is a proxy mode, and relay its connection.
+   * @param socket the socket connected to the client.
+   * @param desc the forwarding definition.
+   */
+  private void negotiate(final Socket socket, final EntryDescriptor desc) {
+    ProxyHandshake handshake = null;
+    try {
+      // the PROXY protocol header is sent in clear, before the TLS handshake
+      final ProxyProtocol.Header header = desc.isProxyProtocolAccepted() ? readProxyHeader(socket, desc) : null;
+      final TlsContext tls = desc.getTlsContext();
+      final Socket client = ((tls != null) && tls.isTerminated()) ? tls.accept(socket, desc.getHandshakeTimeout(), clientHandshakes) : socket;
+      if (desc.getTarget().getProxyMode() == ProxyMode.TUNNEL) {
+        // the connection of another instance, which carries the connections of many clients
+        new MuxConnection(client, (host, port) -> openTunneled(desc, host, port), false, compression).start();
+        return;
+      }
+      if (desc.getTarget().getProxyMode() == null) {
+        relay(client, desc, fixedTarget(socket, desc), null, header);
+        return;
+      }
+      handshake = ProxyHandshake.create(client, desc);
+      final HostPort destination = handshake.readRequest();
+      if (destination == null) Utils.closeSilent(client);
+      else relay(client, desc, destination, handshake, header);
     } catch (final Exception e) {
-      closed.set(true);
-      log.error(e.getMessage(), e);
+      if (debugEnabled) log.debug("{} handshake failed for {} : {}", desc.getTarget(), socket, e.toString());
+      Utils.closeSilent(socket);
+    } finally {
+      if (handshake != null) handshake.release();
+    }
+  }
+
+  /**
+   * Connect to the target of the specified forwarding definition and relay the data between it and a client.
+   * @param socket the socket connected to the client.
+   * @param desc the forwarding definition.
+   * @param outDest the target to connect to.
+   * @param handshake the handshake through which the client named the target, {@code null} for a fixed target.
+   * @param header the PROXY protocol header received from the client, or {@code null} if it did not send one.
+   * @throws IOException if the target could not be reached.
+   */
+  private void relay(final Socket socket, final EntryDescriptor desc, final HostPort outDest, final ProxyHandshake handshake, final ProxyProtocol.Header header) throws IOException {
+    // behind a load balancer, the statistics are those of the original clients
+    final InetAddress clientAddress = ((header != null) && (header.getSource() != null)) ? header.getSource().getAddress() : socket.getInetAddress();
+    final String client = (stats == null) ? null : stats.connectionAccepted(clientAddress);
+    if (desc.getTunnel() != null) {
+      tunnel(desc).open(socket, outDest, stats, client);
+      return;
+    }
+    final SocketProfile profile = desc.getUpstreamProfile();
+    // a unix domain socket has no network round trip to tune the buffers for
+    final BdpTuner tuner = (desc.isBufferAutoTuning() && !outDest.isUnix()) ? BdpTuner.forTarget(outDest, profile.getReceiveBufferSize()) : null;
+    final long start = System.nanoTime();
+    final TlsContext tls = desc.getTlsContext();
+    Socket targetSocket = null;
+    boolean pooled = false;
+    try {
+      // only the fixed targets have connections opened in advance
+      final UpstreamPool pool = (handshake == null) ? upstreamPool(desc) : null;
+      if (pool != null) targetSocket = pool.take(socket);
+      pooled = (targetSocket != null);
+      if (!pooled) targetSocket = outDest.isUnix() ? UnixSocket.connect(outDest.getHost(), profile)
+        : SocketWrapper.connect(outDest.getHost(), outDest.getPort(), profile, (tuner == null) ? 0 : tuner.getBufferSize(), desc.getSourcePool());
+      // the header goes before any data, in clear before the TLS handshake
+      if (desc.getProxyProtocol() != null) sendProxyHeader(socket, targetSocket, desc.getProxyProtocol(), header);
+      // a connection opened in advance may have done its handshake already
+      if ((tls != null) && tls.isOriginated() && !(targetSocket instanceof SSLSocket)) targetSocket = tls.connect(targetSocket, outDest.getHost(), outDest.getPort(), desc.getHandshakeTimeout(), upstreamHandshakes);
+    } catch (final IOException e) {
+      if (targetSocket != null) Utils.closeSilent(targetSocket);
+      if (handshake != null) handshake.failed(e);
+      throw e;
+    }
+    if (handshake != null) {
+      try {
+        handshake.connected(targetSocket);
+      } catch (final IOException e) {
+        Utils.closeSilent(targetSocket);
+        throw e;
+      }
+    }
+    final int min = desc.getBufferMinSize();
+    int max = desc.getBufferMaxSize();
+    BdpTuner.Meter upstreamMeter = null, downstreamMeter = null;
+    if (tuner != null) {
+      // the connections opened in advance were measured by the pool
+      if (!pooled) tuner.connected(System.nanoTime() - start);
+      // the read buffers follow the estimate, within the sizes of the forwarding definition
+      max = Math.max(min, Math.min(Math.min(tuner.getBufferSize(), max), BufferPool.MAX_SIZE));
+      upstreamMeter = tuner.newMeter(targetSocket);
+      downstreamMeter = tuner.newMeter(targetSocket);
+    }
+    if (desc.getRelayMode() == RelayMode.DIRECT) {
+      new DirectRelay(socket, targetSocket, stats, client, new AdaptiveBuffer(min, max), new AdaptiveBuffer(min, max), upstreamMeter, downstreamMeter).start();
+    } else {
+      final Connection in = new Connection(socket, new AdaptiveBuffer(min, max));
+      final Connection out = new Connection(targetSocket, new AdaptiveBuffer(min, max));
+      in.addConnectionListener(new Listener(out, client, upstreamMeter));
+      out.addConnectionListener(new Listener(in, client, downstreamMeter));
+      out.run();
+      in.run();
+    }
+  }
+
+  /**
+   * Get the pool of connections opened in advance of a forwarding definition, replacing that of a previous definition.
+   * @param desc the forwarding definition.
+   * @return the pool, or {@code null} if the definition has none, is no longer current, or this forwarder is closed.
+   */
+  private synchronized UpstreamPool upstreamPool(final EntryDescriptor desc) {
+    if ((upstreamPool == null) || (upstreamPool.getDescriptor() != desc)) {
+      // a connection accepted before a reconfiguration does not bring back the pool of the previous definition
+      if (desc != this.desc) return null;
+      if (upstreamPool != null) upstreamPool.close();
+      upstreamPool = null;
+      if ((desc.getUpstreamPoolSize() > 0) && !closed.get()) {
+        upstreamPool = new UpstreamPool(desc, upstreamHandshakes);
+        upstreamPool.start();
+      }
+    }
+    return upstreamPool;
+  }
+
+  /**
+   * @return the pool of connections to the target opened in advance, or {@code null} if there is none.
+   */
+  synchronized UpstreamPool getUpstreamPool() {
+    return upstreamPool;
+  }
+
+  /**
+   * Get the entry side of the tunnel of a forwarding definition, replacing that of a previous definition.
+   * @param desc the forwarding definition.
+   * @return the tunnel.
+   */
+  private synchronized Tunnel tunnel(final EntryDescriptor desc) {
+    if ((tunnel == null) || (tunnel.getDescriptor() != desc)) {
+      if (tunnel != null) tunnel.retire();
+      tunnel = new Tunnel(desc, upstreamHandshakes, compression);
+    }
+    return tunnel;
+  }
+
+  /**
+   * Connect to the destination of a tunneled connection, on the exit side of a tunnel.
+   * @param desc the forwarding definition.
+   * @param host the host name of the destination.
+   * @param port the port of the destination.
+   * @return the socket connected to the destination.
+   * @throws IOException if the destination is not allowed, or could not be reached.
+   */
+  private static Socket openTunneled(final EntryDescriptor desc, final String host, final int port) throws IOException {
+    // the name is only resolved if a rule may allow it, as for the other proxy modes
+    final InetAddress address = ((port > 0) && (port <= 65535)) ? desc.getDestinationFilter().resolve(host, null, port) : null;
+    if (address == null) throw new IOException(String.format("destination %s:%d is not allowed", host, port));
+    return SocketWrapper.connect(address.getHostAddress(), port, desc.getUpstreamProfile(), 0, desc.getSourcePool());
+  }
+
+  /**
+   * Read the PROXY protocol header sent by a client before its data.
+   * @param socket the socket connected to the client.
+   * @param desc the forwarding definition.
+   * @return the received header.
+   * @throws IOException if the header could not be read, or is not valid.
+   */
+  private static ProxyProtocol.Header readProxyHeader(final Socket socket, final EntryDescriptor desc) throws IOException {
+    final byte[] buffer = BufferPool.acquire(BufferPool.sizeClass(ProxyProtocol.MAX_HEADER_SIZE));
+    try {
+      socket.setSoTimeout(desc.getHandshakeTimeout());
+      final ProxyProtocol.Header header = ProxyProtocol.read(socket.getInputStream(), buffer);
+      socket.setSoTimeout(0);
+      if (debugEnabled) log.debug("received PROXY protocol header {} from {}", header, socket);
+      return header;
+    } finally {
+      BufferPool.release(buffer);
+    }
+  }
+
+  /**
+   * Send a PROXY protocol header to the target, with the addresses of the client or those received from it.
+   * @param socket the socket connected to the client.
+   * @param targetSocket the socket connected to the target.
+   * @param version the version of the header.
+   * @param header the PROXY protocol header received from the client, or {@code null} if it did not send one.
+   * @throws IOException if the target could not be written to.
+   */
+  private static void sendProxyHeader(final Socket socket, final Socket targetSocket, final ProxyProtocol version, final ProxyProtocol.Header header) throws IOException {
+    final InetSocketAddress source, destination;
+    if ((header != null) && (header.getSource() != null)) {
+      source = header.getSource();
+      destination = header.getDestination();
+    } else if (socket instanceof UnixSocket) {
+      // the addresses are unknown to the target, which then uses those of its own connection
+      source = destination = null;
+    } else {
+      source = (InetSocketAddress) socket.getRemoteSocketAddress();
+      destination = (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+    final byte[] buffer = BufferPool.acquire(BufferPool.sizeClass(ProxyProtocol.MAX_HEADER_SIZE));
+    try {
+      SocketWrapper.getOutputStream(targetSocket).write(buffer, 0, version.encode(buffer, source, destination));
+    } finally {
+      BufferPool.release(buffer);
     }
   }
 
@@ -186,7 +650,16 @@ public class Forwarder implements Runnable, Closeable {
     if (closed.compareAndSet(false, true)) {
       if (debugEnabled) log.debug("closing Forwarder[{}]", this);
       bound.set(false);
-      server.close();
+      for (final ServerSocket server: servers) Utils.closeSilent(server);
+      unixServers.forEach(UnixSocket::unbind);
+      if (udpRelay != null) udpRelay.close();
+      final Selector selector = this.selector;
+      if (selector != null) selector.wakeup();
+      synchronized(this) {
+        if (tunnel != null) tunnel.retire();
+        if (upstreamPool != null) upstreamPool.close();
+        upstreamPool = null;
+      }
     }
   }
 
@@ -198,21 +671,39 @@ public class Forwarder implements Runnable, Closeable {
      * The connection to forward data to.
      */
     private final Connection otherConnection;
+    /**
+     * The client on whose behalf data is forwarded, or {@code null} if statistics are disabled.
+     */
+    private final String client;
+    /**
+     * Bytes forwarded but not yet accounted for in the client statistics.
+     */
+    private final AtomicLong pendingBytes = new AtomicLong(0L);
+    /**
+     * Measures the throughput for the buffer auto-tuning, or {@code null} if auto-tuning is disabled.
+     */
+    private final BdpTuner.Meter meter;
 
     /**
      * Intiialize this listener with the specified connection.
      * @param otherConnection he connection to forward data to.
+     * @param client the client on whose behalf data is forwarded, or {@code null} if statistics are disabled.
+     * @param meter measures the throughput for the buffer auto-tuning, or {@code null} if auto-tuning is disabled.
      */
-    public Listener(final Connection otherConnection) {
+    public Listener(final Connection otherConnection, final String client, final BdpTuner.Meter meter) {
       this.otherConnection = otherConnection;
+      this.client = client;
+      this.meter = meter;
     }
 
     @Override
     public void incomingData(final ConnectionEvent event) {
       try {
-        final int len = event.getData().length;
+        final int len = event.getLength();
         if (debugEnabled) log.debug("writing {} bytes to {}", len, otherConnection);
-        otherConnection.offer(event.getData());
+        otherConnection.offer(event.getData(), len);
+        if (meter != null) meter.record(len);
+        if ((client != null) && (pendingBytes.addAndGet(len) >= STATS_FLUSH_THRESHOLD)) flushStats();
       } catch(Exception e) {
         log.debug(e.getMessage(), e);
       }
@@ -221,17 +712,25 @@ public class Forwarder implements Runnable, Closeable {
     @Override
     public void throwableRaised(final ConnectionEvent event) {
       if (debugEnabled) log.debug("received throwable from {} : {}", event.getConnection(), event.getThrowable().toString());
+      if (client != null) flushStats();
       try {
         otherConnection.close();
       } catch(Exception e) {
         log.debug(e.getMessage(), e);
       }
     }
+
+    /**
+     * Add the pending byte count to the client statistics.
+     */
+    private void flushStats() {
+      stats.bytesTransferred(client, pendingBytes.getAndSet(0L));
+    }
   }
 
   @Override
   public String toString() {
-    return Integer.toString(inPort) + "=" + outDest;
+    return desc.toString();
   }
 
   /**
@@ -259,6 +758,42 @@ public class Forwarder implements Runnable, Closeable {
   }
 
   public HostPort getOutDest() {
-    return outDest;
+    return desc.getTarget();
+  }
+
+  /**
+   * @return the current forwarding definition of this forwarder.
+   */
+  public EntryDescriptor getDescriptor() {
+    return desc;
+  }
+
+  /**
+   * Get the statistics on the clients of this forwarder.
+   * @return a {@link ClientStats} instance, or {@code null} if statistics are disabled.
+   */
+  public ClientStats getStats() {
+    return stats;
+  }
+
+  /**
+   * @return the statistics on the TLS handshakes with the clients.
+   */
+  public HandshakeStats getClientHandshakes() {
+    return clientHandshakes;
+  }
+
+  /**
+   * @return the statistics on the TLS handshakes with the target.
+   */
+  public HandshakeStats getUpstreamHandshakes() {
+    return upstreamHandshakes;
+  }
+
+  /**
+   * @return the statistics on the compression of the tunneled connections.
+   */
+  public CompressionStats getCompressionStats() {
+    return compression;
   }
 }
@@ -19,7 +19,8 @@
 package org.forwarder4j;
 
 /**
- * Representation of a host + port information.
+ * Representation of a host + port information, of the path of a unix domain socket, or of a proxy mode in which the
+ * clients name their destination.
  * @author Laurent Cohen
  */
 public class HostPort {
@@ -31,42 +32,130 @@ public class HostPort {
    * The prot number.
    */
   private final int port;
+  /**
+   * The last port of a port range, equal to {@link #port} if this is not a range.
+   */
+  private final int lastPort;
   /**
    * Whether the host is an ipv6 address.
    */
   private boolean ipv6Address;
+  /**
+   * Whether the host is the path of a unix domain socket, in which case the port is 0.
+   */
+  private final boolean unix;
+  /**
+   * The proxy mode through which the clients name their destination, or {@code null} if this is a fixed target.
+   */
+  private final ProxyMode proxyMode;
 
   /**
    * Initialize with the specified host and port.
    * @param host the host or ip address.
    * @param port the port number.
+   * @param lastPort the last port of a port range, equal to {@code port} if this is not a range.
+   */
+  private HostPort(String host, int port, final int lastPort, final boolean ipv6Address) {
+    this(host, port, lastPort, ipv6Address, false);
+  }
+
+  /**
+   * Initialize with the specified host and port.
+   * @param host the host or ip address, or the path of a unix domain socket.
+   * @param port the port number.
+   * @param lastPort the last port of a port range, equal to {@code port} if this is not a range.
+   * @param unix whether the host is the path of a unix domain socket.
    */
-  private HostPort(String host, int port, final boolean ipv6Address) {
+  private HostPort(String host, int port, final int lastPort, final boolean ipv6Address, final boolean unix) {
+    this(host, port, lastPort, ipv6Address, unix, null);
+  }
+
+  /**
+   * Initialize with the specified host and port.
+   * @param host the host or ip address, the path of a unix domain socket, or the keyword of a proxy mode.
+   * @param port the port number.
+   * @param lastPort the last port of a port range, equal to {@code port} if this is not a range.
+   * @param unix whether the host is the path of a unix domain socket.
+   * @param proxyMode the proxy mode through which the clients name their destination, or {@code null} for a fixed target.
+   */
+  private HostPort(String host, int port, final int lastPort, final boolean ipv6Address, final boolean unix, final ProxyMode proxyMode) {
     this.ipv6Address = ipv6Address;
     this.host = host;
     this.port = port;
+    this.lastPort = lastPort;
+    this.unix = unix;
+    this.proxyMode = proxyMode;
   }
 
   /**
    * Factory method which converts a string into a {@link HostPort} instance.
-   * @param source a string in the form {@code <host>:<port>}.
+   * @param source a string in the form {@code <host>:<port>}, {@code <host>:<first_port>-<last_port>}, {@code unix:<path>},
+   * or the keyword of a {@link ProxyMode}.
    * @return a {@link HostPort} instance.
    */
   public static HostPort from(final String source) {
     String src = source.trim();
+    final ProxyMode mode = ProxyMode.fromTarget(src);
+    if (mode != null) return new HostPort(mode.keyword(), 0, 0, false, false, mode);
+    if (src.startsWith(UnixSocket.PREFIX)) {
+      final String path = src.substring(UnixSocket.PREFIX.length());
+      if (path.isEmpty()) throw new IllegalArgumentException(String.format("'%s' is not a valid unix socket path", source));
+      return new HostPort(path, 0, 0, false, true);
+    }
     boolean ipv6 = false;
     if (src.startsWith("[")) {
       src = src.replace("[", "").replace("]", "");
       ipv6 = true;
     }
     final int idx = src.lastIndexOf(':');
-    return new HostPort(src.substring(0, idx), Integer.valueOf(src.substring(idx + 1)), ipv6);
+    final String ports = src.substring(idx + 1);
+    final int idx2 = ports.indexOf('-');
+    final int port = Integer.valueOf((idx2 < 0) ? ports : ports.substring(0, idx2));
+    final int lastPort = (idx2 < 0) ? port : Integer.valueOf(ports.substring(idx2 + 1));
+    if (lastPort < port) throw new IllegalArgumentException(String.format("'%s' is not a valid port range", ports));
+    return new HostPort(src.substring(0, idx), port, lastPort, ipv6);
+  }
+
+  /**
+   * Create a {@link HostPort} for a single host and port.
+   * @param host the host name or IP address.
+   * @param port the port number.
+   * @return a {@link HostPort} instance.
+   */
+  public static HostPort of(final String host, final int port) {
+    return new HostPort(host, port, port, host.indexOf(':') >= 0);
+  }
+
+  /**
+   * Get the target of a port within a range.
+   * @param offset the offset of the port from the first port of the range.
+   * @return a {@link HostPort} with the port at the specified offset, or this object if it is not a range.
+   */
+  public HostPort offset(final int offset) {
+    if (lastPort == port) return this;
+    return new HostPort(host, port + offset, port + offset, ipv6Address);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * host.hashCode() + port) + lastPort;
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) return true;
+    if ((obj == null) || (getClass() != obj.getClass())) return false;
+    final HostPort other = (HostPort) obj;
+    return (port == other.port) && (lastPort == other.lastPort) && (ipv6Address == other.ipv6Address) && (unix == other.unix) && host.equals(other.host);
   }
 
   @Override
   public String toString() {
-    if (ipv6Address) return "[" + host + "]:" + port;
-    return host + ":" + port;
+    if (unix) return UnixSocket.PREFIX + host;
+    if (proxyMode != null) return host;
+    final String ports = (lastPort == port) ? Integer.toString(port) : port + "-" + lastPort;
+    if (ipv6Address) return "[" + host + "]:" + ports;
+    return host + ":" + ports;
   }
 
   public String getHost() {
@@ -76,4 +165,25 @@ public class HostPort {
   public int getPort() {
     return port;
   }
+
+  /**
+   * @return the last port of a port range, equal to {@link #getPort()} if this is not a range.
+   */
+  public int getLastPort() {
+    return lastPort;
+  }
+
+  /**
+   * @return whether this is the path of a unix domain socket, given by {@link #getHost()}.
+   */
+  public boolean isUnix() {
+    return unix;
+  }
+
+  /**
+   * @return the proxy mode through which the clients name their destination, or {@code null} if this is a fixed target.
+   */
+  public ProxyMode getProxyMode() {
+    return proxyMode;
+  }
 }
@@ -0,0 +1,212 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The handshake of an HTTP tunnel: the client sends a {@code CONNECT host:port HTTP/1.1} request, which is answered
+ * with a {@code 200} response once the destination is connected. The request head is read into the handshake buffer
+ * and scanned incrementally as it arrives, and the responses are pre-encoded, so the only object created is the
+ * destination. The headers of the request, such as {@code Proxy-Authorization}, are ignored.
+ * @author Laurent Cohen
+ */
+class HttpConnectHandshake extends ProxyHandshake {
+  /**
+   * Logger for this class.
+   */
+  private static final Logger log = LoggerFactory.getLogger(HttpConnectHandshake.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static final boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * Size of the handshake buffer, which is the maximum size of a request head.
+   */
+  private static final int BUFFER_SIZE = 8192;
+  /**
+   * The expected start of the request line.
+   */
+  private static final byte[] CONNECT = ascii("CONNECT ");
+  /**
+   * The expected start of the protocol version.
+   */
+  private static final byte[] VERSION = ascii("HTTP/1.");
+  /**
+   * The responses to the client.
+   */
+  private static final byte[] ESTABLISHED = ascii("HTTP/1.1 200 Connection established\r\n\r\n"),
+    BAD_REQUEST = error("400 Bad Request"), FORBIDDEN = error("403 Forbidden"), METHOD_NOT_ALLOWED = error("405 Method Not Allowed"),
+    HEAD_TOO_LARGE = error("431 Request Header Fields Too Large"), BAD_GATEWAY = error("502 Bad Gateway"), GATEWAY_TIMEOUT = error("504 Gateway Timeout");
+
+  /**
+   * Initialize this handshake.
+   * @param socket the socket connected to the client.
+   * @param desc the forwarding definition.
+   * @throws IOException if the socket streams cannot be obtained.
+   */
+  HttpConnectHandshake(final Socket socket, final EntryDescriptor desc) throws IOException {
+    super(socket, desc, BUFFER_SIZE);
+  }
+
+  @Override
+  HostPort negotiate() throws IOException {
+    int length = 0, headEnd = -1;
+    while (headEnd < 0) {
+      if (length == buffer.length) {
+        send(HEAD_TOO_LARGE);
+        return null;
+      }
+      final int n = in.read(buffer, length, buffer.length - length);
+      if (n < 0) throw new EOFException("connection closed by " + socket + " during the handshake");
+      // a line break may be split between two reads, so the end of the previous read is scanned again
+      headEnd = findHeadEnd(Math.max(0, length - 2), length + n);
+      length += n;
+    }
+    // tunneled data sent along with the request
+    pendingOffset = headEnd;
+    pendingLength = length - headEnd;
+    // request line: CONNECT host:port HTTP/1.1
+    if (!startsWith(0, headEnd, CONNECT)) {
+      send(METHOD_NOT_ALLOWED);
+      return null;
+    }
+    final int start = CONNECT.length;
+    int end = start;
+    while ((end < headEnd) && (buffer[end] != ' ') && (buffer[end] != '\r') && (buffer[end] != '\n')) end++;
+    if ((end == start) || (buffer[end] != ' ') || !startsWith(end + 1, headEnd, VERSION)) {
+      send(BAD_REQUEST);
+      return null;
+    }
+    final String authority = new String(buffer, start, end - start, StandardCharsets.US_ASCII);
+    final int colon = authority.lastIndexOf(':');
+    final boolean bracketed = authority.startsWith("[");
+    if ((colon < 0) || (bracketed && (authority.charAt(colon - 1) != ']'))) {
+      send(BAD_REQUEST);
+      return null;
+    }
+    final String host = bracketed ? authority.substring(1, colon - 1) : authority.substring(0, colon);
+    final int port;
+    try {
+      port = Integer.parseInt(authority.substring(colon + 1));
+    } catch (@SuppressWarnings("unused") final NumberFormatException e) {
+      send(BAD_REQUEST);
+      return null;
+    }
+    if ((port < 1) || (port > 65535)) {
+      send(BAD_REQUEST);
+      return null;
+    }
+    final HostPort destination;
+    try {
+      destination = host.isEmpty() ? null : authorize(host, null, port);
+    } catch (@SuppressWarnings("unused") final UnknownHostException e) {
+      if (debugEnabled) log.debug("{} requested unknown host {}", socket, host);
+      send(BAD_GATEWAY);
+      return null;
+    }
+    if (destination == null) {
+      if (debugEnabled) log.debug("{} requested {}, which is not allowed", socket, authority);
+      send(FORBIDDEN);
+    }
+    return destination;
+  }
+
+  @Override
+  void connected(final Socket target) throws IOException {
+    super.connected(target);
+    send(ESTABLISHED);
+  }
+
+  @Override
+  void failed(final IOException error) {
+    try {
+      send((error instanceof SocketTimeoutException) ? GATEWAY_TIMEOUT : BAD_GATEWAY);
+    } catch (final IOException e) {
+      if (debugEnabled) log.debug("could not send an HTTP error to {} : {}", socket, e.toString());
+    }
+  }
+
+  /**
+   * Find the end of the request head, that is the end of the first empty line. Lines end with LF, optionally preceded with CR.
+   * @param from the position from which to search.
+   * @param to the end of the data in the buffer.
+   * @return the position following the empty line, or -1 if the head is not complete.
+   */
+  private int findHeadEnd(final int from, final int to) {
+    for (int i=from; i<to; i++) {
+      if (buffer[i] != '\n') continue;
+      int j = i + 1;
+      if ((j < to) && (buffer[j] == '\r')) j++;
+      if ((j < to) && (buffer[j] == '\n')) return j + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Determine whether the buffer holds the specified bytes at the specified position.
+   * @param offset the position in the buffer.
+   * @param limit the end of the data in the buffer.
+   * @param bytes the bytes to look for.
+   * @return {@code true} if the bytes are found, {@code false} otherwise.
+   */
+  private boolean startsWith(final int offset, final int limit, final byte[] bytes) {
+    if (offset + bytes.length > limit) return false;
+    for (int i=0; i<bytes.length; i++) {
+      if (buffer[offset + i] != bytes[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Send a response to the client.
+   * @param response the encoded response.
+   * @throws IOException if the client could not be written to.
+   */
+  private void send(final byte[] response) throws IOException {
+    out.write(response);
+    out.flush();
+  }
+
+  /**
+   * Encode a string in US-ASCII.
+   * @param s the string to encode.
+   * @return the encoded bytes.
+   */
+  private static byte[] ascii(final String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Encode an error response, after which the connection is closed.
+   * @param status the status code and reason phrase.
+   * @return the encoded response.
+   */
+  private static byte[] error(final String status) {
+    return ascii("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+  }
+}
@@ -0,0 +1,539 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forwarder4j.buffer.BufferPool;
+import org.forwarder4j.stats.ClientStats;
+import org.forwarder4j.stats.CompressionStats;
+import org.forwarder4j.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-lived connection between two forwarder4j instances, over which many tunneled connections are multiplexed as
+ * streams. The entry side, which opens the connection, opens a stream for each client; the exit side connects each
+ * stream to the destination the entry side names.
+ * <p>The connection starts with the {@link #PREFACE} sent by the entry side, followed by frames in both directions,
+ * made of an 8 bytes header, the payload length (3 bytes), the frame type (1 byte) and the stream id (4 bytes), and of
+ * the payload:
+ * <ul>
+ * <li>{@link #OPEN}: flags (1 byte), the destination port (2 bytes), then its host name in UTF-8. The flag
+ * {@link #COMPRESS} asks the exit side to compress the data it sends on the stream</li>
+ * <li>{@link #DATA}: at most {@link #MAX_PAYLOAD} bytes of data</li>
+ * <li>{@link #DEFLATE}: at most {@link #MAX_PAYLOAD} bytes of data compressed by the {@link StreamCompressor} of the
+ * stream</li>
+ * <li>{@link #WINDOW}: the number of bytes by which the send window of the stream grows (4 bytes)</li>
+ * <li>{@link #CLOSE}: no payload, no more data will be sent on the stream</li>
+ * <li>{@link #RESET}: no payload, the stream is aborted</li>
+ * </ul>
+ * Each stream can send {@link #INITIAL_WINDOW} bytes of payload in each direction before it is sent a window update. Both sides
+ * grow the window of the other to their {@link Utils#TUNNEL_WINDOW} when the stream is opened, then send a window update
+ * for the data they write to their socket, so a slow reader only holds up its own stream.
+ * <p>A single thread writes the frames, all taken from the {@link BufferPool}, and writes the control frames and the
+ * small data frames before the larger ones, so the interactive streams are not delayed by the bulk transfers. The
+ * frames of a stream are still written in order: a small data frame only goes first when no frame of its stream waits
+ * behind the larger ones.
+ * @author Laurent Cohen
+ */
+final class MuxConnection implements Closeable {
+  /**
+   * Logger for this class.
+   */
+  private static Logger log = LoggerFactory.getLogger(MuxConnection.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * The bytes sent by the entry side when it opens a connection.
+   */
+  static final byte[] PREFACE = "F4JMUX/1".getBytes(StandardCharsets.US_ASCII);
+  /**
+   * Size of the frame headers.
+   */
+  static final int HEADER_SIZE = 8;
+  /**
+   * Maximum payload of a frame.
+   */
+  static final int MAX_PAYLOAD = 16 * 1024;
+  /**
+   * The send window of the streams when they are opened.
+   */
+  static final int INITIAL_WINDOW = 64 * 1024;
+  /**
+   * Maximum payload of the frames which are written before the larger data frames.
+   */
+  private static final int SMALL_PAYLOAD = 1024;
+  /**
+   * Maximum payload of the frames other than the data frames.
+   */
+  private static final int MAX_CONTROL_PAYLOAD = 3 + 255;
+  /**
+   * Frame type which opens a stream.
+   */
+  static final int OPEN = 0;
+  /**
+   * Frame type which carries data.
+   */
+  static final int DATA = 1;
+  /**
+   * Frame type which grows the send window of a stream.
+   */
+  static final int WINDOW = 2;
+  /**
+   * Frame type which ends the data of a stream in one direction.
+   */
+  static final int CLOSE = 3;
+  /**
+   * Frame type which aborts a stream.
+   */
+  static final int RESET = 4;
+  /**
+   * Frame type which carries compressed data.
+   */
+  static final int DEFLATE = 5;
+  /**
+   * Flag of the {@link #OPEN} frames which asks the exit side to compress the data of the stream.
+   */
+  static final int COMPRESS = 1;
+  /**
+   * Connects the streams to their destination on the exit side.
+   */
+  interface Opener {
+    /**
+     * Connect to the destination of a stream.
+     * @param host the host name of the destination.
+     * @param port the port of the destination.
+     * @return the socket connected to the destination.
+     * @throws IOException if the destination is not allowed or could not be reached.
+     */
+    Socket open(String host, int port) throws IOException;
+  }
+  /**
+   * The socket connected to the other instance.
+   */
+  private final Socket socket;
+  /**
+   * Reads the frames.
+   */
+  private final InputStream in;
+  /**
+   * Writes the frames.
+   */
+  private final OutputStream out;
+  /**
+   * Connects the streams to their destination on the exit side, {@code null} on the entry side.
+   */
+  private final Opener opener;
+  /**
+   * Whether the streams opened by the entry side compress their data in both directions.
+   */
+  private final boolean compress;
+  /**
+   * The statistics to update with the compression of the streams.
+   */
+  private final CompressionStats compression;
+  /**
+   * The open streams, by id.
+   */
+  private final Map<Integer, MuxStream> streams = new ConcurrentHashMap<>();
+  /**
+   * The control frames and small data frames to write.
+   */
+  private final Queue<byte[]> urgent = new ConcurrentLinkedQueue<>();
+  /**
+   * The larger data frames to write.
+   */
+  private final Queue<byte[]> bulk = new ConcurrentLinkedQueue<>();
+  /**
+   * The number of frames to write.
+   */
+  private final Semaphore pending = new Semaphore(0);
+  /**
+   * The id of the next stream opened by the entry side.
+   */
+  private final AtomicInteger nextId = new AtomicInteger(1);
+  /**
+   * Whether this connection is closed.
+   */
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  /**
+   * Whether this connection closes once its last stream ends.
+   */
+  private volatile boolean retired;
+  /**
+   * Describes this connection in the thread names and the log.
+   */
+  private final String name;
+
+  /**
+   * Initialize this connection.
+   * @param socket the socket connected to the other instance.
+   * @param opener connects the streams to their destination on the exit side, {@code null} on the entry side.
+   * @param compress whether the streams opened by the entry side compress their data, ignored on the exit side.
+   * @param compression the statistics to update with the compression of the streams.
+   * @throws IOException if the socket streams cannot be obtained.
+   */
+  MuxConnection(final Socket socket, final Opener opener, final boolean compress, final CompressionStats compression) throws IOException {
+    this.socket = socket;
+    this.opener = opener;
+    this.compress = compress && (opener == null);
+    this.compression = compression;
+    this.in = new BufferedInputStream(SocketWrapper.getInputStream(socket), 2 * MAX_PAYLOAD);
+    this.out = new BufferedOutputStream(SocketWrapper.getOutputStream(socket), 2 * MAX_PAYLOAD);
+    this.name = "tunnel-" + socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+  }
+
+  /**
+   * Start the threads which read and write the frames. The entry side sends the preface first.
+   * @throws IOException if the preface could not be written.
+   */
+  void start() throws IOException {
+    // buffered, and flushed by the writer thread along with the first frames
+    if (opener == null) out.write(PREFACE);
+    new Thread(this::readFrames, name + "-reader").start();
+    new Thread(this::writeFrames, name + "-writer").start();
+    if (debugEnabled) log.debug("started {}", this);
+  }
+
+  /**
+   * Open a stream on the entry side and relay a client connection through it.
+   * @param client the socket connected to the client.
+   * @param host the host name of the destination.
+   * @param port the port of the destination.
+   * @param stats the statistics to update with the bytes transferred, or {@code null} if statistics are disabled.
+   * @param clientKey the key of the client in the statistics.
+   * @throws IOException if this connection is closed.
+   */
+  void open(final Socket client, final String host, final int port, final ClientStats stats, final String clientKey) throws IOException {
+    if (closed.get()) throw new IOException(this + " is closed");
+    final int id = nextId.getAndIncrement();
+    final byte[] hostBytes = host.getBytes(StandardCharsets.UTF_8);
+    if (hostBytes.length > MAX_CONTROL_PAYLOAD - 3) throw new IOException("host name too long: " + host);
+    final MuxStream stream = new MuxStream(this, id, stats, clientKey, compress, compression);
+    streams.put(id, stream);
+    final byte[] frame = frame(OPEN, id, 3 + hostBytes.length);
+    frame[HEADER_SIZE] = (byte) (compress ? COMPRESS : 0);
+    frame[HEADER_SIZE + 1] = (byte) (port >> 8);
+    frame[HEADER_SIZE + 2] = (byte) port;
+    System.arraycopy(hostBytes, 0, frame, HEADER_SIZE + 3, hostBytes.length);
+    send(frame);
+    stream.grantWindow();
+    stream.attach(client, name + "-" + id);
+  }
+
+  /**
+   * Read the frames and dispatch them to their stream, until the connection is closed.
+   */
+  private void readFrames() {
+    final byte[] header = new byte[HEADER_SIZE];
+    final byte[] payload = new byte[MAX_CONTROL_PAYLOAD];
+    try {
+      if (opener != null) {
+        readFully(header, 0, HEADER_SIZE);
+        if (!Arrays.equals(header, PREFACE)) throw new ProtocolException("not a tunnel connection");
+      }
+      while (!closed.get()) {
+        readFully(header, 0, HEADER_SIZE);
+        final int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+        final int type = header[3], id = readInt(header, 4);
+        final boolean data = (type == DATA) || (type == DEFLATE);
+        if ((length > MAX_PAYLOAD) || (!data && (length > MAX_CONTROL_PAYLOAD))) throw new ProtocolException("frame too large: " + length);
+        if (data) {
+          // the frame is handed over to the stream as is, and released once its data is written
+          final byte[] frame = BufferPool.acquire(BufferPool.sizeClass(HEADER_SIZE + length));
+          System.arraycopy(header, 0, frame, 0, HEADER_SIZE);
+          readFully(frame, HEADER_SIZE, length);
+          final MuxStream stream = streams.get(id);
+          if (stream != null) stream.received(frame, length);
+          else BufferPool.release(frame);
+          continue;
+        }
+        readFully(payload, 0, length);
+        final MuxStream stream = streams.get(id);
+        switch(type) {
+          case OPEN:
+            if ((opener == null) || (length < 3) || (stream != null)) throw new ProtocolException("unexpected OPEN frame for stream " + id);
+            opened(id, new String(payload, 3, length - 3, StandardCharsets.UTF_8), ((payload[1] & 0xFF) << 8) | (payload[2] & 0xFF), (payload[0] & COMPRESS) != 0);
+            break;
+          case WINDOW:
+            if (length != 4) throw new ProtocolException("invalid WINDOW frame for stream " + id);
+            if (stream != null) stream.windowUpdate(readInt(payload, 0));
+            break;
+          case CLOSE:
+            if (stream != null) stream.remoteClosed();
+            break;
+          case RESET:
+            if (stream != null) stream.reset(false);
+            break;
+          default:
+            throw new ProtocolException("unknown frame type " + type);
+        }
+      }
+    } catch (final Exception e) {
+      if (debugEnabled && !closed.get()) log.debug("error reading from {} : {}", this, e.toString());
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Open a stream on the exit side, whose destination is connected to in the handshake pool, so the other streams are
+   * not held up. The data received in the meantime is kept until the destination is connected. The stream is reset
+   * instead if the entry side already has {@link Utils#TUNNEL_MAX_STREAMS} streams open.
+   * @param id the id of the stream.
+   * @param host the host name of the destination.
+   * @param port the port of the destination.
+   * @param compressed whether the stream compresses the data it sends.
+   */
+  private void opened(final int id, final String host, final int port, final boolean compressed) {
+    if (streams.size() >= Utils.TUNNEL_MAX_STREAMS) {
+      if (debugEnabled) log.debug("resetting stream {} of {}, which has too many open streams", id, this);
+      sendReset(id);
+      return;
+    }
+    final MuxStream stream = new MuxStream(this, id, null, null, compressed, compression);
+    streams.put(id, stream);
+    stream.grantWindow();
+    Forwarder.executeHandshake(() -> {
+      try {
+        stream.attach(opener.open(host, port), name + "-" + id);
+      } catch (final IOException e) {
+        if (debugEnabled) log.debug("could not open {}:{} for stream {} of {} : {}", host, port, id, this, e.toString());
+        stream.reset(true);
+      }
+    });
+  }
+
+  /**
+   * Write the queued frames, the urgent ones first, until the connection is closed. The output is flushed whenever no
+   * frame is left to write, so the frames queued at once are written together.
+   */
+  private void writeFrames() {
+    try {
+      while (true) {
+        if (!pending.tryAcquire()) {
+          out.flush();
+          pending.acquire();
+        }
+        if (closed.get()) break;
+        byte[] frame = urgent.poll();
+        if (frame == null) {
+          frame = bulk.poll();
+          final MuxStream stream = streams.get(readInt(frame, 4));
+          if (stream != null) stream.queuedBulk.decrementAndGet();
+        }
+        out.write(frame, 0, HEADER_SIZE + payloadLength(frame));
+        BufferPool.release(frame);
+      }
+    } catch (final Exception e) {
+      if (debugEnabled && !closed.get()) log.debug("error writing to {} : {}", this, e.toString());
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Queue a control frame to write, ahead of the data frames.
+   * @param frame the frame, which is given back to the pool once written.
+   */
+  private void send(final byte[] frame) {
+    if (closed.get()) {
+      BufferPool.release(frame);
+      return;
+    }
+    urgent.offer(frame);
+    pending.release();
+  }
+
+  /**
+   * Queue a data or close frame of a stream to write, after the frames of the stream already queued.
+   * @param frame the frame, which is given back to the pool once written.
+   * @param stream the stream.
+   */
+  void sendData(final byte[] frame, final MuxStream stream) {
+    if (closed.get()) {
+      BufferPool.release(frame);
+      return;
+    }
+    if ((payloadLength(frame) <= SMALL_PAYLOAD) && (stream.queuedBulk.get() == 0)) urgent.offer(frame);
+    else {
+      stream.queuedBulk.incrementAndGet();
+      bulk.offer(frame);
+    }
+    pending.release();
+  }
+
+  /**
+   * Queue a reset frame, which aborts a stream regardless of its queued frames.
+   * @param id the id of the stream.
+   */
+  void sendReset(final int id) {
+    send(frame(RESET, id, 0));
+  }
+
+  /**
+   * Queue a window update.
+   * @param id the id of the stream.
+   * @param increment the number of bytes by which the send window of the stream grows.
+   */
+  void sendWindow(final int id, final int increment) {
+    final byte[] frame = frame(WINDOW, id, 4);
+    writeInt(frame, HEADER_SIZE, increment);
+    send(frame);
+  }
+
+  /**
+   * Remove an ended stream.
+   * @param id the id of the stream.
+   */
+  void remove(final int id) {
+    streams.remove(id);
+    if (retired && streams.isEmpty()) close();
+  }
+
+  /**
+   * Close this connection once its last stream ends, and open no more stream through it.
+   */
+  void retire() {
+    retired = true;
+    if (streams.isEmpty()) close();
+  }
+
+  /**
+   * @return whether this connection is closed, or closes once its last stream ends.
+   */
+  boolean isClosed() {
+    return closed.get() || retired;
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      if (debugEnabled) log.debug("closing {}", this);
+      Utils.closeSilent(socket);
+      pending.release();
+      for (final MuxStream stream: streams.values()) stream.reset(false);
+      streams.clear();
+      byte[] frame;
+      while ((frame = urgent.poll()) != null) BufferPool.release(frame);
+      while ((frame = bulk.poll()) != null) BufferPool.release(frame);
+    }
+  }
+
+  /**
+   * Create a frame with a buffer from the pool.
+   * @param type the type of the frame.
+   * @param id the id of the stream.
+   * @param length the length of the payload.
+   * @return the frame, with its header written.
+   */
+  static byte[] frame(final int type, final int id, final int length) {
+    final byte[] frame = BufferPool.acquire(BufferPool.sizeClass(HEADER_SIZE + length));
+    writeHeader(frame, type, id, length);
+    return frame;
+  }
+
+  /**
+   * Write the header of a frame.
+   * @param frame the frame.
+   * @param type the type of the frame.
+   * @param id the id of the stream.
+   * @param length the length of the payload.
+   */
+  static void writeHeader(final byte[] frame, final int type, final int id, final int length) {
+    frame[0] = (byte) (length >> 16);
+    frame[1] = (byte) (length >> 8);
+    frame[2] = (byte) length;
+    frame[3] = (byte) type;
+    writeInt(frame, 4, id);
+  }
+
+  /**
+   * Get the payload length of a frame.
+   * @param frame the frame.
+   * @return the length of the payload.
+   */
+  static int payloadLength(final byte[] frame) {
+    return ((frame[0] & 0xFF) << 16) | ((frame[1] & 0xFF) << 8) | (frame[2] & 0xFF);
+  }
+
+  /**
+   * Read exactly the specified number of bytes.
+   * @param buffer the buffer to read into.
+   * @param offset the position in the buffer.
+   * @param len the number of bytes to read.
+   * @throws IOException if the connection is closed before all the bytes are read, or could not be read.
+   */
+  private void readFully(final byte[] buffer, final int offset, final int len) throws IOException {
+    int count = 0;
+    while (count < len) {
+      final int n = in.read(buffer, offset + count, len - count);
+      if (n < 0) throw new EOFException("connection closed by " + socket);
+      count += n;
+    }
+  }
+
+  /**
+   * Read a big-endian 32 bits value.
+   * @param buffer the buffer.
+   * @param offset the position of the value.
+   * @return the value.
+   */
+  private static int readInt(final byte[] buffer, final int offset) {
+    return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+  }
+
+  /**
+   * Write a big-endian 32 bits value.
+   * @param buffer the buffer.
+   * @param offset the position of the value.
+   * @param value the value to write.
+   */
+  private static void writeInt(final byte[] buffer, final int offset, final int value) {
+    buffer[offset] = (byte) (value >> 24);
+    buffer[offset + 1] = (byte) (value >> 16);
+    buffer[offset + 2] = (byte) (value >> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+
+  @Override
+  public String toString() {
+    return name + "[streams=" + streams.size() + ", closed=" + closed.get() + ']';
+  }
+}
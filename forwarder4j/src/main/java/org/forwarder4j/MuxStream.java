@@ -0,0 +1,342 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forwarder4j.buffer.BufferPool;
+import org.forwarder4j.stats.ClientStats;
+import org.forwarder4j.stats.CompressionStats;
+import org.forwarder4j.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tunneled connection multiplexed over a {@link MuxConnection}. Its socket, connected to the client on the entry side
+ * and to the destination on the exit side, is read by one thread, which sends the data as long as the send window of
+ * the stream allows it, and written by another, which writes the received data and grows the send window of the other
+ * side in return. The windows count the bytes of payload, compressed or not.
+ * @author Laurent Cohen
+ */
+final class MuxStream {
+  /**
+   * Logger for this class.
+   */
+  private static Logger log = LoggerFactory.getLogger(MuxStream.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * Queued in place of a data frame when the other side closes its side of the stream.
+   */
+  private static final byte[] END = new byte[0];
+  /**
+   * Queued in place of a data frame when the stream is reset.
+   */
+  private static final byte[] ABORT = new byte[0];
+  /**
+   * The connection this stream is multiplexed over.
+   */
+  private final MuxConnection mux;
+  /**
+   * The id of this stream.
+   */
+  private final int id;
+  /**
+   * The statistics to update with the bytes transferred, or {@code null} if statistics are disabled.
+   */
+  private final ClientStats stats;
+  /**
+   * The key of the client in the statistics.
+   */
+  private final String client;
+  /**
+   * Whether this stream compresses the data it sends.
+   */
+  private final boolean compress;
+  /**
+   * Compresses the data sent and decompresses the data received.
+   */
+  private final StreamCompressor compressor;
+  /**
+   * The socket connected to the client or the destination, {@code null} until it is attached.
+   */
+  private volatile Socket socket;
+  /**
+   * The number of bytes this stream can send before it receives a window update.
+   */
+  private int sendWindow = MuxConnection.INITIAL_WINDOW;
+  /**
+   * The number of bytes the other side can send before it is sent a window update.
+   */
+  private final AtomicInteger receiveWindow;
+  /**
+   * The received data frames, not yet written to the socket.
+   */
+  private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+  /**
+   * The number of directions which are not yet finished.
+   */
+  private final AtomicInteger running = new AtomicInteger(2);
+  /**
+   * The number of frames of this stream in the queue of the larger frames of its connection.
+   */
+  final AtomicInteger queuedBulk = new AtomicInteger(0);
+  /**
+   * Whether this stream was reset.
+   */
+  private final AtomicBoolean reset = new AtomicBoolean(false);
+
+  /**
+   * Initialize this stream.
+   * @param mux the connection this stream is multiplexed over.
+   * @param id the id of this stream.
+   * @param stats the statistics to update with the bytes transferred, or {@code null} if statistics are disabled.
+   * @param client the key of the client in the statistics.
+   * @param compress whether this stream compresses the data it sends.
+   * @param compression the statistics to update with the compression of the data.
+   */
+  MuxStream(final MuxConnection mux, final int id, final ClientStats stats, final String client, final boolean compress, final CompressionStats compression) {
+    this.mux = mux;
+    this.id = id;
+    this.stats = stats;
+    this.client = client;
+    this.compress = compress;
+    this.compressor = new StreamCompressor(compression);
+    this.receiveWindow = new AtomicInteger(Math.max(MuxConnection.INITIAL_WINDOW, Utils.TUNNEL_WINDOW));
+  }
+
+  /**
+   * Grow the send window of the other side from the initial window of the protocol to the configured window.
+   */
+  void grantWindow() {
+    final int increment = receiveWindow.get() - MuxConnection.INITIAL_WINDOW;
+    if (increment > 0) mux.sendWindow(id, increment);
+  }
+
+  /**
+   * Attach the socket of this stream and start relaying its data.
+   * @param socket the socket connected to the client or the destination.
+   * @param name the prefix of the names of the relaying threads.
+   */
+  void attach(final Socket socket, final String name) {
+    this.socket = socket;
+    // reset while the destination was being connected
+    if (reset.get()) {
+      Utils.closeSilent(socket);
+      return;
+    }
+    new Thread(this::sendData, name + "-sender").start();
+    new Thread(this::writeData, name + "-receiver").start();
+  }
+
+  /**
+   * Read from the socket and send the data, until the socket reaches the end of its input or the stream is reset.
+   */
+  private void sendData() {
+    try {
+      final InputStream in = SocketWrapper.getInputStream(socket);
+      while (true) {
+        final int window = awaitWindow();
+        if (window <= 0) break;
+        final int max = Math.min(window, MuxConnection.MAX_PAYLOAD);
+        final byte[] frame = BufferPool.acquire(BufferPool.sizeClass(MuxConnection.HEADER_SIZE + max));
+        final int n;
+        try {
+          n = in.read(frame, MuxConnection.HEADER_SIZE, max);
+        } catch (final IOException e) {
+          BufferPool.release(frame);
+          throw e;
+        }
+        if (n < 0) {
+          BufferPool.release(frame);
+          mux.sendData(MuxConnection.frame(MuxConnection.CLOSE, id, 0), this);
+          break;
+        }
+        MuxConnection.writeHeader(frame, MuxConnection.DATA, id, n);
+        final byte[] toSend = compress ? compress(frame, n) : frame;
+        final int length = MuxConnection.payloadLength(toSend);
+        synchronized(this) {
+          sendWindow -= length;
+        }
+        mux.sendData(toSend, this);
+        if (stats != null) stats.bytesTransferred(client, n);
+      }
+    } catch (final IOException e) {
+      if (debugEnabled && !reset.get()) log.debug("error reading stream {} : {}", id, e.toString());
+      reset(true);
+    } finally {
+      compressor.endCompression();
+      finished();
+    }
+  }
+
+  /**
+   * Compress the data of a frame, unless it is not worth it.
+   * @param frame the data frame, with its header.
+   * @param length the length of the data.
+   * @return a compressed frame, in which case the data frame is given back to the pool, or the data frame.
+   */
+  private byte[] compress(final byte[] frame, final int length) {
+    if (compressor.bypass(length)) return frame;
+    final byte[] compressed = BufferPool.acquire(BufferPool.sizeClass(MuxConnection.HEADER_SIZE + length));
+    final int n = compressor.compress(frame, MuxConnection.HEADER_SIZE, length, compressed, MuxConnection.HEADER_SIZE);
+    if (n < 0) {
+      BufferPool.release(compressed);
+      return frame;
+    }
+    BufferPool.release(frame);
+    MuxConnection.writeHeader(compressed, MuxConnection.DEFLATE, id, n);
+    return compressed;
+  }
+
+  /**
+   * Write the received data to the socket, until the other side closes its side of the stream or the stream is reset.
+   */
+  private void writeData() {
+    byte[] inflated = null;
+    try {
+      final OutputStream out = SocketWrapper.getOutputStream(socket);
+      while (true) {
+        final byte[] frame = received.take();
+        if (frame == ABORT) break;
+        if (frame == END) {
+          try {
+            socket.shutdownOutput();
+          } catch (@SuppressWarnings("unused") final IOException | UnsupportedOperationException e) {
+            // the socket is closed once the other direction is finished
+          }
+          break;
+        }
+        final int length = MuxConnection.payloadLength(frame);
+        int size = length;
+        try {
+          if (frame[3] == MuxConnection.DEFLATE) {
+            if (inflated == null) inflated = BufferPool.acquire(BufferPool.sizeClass(MuxConnection.MAX_PAYLOAD));
+            size = compressor.decompress(frame, MuxConnection.HEADER_SIZE, length, out, inflated);
+          } else {
+            compressor.uncompressedReceived();
+            out.write(frame, MuxConnection.HEADER_SIZE, length);
+          }
+        } finally {
+          BufferPool.release(frame);
+        }
+        receiveWindow.addAndGet(length);
+        mux.sendWindow(id, length);
+        if (stats != null) stats.bytesTransferred(client, size);
+      }
+    } catch (final IOException e) {
+      if (debugEnabled && !reset.get()) log.debug("error writing stream {} : {}", id, e.toString());
+      reset(true);
+    } catch (@SuppressWarnings("unused") final InterruptedException e) {
+      reset(true);
+    } finally {
+      if (inflated != null) BufferPool.release(inflated);
+      compressor.endDecompression();
+      finished();
+    }
+  }
+
+  /**
+   * Wait until the send window is open.
+   * @return the size of the send window, or 0 if the stream was reset.
+   */
+  private synchronized int awaitWindow() {
+    try {
+      while ((sendWindow <= 0) && !reset.get()) wait();
+    } catch (@SuppressWarnings("unused") final InterruptedException e) {
+      return 0;
+    }
+    return reset.get() ? 0 : sendWindow;
+  }
+
+  /**
+   * Grow the send window of this stream.
+   * @param increment the number of bytes by which the window grows.
+   */
+  synchronized void windowUpdate(final int increment) {
+    sendWindow += increment;
+    notifyAll();
+  }
+
+  /**
+   * Handle a data frame received for this stream.
+   * @param frame the data frame, which is given back to the pool once its data is written.
+   * @param length the length of the data.
+   */
+  void received(final byte[] frame, final int length) {
+    if (reset.get()) {
+      BufferPool.release(frame);
+    } else if (receiveWindow.addAndGet(-length) < 0) {
+      // the other side does not honor the flow control
+      BufferPool.release(frame);
+      reset(true);
+    } else {
+      received.offer(frame);
+    }
+  }
+
+  /**
+   * Handle the end of the data sent by the other side.
+   */
+  void remoteClosed() {
+    received.offer(END);
+  }
+
+  /**
+   * Abort this stream: close its socket and stop relaying its data.
+   * @param notify whether to tell the other side with a RESET frame.
+   */
+  void reset(final boolean notify) {
+    if (reset.compareAndSet(false, true)) {
+      if (debugEnabled) log.debug("resetting stream {} of {}", id, mux);
+      if (notify) mux.sendReset(id);
+      final Socket socket = this.socket;
+      if (socket != null) Utils.closeSilent(socket);
+      synchronized(this) {
+        notifyAll();
+      }
+      received.offer(ABORT);
+      // the stream never started relaying
+      if (socket == null) mux.remove(id);
+    }
+  }
+
+  /**
+   * Called when one direction of this stream is finished. The socket is closed and the stream removed once both are.
+   */
+  private void finished() {
+    if (running.decrementAndGet() == 0) {
+      Utils.closeSilent(socket);
+      mux.remove(id);
+      byte[] frame;
+      while ((frame = received.poll()) != null) {
+        if (frame.length > 0) BufferPool.release(frame);
+      }
+    }
+  }
+}
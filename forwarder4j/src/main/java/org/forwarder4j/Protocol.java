@@ -0,0 +1,72 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+/**
+ * The transport protocols a forwarder can forward, selected with the {@code protocol} option of a forwarding definition,
+ * or with a {@code tcp:} or {@code udp:} prefix before its local port.
+ * @author Laurent Cohen
+ */
+public enum Protocol {
+  /**
+   * Each accepted connection is relayed through its own connection to the target. This is the default.
+   */
+  TCP,
+  /**
+   * The datagrams of each client address are relayed through a session, with its own socket to the target,
+   * which expires when it stays idle.
+   */
+  UDP;
+
+  /**
+   * Name of the option which defines the protocol.
+   */
+  public static final String OPTION = "protocol";
+
+  /**
+   * Get the protocol defined in the options of a forwarding definition.
+   * @param options the forwarder options.
+   * @return the protocol, {@link #TCP} if the option is not defined.
+   * @throws IllegalArgumentException if the option value is not a valid protocol.
+   */
+  public static Protocol from(final Config options) {
+    final String value = (options == null) ? null : options.getString(OPTION);
+    return (value == null) ? TCP : from(value);
+  }
+
+  /**
+   * Get the protocol with the specified name.
+   * @param name the name of the protocol, case-insensitive.
+   * @return the corresponding protocol.
+   * @throws IllegalArgumentException if the name is not a valid protocol.
+   */
+  public static Protocol from(final String name) {
+    for (final Protocol protocol: values()) {
+      if (protocol.name().equalsIgnoreCase(name.trim())) return protocol;
+    }
+    throw new IllegalArgumentException("'" + name + "' is not a valid protocol");
+  }
+
+  /**
+   * @return the prefix of the local port for this protocol, e.g. "udp:".
+   */
+  public String prefix() {
+    return name().toLowerCase() + ':';
+  }
+}
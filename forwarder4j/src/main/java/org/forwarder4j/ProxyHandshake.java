@@ -0,0 +1,181 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import org.forwarder4j.acl.DestinationFilter;
+import org.forwarder4j.buffer.BufferPool;
+
+/**
+ * The exchange through which the client of a proxy mode names its destination, before its connection is relayed.
+ * <p>The handshake reads from the client with the handshake timeout of the forwarding definition. Its buffer is taken
+ * from the {@link BufferPool} and must be given back with {@link #release()}. Any data the client sent after its
+ * request is left in the buffer, and written to the target once it is connected.
+ * @author Laurent Cohen
+ */
+abstract class ProxyHandshake {
+  /**
+   * The socket connected to the client.
+   */
+  final Socket socket;
+  /**
+   * The forwarding definition.
+   */
+  final EntryDescriptor desc;
+  /**
+   * Reads from the client.
+   */
+  final InputStream in;
+  /**
+   * Writes to the client.
+   */
+  final OutputStream out;
+  /**
+   * The buffer used to read the requests and write the replies.
+   */
+  byte[] buffer;
+  /**
+   * Position in the buffer of the data sent by the client after its request.
+   */
+  int pendingOffset;
+  /**
+   * Length of the data sent by the client after its request.
+   */
+  int pendingLength;
+
+  /**
+   * Initialize this handshake.
+   * @param socket the socket connected to the client.
+   * @param desc the forwarding definition.
+   * @param bufferSize the minimum size of the handshake buffer.
+   * @throws IOException if the socket streams cannot be obtained.
+   */
+  ProxyHandshake(final Socket socket, final EntryDescriptor desc, final int bufferSize) throws IOException {
+    this.socket = socket;
+    this.desc = desc;
+    this.buffer = BufferPool.acquire(BufferPool.sizeClass(bufferSize));
+    // the handshake reads and writes in turn, so the socket streams can be used even for a channel
+    this.in = socket.getInputStream();
+    this.out = socket.getOutputStream();
+  }
+
+  /**
+   * Create the handshake of the proxy mode of a forwarding definition.
+   * @param socket the socket connected to the client.
+   * @param desc the forwarding definition, whose target is a proxy mode.
+   * @return a new handshake.
+   * @throws IOException if the socket streams cannot be obtained.
+   */
+  static ProxyHandshake create(final Socket socket, final EntryDescriptor desc) throws IOException {
+    switch(desc.getTarget().getProxyMode()) {
+      case SOCKS5: return new Socks5Handshake(socket, desc);
+      case HTTP: return new HttpConnectHandshake(socket, desc);
+      case ROUTE: return new RouteHandshake(socket, desc);
+      default: throw new IllegalStateException("unsupported proxy mode " + desc.getTarget());
+    }
+  }
+
+  /**
+   * Read the request of the client, and check that its destination is allowed.
+   * @return the destination, or {@code null} if the request was rejected, in which case the client was answered.
+   * @throws IOException if the client could not be read from or written to.
+   */
+  HostPort readRequest() throws IOException {
+    socket.setSoTimeout(readTimeout());
+    return negotiate();
+  }
+
+  /**
+   * @return the timeout of the reads from the client during the handshake, in millis.
+   */
+  int readTimeout() {
+    return desc.getHandshakeTimeout();
+  }
+
+  /**
+   * Read the request of the client, and check that its destination is allowed.
+   * @return the destination, or {@code null} if the request was rejected, in which case the client was answered.
+   * @throws IOException if the client could not be read from or written to.
+   */
+  abstract HostPort negotiate() throws IOException;
+
+  /**
+   * Tell the client that its destination was connected to, so it can start sending data. This method writes the data
+   * the client sent after its request to the target.
+   * @param target the socket connected to the destination.
+   * @throws IOException if the client or the target could not be written to.
+   */
+  void connected(final Socket target) throws IOException {
+    socket.setSoTimeout(0);
+    if (pendingLength > 0) SocketWrapper.getOutputStream(target).write(buffer, pendingOffset, pendingLength);
+    pendingLength = 0;
+  }
+
+  /**
+   * Tell the client that its destination could not be connected to.
+   * @param error the reason why the connection failed.
+   */
+  abstract void failed(IOException error);
+
+  /**
+   * Give the buffer of this handshake back to the pool.
+   */
+  void release() {
+    if (buffer != null) BufferPool.release(buffer);
+    buffer = null;
+  }
+
+  /**
+   * Check that a destination is allowed and resolve it. A host name is only resolved once it is allowed by its name,
+   * or if a CIDR range may allow it, so the clients cannot make this forwarder look up any name they like.
+   * @param host the host name requested by the client, or {@code null} if it requested an address.
+   * @param address the address requested by the client, or {@code null} if it requested a host name.
+   * @param port the requested port.
+   * @return the destination, with the address to connect to, or {@code null} if it is not allowed.
+   * @throws UnknownHostException if the host name cannot be resolved.
+   */
+  HostPort authorize(final String host, final InetAddress address, final int port) throws UnknownHostException {
+    final DestinationFilter filter = desc.getDestinationFilter();
+    if ((port <= 0) || (port > 65535) || (filter == null)) return null;
+    final InetAddress resolved = filter.resolve(host, address, port);
+    return (resolved == null) ? null : HostPort.of(resolved.getHostAddress(), port);
+  }
+
+  /**
+   * Read exactly the specified number of bytes from the client into the buffer.
+   * @param offset the position in the buffer.
+   * @param len the number of bytes to read.
+   * @throws IOException if the client closed the connection or could not be read from.
+   */
+  void readFully(final int offset, final int len) throws IOException {
+    int count = 0;
+    while (count < len) {
+      final int n = in.read(buffer, offset + count, len - count);
+      if (n < 0) throw new EOFException("connection closed by " + socket + " during the handshake");
+      count += n;
+    }
+  }
+}
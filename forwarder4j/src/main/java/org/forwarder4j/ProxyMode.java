@@ -0,0 +1,63 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+/**
+ * The proxy protocols through which the clients of a forwarder name their destination for each connection, selected
+ * with the target of a forwarding definition, e.g. {@code 1080=socks5}.
+ * @author Laurent Cohen
+ */
+public enum ProxyMode {
+  /**
+   * SOCKS version 5, as defined in RFC 1928, with the CONNECT command and no authentication.
+   */
+  SOCKS5,
+  /**
+   * HTTP tunnels, where the client sends a {@code CONNECT host:port HTTP/1.1} request before the tunneled data.
+   */
+  HTTP,
+  /**
+   * Routing on the protocol recognized from the first bytes of each connection, see {@link Router}.
+   */
+  ROUTE,
+  /**
+   * The exit side of the tunnels of other forwarder4j instances, where each accepted connection multiplexes the
+   * connections to many destinations, see {@link EntryDescriptor#TUNNEL_OPTION}.
+   */
+  TUNNEL;
+
+  /**
+   * Get the proxy mode designated by the target of a forwarding definition.
+   * @param target the target of a forwarding definition.
+   * @return the proxy mode, or {@code null} if the target is not a proxy mode.
+   */
+  public static ProxyMode fromTarget(final String target) {
+    for (final ProxyMode mode: values()) {
+      if (mode.keyword().equalsIgnoreCase(target.trim())) return mode;
+    }
+    return null;
+  }
+
+  /**
+   * @return the keyword which designates this proxy mode as the target of a forwarding definition.
+   */
+  public String keyword() {
+    return name().toLowerCase();
+  }
+}
@@ -0,0 +1,478 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The versions of the HAProxy PROXY protocol, through which the address and port of a client are passed to the target
+ * of its connection, in a header sent before any data. A forwarder sends the header to its target when the
+ * {@code proxy.protocol} option is {@code v1} (text) or {@code v2} (binary), and reads the header sent by a load
+ * balancer in front of it when the {@code proxy.protocol.accept} option is {@code true}.
+ * <p>The headers are encoded and decoded in the caller's buffer, which is large enough when it holds
+ * {@link #MAX_HEADER_SIZE} bytes. The headers are read without reading past them, so the client data which follows
+ * is left in the socket.
+ * @author Laurent Cohen
+ */
+public enum ProxyProtocol {
+  /**
+   * The human-readable version 1, e.g. {@code PROXY TCP4 192.168.0.1 10.0.0.5 56324 443\r\n}.
+   */
+  V1,
+  /**
+   * The binary version 2.
+   */
+  V2;
+
+  /**
+   * Name of the option which defines the version of the header sent to the target.
+   */
+  public static final String OPTION = "proxy.protocol";
+  /**
+   * Name of the option which defines whether the clients send a header before their data.
+   */
+  public static final String ACCEPT_OPTION = "proxy.protocol.accept";
+  /**
+   * Minimum size of the buffers in which headers are encoded and decoded.
+   */
+  public static final int MAX_HEADER_SIZE = 128;
+  /**
+   * Maximum size of a version 1 header.
+   */
+  private static final int MAX_V1_SIZE = 107;
+  /**
+   * Maximum size of the addresses of a version 2 header over TCP, which are kept in the buffer.
+   */
+  private static final int MAX_ADDRESSES_SIZE = 36;
+  /**
+   * The signature at the start of a version 2 header.
+   */
+  private static final byte[] V2_SIGNATURE = { 0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A };
+  /**
+   * The start of a version 1 header.
+   */
+  private static final byte[] V1_PREFIX = { 'P', 'R', 'O', 'X', 'Y', ' ' };
+  /**
+   * The digits of the hexadecimal notation.
+   */
+  private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+  /**
+   * Size of the shortest header, {@code PROXY UNKNOWN\r\n}, which is read at once.
+   */
+  private static final int MIN_HEADER_SIZE = 15;
+
+  /**
+   * Get the version of the header sent to the target, defined in the options of a forwarding definition.
+   * @param options the forwarder options.
+   * @return the version, or {@code null} if no header is sent.
+   * @throws IllegalArgumentException if the option value is not a valid version.
+   */
+  public static ProxyProtocol from(final Config options) {
+    final String value = (options == null) ? null : options.getString(OPTION);
+    if (value == null) return null;
+    for (final ProxyProtocol version: values()) {
+      if (version.name().equalsIgnoreCase(value.trim())) return version;
+    }
+    throw new IllegalArgumentException("'" + value + "' is not a valid PROXY protocol version, it must be v1 or v2");
+  }
+
+  /**
+   * Encode a header into the specified buffer.
+   * @param buffer the buffer, which must hold at least {@link #MAX_HEADER_SIZE} bytes.
+   * @param source the address and port of the client, or {@code null} if they are not known.
+   * @param destination the address and port the client connected to, or {@code null} if they are not known.
+   * @return the size of the header.
+   */
+  public int encode(final byte[] buffer, final InetSocketAddress source, final InetSocketAddress destination) {
+    final InetAddress src = (source == null) ? null : source.getAddress(), dst = (destination == null) ? null : destination.getAddress();
+    final boolean known = (src != null) && (dst != null);
+    // IPv4 addresses are mapped to IPv6 when the other address is IPv6
+    final boolean ipv4 = known && (src instanceof Inet4Address) && (dst instanceof Inet4Address);
+    if (this == V1) {
+      int pos = put(buffer, 0, V1_PREFIX);
+      if (!known) return put(buffer, pos, "UNKNOWN\r\n");
+      pos = put(buffer, pos, ipv4 ? "TCP4 " : "TCP6 ");
+      pos = putAddress(buffer, pos, src.getAddress(), ipv4);
+      buffer[pos++] = ' ';
+      pos = putAddress(buffer, pos, dst.getAddress(), ipv4);
+      buffer[pos++] = ' ';
+      pos = putDecimal(buffer, pos, source.getPort());
+      buffer[pos++] = ' ';
+      pos = putDecimal(buffer, pos, destination.getPort());
+      return put(buffer, pos, "\r\n");
+    }
+    int pos = put(buffer, 0, V2_SIGNATURE);
+    // version 2, PROXY command
+    buffer[pos++] = 0x21;
+    if (!known) {
+      // AF_UNSPEC: the target uses the addresses of the connection
+      buffer[pos++] = 0x00;
+      return putShort(buffer, pos, 0);
+    }
+    // AF_INET or AF_INET6, over STREAM
+    buffer[pos++] = ipv4 ? (byte) 0x11 : (byte) 0x21;
+    pos = putShort(buffer, pos, ipv4 ? 12 : 36);
+    pos = putRawAddress(buffer, pos, src.getAddress(), ipv4);
+    pos = putRawAddress(buffer, pos, dst.getAddress(), ipv4);
+    pos = putShort(buffer, pos, source.getPort());
+    return putShort(buffer, pos, destination.getPort());
+  }
+
+  /**
+   * Read a version 1 or 2 header, without reading any byte past it.
+   * @param in the stream to read from.
+   * @param buffer the buffer to read into, which must hold at least {@link #MAX_HEADER_SIZE} bytes.
+   * @return the addresses in the header, with {@code null} addresses if the header does not specify them.
+   * @throws IOException if the stream could not be read, or does not start with a valid header.
+   */
+  public static Header read(final InputStream in, final byte[] buffer) throws IOException {
+    readFully(in, buffer, 0, MIN_HEADER_SIZE);
+    if (startsWith(buffer, V2_SIGNATURE)) {
+      readFully(in, buffer, MIN_HEADER_SIZE, 1);
+      if ((buffer[12] & 0xF0) != 0x20) throw new ProtocolException("unsupported PROXY protocol version " + ((buffer[12] & 0xF0) >> 4));
+      final int command = buffer[12] & 0x0F, family = buffer[13] & 0xFF, length = readShort(buffer, 14);
+      final int kept = Math.min(length, MAX_ADDRESSES_SIZE);
+      readFully(in, buffer, 16, kept);
+      // the TLVs which follow the addresses are skipped
+      for (int remaining = length - kept; remaining > 0; ) {
+        final int n = Math.min(remaining, MAX_HEADER_SIZE - 16 - MAX_ADDRESSES_SIZE);
+        readFully(in, buffer, 16 + MAX_ADDRESSES_SIZE, n);
+        remaining -= n;
+      }
+      // LOCAL command, or protocols other than TCP over IPv4 or IPv6
+      if ((command == 0) || ((family != 0x11) && (family != 0x21))) return Header.UNKNOWN;
+      final int size = (family == 0x11) ? 4 : 16;
+      if (length < 2 * size + 4) throw new ProtocolException("truncated PROXY protocol header");
+      final InetAddress source = InetAddress.getByAddress(copy(buffer, 16, size)), destination = InetAddress.getByAddress(copy(buffer, 16 + size, size));
+      return new Header(new InetSocketAddress(source, readShort(buffer, 16 + 2 * size)), new InetSocketAddress(destination, readShort(buffer, 18 + 2 * size)));
+    }
+    if (!startsWith(buffer, V1_PREFIX)) throw new ProtocolException("no PROXY protocol header");
+    int length = MIN_HEADER_SIZE;
+    while (buffer[length - 1] != '\n') {
+      if (length >= MAX_V1_SIZE) throw new ProtocolException("PROXY protocol header is too long");
+      // the header ends with \r\n: read only as much as cannot go past it
+      final int n = (buffer[length - 1] == '\r') ? 1 : 2;
+      readFully(in, buffer, length, n);
+      length += n;
+    }
+    if (buffer[length - 2] != '\r') throw new ProtocolException("invalid PROXY protocol header");
+    // PROXY TCP4|TCP6|UNKNOWN source destination sourcePort destinationPort\r\n
+    final int end = length - 2;
+    final int protocolEnd = nextSpace(buffer, V1_PREFIX.length, end);
+    if ((buffer[6] == 'U') && (buffer[7] == 'N')) return Header.UNKNOWN;
+    if ((protocolEnd != V1_PREFIX.length + 4) || (buffer[6] != 'T') || (buffer[7] != 'C') || (buffer[8] != 'P') || ((buffer[9] != '4') && (buffer[9] != '6')))
+      throw new ProtocolException("invalid PROXY protocol header");
+    final boolean ipv6 = buffer[9] == '6';
+    final int sourceEnd = nextSpace(buffer, protocolEnd + 1, end), destinationEnd = nextSpace(buffer, sourceEnd + 1, end), portEnd = nextSpace(buffer, destinationEnd + 1, end);
+    if (portEnd >= end) throw new ProtocolException("invalid PROXY protocol header");
+    final InetAddress source = parseAddress(buffer, protocolEnd + 1, sourceEnd, ipv6), destination = parseAddress(buffer, sourceEnd + 1, destinationEnd, ipv6);
+    return new Header(new InetSocketAddress(source, parsePort(buffer, destinationEnd + 1, portEnd)), new InetSocketAddress(destination, parsePort(buffer, portEnd + 1, end)));
+  }
+
+  /**
+   * Find the next space in a version 1 header.
+   * @param buffer the buffer which holds the header.
+   * @param from the position to start from.
+   * @param end the end of the header, before its final {@code \r\n}.
+   * @return the position of the next space, or {@code end} if there is none.
+   */
+  private static int nextSpace(final byte[] buffer, final int from, final int end) {
+    int i = from;
+    while ((i < end) && (buffer[i] != ' ')) i++;
+    return i;
+  }
+
+  /**
+   * Parse an IP address literal of the family declared by the header, without any name resolution.
+   * @param buffer the buffer which holds the address.
+   * @param start the start of the address.
+   * @param end the end of the address, exclusive.
+   * @param ipv6 {@code true} for an IPv6 address, {@code false} for an IPv4 address in dotted-decimal notation.
+   * @return the address.
+   * @throws IOException if the address is not a valid IP address literal of the declared family.
+   */
+  private static InetAddress parseAddress(final byte[] buffer, final int start, final int end, final boolean ipv6) throws IOException {
+    if (!ipv6) return parseIPv4(buffer, start, end);
+    boolean colon = false;
+    for (int i=start; i<end; i++) {
+      final byte b = buffer[i];
+      if (b == ':') colon = true;
+      else if (!(((b >= '0') && (b <= '9')) || ((b >= 'a') && (b <= 'f')) || ((b >= 'A') && (b <= 'F')) || (b == '.'))) throw new ProtocolException("invalid address in PROXY protocol header");
+    }
+    // without a ':', the literal could be taken for an IPv4 address or a host name, which would be resolved
+    if (!colon) throw new ProtocolException("invalid IPv6 address in PROXY protocol header");
+    try {
+      return InetAddress.getByName(new String(buffer, start, end - start, StandardCharsets.US_ASCII));
+    } catch (final UnknownHostException e) {
+      throw new ProtocolException("invalid address in PROXY protocol header: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Parse an IPv4 address in dotted-decimal notation, made of exactly four numbers between 0 and 255.
+   * @param buffer the buffer which holds the address.
+   * @param start the start of the address.
+   * @param end the end of the address, exclusive.
+   * @return the address.
+   * @throws IOException if the address is not a valid IPv4 address.
+   */
+  private static InetAddress parseIPv4(final byte[] buffer, final int start, final int end) throws IOException {
+    final byte[] address = new byte[4];
+    int count = 0, value = 0, digits = 0;
+    for (int i=start; i<=end; i++) {
+      if ((i == end) || (buffer[i] == '.')) {
+        if ((digits == 0) || (count >= 4)) throw new ProtocolException("invalid IPv4 address in PROXY protocol header");
+        address[count++] = (byte) value;
+        value = digits = 0;
+      } else if ((buffer[i] >= '0') && (buffer[i] <= '9') && (digits < 3)) {
+        value = 10 * value + (buffer[i] - '0');
+        digits++;
+        if (value > 255) throw new ProtocolException("invalid IPv4 address in PROXY protocol header");
+      } else throw new ProtocolException("invalid IPv4 address in PROXY protocol header");
+    }
+    if (count != 4) throw new ProtocolException("invalid IPv4 address in PROXY protocol header");
+    return InetAddress.getByAddress(address);
+  }
+
+  /**
+   * Parse a port number.
+   * @param buffer the buffer which holds the port number.
+   * @param start the start of the port number.
+   * @param end the end of the port number, exclusive.
+   * @return the port number.
+   * @throws IOException if the port number is not valid.
+   */
+  private static int parsePort(final byte[] buffer, final int start, final int end) throws IOException {
+    int port = 0;
+    for (int i=start; i<end; i++) {
+      if ((buffer[i] < '0') || (buffer[i] > '9') || (end - start > 5)) throw new ProtocolException("invalid port in PROXY protocol header");
+      port = 10 * port + (buffer[i] - '0');
+    }
+    if ((start == end) || (port > 65535)) throw new ProtocolException("invalid port in PROXY protocol header");
+    return port;
+  }
+
+  /**
+   * Read exactly the specified number of bytes.
+   * @param in the stream to read from.
+   * @param buffer the buffer to read into.
+   * @param offset the position in the buffer.
+   * @param len the number of bytes to read.
+   * @throws IOException if the stream is closed before all the bytes are read, or could not be read.
+   */
+  private static void readFully(final InputStream in, final byte[] buffer, final int offset, final int len) throws IOException {
+    int count = 0;
+    while (count < len) {
+      final int n = in.read(buffer, offset + count, len - count);
+      if (n < 0) throw new EOFException("connection closed before the end of the PROXY protocol header");
+      count += n;
+    }
+  }
+
+  /**
+   * Determine whether the buffer starts with the specified bytes.
+   * @param buffer the buffer.
+   * @param prefix the bytes to look for.
+   * @return {@code true} if the buffer starts with the bytes, {@code false} otherwise.
+   */
+  private static boolean startsWith(final byte[] buffer, final byte[] prefix) {
+    for (int i=0; i<prefix.length; i++) {
+      if (buffer[i] != prefix[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Copy part of a buffer, for the creation of an {@link InetAddress}.
+   * @param buffer the buffer.
+   * @param offset the position of the bytes to copy.
+   * @param len the number of bytes to copy.
+   * @return the copied bytes.
+   */
+  private static byte[] copy(final byte[] buffer, final int offset, final int len) {
+    final byte[] result = new byte[len];
+    System.arraycopy(buffer, offset, result, 0, len);
+    return result;
+  }
+
+  /**
+   * Read an unsigned big-endian 16 bits value.
+   * @param buffer the buffer.
+   * @param offset the position of the value.
+   * @return the value.
+   */
+  private static int readShort(final byte[] buffer, final int offset) {
+    return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+  }
+
+  /**
+   * Write bytes to the buffer.
+   * @param buffer the buffer.
+   * @param pos the position to write at.
+   * @param bytes the bytes to write.
+   * @return the position after the written bytes.
+   */
+  private static int put(final byte[] buffer, final int pos, final byte[] bytes) {
+    System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+    return pos + bytes.length;
+  }
+
+  /**
+   * Write an ASCII string to the buffer.
+   * @param buffer the buffer.
+   * @param pos the position to write at.
+   * @param s the string to write.
+   * @return the position after the written bytes.
+   */
+  private static int put(final byte[] buffer, final int pos, final String s) {
+    for (int i=0; i<s.length(); i++) buffer[pos + i] = (byte) s.charAt(i);
+    return pos + s.length();
+  }
+
+  /**
+   * Write a big-endian 16 bits value to the buffer.
+   * @param buffer the buffer.
+   * @param pos the position to write at.
+   * @param value the value to write.
+   * @return the position after the written bytes.
+   */
+  private static int putShort(final byte[] buffer, final int pos, final int value) {
+    buffer[pos] = (byte) (value >> 8);
+    buffer[pos + 1] = (byte) value;
+    return pos + 2;
+  }
+
+  /**
+   * Write the decimal notation of a positive number to the buffer.
+   * @param buffer the buffer.
+   * @param pos the position to write at.
+   * @param value the value to write.
+   * @return the position after the written bytes.
+   */
+  private static int putDecimal(final byte[] buffer, final int pos, final int value) {
+    int digits = 1;
+    for (int n=value; n >= 10; n /= 10) digits++;
+    for (int i=digits-1, n=value; i>=0; i--, n /= 10) buffer[pos + i] = (byte) ('0' + (n % 10));
+    return pos + digits;
+  }
+
+  /**
+   * Write an address in binary form, mapped to IPv6 if it is an IPv4 address and {@code ipv4} is {@code false}.
+   * @param buffer the buffer.
+   * @param pos the position to write at.
+   * @param address the bytes of the address.
+   * @param ipv4 whether both addresses of the header are IPv4 addresses.
+   * @return the position after the written bytes.
+   */
+  private static int putRawAddress(final byte[] buffer, final int pos, final byte[] address, final boolean ipv4) {
+    if (ipv4 || (address.length == 16)) return put(buffer, pos, address);
+    // ::ffff:a.b.c.d
+    for (int i=0; i<10; i++) buffer[pos + i] = 0;
+    buffer[pos + 10] = buffer[pos + 11] = (byte) 0xFF;
+    return put(buffer, pos + 12, address);
+  }
+
+  /**
+   * Write an address in text form, mapped to IPv6 if it is an IPv4 address and {@code ipv4} is {@code false}.
+   * IPv6 addresses are written without the compression of zero groups.
+   * @param buffer the buffer.
+   * @param pos the position to write at.
+   * @param address the bytes of the address.
+   * @param ipv4 whether both addresses of the header are IPv4 addresses.
+   * @return the position after the written bytes.
+   */
+  private static int putAddress(final byte[] buffer, final int pos, final byte[] address, final boolean ipv4) {
+    int p = pos;
+    if (ipv4) {
+      for (int i=0; i<4; i++) {
+        if (i > 0) buffer[p++] = '.';
+        p = putDecimal(buffer, p, address[i] & 0xFF);
+      }
+      return p;
+    }
+    if (address.length == 4) p = put(buffer, p, "0:0:0:0:0:ffff:");
+    for (int i=0; i<address.length; i += 2) {
+      if (i > 0) buffer[p++] = ':';
+      final int group = ((address[i] & 0xFF) << 8) | (address[i + 1] & 0xFF);
+      boolean leading = true;
+      for (int shift=12; shift>=0; shift -= 4) {
+        final int digit = (group >> shift) & 0x0F;
+        if (leading && (digit == 0) && (shift > 0)) continue;
+        leading = false;
+        buffer[p++] = HEX_DIGITS[digit];
+      }
+    }
+    return p;
+  }
+
+  /**
+   * The addresses received in a PROXY protocol header.
+   */
+  public static final class Header {
+    /**
+     * A header which does not specify the addresses, in which case those of the connection apply.
+     */
+    static final Header UNKNOWN = new Header(null, null);
+    /**
+     * The address and port of the client, or {@code null} if they are not specified.
+     */
+    private final InetSocketAddress source;
+    /**
+     * The address and port the client connected to, or {@code null} if they are not specified.
+     */
+    private final InetSocketAddress destination;
+
+    /**
+     * Initialize this header.
+     * @param source the address and port of the client, or {@code null} if they are not specified.
+     * @param destination the address and port the client connected to, or {@code null} if they are not specified.
+     */
+    Header(final InetSocketAddress source, final InetSocketAddress destination) {
+      this.source = source;
+      this.destination = destination;
+    }
+
+    /**
+     * @return the address and port of the client, or {@code null} if they are not specified.
+     */
+    public InetSocketAddress getSource() {
+      return source;
+    }
+
+    /**
+     * @return the address and port the client connected to, or {@code null} if they are not specified.
+     */
+    public InetSocketAddress getDestination() {
+      return destination;
+    }
+
+    @Override
+    public String toString() {
+      return (source == null) ? "UNKNOWN" : source + " -> " + destination;
+    }
+  }
+}
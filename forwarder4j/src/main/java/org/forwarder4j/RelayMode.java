@@ -0,0 +1,57 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+/**
+ * The ways data can be relayed between a client and the target of a forwarder, selected with the {@code relay} option
+ * of a forwarding definition.
+ * @author Laurent Cohen
+ */
+public enum RelayMode {
+  /**
+   * Each side of a tunnel has a receiver thread, which queues the data it reads, and a sender thread, which writes the
+   * queued data to the other side. This is the default.
+   */
+  QUEUED,
+  /**
+   * Each direction of a tunnel has a single thread, which reads from one side and writes straight to the other.
+   * A slow reader then slows down the writer through TCP flow control, instead of letting the data pile up in memory.
+   */
+  DIRECT;
+
+  /**
+   * Name of the option which defines the relay mode.
+   */
+  public static final String OPTION = "relay";
+
+  /**
+   * Get the relay mode defined in the options of a forwarding definition.
+   * @param options the forwarder options.
+   * @return the relay mode, {@link #QUEUED} if the option is not defined.
+   * @throws IllegalArgumentException if the option value is not a valid relay mode.
+   */
+  public static RelayMode from(final Config options) {
+    final String value = (options == null) ? null : options.getString(OPTION);
+    if (value == null) return QUEUED;
+    for (final RelayMode mode: values()) {
+      if (mode.name().equalsIgnoreCase(value.trim())) return mode;
+    }
+    throw new IllegalArgumentException("'" + value + "' is not a valid relay mode");
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The handshake of the {@link ProxyMode#ROUTE} mode, which reads the first bytes of a connection until its protocol is
+ * recognized, then connects it to the target of the matching route. The client is never written to, and the bytes
+ * read are written to the target as they are, from the handshake buffer.
+ * @author Laurent Cohen
+ */
+class RouteHandshake extends ProxyHandshake {
+  /**
+   * Logger for this class.
+   */
+  private static Logger log = LoggerFactory.getLogger(RouteHandshake.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static boolean debugEnabled = log.isDebugEnabled();
+
+  /**
+   * Initialize this handshake.
+   * @param socket the socket connected to the client.
+   * @param desc the forwarding definition.
+   * @throws IOException if the socket streams cannot be obtained.
+   */
+  RouteHandshake(final Socket socket, final EntryDescriptor desc) throws IOException {
+    super(socket, desc, desc.getPeekSize());
+  }
+
+  @Override
+  int readTimeout() {
+    return desc.getPeekTimeout();
+  }
+
+  @Override
+  HostPort negotiate() throws IOException {
+    final int max = Math.min(buffer.length, desc.getPeekSize());
+    int length = 0;
+    Object[] result = Router.sniff(buffer, 0, false);
+    while (result == null) {
+      int n;
+      try {
+        n = in.read(buffer, length, max - length);
+      } catch (@SuppressWarnings("unused") final SocketTimeoutException e) {
+        // the client waits for the server to speak first, or sent all it had to
+        n = -1;
+      }
+      if (n > 0) length += n;
+      result = Router.sniff(buffer, length, (n < 0) || (length >= max));
+    }
+    pendingOffset = 0;
+    pendingLength = length;
+    final Router.Kind kind = (Router.Kind) result[0];
+    final String host = (String) result[1];
+    final HostPort target = desc.getRouter().route(kind, host);
+    if (debugEnabled) log.debug("{} from {} recognized as {}{}, routed to {}", length, socket, kind, (host == null) ? "" : " for " + host, target);
+    return target;
+  }
+
+  @Override
+  void failed(final IOException error) {
+    // the routed protocols have no way of telling the client why its connection is closed
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Chooses the target of a connection from the first bytes sent by the client. The routes are defined with the
+ * {@code routes} option, as a comma-separated list of {@code protocol[:host]=target}, where {@code protocol} is one of:
+ * <ul>
+ * <li>{@code tls}, with the host name of the TLS server name indication</li>
+ * <li>{@code http}, with the host name of the {@code Host} header</li>
+ * <li>{@code ssh}, {@code postgres} and {@code redis}</li>
+ * <li>{@code default}, for the connections which match no other route, including those whose client sent nothing
+ * before the peek timeout, as with server-first protocols</li>
+ * </ul>
+ * A host is either a name, {@code *.domain} for any host in a domain, or {@code *}. The routes are tried in the order
+ * they are defined.
+ * @author Laurent Cohen
+ */
+public class Router {
+  /**
+   * Name of the option which defines the routes.
+   */
+  public static final String OPTION = "routes";
+  /**
+   * The protocols recognized from the first bytes of a connection.
+   */
+  enum Kind {
+    /**
+     * A TLS ClientHello.
+     */
+    TLS,
+    /**
+     * An HTTP/1.x request.
+     */
+    HTTP,
+    /**
+     * An SSH identification string.
+     */
+    SSH,
+    /**
+     * A PostgreSQL startup, SSL or GSSAPI encryption request.
+     */
+    POSTGRES,
+    /**
+     * A Redis command in the RESP protocol.
+     */
+    REDIS,
+    /**
+     * Any other protocol.
+     */
+    DEFAULT
+  }
+  /**
+   * The first bytes of an SSH connection.
+   */
+  private static final byte[] SSH_PREFIX = "SSH-".getBytes(StandardCharsets.US_ASCII);
+  /**
+   * The header whose value is routed on in HTTP requests.
+   */
+  private static final byte[] HOST_HEADER = "host:".getBytes(StandardCharsets.US_ASCII);
+  /**
+   * The protocol versions and request codes of the PostgreSQL startup messages: protocol 3.0, SSL and GSSAPI encryption requests.
+   */
+  private static final int[] POSTGRES_CODES = { 0x0003_0000, 80_877_103, 80_877_104 };
+  /**
+   * The routes, in the order they are tried.
+   */
+  private final List<Route> routes = new ArrayList<>();
+
+  /**
+   * Initialize with the specified routes.
+   * @param routes a comma-separated list of routes in the form {@code protocol[:host]=target}.
+   * @throws IllegalArgumentException if any of the routes is invalid.
+   */
+  public Router(final String routes) {
+    for (final String value: routes.split(",")) {
+      final String route = value.trim();
+      if (route.isEmpty()) continue;
+      final int idx = route.indexOf('=');
+      if (idx < 0) throw new IllegalArgumentException("'" + route + "' is not a valid route");
+      final String match = route.substring(0, idx).trim();
+      final int colon = match.indexOf(':');
+      final String name = (colon < 0) ? match : match.substring(0, colon);
+      final Kind kind = parseKind(name, route);
+      final String host = (colon < 0) ? null : match.substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+      if ((host != null) && (host.isEmpty() || ((kind != Kind.TLS) && (kind != Kind.HTTP))))
+        throw new IllegalArgumentException("'" + route + "' is not a valid route: only tls and http routes can match a host");
+      final HostPort target;
+      try {
+        target = HostPort.from(route.substring(idx + 1));
+      } catch (final RuntimeException e) {
+        throw new IllegalArgumentException("'" + route + "' does not have a valid target (" + e.getMessage() + ")");
+      }
+      if ((target.getProxyMode() != null) || (target.getLastPort() != target.getPort())) throw new IllegalArgumentException("'" + route + "' does not have a valid target");
+      if (target.isUnix() && !UnixSocket.isSupported()) throw new IllegalArgumentException("'" + route + "' is not a valid route: unix domain sockets require Java 16 or later");
+      this.routes.add(new Route(kind, "*".equals(host) ? null : host, target));
+    }
+    if (this.routes.isEmpty()) throw new IllegalArgumentException("no route is defined");
+  }
+
+  /**
+   * Create a router from the "routes" option of a forwarder definition.
+   * @param options the forwarder options.
+   * @return a {@code Router}, or {@code null} if the option is not defined.
+   * @throws IllegalArgumentException if any of the routes is invalid.
+   */
+  public static Router from(final Config options) {
+    final String value = (options == null) ? null : options.getString(OPTION);
+    return (value == null) ? null : new Router(value);
+  }
+
+  /**
+   * Parse the protocol of a route.
+   * @param name the name of the protocol.
+   * @param route the route, for the error message.
+   * @return the protocol.
+   * @throws IllegalArgumentException if the protocol is unknown.
+   */
+  private static Kind parseKind(final String name, final String route) {
+    for (final Kind kind: Kind.values()) {
+      if (kind.name().equalsIgnoreCase(name.trim())) return kind;
+    }
+    throw new IllegalArgumentException("'" + route + "' is not a valid route: unknown protocol '" + name + "'");
+  }
+
+  /**
+   * Find the target of a connection.
+   * @param kind the protocol of the connection.
+   * @param host the host name it is for, or {@code null} if it is not known.
+   * @return the target of the first matching route, or {@code null} if there is none.
+   */
+  HostPort route(final Kind kind, final String host) {
+    for (final Route route: routes) {
+      if (route.matches(kind, host)) return route.target;
+    }
+    if (kind == Kind.DEFAULT) return null;
+    return route(Kind.DEFAULT, null);
+  }
+
+  /**
+   * Recognize the protocol of a connection and the host it is for, from its first bytes.
+   * @param data the first bytes sent by the client.
+   * @param length the number of bytes.
+   * @param last whether no more bytes can be read, because the peek timeout or size limit was reached, or the client
+   * stopped sending.
+   * @return a two-element array with the {@link Kind} and the host name, or {@code null} if more bytes are needed.
+   */
+  static Object[] sniff(final byte[] data, final int length, final boolean last) {
+    if (length == 0) return last ? result(Kind.DEFAULT, null) : null;
+    final int first = data[0] & 0xFF;
+    if (first == 0x16) {
+      // TLS handshake record
+      if ((length >= 2) && (data[1] != 3)) return result(Kind.DEFAULT, null);
+      if (length < 5) return last ? result(Kind.DEFAULT, null) : null;
+      final int recordEnd = 5 + readShort(data, 3);
+      final String host = serverName(data, 5, Math.min(recordEnd, length));
+      // the server name may be further in a record which is not fully received yet
+      if ((host == null) && (recordEnd > length) && !last) return null;
+      return result(Kind.TLS, host);
+    }
+    if (first == 'S') {
+      final int n = Math.min(length, SSH_PREFIX.length);
+      if (!regionMatches(data, 0, SSH_PREFIX, n, false)) return result(Kind.DEFAULT, null);
+      return (n == SSH_PREFIX.length) ? result(Kind.SSH, null) : (last ? result(Kind.DEFAULT, null) : null);
+    }
+    if ((first >= 'A') && (first <= 'Z')) return sniffHttp(data, length, last);
+    if (first == '*') {
+      if (length < 2) return last ? result(Kind.DEFAULT, null) : null;
+      return result(((data[1] >= '0') && (data[1] <= '9')) ? Kind.REDIS : Kind.DEFAULT, null);
+    }
+    if (first == 0) {
+      // PostgreSQL: int32 length, int32 protocol version or request code
+      if (length < 8) return last ? result(Kind.DEFAULT, null) : null;
+      final int code = readInt(data, 4);
+      for (final int expected: POSTGRES_CODES) {
+        if (code == expected) return result(Kind.POSTGRES, null);
+      }
+    }
+    return result(Kind.DEFAULT, null);
+  }
+
+  /**
+   * Recognize an HTTP/1.x request and find its {@code Host} header.
+   * @param data the first bytes sent by the client.
+   * @param length the number of bytes.
+   * @param last whether no more bytes can be read.
+   * @return a two-element array with the {@link Kind} and the host name, or {@code null} if more bytes are needed.
+   */
+  private static Object[] sniffHttp(final byte[] data, final int length, final boolean last) {
+    // method token followed by a space
+    int pos = 0;
+    while ((pos < length) && (data[pos] >= 'A') && (data[pos] <= 'Z')) pos++;
+    if (pos == length) return last ? result(Kind.DEFAULT, null) : null;
+    if (data[pos] != ' ') return result(Kind.DEFAULT, null);
+    // scan the lines of the head for the host header
+    int lineStart = -1;
+    for (int i=pos; i<length; i++) {
+      if (data[i] != '\n') continue;
+      if (lineStart < 0) {
+        // end of the request line
+        if ((i < 9) || !regionMatches(data, i - ((data[i - 1] == '\r') ? 9 : 8), "HTTP/1.".getBytes(StandardCharsets.US_ASCII), 7, false)) return result(Kind.DEFAULT, null);
+      } else {
+        final int end = (i > lineStart) && (data[i - 1] == '\r') ? i - 1 : i;
+        // empty line: end of the head without a host header
+        if (end == lineStart) return result(Kind.HTTP, null);
+        if ((end - lineStart > HOST_HEADER.length) && regionMatches(data, lineStart, HOST_HEADER, HOST_HEADER.length, true)) {
+          return result(Kind.HTTP, hostName(new String(data, lineStart + HOST_HEADER.length, end - lineStart - HOST_HEADER.length, StandardCharsets.US_ASCII).trim()));
+        }
+      }
+      lineStart = i + 1;
+    }
+    return last ? result((lineStart < 0) ? Kind.DEFAULT : Kind.HTTP, null) : null;
+  }
+
+  /**
+   * Find the server name indication in a TLS ClientHello.
+   * @param data the first bytes sent by the client.
+   * @param offset the start of the handshake message, after the record header.
+   * @param end the end of the available data in the record.
+   * @return the server name, or {@code null} if it is not found.
+   */
+  private static String serverName(final byte[] data, final int offset, final int end) {
+    // handshake type (1 = ClientHello), length(3), version(2), random(32)
+    if ((offset >= end) || (data[offset] != 1)) return null;
+    int pos = offset + 4 + 2 + 32;
+    // session id, cipher suites, compression methods
+    if (pos >= end) return null;
+    pos += 1 + (data[pos] & 0xFF);
+    if (pos + 2 > end) return null;
+    pos += 2 + readShort(data, pos);
+    if (pos >= end) return null;
+    pos += 1 + (data[pos] & 0xFF);
+    if (pos + 2 > end) return null;
+    final int extensionsEnd = Math.min(end, pos + 2 + readShort(data, pos));
+    pos += 2;
+    while (pos + 4 <= extensionsEnd) {
+      final int type = readShort(data, pos), len = readShort(data, pos + 2);
+      pos += 4;
+      if (type == 0) {
+        // server name list: list length(2), then entries of name type(1), name length(2), name
+        int entry = pos + 2;
+        final int listEnd = Math.min(extensionsEnd, pos + len);
+        while (entry + 3 <= listEnd) {
+          final int nameLength = readShort(data, entry + 1);
+          if ((data[entry] == 0) && (entry + 3 + nameLength <= listEnd)) return new String(data, entry + 3, nameLength, StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT);
+          entry += 3 + nameLength;
+        }
+        return null;
+      }
+      pos += len;
+    }
+    return null;
+  }
+
+  /**
+   * Get the host name from the value of a {@code Host} header, without its port.
+   * @param value the header value.
+   * @return the host name in lower case.
+   */
+  private static String hostName(final String value) {
+    final int idx = value.startsWith("[") ? value.indexOf(']') + 1 : value.indexOf(':');
+    return ((idx > 0) && (idx < value.length()) ? value.substring(0, idx) : value).toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Create the result of {@link #sniff(byte[], int, boolean)}.
+   * @param kind the protocol.
+   * @param host the host name, or {@code null} if it is not known.
+   * @return a two-element array with the protocol and the host name.
+   */
+  private static Object[] result(final Kind kind, final String host) {
+    return new Object[] { kind, host };
+  }
+
+  /**
+   * Determine whether the data holds the specified bytes at the specified position.
+   * @param data the data.
+   * @param offset the position in the data.
+   * @param bytes the bytes to look for.
+   * @param len the number of bytes to compare.
+   * @param ignoreCase whether to ignore the case of ASCII letters.
+   * @return {@code true} if the bytes are found, {@code false} otherwise.
+   */
+  private static boolean regionMatches(final byte[] data, final int offset, final byte[] bytes, final int len, final boolean ignoreCase) {
+    for (int i=0; i<len; i++) {
+      int b = data[offset + i];
+      if (ignoreCase && (b >= 'A') && (b <= 'Z')) b += 'a' - 'A';
+      if (b != bytes[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Read an unsigned big-endian 16 bits value.
+   * @param data the data.
+   * @param offset the position of the value.
+   * @return the value.
+   */
+  private static int readShort(final byte[] data, final int offset) {
+    return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+  }
+
+  /**
+   * Read a big-endian 32 bits value.
+   * @param data the data.
+   * @param offset the position of the value.
+   * @return the value.
+   */
+  private static int readInt(final byte[] data, final int offset) {
+    return (readShort(data, offset) << 16) | readShort(data, offset + 2);
+  }
+
+  @Override
+  public String toString() {
+    return routes.toString();
+  }
+
+  /**
+   * A route to a target.
+   */
+  private static final class Route {
+    /**
+     * The protocol matched by this route.
+     */
+    private final Kind kind;
+    /**
+     * The host name or {@code *.domain} matched by this route, in lower case, or {@code null} for any host.
+     */
+    private final String host;
+    /**
+     * The target of the matching connections.
+     */
+    private final HostPort target;
+
+    /**
+     * Initialize this route.
+     * @param kind the protocol matched by this route.
+     * @param host the host name or {@code *.domain} matched by this route, or {@code null} for any host.
+     * @param target the target of the matching connections.
+     */
+    private Route(final Kind kind, final String host, final HostPort target) {
+      this.kind = kind;
+      this.host = host;
+      this.target = target;
+    }
+
+    /**
+     * Determine whether a connection matches this route.
+     * @param connectionKind the protocol of the connection.
+     * @param connectionHost the host name the connection is for, or {@code null} if it is not known.
+     * @return {@code true} if the connection matches, {@code false} otherwise.
+     */
+    private boolean matches(final Kind connectionKind, final String connectionHost) {
+      if (kind != connectionKind) return false;
+      if (host == null) return true;
+      if (connectionHost == null) return false;
+      if (!host.startsWith("*.")) return host.equals(connectionHost);
+      return connectionHost.endsWith(host.substring(1));
+    }
+
+    @Override
+    public String toString() {
+      return kind.name().toLowerCase() + ((host == null) ? "" : ":" + host) + "=" + target;
+    }
+  }
+}
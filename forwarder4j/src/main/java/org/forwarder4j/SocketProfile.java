@@ -0,0 +1,360 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A named set of socket options, which can be applied to the client side or the upstream side of a forwarder.
+ * <p>The default profile is defined with the {@code forwarder4j.socket.<option>} properties. A profile named {@code name}
+ * is defined with the {@code forwarder4j.socket.profile.<name>.<option>} properties, and any option it does not define
+ * is taken from the default profile.
+ * @author Laurent Cohen
+ */
+public class SocketProfile {
+  /**
+   * Logger for this class.
+   */
+  private static final Logger log = LoggerFactory.getLogger(SocketProfile.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static final boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * Prefix of the default socket options.
+   */
+  public static final String DEFAULT_PREFIX = "forwarder4j.socket.";
+  /**
+   * Prefix of the named profiles definitions.
+   */
+  public static final String PROFILE_PREFIX = DEFAULT_PREFIX + "profile.";
+  /**
+   * Pattern for the names of the profiles.
+   */
+  private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_\\-]+");
+  /**
+   * The {@code Socket.setOption(SocketOption, Object)} method, available from Java 9.
+   */
+  private static final Method SET_OPTION;
+  /**
+   * The {@code jdk.net.ExtendedSocketOptions} keepalive options, available from Java 11 on some platforms.
+   */
+  private static final SocketOption<?> KEEPALIVE_IDLE, KEEPALIVE_INTERVAL, KEEPALIVE_COUNT;
+  static {
+    Method method = null;
+    final SocketOption<?>[] options = new SocketOption<?>[3];
+    try {
+      method = Socket.class.getMethod("setOption", SocketOption.class, Object.class);
+      final Class<?> c = Class.forName("jdk.net.ExtendedSocketOptions");
+      final String[] names = { "TCP_KEEPIDLE", "TCP_KEEPINTERVAL", "TCP_KEEPCOUNT" };
+      for (int i=0; i<names.length; i++) options[i] = (SocketOption<?>) c.getField(names[i]).get(null);
+    } catch (@SuppressWarnings("unused") final Exception e) {
+      if (debugEnabled) log.debug("the extended keepalive options are not available in this JVM");
+    }
+    SET_OPTION = method;
+    KEEPALIVE_IDLE = options[0];
+    KEEPALIVE_INTERVAL = options[1];
+    KEEPALIVE_COUNT = options[2];
+  }
+  /**
+   * Whether a warning was logged for an unsupported extended option, so it is only logged once.
+   */
+  private static final AtomicBoolean extendedWarning = new AtomicBoolean(false);
+  /**
+   * The default profile.
+   */
+  private static volatile SocketProfile defaultProfile;
+  /**
+   * The named profiles, mapped to their name.
+   */
+  private static volatile Map<String, SocketProfile> profiles = Collections.emptyMap();
+  static {
+    load(Config.getConfiguration());
+  }
+  /**
+   * The name of this profile, {@code null} for the default profile.
+   */
+  private final String name;
+  /**
+   * Size of the send buffer, or 0 to leave the system default.
+   */
+  private final int sendBufferSize;
+  /**
+   * Size of the receive buffer, or 0 to leave the system default.
+   */
+  private final int receiveBufferSize;
+  /**
+   * Whether Nagle's algorithm is disabled.
+   */
+  private final boolean tcpNoDelay;
+  /**
+   * Whether TCP keepalive is enabled.
+   */
+  private final boolean keepAlive;
+  /**
+   * Idle time in seconds before keepalive probes are sent, or 0 to leave the system default.
+   */
+  private final int keepAliveIdle;
+  /**
+   * Interval in seconds between keepalive probes, or 0 to leave the system default.
+   */
+  private final int keepAliveInterval;
+  /**
+   * Number of unanswered keepalive probes before the connection is dropped, or 0 to leave the system default.
+   */
+  private final int keepAliveCount;
+  /**
+   * Linger time in seconds upon close, or a negative value to disable lingering.
+   */
+  private final int linger;
+  /**
+   * The IP traffic class or type of service, or a negative value to leave the system default.
+   */
+  private final int trafficClass;
+  /**
+   * Maximum length of the queue of incoming connections, or 0 to use the system default.
+   */
+  private final int backlog;
+  /**
+   * Whether a local port can be bound while connections previously accepted through it are in the TIME_WAIT state.
+   */
+  private final boolean reuseAddress;
+
+  /**
+   * Read a profile from the specified configuration.
+   * @param config the configuration to read from.
+   * @param name the name of the profile, {@code null} for the default profile.
+   * @param parent the profile to take the undefined options from, {@code null} for the default profile.
+   * @throws IllegalArgumentException if any option has an invalid value.
+   */
+  private SocketProfile(final Config config, final String name, final SocketProfile parent) {
+    this.name = name;
+    final String prefix = (name == null) ? DEFAULT_PREFIX : PROFILE_PREFIX + name + '.';
+    final int bufferSize = getInt(config, prefix + "buffer.size", (parent == null) ? 32 * 1024 : -1);
+    this.sendBufferSize = getInt(config, prefix + "send.buffer.size", (bufferSize >= 0) ? bufferSize : parent.sendBufferSize);
+    this.receiveBufferSize = getInt(config, prefix + "receive.buffer.size", (bufferSize >= 0) ? bufferSize : parent.receiveBufferSize);
+    this.tcpNoDelay = getBoolean(config, prefix + "tcp_nodelay", (parent == null) || parent.tcpNoDelay);
+    this.keepAlive = getBoolean(config, prefix + "keepalive", (parent != null) && parent.keepAlive);
+    this.keepAliveIdle = getInt(config, prefix + "keepalive.idle", (parent == null) ? 0 : parent.keepAliveIdle);
+    this.keepAliveInterval = getInt(config, prefix + "keepalive.interval", (parent == null) ? 0 : parent.keepAliveInterval);
+    this.keepAliveCount = getInt(config, prefix + "keepalive.count", (parent == null) ? 0 : parent.keepAliveCount);
+    this.linger = getInt(config, prefix + "linger", (parent == null) ? -1 : parent.linger);
+    this.trafficClass = getInt(config, prefix + "traffic_class", (parent == null) ? -1 : parent.trafficClass);
+    this.backlog = getInt(config, prefix + "backlog", (parent == null) ? 0 : parent.backlog);
+    this.reuseAddress = getBoolean(config, prefix + "reuse_address", (parent == null) || parent.reuseAddress);
+    if ((trafficClass > 255) || (sendBufferSize < 0) || (receiveBufferSize < 0) || (backlog < 0))
+      throw new IllegalArgumentException(String.format("invalid socket profile %s", this));
+  }
+
+  /**
+   * Load the default and named profiles from the specified configuration, replacing those previously loaded.
+   * Invalid profiles are reported and ignored.
+   * @param config the configuration to read from.
+   */
+  public static void load(final Config config) {
+    SocketProfile newDefault;
+    try {
+      newDefault = new SocketProfile(config, null, null);
+    } catch (final IllegalArgumentException e) {
+      log.error("{}, using the built-in defaults", e.getMessage());
+      newDefault = new SocketProfile(new Config(), null, null);
+    }
+    final Map<String, SocketProfile> newProfiles = new TreeMap<>();
+    for (final String key: config.stringPropertyNames()) {
+      if (!key.startsWith(PROFILE_PREFIX)) continue;
+      final int idx = key.indexOf('.', PROFILE_PREFIX.length());
+      if (idx < 0) continue;
+      final String profileName = key.substring(PROFILE_PREFIX.length(), idx);
+      if (newProfiles.containsKey(profileName) || !NAME_PATTERN.matcher(profileName).matches()) continue;
+      try {
+        newProfiles.put(profileName, new SocketProfile(config, profileName, newDefault));
+      } catch (final IllegalArgumentException e) {
+        log.error("{}, ignoring it", e.getMessage());
+        System.out.println(e.getMessage() + ", ignoring it");
+      }
+    }
+    defaultProfile = newDefault;
+    profiles = newProfiles;
+  }
+
+  /**
+   * @return the default profile.
+   */
+  public static SocketProfile getDefault() {
+    return defaultProfile;
+  }
+
+  /**
+   * Get the profile with the specified name.
+   * @param name the name of the profile, {@code null} for the default profile.
+   * @return the profile, or the default profile if the name is {@code null} or no such profile is defined.
+   */
+  public static SocketProfile get(final String name) {
+    if (name == null) return defaultProfile;
+    final SocketProfile profile = profiles.get(name);
+    if (profile != null) return profile;
+    log.warn("socket profile '{}' is not defined, using the default profile", name);
+    return defaultProfile;
+  }
+
+  /**
+   * Determine whether a profile with the specified name is defined.
+   * @param name the name of the profile.
+   * @return {@code true} if the profile is defined, {@code false} otherwise.
+   */
+  public static boolean exists(final String name) {
+    return profiles.containsKey(name);
+  }
+
+  /**
+   * Apply the options of this profile to the specified socket. The buffer sizes should be set before the socket is
+   * connected, for the TCP window scaling to take them into account. Only the buffer sizes apply to unix domain sockets.
+   * @param socket the socket to configure.
+   * @throws IOException if any option could not be set.
+   */
+  public void applyTo(final Socket socket) throws IOException {
+    if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+    if (sendBufferSize > 0) socket.setSendBufferSize(sendBufferSize);
+    if (socket instanceof UnixSocket) return;
+    socket.setTcpNoDelay(tcpNoDelay);
+    socket.setKeepAlive(keepAlive);
+    if (keepAlive) {
+      setExtendedOption(socket, KEEPALIVE_IDLE, keepAliveIdle);
+      setExtendedOption(socket, KEEPALIVE_INTERVAL, keepAliveInterval);
+      setExtendedOption(socket, KEEPALIVE_COUNT, keepAliveCount);
+    }
+    if (linger >= 0) socket.setSoLinger(true, linger);
+    if (trafficClass >= 0) socket.setTrafficClass(trafficClass);
+  }
+
+  /**
+   * Apply the options of this profile to the specified server socket, before it is bound. The accepted sockets inherit
+   * the receive buffer size of the server socket.
+   * @param server the server socket to configure.
+   * @throws IOException if any option could not be set.
+   */
+  public void applyTo(final ServerSocket server) throws IOException {
+    server.setReuseAddress(reuseAddress);
+    if (receiveBufferSize > 0) server.setReceiveBufferSize(receiveBufferSize);
+  }
+
+  /**
+   * @return the size of the send buffer, or 0 to leave the system default.
+   */
+  public int getSendBufferSize() {
+    return sendBufferSize;
+  }
+
+  /**
+   * @return the size of the receive buffer, or 0 to leave the system default.
+   */
+  public int getReceiveBufferSize() {
+    return receiveBufferSize;
+  }
+
+  /**
+   * @return the maximum length of the queue of incoming connections, or 0 to use the system default.
+   */
+  public int getBacklog() {
+    return backlog;
+  }
+
+  /**
+   * @return the name of this profile, {@code null} for the default profile.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Set an extended socket option, if it is supported.
+   * @param socket the socket to configure.
+   * @param option the option to set, {@code null} if it is not available in this JVM.
+   * @param value the value of the option, 0 to leave the system default.
+   */
+  private static void setExtendedOption(final Socket socket, final SocketOption<?> option, final int value) {
+    if (value <= 0) return;
+    try {
+      if ((SET_OPTION == null) || (option == null)) throw new UnsupportedOperationException("requires Java 11 or later");
+      SET_OPTION.invoke(socket, option, value);
+    } catch (final Exception e) {
+      if (extendedWarning.compareAndSet(false, true)) log.warn("the keepalive idle, interval and count options cannot be set: {}", e.toString());
+    }
+  }
+
+  /**
+   * Get an int option value, which may be written in decimal, hexadecimal or octal form.
+   * @param config the configuration to read from.
+   * @param key the option key.
+   * @param defValue the value to use if the option is not defined.
+   * @return the option value.
+   * @throws IllegalArgumentException if the value is not a valid integer.
+   */
+  private static int getInt(final Config config, final String key, final int defValue) {
+    final String value = config.getString(key);
+    if (value == null) return defValue;
+    try {
+      return Integer.decode(value.trim());
+    } catch (@SuppressWarnings("unused") final NumberFormatException e) {
+      throw new IllegalArgumentException(String.format("invalid value '%s' for %s", value, key));
+    }
+  }
+
+  /**
+   * Get a boolean option value.
+   * @param config the configuration to read from.
+   * @param key the option key.
+   * @param defValue the value to use if the option is not defined.
+   * @return the option value.
+   */
+  private static boolean getBoolean(final Config config, final String key, final boolean defValue) {
+    final String value = config.getString(key);
+    return (value == null) ? defValue : Boolean.parseBoolean(value.trim());
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder(getClass().getSimpleName()).append('[')
+      .append("name=").append((name == null) ? "default" : name)
+      .append(", sendBufferSize=").append(sendBufferSize)
+      .append(", receiveBufferSize=").append(receiveBufferSize)
+      .append(", tcpNoDelay=").append(tcpNoDelay)
+      .append(", keepAlive=").append(keepAlive)
+      .append(", keepAliveIdle=").append(keepAliveIdle)
+      .append(", keepAliveInterval=").append(keepAliveInterval)
+      .append(", keepAliveCount=").append(keepAliveCount)
+      .append(", linger=").append(linger)
+      .append(", trafficClass=").append(trafficClass)
+      .append(", backlog=").append(backlog)
+      .append(", reuseAddress=").append(reuseAddress)
+      .append(']').toString();
+  }
+}
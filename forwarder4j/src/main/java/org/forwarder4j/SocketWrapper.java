@@ -25,9 +25,17 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.BindException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.net.ssl.SSLSocket;
 
 import org.forwarder4j.utils.Utils;
 import org.slf4j.Logger;
@@ -43,6 +51,10 @@ public class SocketWrapper implements AutoCloseable {
    * Logger for this class.
    */
   private static final Logger log = LoggerFactory.getLogger(SocketWrapper.class);
+  /**
+   * Maximum length in bytes of a string written with {@link #writeString(String)}.
+   */
+  public static final int MAX_UTF_LENGTH = 65535;
   /**
    * The underlying socket wrapped by this SocketClient.
    */
@@ -106,6 +118,30 @@ public class SocketWrapper implements AutoCloseable {
     flush();
   }
 
+  /**
+   * Write the specified string to the socket, as its length in bytes followed by its UTF-8 encoding.
+   * Unlike {@link #writeString(String)}, this allows strings larger than {@link #MAX_UTF_LENGTH} bytes.
+   * @param s the string to write.
+   * @throws IOException if any I/O error occurs.
+   */
+  public void writeLongString(final String s) throws IOException {
+    checkOpened();
+    final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    dos.writeInt(bytes.length);
+    dos.write(bytes);
+    flush();
+  }
+
+  /**
+   * Write the specified int value to the socket. The value is only sent upon the next flush.
+   * @param value the value to write.
+   * @throws IOException if any I/O error occurs.
+   */
+  public void writeInt(final int value) throws IOException {
+    checkOpened();
+    dos.writeInt(value);
+  }
+
   /**
    * Send an array of bytes over a TCP socket connection.
    * @param data the data to send.
@@ -158,6 +194,88 @@ public class SocketWrapper implements AutoCloseable {
     return dis.readUTF();
   }
 
+  /**
+   * Read a string written with {@link #writeLongString(String)}.
+   * @param maxLength the maximum accepted length in bytes, checked before the string is read.
+   * @return a string.
+   * @throws IOException if the length is negative or greater than {@code maxLength}, or if any I/O error occurs.
+   */
+  public String readLongString(final int maxLength) throws IOException {
+    checkOpened();
+    final int len = dis.readInt();
+    if ((len < 0) || (len > maxLength)) throw new IOException("invalid string length: " + len);
+    return readUTF8(len);
+  }
+
+  /**
+   * Read a string written with {@link #writeLongString(String)}, whose length was already read.
+   * @param len the length in bytes of the string.
+   * @return a string.
+   * @throws IOException if any I/O error occurs.
+   */
+  public String readUTF8(final int len) throws IOException {
+    checkOpened();
+    final byte[] bytes = new byte[len];
+    dis.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the next two bytes of the socket as an unsigned value, without consuming them.
+   * @return the value of the next two bytes.
+   * @throws IOException if any I/O error occurs.
+   */
+  public int peekUnsignedShort() throws IOException {
+    checkOpened();
+    dis.mark(2);
+    try {
+      return dis.readUnsignedShort();
+    } finally {
+      dis.reset();
+    }
+  }
+
+  /**
+   * Get the next four bytes of the socket as an int value, without consuming them.
+   * @return the value of the next four bytes.
+   * @throws IOException if any I/O error occurs.
+   */
+  public int peekInt() throws IOException {
+    checkOpened();
+    dis.mark(4);
+    try {
+      return dis.readInt();
+    } finally {
+      dis.reset();
+    }
+  }
+
+  /**
+   * Compute the number of bytes written by {@link #writeString(String)} for the specified string, excluding its length.
+   * @param s the string to measure.
+   * @return the length in bytes of the modified UTF-8 encoding of the string.
+   */
+  public static int utfLength(final String s) {
+    int len = 0;
+    for (int i=0; i<s.length(); i++) {
+      final char c = s.charAt(i);
+      if ((c >= 0x0001) && (c <= 0x007F)) len++;
+      else if (c <= 0x07FF) len += 2;
+      else len += 3;
+    }
+    return len;
+  }
+
+  /**
+   * Read an int value from the socket.
+   * @return the value read.
+   * @throws IOException if any I/O error occurs.
+   */
+  public int readInt() throws IOException {
+    checkOpened();
+    return dis.readInt();
+  }
+
   /**
    * Read <code>len</code> bytes from a TCP connection into a byte array, starting
    * at position <code>offset</code> in that array.
@@ -182,27 +300,150 @@ public class SocketWrapper implements AutoCloseable {
     if (!opened) {
       if ((host == null) || "".equals(host.trim())) throw new ConnectException("You must specify the host name");
       else if (port <= 0) throw new ConnectException("You must specify the port number");
-      socket = new Socket();
-      InetSocketAddress addr = new InetSocketAddress(host, port);
-      socket.setReceiveBufferSize(Utils.SOCKET_BUFFER_SIZE);
-      socket.setSendBufferSize(Utils.SOCKET_BUFFER_SIZE);
-      socket.setTcpNoDelay(Utils.SOCKET_TCP_NODELAY);
-      socket.setKeepAlive(Utils.SOCKET_KEEPALIVE);
-      socket.connect(addr);
+      socket = connect(host, port, SocketProfile.getDefault(), 0);
       initStreams();
       opened = true;
       if (log.isDebugEnabled()) log.debug("getReceiveBufferSize() = " + socket.getReceiveBufferSize());
     }
   }
 
+  /**
+   * Open a socket connection to the specified host and port, configured with the specified socket profile.
+   * @param host the remote host to connect to.
+   * @param port the remote port on the host.
+   * @param profile the socket options to apply before connecting.
+   * @param bufferSize the size of the send and receive buffers, which overrides that of the profile if greater than 0.
+   * @return a connected socket.
+   * @throws IOException if the connection fails.
+   */
+  public static Socket connect(final String host, final int port, final SocketProfile profile, final int bufferSize) throws IOException {
+    return connect(host, port, profile, bufferSize, null);
+  }
+
+  /**
+   * Open a socket connection to the specified host and port, from a source address of the specified pool.
+   * <p>The source addresses are tried from the least loaded to the most loaded, until one of them can be bound
+   * and connected, which skips the addresses whose ephemeral ports are exhausted.
+   * @param host the remote host to connect to.
+   * @param port the remote port on the host.
+   * @param profile the socket options to apply before connecting.
+   * @param bufferSize the size of the send and receive buffers, which overrides that of the profile if greater than 0.
+   * @param pool the source addresses to connect from, {@code null} or empty to let the system choose it.
+   * @return a connected socket.
+   * @throws IOException if the connection fails.
+   */
+  public static Socket connect(final String host, final int port, final SocketProfile profile, final int bufferSize, final SourceAddressPool pool) throws IOException {
+    final InetSocketAddress target = new InetSocketAddress(host, port);
+    if ((pool == null) || pool.isEmpty() || target.isUnresolved()) return connect(target, profile, bufferSize, null);
+    final List<SourceAddressPool.Source> candidates = pool.candidates(target.getAddress());
+    if (candidates.isEmpty()) return connect(target, profile, bufferSize, null);
+    IOException error = null;
+    for (final SourceAddressPool.Source source: candidates) {
+      try {
+        return connect(target, profile, bufferSize, source);
+      } catch (final BindException | NoRouteToHostException e) {
+        if (log.isDebugEnabled()) log.debug("could not connect to {} from {}: {}", target, source.address, e.toString());
+        error = e;
+      }
+    }
+    throw error;
+  }
+
+  /**
+   * Open a socket connection to the specified address, optionally from the specified source address.
+   * @param target the remote address to connect to.
+   * @param profile the socket options to apply before connecting.
+   * @param bufferSize the size of the send and receive buffers, which overrides that of the profile if greater than 0.
+   * @param source the source address to bind to before connecting, {@code null} to let the system choose it.
+   * @return a connected socket.
+   * @throws IOException if the connection fails.
+   */
+  private static Socket connect(final InetSocketAddress target, final SocketProfile profile, final int bufferSize, final SourceAddressPool.Source source) throws IOException {
+    final Socket socket = (source == null) ? new Socket() : source.newSocket();
+    try {
+      profile.applyTo(socket);
+      if (bufferSize > 0) {
+        socket.setReceiveBufferSize(bufferSize);
+        socket.setSendBufferSize(bufferSize);
+      }
+      if (source != null) socket.bind(new InetSocketAddress(source.address, 0));
+      socket.connect(target);
+    } catch (final IOException e) {
+      if (source != null) source.connectFailed();
+      Utils.closeSilent(socket);
+      throw e;
+    }
+    return socket;
+  }
+
+  /**
+   * Get an input stream which reads from the specified socket. For a socket obtained from a {@link SocketChannel}, the
+   * stream reads directly from the channel: before Java 13, the socket streams of a channel hold the same lock for reads
+   * and writes, so a thread blocked in a read would prevent another thread from writing. A TLS socket layered over a
+   * channel socket reports the channel, but must be read through its own stream.
+   * @param socket the socket to read from.
+   * @return an input stream for the socket.
+   * @throws IOException if the stream cannot be created.
+   */
+  public static InputStream getInputStream(final Socket socket) throws IOException {
+    final SocketChannel channel = socket.getChannel();
+    if ((channel == null) || (socket instanceof SSLSocket)) return socket.getInputStream();
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        return (len == 0) ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+  }
+
+  /**
+   * Get an output stream which writes to the specified socket. For a socket obtained from a {@link SocketChannel}, the
+   * stream writes directly to the channel, for the reason given in {@link #getInputStream(Socket)}.
+   * @param socket the socket to write to.
+   * @return an output stream for the socket.
+   * @throws IOException if the stream cannot be created.
+   */
+  public static OutputStream getOutputStream(final Socket socket) throws IOException {
+    final SocketChannel channel = socket.getChannel();
+    if ((channel == null) || (socket instanceof SSLSocket)) return socket.getOutputStream();
+    return new OutputStream() {
+      @Override
+      public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) channel.write(buffer);
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+  }
+
   /**
    * Initialize all the stream used for receiving and sending objects through the
    * underlying socket connection.
    * @throws IOException if an error occurs during the streams initialization.
    */
   private void initStreams() throws IOException {
-    OutputStream os = socket.getOutputStream();
-    InputStream is = socket.getInputStream();
+    OutputStream os = getOutputStream(socket);
+    InputStream is = getInputStream(socket);
     dos = new DataOutputStream(new BufferedOutputStream(os));
     dis = new DataInputStream(new BufferedInputStream(is));
   }
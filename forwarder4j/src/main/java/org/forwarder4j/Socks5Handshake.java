@@ -0,0 +1,192 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NoRouteToHostException;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The SOCKS5 handshake defined in RFC 1928, limited to the CONNECT command without authentication. The requests are read
+ * into the handshake buffer and the replies are written from it, so the only objects created are the destination
+ * name and address.
+ * @author Laurent Cohen
+ */
+class Socks5Handshake extends ProxyHandshake {
+  /**
+   * Size of the handshake buffer, which holds at most 255 methods or a 255 bytes domain name.
+   */
+  private static final int BUFFER_SIZE = 512;
+  /**
+   * Logger for this class.
+   */
+  private static final Logger log = LoggerFactory.getLogger(Socks5Handshake.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static final boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * The protocol version.
+   */
+  private static final int VERSION = 5;
+  /**
+   * The "no authentication required" method.
+   */
+  private static final int NO_AUTHENTICATION = 0;
+  /**
+   * The "no acceptable methods" reply to the method selection.
+   */
+  private static final int NO_ACCEPTABLE_METHOD = 0xFF;
+  /**
+   * The CONNECT command.
+   */
+  private static final int CONNECT = 1;
+  /**
+   * Address types.
+   */
+  private static final int IPV4 = 1, DOMAIN_NAME = 3, IPV6 = 4;
+  /**
+   * Reply codes.
+   */
+  private static final int SUCCEEDED = 0, GENERAL_FAILURE = 1, NOT_ALLOWED = 2, HOST_UNREACHABLE = 4, CONNECTION_REFUSED = 5,
+    COMMAND_NOT_SUPPORTED = 7, ADDRESS_TYPE_NOT_SUPPORTED = 8;
+
+  /**
+   * Initialize this handshake.
+   * @param socket the socket connected to the client.
+   * @param desc the forwarding definition.
+   * @throws IOException if the socket streams cannot be obtained.
+   */
+  Socks5Handshake(final Socket socket, final EntryDescriptor desc) throws IOException {
+    super(socket, desc, BUFFER_SIZE);
+  }
+
+  @Override
+  HostPort negotiate() throws IOException {
+    // method selection: VER NMETHODS METHODS
+    readFully(0, 2);
+    if (buffer[0] != VERSION) throw new IOException(String.format("%s is not a SOCKS5 client (version %d)", socket, buffer[0]));
+    final int nbMethods = buffer[1] & 0xFF;
+    readFully(0, nbMethods);
+    boolean noAuthentication = false;
+    for (int i=0; i<nbMethods; i++) {
+      if (buffer[i] == NO_AUTHENTICATION) noAuthentication = true;
+    }
+    buffer[0] = VERSION;
+    buffer[1] = (byte) (noAuthentication ? NO_AUTHENTICATION : NO_ACCEPTABLE_METHOD);
+    out.write(buffer, 0, 2);
+    out.flush();
+    if (!noAuthentication) return null;
+    // request: VER CMD RSV ATYP DST.ADDR DST.PORT
+    readFully(0, 4);
+    final int command = buffer[1], addressType = buffer[3];
+    String host = null;
+    InetAddress address = null;
+    switch(addressType) {
+      case IPV4:
+      case IPV6:
+        final int len = (addressType == IPV4) ? 4 : 16;
+        readFully(0, len);
+        final byte[] bytes = new byte[len];
+        System.arraycopy(buffer, 0, bytes, 0, len);
+        address = InetAddress.getByAddress(bytes);
+        break;
+      case DOMAIN_NAME:
+        readFully(0, 1);
+        final int nameLength = buffer[0] & 0xFF;
+        readFully(0, nameLength);
+        host = new String(buffer, 0, nameLength, StandardCharsets.US_ASCII);
+        break;
+      default:
+        reply(ADDRESS_TYPE_NOT_SUPPORTED, null, 0);
+        return null;
+    }
+    readFully(0, 2);
+    final int port = ((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF);
+    if (command != CONNECT) {
+      reply(COMMAND_NOT_SUPPORTED, null, 0);
+      return null;
+    }
+    final HostPort destination;
+    try {
+      destination = authorize(host, address, port);
+    } catch (@SuppressWarnings("unused") final UnknownHostException e) {
+      if (debugEnabled) log.debug("{} requested unknown host {}", socket, host);
+      reply(HOST_UNREACHABLE, null, 0);
+      return null;
+    }
+    if (destination == null) {
+      if (debugEnabled) log.debug("{} requested {}:{}, which is not allowed", socket, (host != null) ? host : address.getHostAddress(), port);
+      reply(NOT_ALLOWED, null, 0);
+    }
+    return destination;
+  }
+
+  @Override
+  void connected(final Socket target) throws IOException {
+    super.connected(target);
+    reply(SUCCEEDED, target.getLocalAddress(), target.getLocalPort());
+  }
+
+  @Override
+  void failed(final IOException error) {
+    final int code = (error instanceof ConnectException) ? CONNECTION_REFUSED : (error instanceof NoRouteToHostException) ? HOST_UNREACHABLE : GENERAL_FAILURE;
+    try {
+      reply(code, null, 0);
+    } catch (final IOException e) {
+      if (debugEnabled) log.debug("could not send a SOCKS5 failure to {} : {}", socket, e.toString());
+    }
+  }
+
+  /**
+   * Send a reply to the connection request of the client.
+   * @param code the reply code.
+   * @param address the bound address, {@code null} for the IPv4 wildcard address.
+   * @param port the bound port.
+   * @throws IOException if the client could not be written to.
+   */
+  private void reply(final int code, final InetAddress address, final int port) throws IOException {
+    // reply: VER REP RSV ATYP BND.ADDR BND.PORT
+    int pos = 0;
+    buffer[pos++] = VERSION;
+    buffer[pos++] = (byte) code;
+    buffer[pos++] = 0;
+    if (address == null) {
+      buffer[pos++] = IPV4;
+      for (int i=0; i<4; i++) buffer[pos++] = 0;
+    } else {
+      final byte[] bytes = address.getAddress();
+      buffer[pos++] = (byte) ((address instanceof Inet6Address) ? IPV6 : IPV4);
+      System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+      pos += bytes.length;
+    }
+    buffer[pos++] = (byte) (port >>> 8);
+    buffer[pos++] = (byte) port;
+    out.write(buffer, 0, pos);
+    out.flush();
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of local source addresses for the connections to the targets. Each connection is bound to the source address
+ * with the fewest active connections, which spreads the connections to a single target over the ephemeral ports of
+ * several addresses, instead of those of the single address chosen by the system.
+ * <p>The connection counters of a source address are shared by all the pools that contain it.
+ * @author Laurent Cohen
+ */
+public class SourceAddressPool {
+  /**
+   * Logger for this class.
+   */
+  private static final Logger log = LoggerFactory.getLogger(SourceAddressPool.class);
+  /**
+   * Name of the property which defines the default source addresses.
+   */
+  public static final String ADDRESSES_PROPERTY = "forwarder4j.source.addresses";
+  /**
+   * A pool without any address, for which the system chooses the source address.
+   */
+  private static final SourceAddressPool EMPTY = new SourceAddressPool(new Source[0]);
+  /**
+   * The counters of all the source addresses ever used, mapped to their address.
+   */
+  private static final Map<InetAddress, Source> SOURCES = new ConcurrentHashMap<>();
+  /**
+   * The pool defined with {@link #ADDRESSES_PROPERTY}.
+   */
+  private static volatile SourceAddressPool defaultPool = EMPTY;
+  /**
+   * The source addresses of this pool.
+   */
+  private final Source[] sources;
+  /**
+   * Rotates the first source considered among those with the same load.
+   */
+  private final AtomicInteger next = new AtomicInteger(0);
+
+  /**
+   * Initialize this pool with the specified sources.
+   * @param sources the source addresses of this pool.
+   */
+  private SourceAddressPool(final Source[] sources) {
+    this.sources = sources;
+  }
+
+  /**
+   * Load the default pool from the specified configuration. Invalid addresses are reported and ignored.
+   * @param config the configuration to read from.
+   */
+  public static void load(final Config config) {
+    final List<InetAddress> addresses = new ArrayList<>();
+    final String value = config.getString(ADDRESSES_PROPERTY);
+    if (value != null) {
+      for (final String address: value.split(",")) {
+        if (address.trim().isEmpty()) continue;
+        try {
+          addresses.add(InetAddress.getByName(address.trim()));
+        } catch (@SuppressWarnings("unused") final UnknownHostException e) {
+          log.error("invalid source address '{}' in {}, ignoring it", address.trim(), ADDRESSES_PROPERTY);
+        }
+      }
+    }
+    defaultPool = of(addresses);
+  }
+
+  /**
+   * @return the pool defined with {@link #ADDRESSES_PROPERTY}, empty if it is not defined.
+   */
+  public static SourceAddressPool getDefault() {
+    return defaultPool;
+  }
+
+  /**
+   * Get a pool with the specified source addresses.
+   * @param addresses the source addresses.
+   * @return a pool of the addresses, empty if there is none.
+   */
+  public static SourceAddressPool of(final Collection<InetAddress> addresses) {
+    if (addresses.isEmpty()) return EMPTY;
+    final List<Source> list = new ArrayList<>();
+    for (final InetAddress address: addresses) {
+      final Source source = SOURCES.computeIfAbsent(address, Source::new);
+      if (!list.contains(source)) list.add(source);
+    }
+    return new SourceAddressPool(list.toArray(new Source[list.size()]));
+  }
+
+  /**
+   * @return whether this pool has no address, in which case the system chooses the source addresses.
+   */
+  public boolean isEmpty() {
+    return sources.length == 0;
+  }
+
+  /**
+   * Get the source addresses of this pool that can connect to the specified target address, the least loaded first.
+   * @param target the address to connect to.
+   * @return the candidate sources, possibly empty.
+   */
+  List<Source> candidates(final InetAddress target) {
+    final List<Source> result = new ArrayList<>(sources.length);
+    // start from a rotating position, so that equally loaded sources are used in turn
+    final int start = Math.floorMod(next.getAndIncrement(), Math.max(1, sources.length));
+    for (int i=0; i<sources.length; i++) {
+      final Source source = sources[(start + i) % sources.length];
+      // an IPv4 source cannot connect to an IPv6 target and vice versa
+      if (source.address.getClass() == target.getClass()) result.add(source);
+    }
+    if (result.size() > 1) {
+      // sort a snapshot of the counters, which may change concurrently
+      final Map<Source, Integer> load = new HashMap<>();
+      for (final Source source: result) load.put(source, source.active.get());
+      result.sort(Comparator.comparingInt(load::get));
+    }
+    return result;
+  }
+
+  /**
+   * Describe the counters of all the source addresses ever used.
+   * @return a string with one line per source address, empty if no source address was used.
+   */
+  public static String getStatistics() {
+    final Map<String, Source> sorted = new TreeMap<>();
+    for (final Source source: SOURCES.values()) sorted.put(source.address.getHostAddress(), source);
+    final StringBuilder sb = new StringBuilder();
+    for (final Source source: sorted.values()) {
+      if (sb.length() > 0) sb.append('\n');
+      sb.append(String.format("- %s: %d active, %d total, %d failed", source.address.getHostAddress(), source.active.get(), source.total.get(), source.failed.get()));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the source addresses of this pool.
+   */
+  public List<InetAddress> getAddresses() {
+    final List<InetAddress> result = new ArrayList<>(sources.length);
+    for (final Source source: sources) result.add(source.address);
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * A source address along with its connection counters.
+   */
+  static final class Source {
+    /**
+     * The source address.
+     */
+    final InetAddress address;
+    /**
+     * Number of currently open connections from this address.
+     */
+    private final AtomicInteger active = new AtomicInteger(0);
+    /**
+     * Number of connections ever attempted from this address.
+     */
+    private final AtomicLong total = new AtomicLong(0L);
+    /**
+     * Number of connections from this address which could not be established.
+     */
+    private final AtomicLong failed = new AtomicLong(0L);
+
+    /**
+     * Initialize with the specified address.
+     * @param address the source address.
+     */
+    private Source(final InetAddress address) {
+      this.address = address;
+    }
+
+    /**
+     * Create an unconnected socket, accounted for as an active connection of this source until it is closed.
+     * @return a new socket, which still has to be bound to the source address.
+     */
+    Socket newSocket() {
+      active.incrementAndGet();
+      total.incrementAndGet();
+      return new SourceSocket(this);
+    }
+
+    /**
+     * Record a connection which could not be established.
+     */
+    void connectFailed() {
+      failed.incrementAndGet();
+    }
+  }
+
+  /**
+   * A socket which decrements the count of active connections of its source address when it is closed.
+   */
+  private static final class SourceSocket extends Socket {
+    /**
+     * The source address of this socket.
+     */
+    private final Source source;
+    /**
+     * Whether this socket was already released, so it is only counted once.
+     */
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    /**
+     * Initialize with the specified source.
+     * @param source the source address of this socket.
+     */
+    private SourceSocket(final Source source) {
+      this.source = source;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (released.compareAndSet(false, true)) source.active.decrementAndGet();
+      }
+    }
+  }
+}
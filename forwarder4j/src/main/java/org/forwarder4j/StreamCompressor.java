@@ -0,0 +1,201 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.forwarder4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.forwarder4j.stats.CompressionStats;
+
+/**
+ * The streaming compression of the data of a {@link MuxStream}, with raw deflate flushed at the end of each frame, so
+ * each compressed frame can be decompressed as soon as it is received, with the dictionary of the previous frames.
+ * <p>A frame is sent compressed only if it shrinks by at least an eighth. Otherwise it is sent as is and both sides
+ * start a new compression stream, and the compression of the next frames is skipped, for a number of frames which
+ * doubles with each failed attempt, so incompressible data, e.g. already compressed or encrypted, costs little CPU.
+ * Frames shorter than {@link #MIN_LENGTH} are always sent as is, but do not count as failed attempts.
+ * <p>The sending side is used by a single thread, and so is the receiving side.
+ * @author Laurent Cohen
+ */
+final class StreamCompressor {
+  /**
+   * The compression level, which favors speed: verbose text protocols compress well at any level.
+   */
+  private static final int LEVEL = Deflater.BEST_SPEED;
+  /**
+   * Maximum number of frames sent as is after a failed compression attempt.
+   */
+  static final int MAX_SKIP = 64;
+  /**
+   * Minimum length of the data worth compressing.
+   */
+  static final int MIN_LENGTH = 64;
+  /**
+   * The statistics to update.
+   */
+  private final CompressionStats stats;
+  /**
+   * Compresses the data sent, {@code null} until it is first needed.
+   */
+  private Deflater deflater;
+  /**
+   * Whether the deflater has compressed data since it was last reset.
+   */
+  private boolean deflaterUsed;
+  /**
+   * Decompresses the data received, {@code null} until it is first needed.
+   */
+  private Inflater inflater;
+  /**
+   * Whether the inflater has decompressed data since it was last reset.
+   */
+  private boolean inflaterUsed;
+  /**
+   * The number of frames to send as is after the last failed compression attempt.
+   */
+  private int skip;
+  /**
+   * The number of frames sent as is since the last failed compression attempt.
+   */
+  private int skipped;
+
+  /**
+   * Initialize this compressor.
+   * @param stats the statistics to update.
+   */
+  StreamCompressor(final CompressionStats stats) {
+    this.stats = stats;
+  }
+
+  /**
+   * Determine whether data to send is sent as is without a compression attempt, after a failed attempt.
+   * @param length the length of the data.
+   * @return {@code true} if the data is sent as is, {@code false} if it should be compressed.
+   */
+  boolean bypass(final int length) {
+    if (length < MIN_LENGTH) resetDeflater();
+    else if (skipped < skip) skipped++;
+    else return false;
+    stats.bypassed(length, 0L);
+    return true;
+  }
+
+  /**
+   * Compress data to send, unless it is not worth it. The data must not have been bypassed by {@link #bypass(int)}.
+   * @param src the data to compress.
+   * @param offset the position of the data.
+   * @param length the length of the data.
+   * @param dest the buffer which receives the compressed data, at least as large as the data.
+   * @param destOffset the position of the compressed data.
+   * @return the length of the compressed data, or -1 if the data is sent as is.
+   */
+  int compress(final byte[] src, final int offset, final int length, final byte[] dest, final int destOffset) {
+    final long start = CompressionStats.cpuTime();
+    // a compressed frame which fills the whole output may not be complete
+    final int max = length - (length >> 3);
+    if (deflater == null) deflater = new Deflater(LEVEL, true);
+    deflaterUsed = true;
+    deflater.setInput(src, offset, length);
+    final int n = deflater.deflate(dest, destOffset, max, Deflater.SYNC_FLUSH);
+    final long nanos = CompressionStats.cpuTime() - start;
+    if (n < max) {
+      skip = skipped = 0;
+      stats.compressed(length, n, nanos);
+      return n;
+    }
+    resetDeflater();
+    skip = (skip == 0) ? 1 : Math.min(2 * skip, MAX_SKIP);
+    skipped = 0;
+    stats.bypassed(length, nanos);
+    return -1;
+  }
+
+  /**
+   * Start a new compression stream, as the other side does when it receives data which is not compressed.
+   */
+  private void resetDeflater() {
+    if (deflaterUsed) {
+      deflater.reset();
+      deflaterUsed = false;
+    }
+  }
+
+  /**
+   * Decompress received data and write it.
+   * @param src the compressed data.
+   * @param offset the position of the compressed data.
+   * @param length the length of the compressed data.
+   * @param out where to write the decompressed data.
+   * @param buffer the buffer which receives the decompressed data before it is written.
+   * @return the length of the decompressed data.
+   * @throws IOException if the data is not valid or could not be written.
+   */
+  int decompress(final byte[] src, final int offset, final int length, final OutputStream out, final byte[] buffer) throws IOException {
+    if (inflater == null) inflater = new Inflater(true);
+    inflaterUsed = true;
+    inflater.setInput(src, offset, length);
+    int total = 0;
+    long nanos = 0L;
+    try {
+      while (true) {
+        final long start = CompressionStats.cpuTime();
+        final int n = inflater.inflate(buffer);
+        nanos += CompressionStats.cpuTime() - start;
+        if (n > 0) {
+          out.write(buffer, 0, n);
+          total += n;
+        } else if (inflater.needsInput()) break;
+        else throw new ProtocolException("unexpected end of compressed data");
+      }
+    } catch (final DataFormatException e) {
+      throw new ProtocolException("invalid compressed data: " + e.getMessage());
+    }
+    stats.decompressed(length, total, nanos);
+    return total;
+  }
+
+  /**
+   * Handle received data which is not compressed, after which the other side starts a new compression stream.
+   */
+  void uncompressedReceived() {
+    if (inflaterUsed) {
+      inflater.reset();
+      inflaterUsed = false;
+    }
+  }
+
+  /**
+   * Release the native resources of the sending side.
+   */
+  void endCompression() {
+    if (deflater != null) deflater.end();
+  }
+
+  /**
+   * Release the native resources of the receiving side.
+   */
+  void endDecompression() {
+    if (inflater != null) inflater.end();
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.forwarder4j.stats.HandshakeStats;
+import org.forwarder4j.utils.Utils;
+
+/**
+ * The TLS settings of a forwarding definition: TLS is terminated for the clients when a key store is defined with the
+ * {@code tls.keystore} option, and originated to the target when the {@code tls.upstream} option is {@code true}.
+ * <p>The relay reads and writes the sockets with blocking I/O, so the TLS connections are {@link SSLSocket}s layered
+ * over the accepted and connected sockets, which use the same engine as {@code SSLEngine}. The SSL contexts are shared
+ * by all the forwarding definitions with the same settings, and survive the reloads of the definitions, so their
+ * session caches let the reconnecting clients, and the connections to the targets, resume their sessions with an
+ * abbreviated handshake.
+ * @author Laurent Cohen
+ */
+public final class TlsContext {
+  /**
+   * Name of the option which defines the key store with the certificate presented to the clients.
+   */
+  public static final String KEYSTORE_OPTION = "tls.keystore";
+  /**
+   * Name of the option which defines the password of the key store and of its key.
+   */
+  public static final String KEYSTORE_PASSWORD_OPTION = "tls.keystore.password";
+  /**
+   * Name of the option which defines the type of the key store, the default type of the JVM if it is not defined.
+   */
+  public static final String KEYSTORE_TYPE_OPTION = "tls.keystore.type";
+  /**
+   * Name of the option which defines whether the connections to the target use TLS.
+   */
+  public static final String UPSTREAM_OPTION = "tls.upstream";
+  /**
+   * Name of the option which defines the trust store used to check the certificates of the target, the default
+   * trust store of the JVM if it is not defined.
+   */
+  public static final String TRUSTSTORE_OPTION = "tls.upstream.truststore";
+  /**
+   * Name of the option which defines the password of the trust store.
+   */
+  public static final String TRUSTSTORE_PASSWORD_OPTION = "tls.upstream.truststore.password";
+  /**
+   * Name of the option which defines whether the host name of the target is checked against its certificate.
+   */
+  public static final String VERIFY_OPTION = "tls.upstream.verify";
+  /**
+   * The SSL contexts, by settings, so that their session caches are shared.
+   */
+  private static final Map<String, SSLContext> contexts = new ConcurrentHashMap<>();
+  /**
+   * The context of the TLS connections with the clients, or {@code null} if TLS is not terminated.
+   */
+  private final SSLContext serverContext;
+  /**
+   * The context of the TLS connections to the target, or {@code null} if TLS is not originated.
+   */
+  private final SSLContext upstreamContext;
+  /**
+   * Whether the host name of the target is checked against its certificate.
+   */
+  private final boolean verifyHost;
+
+  /**
+   * Initialize with the specified SSL contexts.
+   * @param serverContext the context of the TLS connections with the clients, or {@code null} if TLS is not terminated.
+   * @param upstreamContext the context of the TLS connections to the target, or {@code null} if TLS is not originated.
+   * @param verifyHost whether the host name of the target is checked against its certificate.
+   */
+  private TlsContext(final SSLContext serverContext, final SSLContext upstreamContext, final boolean verifyHost) {
+    this.serverContext = serverContext;
+    this.upstreamContext = upstreamContext;
+    this.verifyHost = verifyHost;
+  }
+
+  /**
+   * Create the TLS settings from the options of a forwarding definition.
+   * @param options the forwarder options.
+   * @return the TLS settings, or {@code null} if TLS is neither terminated nor originated.
+   * @throws IllegalArgumentException if the options are invalid, or the key or trust store cannot be loaded.
+   */
+  public static TlsContext from(final Config options) {
+    if (options == null) return null;
+    final String keystore = options.getString(KEYSTORE_OPTION);
+    final boolean upstream = parseBoolean(options, UPSTREAM_OPTION, false);
+    if ((keystore == null) && !upstream) return null;
+    final String type = options.getString(KEYSTORE_TYPE_OPTION, KeyStore.getDefaultType());
+    final SSLContext server = (keystore == null) ? null : context(true, keystore.trim(), options.getString(KEYSTORE_PASSWORD_OPTION, ""), type);
+    final String truststore = options.getString(TRUSTSTORE_OPTION);
+    final SSLContext client = !upstream ? null : context(false, (truststore == null) ? null : truststore.trim(), options.getString(TRUSTSTORE_PASSWORD_OPTION, ""), KeyStore.getDefaultType());
+    return new TlsContext(server, client, parseBoolean(options, VERIFY_OPTION, true));
+  }
+
+  /**
+   * Parse a boolean option.
+   * @param options the forwarder options.
+   * @param name the name of the option.
+   * @param defValue the value if the option is not defined.
+   * @return the value of the option.
+   * @throws IllegalArgumentException if the option value is not a valid boolean value.
+   */
+  private static boolean parseBoolean(final Config options, final String name, final boolean defValue) {
+    final String value = options.getString(name);
+    if (value == null) return defValue;
+    if ("true".equalsIgnoreCase(value.trim())) return true;
+    if ("false".equalsIgnoreCase(value.trim())) return false;
+    throw new IllegalArgumentException("'" + value + "' is not a valid boolean value for " + name);
+  }
+
+  /**
+   * Get the SSL context for the specified settings, creating it if needed. A key or trust store which was modified
+   * since the context was created is loaded again in a new context.
+   * @param server whether the context is that of the connections with the clients.
+   * @param store the path of the key store for a server context, of the trust store for a client context.
+   * @param password the password of the store.
+   * @param type the type of the store.
+   * @return the SSL context.
+   * @throws IllegalArgumentException if the store cannot be loaded, or the context cannot be created.
+   */
+  private static SSLContext context(final boolean server, final String store, final String password, final String type) {
+    final File file = (store == null) ? null : new File(store);
+    final String prefix = (server ? "server|" : "client|") + store + '|';
+    final String key = prefix + ((file == null) ? 0L : file.lastModified()) + '|' + type + '|' + password;
+    // the context of a store which was modified since is no longer used
+    contexts.keySet().removeIf(k -> k.startsWith(prefix) && !k.equals(key));
+    return contexts.computeIfAbsent(key, k -> {
+      try {
+        KeyStore keyStore = null;
+        if (file != null) {
+          keyStore = KeyStore.getInstance(type);
+          try (final InputStream in = Files.newInputStream(file.toPath())) {
+            keyStore.load(in, password.toCharArray());
+          }
+        }
+        final SSLContext context = SSLContext.getInstance("TLS");
+        if (server) {
+          final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+          kmf.init(keyStore, password.toCharArray());
+          context.init(kmf.getKeyManagers(), null, null);
+        } else {
+          final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+          tmf.init(keyStore);
+          context.init(null, tmf.getTrustManagers(), null);
+        }
+        context.getServerSessionContext().setSessionCacheSize(Utils.TLS_SESSION_CACHE_SIZE);
+        context.getServerSessionContext().setSessionTimeout(Utils.TLS_SESSION_TIMEOUT);
+        context.getClientSessionContext().setSessionCacheSize(Utils.TLS_SESSION_CACHE_SIZE);
+        context.getClientSessionContext().setSessionTimeout(Utils.TLS_SESSION_TIMEOUT);
+        return context;
+      } catch (final IOException | GeneralSecurityException e) {
+        throw new IllegalArgumentException("cannot load " + ((store == null) ? "the default trust store" : "'" + store + "'") + ": " + e.getMessage(), e);
+      }
+    });
+  }
+
+  /**
+   * @return whether TLS is terminated for the clients.
+   */
+  public boolean isTerminated() {
+    return serverContext != null;
+  }
+
+  /**
+   * @return whether the connections to the target use TLS.
+   */
+  public boolean isOriginated() {
+    return upstreamContext != null;
+  }
+
+  /**
+   * Perform the TLS handshake with a client.
+   * @param socket the socket connected to the client.
+   * @param timeout the read timeout of the handshake, in millis.
+   * @param stats the statistics to update with the handshake.
+   * @return the TLS socket layered over the specified socket.
+   * @throws IOException if the handshake failed.
+   */
+  Socket accept(final Socket socket, final int timeout, final HandshakeStats stats) throws IOException {
+    final SSLSocket sslSocket = (SSLSocket) serverContext.getSocketFactory().createSocket(socket, null, true);
+    sslSocket.setUseClientMode(false);
+    return handshake(sslSocket, timeout, stats);
+  }
+
+  /**
+   * Perform the TLS handshake with the target.
+   * @param socket the socket connected to the target.
+   * @param host the host name of the target, used for the server name indication and the certificate check.
+   * @param port the port of the target, which identifies its cached sessions along with its host name.
+   * @param timeout the read timeout of the handshake, in millis.
+   * @param stats the statistics to update with the handshake.
+   * @return the TLS socket layered over the specified socket.
+   * @throws IOException if the handshake failed.
+   */
+  Socket connect(final Socket socket, final String host, final int port, final int timeout, final HandshakeStats stats) throws IOException {
+    final SSLSocket sslSocket = (SSLSocket) upstreamContext.getSocketFactory().createSocket(socket, host, port, true);
+    if (verifyHost) {
+      final SSLParameters params = sslSocket.getSSLParameters();
+      params.setEndpointIdentificationAlgorithm("HTTPS");
+      sslSocket.setSSLParameters(params);
+    }
+    return handshake(sslSocket, timeout, stats);
+  }
+
+  /**
+   * Perform a TLS handshake and record it in the statistics.
+   * @param sslSocket the TLS socket.
+   * @param timeout the read timeout of the handshake, in millis.
+   * @param stats the statistics to update with the handshake.
+   * @return the TLS socket.
+   * @throws IOException if the handshake failed.
+   */
+  private static Socket handshake(final SSLSocket sslSocket, final int timeout, final HandshakeStats stats) throws IOException {
+    final long startMillis = System.currentTimeMillis(), start = System.nanoTime();
+    try {
+      sslSocket.setSoTimeout(timeout);
+      sslSocket.startHandshake();
+      sslSocket.setSoTimeout(0);
+    } catch (final IOException e) {
+      stats.handshakeFailed();
+      Utils.closeSilent(sslSocket);
+      throw e;
+    }
+    final SSLSession session = sslSocket.getSession();
+    // a resumed session was created by an earlier handshake
+    stats.handshakeCompleted(session.getCreationTime() < startMillis, System.nanoTime() - start);
+    return sslSocket;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forwarder4j.stats.ClientStats;
+import org.forwarder4j.stats.CompressionStats;
+import org.forwarder4j.stats.HandshakeStats;
+import org.forwarder4j.utils.Utils;
+
+/**
+ * The entry side of a tunnel: a fixed number of {@link MuxConnection}s to another forwarder4j instance, through which
+ * the client connections of a forwarding definition are relayed, in a round-robin fashion. The connections are opened
+ * when they are first needed, and opened again when they are lost.
+ * @author Laurent Cohen
+ */
+final class Tunnel {
+  /**
+   * The forwarding definition.
+   */
+  private final EntryDescriptor desc;
+  /**
+   * The statistics on the TLS handshakes with the other instance.
+   */
+  private final HandshakeStats handshakes;
+  /**
+   * The statistics on the compression of the tunneled connections.
+   */
+  private final CompressionStats compression;
+  /**
+   * The connections to the other instance, {@code null} until they are first needed.
+   */
+  private final MuxConnection[] connections;
+  /**
+   * The index of the connection to use for the next client.
+   */
+  private final AtomicInteger next = new AtomicInteger(0);
+
+  /**
+   * Initialize this tunnel.
+   * @param desc the forwarding definition, which has the {@link EntryDescriptor#TUNNEL_OPTION} option.
+   * @param handshakes the statistics on the TLS handshakes with the other instance.
+   * @param compression the statistics on the compression of the tunneled connections.
+   */
+  Tunnel(final EntryDescriptor desc, final HandshakeStats handshakes, final CompressionStats compression) {
+    this.desc = desc;
+    this.handshakes = handshakes;
+    this.compression = compression;
+    this.connections = new MuxConnection[desc.getTunnelConnections()];
+  }
+
+  /**
+   * @return the forwarding definition of this tunnel.
+   */
+  EntryDescriptor getDescriptor() {
+    return desc;
+  }
+
+  /**
+   * Relay a client connection through this tunnel.
+   * @param client the socket connected to the client.
+   * @param target the destination of the client connection.
+   * @param stats the statistics to update with the bytes transferred, or {@code null} if statistics are disabled.
+   * @param clientKey the key of the client in the statistics.
+   * @throws IOException if the other instance could not be connected to.
+   */
+  void open(final Socket client, final HostPort target, final ClientStats stats, final String clientKey) throws IOException {
+    connection().open(client, target.getHost(), target.getPort(), stats, clientKey);
+  }
+
+  /**
+   * Get the next connection to the other instance, opening it if needed.
+   * @return a connection to the other instance.
+   * @throws IOException if the connection could not be opened.
+   */
+  private synchronized MuxConnection connection() throws IOException {
+    final int index = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+    MuxConnection mux = connections[index];
+    if ((mux == null) || mux.isClosed()) {
+      final HostPort endpoint = desc.getTunnel();
+      Socket socket = SocketWrapper.connect(endpoint.getHost(), endpoint.getPort(), desc.getUpstreamProfile(), 0, desc.getSourcePool());
+      final TlsContext tls = desc.getTlsContext();
+      if ((tls != null) && tls.isOriginated()) socket = tls.connect(socket, endpoint.getHost(), endpoint.getPort(), desc.getHandshakeTimeout(), handshakes);
+      try {
+        mux = new MuxConnection(socket, null, desc.isTunnelCompressed(), compression);
+        mux.start();
+      } catch (final IOException e) {
+        Utils.closeSilent(socket);
+        throw e;
+      }
+      connections[index] = mux;
+    }
+    return mux;
+  }
+
+  /**
+   * Close the connections of this tunnel once their streams end, and open no more connection.
+   */
+  synchronized void retire() {
+    for (final MuxConnection mux: connections) {
+      if (mux != null) mux.retire();
+    }
+  }
+}
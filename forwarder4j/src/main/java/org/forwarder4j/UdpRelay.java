@@ -0,0 +1,515 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.forwarder4j.acl.AccessControl;
+import org.forwarder4j.stats.ClientStats;
+import org.forwarder4j.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays the UDP datagrams of a forwarder. Each client address gets a session, with its own channel connected to the
+ * target, so the responses of the target can be sent back to the right client. A session expires when no datagram
+ * went through it for the session timeout of the forwarding definition.
+ * <p>All the local ports and the sessions are served by a single selector thread. Each ready channel is drained of up
+ * to {@link #BATCH_SIZE} datagrams before the next one is served, through a single reusable buffer.
+ * <p>The host of the target is resolved when the relay is created, then again in the handshake pool when the forwarding
+ * definition names another host, or once the previous resolution is older than {@link #RESOLVE_REFRESH_INTERVAL}, so
+ * the selector thread never waits for a lookup.
+ * @author Laurent Cohen
+ */
+class UdpRelay implements AutoCloseable {
+  /**
+   * Logger for this class.
+   */
+  private static final Logger log = LoggerFactory.getLogger(UdpRelay.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static final boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * Maximum size of a UDP datagram.
+   */
+  private static final int MAX_DATAGRAM_SIZE = 65_535;
+  /**
+   * Maximum number of datagrams read from a channel before serving the next ready channel.
+   */
+  private static final int BATCH_SIZE = 64;
+  /**
+   * Interval between two checks for expired sessions, in millis.
+   */
+  private static final long SWEEP_INTERVAL = 1000L;
+  /**
+   * Interval after which the host of the target is resolved again, in nanos.
+   */
+  private static final long RESOLVE_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(60L);
+  /**
+   * Interval after which a failed resolution of the host of the target is retried, in nanos.
+   */
+  private static final long RESOLVE_RETRY_INTERVAL = TimeUnit.SECONDS.toNanos(5L);
+  /**
+   * Provides the current forwarding definition, which can be replaced while this relay is running.
+   */
+  private final Supplier<EntryDescriptor> descSupplier;
+  /**
+   * The client statistics, or {@code null} if statistics are disabled.
+   */
+  private final ClientStats stats;
+  /**
+   * Selects the channels of the local ports and of the sessions which have datagrams to read.
+   */
+  private final Selector selector;
+  /**
+   * The channels bound to the local ports.
+   */
+  private final List<Listener> listeners = new ArrayList<>();
+  /**
+   * The number of open sessions, only accessed by the selector thread.
+   */
+  private int sessionCount;
+  /**
+   * The last resolution of the host of the target.
+   */
+  private volatile Resolution resolution;
+  /**
+   * Whether the host of the target is being resolved in the handshake pool.
+   */
+  private final AtomicBoolean resolving = new AtomicBoolean(false);
+  /**
+   * Whether this relay is closed.
+   */
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  /**
+   * Bind the local ports of the specified forwarding definition.
+   * @param desc the forwarding definition.
+   * @param descSupplier provides the current forwarding definition.
+   * @param stats the client statistics, or {@code null} if statistics are disabled.
+   * @throws IOException if any of the local ports could not be bound, in which case all are released.
+   */
+  UdpRelay(final EntryDescriptor desc, final Supplier<EntryDescriptor> descSupplier, final ClientStats stats) throws IOException {
+    this.descSupplier = descSupplier;
+    this.stats = stats;
+    this.selector = Selector.open();
+    this.resolution = resolve(desc.getTarget().getHost());
+    try {
+      final SocketProfile profile = desc.getClientProfile();
+      for (int port=desc.getPort(); port<=desc.getLastPort(); port++) {
+        if (desc.getListenAddresses().isEmpty()) bind(new InetSocketAddress(port), port - desc.getPort(), profile);
+        else for (final InetAddress address: desc.getListenAddresses()) bind(new InetSocketAddress(address, port), port - desc.getPort(), profile);
+      }
+    } catch (final IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Bind a channel to a local port and register it with the selector.
+   * @param address the local address and port to bind to.
+   * @param offset the offset of the port from the first local port.
+   * @param profile the socket options of the client side.
+   * @throws IOException if the port could not be bound.
+   */
+  private void bind(final InetSocketAddress address, final int offset, final SocketProfile profile) throws IOException {
+    final DatagramChannel channel = DatagramChannel.open();
+    final Listener listener = new Listener(channel, offset);
+    listeners.add(listener);
+    applyBufferSizes(channel, profile);
+    channel.bind(address);
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_READ, listener);
+  }
+
+  /**
+   * Apply the buffer sizes of a socket profile to a channel. A large receive buffer absorbs bursts of datagrams
+   * while the selector thread is busy.
+   * @param channel the channel to configure.
+   * @param profile the socket options to apply.
+   * @throws IOException if any option could not be set.
+   */
+  private static void applyBufferSizes(final DatagramChannel channel, final SocketProfile profile) throws IOException {
+    if (profile.getReceiveBufferSize() > 0) channel.socket().setReceiveBufferSize(profile.getReceiveBufferSize());
+    if (profile.getSendBufferSize() > 0) channel.socket().setSendBufferSize(profile.getSendBufferSize());
+  }
+
+  /**
+   * Relay the datagrams until this relay is closed.
+   */
+  void run() {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    long lastSweep = System.nanoTime();
+    try {
+      while (!closed.get()) {
+        selector.select(SWEEP_INTERVAL);
+        final long now = System.nanoTime();
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          final SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) continue;
+          final Object attachment = key.attachment();
+          if (attachment instanceof Listener) receiveFromClients((Listener) attachment, buffer, now);
+          else receiveFromTarget((Session) attachment, buffer, now);
+        }
+        if (now - lastSweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL)) {
+          expireSessions(now);
+          lastSweep = now;
+        }
+      }
+    } catch (@SuppressWarnings("unused") final ClosedSelectorException e) {
+      if (debugEnabled) log.debug("selector closed");
+    } catch (final Exception e) {
+      if (!closed.get()) log.error(e.getMessage(), e);
+    } finally {
+      close();
+      for (final Listener listener: listeners) {
+        // closing a session removes it from the map, so it is removed through the iterator first
+        final Iterator<Session> it = listener.sessions.values().iterator();
+        while (it.hasNext()) {
+          final Session session = it.next();
+          it.remove();
+          session.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Read the datagrams sent by the clients to a local port and send each of them to the target, through the session
+   * of its client.
+   * @param listener the channel of the local port.
+   * @param buffer the buffer to read the datagrams into.
+   * @param now the current time in nanos.
+   * @throws IOException if the channel of the local port cannot be read.
+   */
+  private void receiveFromClients(final Listener listener, final ByteBuffer buffer, final long now) throws IOException {
+    for (int i=0; i<BATCH_SIZE; i++) {
+      buffer.clear();
+      final SocketAddress client = listener.channel.receive(buffer);
+      if (client == null) break;
+      buffer.flip();
+      Session session = listener.sessions.get(client);
+      if (session == null) {
+        session = openSession(listener, (InetSocketAddress) client);
+        if (session == null) continue;
+      }
+      try {
+        session.transferred(session.channel.write(buffer), now);
+      } catch (final IOException e) {
+        if (debugEnabled) log.debug("could not send a datagram of {} to the target: {}", client, e.toString());
+        session.close();
+      }
+    }
+  }
+
+  /**
+   * Read the datagrams sent by the target through a session and send them back to its client.
+   * @param session the session.
+   * @param buffer the buffer to read the datagrams into.
+   * @param now the current time in nanos.
+   */
+  private void receiveFromTarget(final Session session, final ByteBuffer buffer, final long now) {
+    try {
+      for (int i=0; i<BATCH_SIZE; i++) {
+        buffer.clear();
+        if (session.channel.read(buffer) <= 0) break;
+        buffer.flip();
+        // a full send buffer drops the datagram, as the network would
+        session.transferred(session.listener.channel.send(buffer, session.client), now);
+      }
+    } catch (final IOException e) {
+      // e.g. the target port is unreachable
+      if (debugEnabled) log.debug("closing the UDP session of {}: {}", session.client, e.toString());
+      session.close();
+    }
+  }
+
+  /**
+   * Open a session for a new client, unless it is rejected by the access control or the maximum number of sessions
+   * is reached.
+   * @param listener the channel of the local port the client sent a datagram to.
+   * @param client the address of the client.
+   * @return the new session, or {@code null} if the client is rejected.
+   */
+  private Session openSession(final Listener listener, final InetSocketAddress client) {
+    final EntryDescriptor desc = descSupplier.get();
+    final AccessControl accessControl = desc.getAccessControl();
+    if ((accessControl != null) && !accessControl.isAllowed(client.getAddress())) {
+      if (debugEnabled) log.debug("client {} rejected by the access control of {}", client, desc);
+      return null;
+    }
+    if (sessionCount >= Utils.UDP_MAX_SESSIONS) {
+      if (debugEnabled) log.debug("maximum number of UDP sessions reached for {}, dropping a datagram of {}", desc, client);
+      return null;
+    }
+    final HostPort outDest = desc.getTarget().offset(listener.offset);
+    final InetAddress address = targetAddress(outDest.getHost());
+    if (address == null) {
+      if (debugEnabled) log.debug("the target of {} is not resolved, dropping a datagram of {}", desc, client);
+      return null;
+    }
+    DatagramChannel channel = null;
+    try {
+      channel = DatagramChannel.open();
+      applyBufferSizes(channel, desc.getUpstreamProfile());
+      channel.connect(new InetSocketAddress(address, outDest.getPort()));
+      channel.configureBlocking(false);
+      final Session session = new Session(listener, client, channel, (stats == null) ? null : stats.connectionAccepted(client.getAddress()), desc.getSessionTimeout());
+      channel.register(selector, SelectionKey.OP_READ, session);
+      listener.sessions.put(client, session);
+      sessionCount++;
+      if (debugEnabled) log.debug("opened a UDP session from {} to {}", client, outDest);
+      return session;
+    } catch (final Exception e) {
+      if (channel != null) Utils.closeSilent(channel);
+      if (debugEnabled) log.debug("could not open a UDP session from {} to {}: {}", client, outDest, e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Get the address of the host of the target, as last resolved. It is resolved again in the handshake pool if the
+   * host changed, or if the last resolution is too old.
+   * @param host the host of the target.
+   * @return the address of the host, or {@code null} if it is not resolved yet or could not be resolved.
+   */
+  private InetAddress targetAddress(final String host) {
+    final Resolution current = resolution;
+    final boolean sameHost = current.host.equals(host);
+    if (!sameHost || (System.nanoTime() - current.time >= ((current.address != null) ? RESOLVE_REFRESH_INTERVAL : RESOLVE_RETRY_INTERVAL))) {
+      if (resolving.compareAndSet(false, true)) {
+        Forwarder.executeHandshake(() -> {
+          try {
+            resolution = resolve(host);
+          } finally {
+            resolving.set(false);
+          }
+        });
+      }
+    }
+    // the previous address remains in use while it is refreshed
+    return sameHost ? current.address : null;
+  }
+
+  /**
+   * Resolve the host of the target.
+   * @param host the host to resolve.
+   * @return the resolution, whose address is {@code null} if the host could not be resolved.
+   */
+  private static Resolution resolve(final String host) {
+    InetAddress address = null;
+    try {
+      address = InetAddress.getByName(host);
+    } catch (final IOException e) {
+      // logged once per attempt, which is at most every RESOLVE_RETRY_INTERVAL
+      log.warn("could not resolve the UDP target {}: {}", host, e.toString());
+    }
+    return new Resolution(host, address);
+  }
+
+  /**
+   * Close the sessions which stayed idle for longer than their timeout.
+   * @param now the current time in nanos.
+   */
+  private void expireSessions(final long now) {
+    for (final Listener listener: listeners) {
+      final Iterator<Session> it = listener.sessions.values().iterator();
+      while (it.hasNext()) {
+        final Session session = it.next();
+        if (now - session.lastActivity < session.timeoutNanos) continue;
+        if (debugEnabled) log.debug("UDP session of {} expired", session.client);
+        it.remove();
+        session.close();
+      }
+    }
+  }
+
+  /**
+   * Close this relay and release its local ports. The sessions are closed by the selector thread.
+   */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      for (final Listener listener: listeners) Utils.closeSilent(listener.channel);
+      Utils.closeSilent(selector);
+    }
+  }
+
+  /**
+   * The address a host of the target resolved to.
+   */
+  private static final class Resolution {
+    /**
+     * The resolved host.
+     */
+    private final String host;
+    /**
+     * The address of the host, or {@code null} if it could not be resolved.
+     */
+    private final InetAddress address;
+    /**
+     * When the host was resolved, in nanos.
+     */
+    private final long time = System.nanoTime();
+
+    /**
+     * Initialize with the specified host and address.
+     * @param host the resolved host.
+     * @param address the address of the host, or {@code null} if it could not be resolved.
+     */
+    private Resolution(final String host, final InetAddress address) {
+      this.host = host;
+      this.address = address;
+    }
+  }
+
+  /**
+   * A channel bound to a local port, with the sessions of the clients that sent datagrams to it.
+   */
+  private static final class Listener {
+    /**
+     * The channel bound to the local port.
+     */
+    private final DatagramChannel channel;
+    /**
+     * The offset of the local port from the first port of the forwarding definition.
+     */
+    private final int offset;
+    /**
+     * The sessions of the clients, mapped to their address. Only accessed by the selector thread.
+     */
+    private final Map<SocketAddress, Session> sessions = new HashMap<>();
+
+    /**
+     * Initialize with the specified channel.
+     * @param channel the channel bound to the local port.
+     * @param offset the offset of the local port from the first port of the forwarding definition.
+     */
+    private Listener(final DatagramChannel channel, final int offset) {
+      this.channel = channel;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * The datagrams exchanged between a client and the target.
+   */
+  private final class Session {
+    /**
+     * The local port the client sends its datagrams to.
+     */
+    private final Listener listener;
+    /**
+     * The address of the client.
+     */
+    private final InetSocketAddress client;
+    /**
+     * The channel connected to the target.
+     */
+    private final DatagramChannel channel;
+    /**
+     * The client as tracked in the statistics, or {@code null} if statistics are disabled.
+     */
+    private final String statsClient;
+    /**
+     * How long this session can stay idle before it expires, in nanos.
+     */
+    private final long timeoutNanos;
+    /**
+     * The last time a datagram went through this session, in nanos.
+     */
+    private long lastActivity = System.nanoTime();
+    /**
+     * Bytes relayed but not yet accounted for in the client statistics.
+     */
+    private long pendingBytes;
+    /**
+     * Whether this session is closed.
+     */
+    private boolean sessionClosed;
+
+    /**
+     * Initialize this session.
+     * @param listener the local port the client sends its datagrams to.
+     * @param client the address of the client.
+     * @param channel the channel connected to the target.
+     * @param statsClient the client as tracked in the statistics, or {@code null} if statistics are disabled.
+     * @param timeout how long this session can stay idle before it expires, in millis.
+     */
+    private Session(final Listener listener, final InetSocketAddress client, final DatagramChannel channel, final String statsClient, final int timeout) {
+      this.listener = listener;
+      this.client = client;
+      this.channel = channel;
+      this.statsClient = statsClient;
+      this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Record a datagram relayed through this session.
+     * @param bytes the size of the datagram, 0 if it was dropped.
+     * @param now the current time in nanos.
+     */
+    private void transferred(final int bytes, final long now) {
+      lastActivity = now;
+      if (statsClient == null) return;
+      pendingBytes += bytes;
+      if (pendingBytes >= Forwarder.STATS_FLUSH_THRESHOLD) flushStats();
+    }
+
+    /**
+     * Add the pending byte count to the client statistics.
+     */
+    private void flushStats() {
+      if (pendingBytes > 0L) stats.bytesTransferred(statsClient, pendingBytes);
+      pendingBytes = 0L;
+    }
+
+    /**
+     * Close the channel of this session and remove it from its local port.
+     */
+    private void close() {
+      if (sessionClosed) return;
+      sessionClosed = true;
+      if (statsClient != null) flushStats();
+      Utils.closeSilent(channel);
+      listener.sessions.remove(client, this);
+      sessionCount--;
+    }
+  }
+}
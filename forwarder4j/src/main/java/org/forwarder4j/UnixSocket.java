@@ -0,0 +1,432 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.forwarder4j.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A socket connected through a unix domain socket channel, available from Java 16. The unix domain channels have no
+ * {@link Socket} adaptor, so this class provides one, which lets the relays handle them like TCP sockets. Their peers
+ * are on the same host, so they are seen as the loopback address by the access control and the client statistics.
+ * <p>The Java 16 APIs are looked up by reflection, so this class can be loaded by older JVMs, where
+ * {@link #isSupported()} returns {@code false}.
+ * @author Laurent Cohen
+ */
+class UnixSocket extends Socket {
+  /**
+   * Logger for this class.
+   */
+  private static final Logger log = LoggerFactory.getLogger(UnixSocket.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static final boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * The prefix of a unix domain socket path, in the listen addresses and the targets.
+   */
+  static final String PREFIX = "unix:";
+  /**
+   * The bit mask of the file type in the "unix:mode" file attribute.
+   */
+  private static final int S_IFMT = 0170000;
+  /**
+   * The file type of a socket in the "unix:mode" file attribute.
+   */
+  private static final int S_IFSOCK = 0140000;
+  /**
+   * The {@code UnixDomainSocketAddress.of(String)} method.
+   */
+  private static final Method ADDRESS_OF;
+  /**
+   * The {@code SocketChannel.open(ProtocolFamily)} method.
+   */
+  private static final Method OPEN_CHANNEL;
+  /**
+   * The {@code ServerSocketChannel.open(ProtocolFamily)} method.
+   */
+  private static final Method OPEN_SERVER_CHANNEL;
+  /**
+   * The {@code StandardProtocolFamily.UNIX} protocol family.
+   */
+  private static final ProtocolFamily UNIX;
+  static {
+    Method addressOf = null, openChannel = null, openServerChannel = null;
+    ProtocolFamily unix = null;
+    try {
+      addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+      openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+      openServerChannel = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+      unix = StandardProtocolFamily.valueOf("UNIX");
+    } catch (@SuppressWarnings("unused") final Exception e) {
+      if (debugEnabled) log.debug("unix domain sockets are not available in this JVM");
+    }
+    ADDRESS_OF = addressOf;
+    OPEN_CHANNEL = openChannel;
+    OPEN_SERVER_CHANNEL = openServerChannel;
+    UNIX = unix;
+  }
+  /**
+   * The connected channel.
+   */
+  private final SocketChannel channel;
+  /**
+   * The path of the socket file.
+   */
+  private final String path;
+  /**
+   * The local port reported by this socket.
+   */
+  private final int localPort;
+  /**
+   * The timeout of the reads from the input stream, in millis, 0 for no timeout.
+   */
+  private volatile int soTimeout;
+
+  /**
+   * Initialize with the specified connected channel.
+   * @param channel the connected channel.
+   * @param path the path of the socket file.
+   * @param localPort the local port reported by this socket, which is that of the forwarding definition for an
+   * accepted connection, 0 otherwise.
+   */
+  UnixSocket(final SocketChannel channel, final String path, final int localPort) {
+    this.channel = channel;
+    this.path = path;
+    this.localPort = localPort;
+  }
+
+  /**
+   * @return whether unix domain sockets are supported by this JVM.
+   */
+  static boolean isSupported() {
+    return UNIX != null;
+  }
+
+  /**
+   * Connect to the unix domain socket at the specified path.
+   * @param path the path of the socket file.
+   * @param profile the socket options, of which only the buffer sizes apply.
+   * @return a connected socket.
+   * @throws IOException if the connection fails.
+   */
+  static UnixSocket connect(final String path, final SocketProfile profile) throws IOException {
+    final SocketChannel channel = (SocketChannel) invoke(OPEN_CHANNEL, UNIX);
+    try {
+      final UnixSocket socket = new UnixSocket(channel, path, 0);
+      profile.applyTo(socket);
+      channel.connect(address(path));
+      return socket;
+    } catch (final IOException e) {
+      Utils.closeSilent(channel);
+      throw e;
+    }
+  }
+
+  /**
+   * Create a server channel bound to the unix domain socket at the specified path. A socket file left over by a process
+   * which no longer listens on it is deleted first, since it would otherwise prevent the bind.
+   * @param path the path of the socket file.
+   * @param backlog the maximum length of the queue of incoming connections, 0 for the system default.
+   * @return a bound server channel.
+   * @throws BindException if another process listens on the socket file.
+   * @throws IOException if the channel could not be bound.
+   */
+  static ServerSocketChannel bind(final String path, final int backlog) throws IOException {
+    final Path file = Paths.get(path);
+    if (isSocket(file)) {
+      boolean inUse = false;
+      try (final SocketChannel probe = (SocketChannel) invoke(OPEN_CHANNEL, UNIX)) {
+        inUse = probe.connect(address(path));
+      } catch (@SuppressWarnings("unused") final SocketException e) {
+        if (debugEnabled) log.debug("deleting stale unix socket {}", path);
+        Files.deleteIfExists(file);
+      }
+      if (inUse) throw new BindException(String.format("unix socket %s is in use", path));
+    }
+    final ServerSocketChannel channel = (ServerSocketChannel) invoke(OPEN_SERVER_CHANNEL, UNIX);
+    try {
+      channel.bind(address(path), backlog);
+      return channel;
+    } catch (final IOException e) {
+      Utils.closeSilent(channel);
+      throw e;
+    }
+  }
+
+  /**
+   * Determine whether the specified file is a unix domain socket. Any other kind of file, such as a named pipe or a
+   * device, must never be deleted to make room for a socket.
+   * @param file the file to check.
+   * @return {@code true} if the file exists and is a socket, {@code false} otherwise or if its type cannot be determined.
+   */
+  private static boolean isSocket(final Path file) {
+    try {
+      final Object mode = Files.getAttribute(file, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+      return (mode instanceof Integer) && (((Integer) mode & S_IFMT) == S_IFSOCK);
+    } catch (@SuppressWarnings("unused") final IOException | UnsupportedOperationException | IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Close a server channel created with {@link #bind(String, int)} and delete its socket file.
+   * @param channel the server channel to close.
+   * @param path the path of the socket file.
+   */
+  static void unbind(final ServerSocketChannel channel, final String path) {
+    if (!channel.isOpen()) return;
+    Utils.closeSilent(channel);
+    try {
+      Files.deleteIfExists(Paths.get(path));
+    } catch (final IOException e) {
+      if (debugEnabled) log.debug("could not delete unix socket {} : {}", path, e.toString());
+    }
+  }
+
+  /**
+   * Get the address of a unix domain socket.
+   * @param path the path of the socket file.
+   * @return the address of the socket.
+   * @throws IOException if unix domain sockets are not supported.
+   */
+  private static SocketAddress address(final String path) throws IOException {
+    return (SocketAddress) invoke(ADDRESS_OF, path);
+  }
+
+  /**
+   * Invoke a static method looked up by reflection.
+   * @param method the method to invoke.
+   * @param arg the single argument of the method.
+   * @return the value returned by the method.
+   * @throws IOException if the method raised it, or if unix domain sockets are not supported.
+   */
+  private static Object invoke(final Method method, final Object arg) throws IOException {
+    if (!isSupported()) throw new IOException("unix domain sockets require Java 16 or later");
+    try {
+      return method.invoke(null, arg);
+    } catch (final InvocationTargetException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException(cause);
+    } catch (final IllegalAccessException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    final InputStream in = SocketWrapper.getInputStream(this);
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        final int timeout = soTimeout;
+        if ((timeout > 0) && (len > 0)) awaitReadable(timeout);
+        return in.read(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        in.close();
+      }
+    };
+  }
+
+  /**
+   * Wait until the channel can be read from without blocking. The channel is switched to non-blocking mode while it
+   * waits, which is only done during the handshakes, when no other thread uses the channel.
+   * @param timeout the maximum time to wait, in millis.
+   * @throws SocketTimeoutException if the channel is not readable before the timeout expires.
+   * @throws IOException if any other I/O error occurs.
+   */
+  private void awaitReadable(final int timeout) throws IOException {
+    boolean readable = false;
+    channel.configureBlocking(false);
+    try {
+      try (final Selector selector = Selector.open()) {
+        channel.register(selector, SelectionKey.OP_READ);
+        final long deadline = System.nanoTime() + timeout * 1_000_000L;
+        long remaining = timeout;
+        // a select may return early without any ready channel
+        while (!readable && (remaining > 0L)) {
+          readable = selector.select(remaining) > 0;
+          remaining = (deadline - System.nanoTime()) / 1_000_000L;
+        }
+      }
+    } finally {
+      // the channel is deregistered once the selector is closed
+      channel.configureBlocking(true);
+    }
+    if (!readable) throw new SocketTimeoutException("read timed out after " + timeout + " ms on " + this);
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return SocketWrapper.getOutputStream(this);
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  @Override
+  public InetAddress getLocalAddress() {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  @Override
+  public int getPort() {
+    return 0;
+  }
+
+  @Override
+  public int getLocalPort() {
+    return localPort;
+  }
+
+  @Override
+  public void setReceiveBufferSize(final int size) throws SocketException {
+    try {
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+    } catch (final IOException e) {
+      throw toSocketException(e);
+    }
+  }
+
+  @Override
+  public int getReceiveBufferSize() throws SocketException {
+    try {
+      return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    } catch (final IOException e) {
+      throw toSocketException(e);
+    }
+  }
+
+  @Override
+  public void setSendBufferSize(final int size) throws SocketException {
+    try {
+      channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+    } catch (final IOException e) {
+      throw toSocketException(e);
+    }
+  }
+
+  @Override
+  public int getSendBufferSize() throws SocketException {
+    try {
+      return channel.getOption(StandardSocketOptions.SO_SNDBUF);
+    } catch (final IOException e) {
+      throw toSocketException(e);
+    }
+  }
+
+  @Override
+  public void setSoTimeout(final int timeout) {
+    soTimeout = Math.max(0, timeout);
+  }
+
+  @Override
+  public int getSoTimeout() {
+    return soTimeout;
+  }
+
+  @Override
+  public void shutdownInput() throws IOException {
+    channel.shutdownInput();
+  }
+
+  @Override
+  public void shutdownOutput() throws IOException {
+    channel.shutdownOutput();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public boolean isBound() {
+    return true;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return !channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Convert an I/O exception raised by the channel into the exception type declared by the {@link Socket} methods.
+   * @param e the exception to convert.
+   * @return a {@link SocketException} caused by the specified exception.
+   */
+  private static SocketException toSocketException(final IOException e) {
+    if (e instanceof SocketException) return (SocketException) e;
+    final SocketException result = new SocketException(e.getMessage());
+    result.initCause(e);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "UnixSocket[" + PREFIX + path + "]";
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.forwarder4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forwarder4j.buffer.BdpTuner;
+import org.forwarder4j.buffer.BufferPool;
+import org.forwarder4j.stats.HandshakeStats;
+import org.forwarder4j.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of idle connections to the target of a forwarding definition, opened in advance so an accepted client is
+ * relayed without waiting for a connection to be established. The pool is refilled in the background, each missing
+ * connection in its own thread, whenever a connection is taken from it.
+ * <p>Once per {@link #CHECK_INTERVAL}, the idle connections are checked: those closed by the target, and those idle for
+ * longer than the idle timeout of the forwarding definition, are closed and replaced. The data a target sends before
+ * its client, such as a greeting banner, is kept and written to the client which takes the connection.
+ * <p>When TLS is originated, the handshake is done in advance as well, unless a PROXY protocol header must be sent
+ * before it.
+ * @author Laurent Cohen
+ */
+final class UpstreamPool implements Closeable {
+  /**
+   * Logger for this class.
+   */
+  private static Logger log = LoggerFactory.getLogger(UpstreamPool.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * Interval between two checks of the idle connections, in millis.
+   */
+  static final long CHECK_INTERVAL = 1000L;
+  /**
+   * Maximum number of bytes an idle connection can receive before it is closed.
+   */
+  private static final int MAX_PENDING = 4096;
+  /**
+   * Maximum delay before connecting again after a failed connection, in millis.
+   */
+  private static final long MAX_RETRY_DELAY = 5000L;
+  /**
+   * The forwarding definition.
+   */
+  private final EntryDescriptor desc;
+  /**
+   * The target of the connections.
+   */
+  private final HostPort target;
+  /**
+   * The statistics on the TLS handshakes with the target.
+   */
+  private final HandshakeStats handshakes;
+  /**
+   * The idle connections, the most recently checked last.
+   */
+  private final BlockingDeque<Idle> idle = new LinkedBlockingDeque<>();
+  /**
+   * The number of connections being opened.
+   */
+  private final AtomicInteger connecting = new AtomicInteger(0);
+  /**
+   * The number of clients relayed through a connection of this pool.
+   */
+  private final AtomicLong hits = new AtomicLong(0L);
+  /**
+   * The number of clients which found this pool empty.
+   */
+  private final AtomicLong misses = new AtomicLong(0L);
+  /**
+   * Whether this pool is closed.
+   */
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  /**
+   * The delay before connecting again after the last failed connection, in millis, or 0 if the last connection succeeded.
+   */
+  private long retryDelay;
+  /**
+   * The time before which no connection is opened, after a failed connection.
+   */
+  private volatile long retryTime;
+  /**
+   * Describes this pool in the thread names.
+   */
+  private final String name;
+
+  /**
+   * An idle connection, with the data received from the target while it was idle.
+   */
+  private static final class Idle {
+    /**
+     * The socket connected to the target.
+     */
+    final Socket socket;
+    /**
+     * When the connection was opened.
+     */
+    final long created = System.currentTimeMillis();
+    /**
+     * The data received from the target, {@code null} if it sent none.
+     */
+    byte[] pending;
+    /**
+     * The length of the received data.
+     */
+    int pendingLength;
+
+    /**
+     * Initialize this idle connection.
+     * @param socket the socket connected to the target.
+     */
+    Idle(final Socket socket) {
+      this.socket = socket;
+    }
+
+    /**
+     * Check that the target did not close this connection, and keep the data it sent.
+     * @param buffer the buffer used to read from the target.
+     * @return {@code true} if the connection is still open, {@code false} otherwise.
+     */
+    boolean check(final byte[] buffer) {
+      try {
+        socket.setSoTimeout(1);
+        final InputStream in = SocketWrapper.getInputStream(socket);
+        while (true) {
+          final int n = in.read(buffer, 0, buffer.length);
+          if (n < 0) return false;
+          if (pendingLength + n > MAX_PENDING) return false;
+          if (pending == null) pending = new byte[MAX_PENDING];
+          System.arraycopy(buffer, 0, pending, pendingLength, n);
+          pendingLength += n;
+        }
+      } catch (@SuppressWarnings("unused") final SocketTimeoutException e) {
+        // nothing more to read
+        return true;
+      } catch (@SuppressWarnings("unused") final IOException e) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Initialize this pool.
+   * @param desc the forwarding definition, which has the {@link EntryDescriptor#UPSTREAM_POOL_OPTION} option.
+   * @param handshakes the statistics on the TLS handshakes with the target.
+   */
+  UpstreamPool(final EntryDescriptor desc, final HandshakeStats handshakes) {
+    this.desc = desc;
+    this.target = desc.getTarget();
+    this.handshakes = handshakes;
+    this.name = "upstream-pool-" + desc.getPort();
+  }
+
+  /**
+   * @return the forwarding definition of this pool.
+   */
+  EntryDescriptor getDescriptor() {
+    return desc;
+  }
+
+  /**
+   * Fill this pool and start checking its idle connections.
+   */
+  void start() {
+    refill();
+    final Thread thread = new Thread(this::checkIdle, name + "-check");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Take an idle connection for a client, and write to the client the data the target sent in advance. The connection
+   * is checked first, since the target may have closed it after the last check: the closed connections are discarded
+   * until an open one is found, or the pool is empty and the client connects on its own.
+   * @param client the socket connected to the client.
+   * @return the socket connected to the target, or {@code null} if this pool is empty.
+   * @throws IOException if the client could not be written to.
+   */
+  Socket take(final Socket client) throws IOException {
+    Idle connection;
+    final byte[] buffer = BufferPool.acquire(BufferPool.sizeClass(MAX_PENDING));
+    try {
+      while (((connection = idle.pollLast()) != null) && !connection.check(buffer)) {
+        if (debugEnabled) log.debug("discarding closed connection {} of {}", connection.socket, name);
+        Utils.closeSilent(connection.socket);
+      }
+    } finally {
+      BufferPool.release(buffer);
+    }
+    refill();
+    if (connection == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    try {
+      connection.socket.setSoTimeout(0);
+      if (connection.pendingLength > 0) SocketWrapper.getOutputStream(client).write(connection.pending, 0, connection.pendingLength);
+    } catch (final IOException e) {
+      Utils.closeSilent(connection.socket);
+      throw e;
+    }
+    return connection.socket;
+  }
+
+  /**
+   * Open connections in the background until this pool has as many as its size, unless the last connection failed
+   * less than the retry delay ago.
+   */
+  private void refill() {
+    if (closed.get() || (System.currentTimeMillis() < retryTime)) return;
+    while (true) {
+      final int n = connecting.get();
+      if (idle.size() + n >= desc.getUpstreamPoolSize()) return;
+      if (connecting.compareAndSet(n, n + 1)) new Thread(this::connect, name + "-connect").start();
+    }
+  }
+
+  /**
+   * Open a connection and add it to the idle connections. After a failure, the retry delay doubles up to
+   * {@link #MAX_RETRY_DELAY}.
+   */
+  private void connect() {
+    try {
+      final Socket socket = open();
+      synchronized(this) {
+        retryDelay = 0L;
+      }
+      idle.offerLast(new Idle(socket));
+      // closed while connecting
+      if (closed.get()) closeIdle();
+    } catch (final IOException e) {
+      if (debugEnabled) log.debug("could not connect {} to {} : {}", name, target, e.toString());
+      synchronized(this) {
+        retryDelay = (retryDelay == 0L) ? 100L : Math.min(2L * retryDelay, MAX_RETRY_DELAY);
+        retryTime = System.currentTimeMillis() + retryDelay;
+      }
+    } finally {
+      connecting.decrementAndGet();
+    }
+  }
+
+  /**
+   * Connect to the target and perform the TLS handshake if TLS is originated.
+   * @return the socket connected to the target.
+   * @throws IOException if the connection or the handshake failed.
+   */
+  private Socket open() throws IOException {
+    final SocketProfile profile = desc.getUpstreamProfile();
+    final BdpTuner tuner = desc.isBufferAutoTuning() ? BdpTuner.forTarget(target, profile.getReceiveBufferSize()) : null;
+    final long start = System.nanoTime();
+    final Socket socket = SocketWrapper.connect(target.getHost(), target.getPort(), profile, (tuner == null) ? 0 : tuner.getBufferSize(), desc.getSourcePool());
+    if (tuner != null) tuner.connected(System.nanoTime() - start);
+    final TlsContext tls = desc.getTlsContext();
+    // the PROXY protocol header of each client goes before the TLS handshake
+    if ((tls == null) || !tls.isOriginated() || (desc.getProxyProtocol() != null)) return socket;
+    return tls.connect(socket, target.getHost(), target.getPort(), desc.getHandshakeTimeout(), handshakes);
+  }
+
+  /**
+   * Check the idle connections once per {@link #CHECK_INTERVAL}, until this pool is closed.
+   */
+  private void checkIdle() {
+    final byte[] buffer = new byte[MAX_PENDING];
+    try {
+      while (!closed.get()) {
+        Thread.sleep(CHECK_INTERVAL);
+        final long now = System.currentTimeMillis();
+        // the connections taken by clients in the meantime are not checked
+        for (int i = idle.size(); i > 0; i--) {
+          final Idle connection = idle.pollFirst();
+          if (connection == null) break;
+          if ((now - connection.created < desc.getUpstreamPoolIdle()) && connection.check(buffer)) idle.offerLast(connection);
+          else {
+            if (debugEnabled) log.debug("closing idle connection {} of {}", connection.socket, name);
+            Utils.closeSilent(connection.socket);
+          }
+        }
+        refill();
+      }
+    } catch (@SuppressWarnings("unused") final InterruptedException e) {
+      // the pool is closed
+    }
+    closeIdle();
+  }
+
+  /**
+   * Close the idle connections.
+   */
+  private void closeIdle() {
+    Idle connection;
+    while ((connection = idle.pollFirst()) != null) Utils.closeSilent(connection.socket);
+  }
+
+  /**
+   * @return the number of idle connections.
+   */
+  int getIdleCount() {
+    return idle.size();
+  }
+
+  /**
+   * @return the number of idle connections holding data the target sent in advance.
+   */
+  int getPendingCount() {
+    int count = 0;
+    for (final Idle connection: idle) {
+      if (connection.pendingLength > 0) count++;
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of clients relayed through a connection of this pool.
+   */
+  long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of clients which found this pool empty.
+   */
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Close the idle connections, and open no more connection.
+   */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) closeIdle();
+  }
+
+  @Override
+  public String toString() {
+    return name + "[target=" + target + ", idle=" + idle.size() + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.acl;
+
+import java.net.InetAddress;
+import java.util.regex.Pattern;
+
+import org.forwarder4j.Config;
+
+/**
+ * Client access control based on lists of allowed and denied CIDR ranges.
+ * <p>A client address is checked against the most specific matching range: if it is an allowed range, the client is
+ * accepted, if it is a denied range the client is rejected. When no range matches, the client is rejected if any allowed
+ * range is defined, and accepted otherwise. When the same range is both allowed and denied, it is denied.
+ * @author Laurent Cohen
+ */
+public class AccessControl {
+  /**
+   * Name of the option which defines the allowed ranges.
+   */
+  public static final String ALLOW_OPTION = "allow";
+  /**
+   * Name of the option which defines the denied ranges.
+   */
+  public static final String DENY_OPTION = "deny";
+  /**
+   * Trie value for allowed ranges.
+   */
+  private static final byte ALLOW = 1;
+  /**
+   * Trie value for denied ranges.
+   */
+  private static final byte DENY = 2;
+  /**
+   * Regex to split a list of ranges.
+   */
+  private static final Pattern SPLIT_PATTERN = Pattern.compile("[,\\s]+");
+  /**
+   * Characters allowed in an IPv4 or IPv6 address literal.
+   */
+  private static final Pattern LITERAL_PATTERN = Pattern.compile("[0-9.]+|[0-9a-fA-F.]*:[0-9a-fA-F.:]*");
+  /**
+   * The compiled allowed and denied ranges.
+   */
+  private final CidrTrie trie = new CidrTrie();
+  /**
+   * Whether clients that match no range are accepted.
+   */
+  private final boolean defaultAllow;
+
+  /**
+   * Initialize with the specified lists of allowed and denied ranges.
+   * @param allow a comma- or space-separated list of allowed CIDR ranges, may be {@code null}.
+   * @param deny a comma- or space-separated list of denied CIDR ranges, may be {@code null}.
+   * @throws IllegalArgumentException if any of the ranges is invalid.
+   */
+  public AccessControl(final String allow, final String deny) {
+    final int allowCount = addRanges(allow, ALLOW);
+    addRanges(deny, DENY);
+    trie.compact();
+    defaultAllow = (allowCount == 0);
+  }
+
+  /**
+   * Create an access control from the "allow" and "deny" options of a forwarder definition.
+   * @param options the forwarder options.
+   * @return an {@code AccessControl}, or {@code null} if neither option is defined.
+   * @throws IllegalArgumentException if any of the ranges is invalid.
+   */
+  public static AccessControl from(final Config options) {
+    if (options == null) return null;
+    final String allow = options.getString(ALLOW_OPTION), deny = options.getString(DENY_OPTION);
+    if ((allow == null) && (deny == null)) return null;
+    return new AccessControl(allow, deny);
+  }
+
+  /**
+   * Determine whether the specified client address is accepted.
+   * @param address the client address.
+   * @return {@code true} if the client is accepted, {@code false} otherwise.
+   */
+  public boolean isAllowed(final InetAddress address) {
+    return isAllowed(address.getAddress());
+  }
+
+  /**
+   * Determine whether the specified client address is accepted.
+   * @param address the client address bytes, 4 bytes for IPv4 or 16 bytes for IPv6.
+   * @return {@code true} if the client is accepted, {@code false} otherwise.
+   */
+  public boolean isAllowed(final byte[] address) {
+    final byte value = trie.lookup(address);
+    return (value == CidrTrie.NO_MATCH) ? defaultAllow : (value == ALLOW);
+  }
+
+  /**
+   * Parse the specified list of ranges and add them to the trie.
+   * @param ranges a comma- or space-separated list of CIDR ranges, may be {@code null}.
+   * @param value the trie value to associate with each range.
+   * @return the number of added ranges.
+   */
+  private int addRanges(final String ranges, final byte value) {
+    if (ranges == null) return 0;
+    int count = 0;
+    for (final String range: SPLIT_PATTERN.split(ranges.trim())) {
+      if (range.isEmpty()) continue;
+      addRange(range, value);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Parse the specified range and add it to the trie.
+   * @param range a range in the form {@code address[/prefix_length]}.
+   * @param value the trie value to associate with the range.
+   */
+  private void addRange(final String range, final byte value) {
+    final int idx = range.indexOf('/');
+    final String literal = (idx < 0) ? range : range.substring(0, idx);
+    // only accept address literals, to avoid any DNS lookup
+    if (!LITERAL_PATTERN.matcher(literal).matches()) throw new IllegalArgumentException("'" + range + "' is not a valid CIDR range");
+    final byte[] address;
+    try {
+      address = InetAddress.getByName(literal).getAddress();
+    } catch (final Exception e) {
+      throw new IllegalArgumentException("'" + range + "' is not a valid CIDR range: " + e.getMessage());
+    }
+    int prefixLength = 8 * address.length;
+    if (idx >= 0) {
+      try {
+        prefixLength = Integer.parseInt(range.substring(idx + 1));
+      } catch (@SuppressWarnings("unused") final NumberFormatException e) {
+        throw new IllegalArgumentException("'" + range + "' has an invalid prefix length");
+      }
+      // IPv4-mapped IPv6 ranges, such as ::ffff:10.0.0.0/104, are converted to IPv4 addresses
+      if ((address.length == 4) && (literal.indexOf(':') >= 0)) prefixLength -= 96;
+    }
+    if ((prefixLength < 0) || (prefixLength > 8 * address.length)) throw new IllegalArgumentException("'" + range + "' has an invalid prefix length");
+    trie.add(address, prefixLength, value);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.acl;
+
+import java.util.Arrays;
+
+/**
+ * A binary prefix trie which maps IPv4 and IPv6 CIDR ranges to values and performs longest prefix matching on addresses.
+ * <p>The nodes are stored in flat arrays rather than as objects, so that a lookup walks at most one node per bit of
+ * the address and does not allocate any memory.
+ * @author Laurent Cohen
+ */
+public class CidrTrie {
+  /**
+   * The value returned by {@link #lookup(byte[])} when no prefix matches.
+   */
+  public static final byte NO_MATCH = 0;
+  /**
+   * Index of the IPv4 root node.
+   */
+  private static final int ROOT_V4 = 0;
+  /**
+   * Index of the IPv6 root node.
+   */
+  private static final int ROOT_V6 = 1;
+  /**
+   * Child node indices: {@code children[2*n]} and {@code children[2*n + 1]} are the children of node n for bit 0 and 1.
+   * A value of 0 means no child, since the root nodes are never children.
+   */
+  private int[] children = new int[32];
+  /**
+   * The value associated with each node, {@link #NO_MATCH} if no prefix ends at the node.
+   */
+  private byte[] values = new byte[16];
+  /**
+   * The number of nodes in this trie.
+   */
+  private int nodeCount = 2;
+
+  /**
+   * Associate the specified value with the specified prefix. If the same prefix was already added, its value is replaced.
+   * @param address the address bytes, 4 bytes for IPv4 or 16 bytes for IPv6.
+   * @param prefixLength the number of leading bits of the address which form the prefix.
+   * @param value the value to associate with the prefix, must not be {@link #NO_MATCH}.
+   * @return this trie, for method call chaining.
+   */
+  public CidrTrie add(final byte[] address, final int prefixLength, final byte value) {
+    if (value == NO_MATCH) throw new IllegalArgumentException("value cannot be " + NO_MATCH);
+    if ((prefixLength < 0) || (prefixLength > 8 * address.length)) throw new IllegalArgumentException("invalid prefix length " + prefixLength);
+    int node = root(address);
+    for (int i=0; i<prefixLength; i++) {
+      final int slot = 2 * node + bit(address, i);
+      if (children[slot] == 0) {
+        if (nodeCount == values.length) {
+          values = Arrays.copyOf(values, 2 * nodeCount);
+          children = Arrays.copyOf(children, 4 * nodeCount);
+        }
+        children[slot] = nodeCount++;
+      }
+      node = children[slot];
+    }
+    values[node] = value;
+    return this;
+  }
+
+  /**
+   * Trim the internal arrays once all the prefixes are added.
+   * @return this trie, for method call chaining.
+   */
+  public CidrTrie compact() {
+    values = Arrays.copyOf(values, nodeCount);
+    children = Arrays.copyOf(children, 2 * nodeCount);
+    return this;
+  }
+
+  /**
+   * Find the value associated with the longest prefix that matches the specified address.
+   * @param address the address bytes, 4 bytes for IPv4 or 16 bytes for IPv6.
+   * @return the value of the longest matching prefix, or {@link #NO_MATCH} if no prefix matches.
+   */
+  public byte lookup(final byte[] address) {
+    int node = root(address);
+    byte result = values[node];
+    final int bits = 8 * address.length;
+    for (int i=0; i<bits; i++) {
+      node = children[2 * node + bit(address, i)];
+      if (node == 0) break;
+      if (values[node] != NO_MATCH) result = values[node];
+    }
+    return result;
+  }
+
+  /**
+   * Get the root node for the specified address.
+   * @param address the address bytes.
+   * @return the index of the root node.
+   */
+  private static int root(final byte[] address) {
+    if (address.length == 4) return ROOT_V4;
+    if (address.length == 16) return ROOT_V6;
+    throw new IllegalArgumentException("invalid address length " + address.length);
+  }
+
+  /**
+   * Get the bit at the specified position in the specified address, where position 0 is the most significant bit.
+   * @param address the address bytes.
+   * @param pos the bit position.
+   * @return the bit value, either 0 or 1.
+   */
+  private static int bit(final byte[] address, final int pos) {
+    return (address[pos >>> 3] >>> (7 - (pos & 7))) & 1;
+  }
+}
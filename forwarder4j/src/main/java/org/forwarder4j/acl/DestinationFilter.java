@@ -0,0 +1,259 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.acl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.forwarder4j.Config;
+
+/**
+ * An allow-list of the destinations that the clients of a proxy mode can connect to. Each entry is in the form
+ * {@code host[:ports]}, where:
+ * <ul>
+ * <li>{@code host} is {@code *} for any host, a host name, {@code *.domain} for any host in a domain, or a CIDR range
+ * such as {@code 10.0.0.0/8} or {@code [fd00::]/8}</li>
+ * <li>{@code ports} is {@code *}, a port number, or a range in the form {@code first-last}. All ports are allowed when
+ * it is omitted</li>
+ * </ul>
+ * Host names and domains are matched against the name requested by the client, while CIDR ranges are matched against
+ * the address the name resolves to, which is the address the connection is then made to.
+ * @author Laurent Cohen
+ */
+public class DestinationFilter {
+  /**
+   * Name of the option which defines the allowed destinations.
+   */
+  public static final String OPTION = "destinations";
+  /**
+   * Regex to split a list of destinations.
+   */
+  private static final Pattern SPLIT_PATTERN = Pattern.compile("[,\\s]+");
+  /**
+   * Characters allowed in an IPv4 or IPv6 address literal.
+   */
+  private static final Pattern LITERAL_PATTERN = Pattern.compile("[0-9.]+|[0-9a-fA-F.]*:[0-9a-fA-F.:]*");
+  /**
+   * Characters allowed in a host name.
+   */
+  private static final Pattern NAME_PATTERN = Pattern.compile("(\\*\\.)?[A-Za-z0-9_\\-.]+");
+  /**
+   * The allowed destinations.
+   */
+  private final List<Rule> rules = new ArrayList<>();
+
+  /**
+   * Initialize with the specified list of allowed destinations.
+   * @param destinations a comma- or space-separated list of allowed destinations.
+   * @throws IllegalArgumentException if any of the destinations is invalid.
+   */
+  public DestinationFilter(final String destinations) {
+    for (final String destination: SPLIT_PATTERN.split(destinations.trim())) {
+      if (!destination.isEmpty()) rules.add(parse(destination));
+    }
+  }
+
+  /**
+   * Create a destination filter from the "destinations" option of a forwarder definition.
+   * @param options the forwarder options.
+   * @return a {@code DestinationFilter}, or {@code null} if the option is not defined.
+   * @throws IllegalArgumentException if any of the destinations is invalid.
+   */
+  public static DestinationFilter from(final Config options) {
+    final String value = (options == null) ? null : options.getString(OPTION);
+    return (value == null) ? null : new DestinationFilter(value);
+  }
+
+  /**
+   * Determine whether a destination is allowed.
+   * @param host the host name requested by the client, or {@code null} if it requested an address.
+   * @param address the address of the destination.
+   * @param port the port of the destination.
+   * @return {@code true} if the destination is allowed, {@code false} otherwise.
+   */
+  public boolean isAllowed(final String host, final InetAddress address, final int port) {
+    for (final Rule rule: rules) {
+      if ((port >= rule.firstPort) && (port <= rule.lastPort) && rule.matches(host, address)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Determine whether a destination is allowed by a rule which does not need its address, that is a host name, a
+   * domain or any host, so its host name need not be resolved.
+   * @param host the host name requested by the client.
+   * @param port the port of the destination.
+   * @return {@code true} if the destination is allowed, {@code false} if it is not or if only a CIDR range may allow it.
+   */
+  public boolean isAllowedByName(final String host, final int port) {
+    for (final Rule rule: rules) {
+      if ((port >= rule.firstPort) && (port <= rule.lastPort) && (rule.address == null) && rule.matches(host, null)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Determine whether a CIDR range may allow a destination port, in which case the address of the destination is needed.
+   * @param port the port of the destination.
+   * @return {@code true} if a CIDR range allows the port, {@code false} otherwise.
+   */
+  public boolean hasAddressRule(final int port) {
+    for (final Rule rule: rules) {
+      if ((port >= rule.firstPort) && (port <= rule.lastPort) && (rule.address != null)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check that a destination is allowed and resolve it. A host name is only resolved once it is allowed by its name,
+   * or if a CIDR range may allow it, so the clients cannot make this forwarder look up any name they like.
+   * @param host the host name requested by the client, or {@code null} if it requested an address.
+   * @param address the address requested by the client, or {@code null} if it requested a host name.
+   * @param port the requested port.
+   * @return the address to connect to, or {@code null} if the destination is not allowed.
+   * @throws UnknownHostException if the host name cannot be resolved.
+   */
+  public InetAddress resolve(final String host, final InetAddress address, final int port) throws UnknownHostException {
+    if ((address == null) && !isAllowedByName(host, port) && !hasAddressRule(port)) return null;
+    // the connection is made to the checked address, so it cannot differ from that of a second resolution
+    final InetAddress resolved = (address != null) ? address : InetAddress.getByName(host);
+    return isAllowed(host, resolved, port) ? resolved : null;
+  }
+
+  /**
+   * Parse an allowed destination.
+   * @param destination the destination in the form {@code host[:ports]}.
+   * @return the corresponding rule.
+   * @throws IllegalArgumentException if the destination is invalid.
+   */
+  private static Rule parse(final String destination) {
+    String host = destination, ports = null;
+    if (destination.startsWith("[")) {
+      // IPv6 range, e.g. [fd00::]/8:443
+      final int idx = destination.indexOf(']');
+      if (idx < 0) throw new IllegalArgumentException("'" + destination + "' is not a valid destination");
+      final int colon = destination.indexOf(':', idx);
+      host = destination.substring(1, idx) + ((colon < 0) ? destination.substring(idx + 1) : destination.substring(idx + 1, colon));
+      if (colon >= 0) ports = destination.substring(colon + 1);
+    } else {
+      final int colon = destination.lastIndexOf(':');
+      if (colon >= 0) {
+        host = destination.substring(0, colon);
+        ports = destination.substring(colon + 1);
+      }
+    }
+    final Rule rule = new Rule();
+    parsePorts(destination, ports, rule);
+    if ("*".equals(host)) return rule;
+    final int slash = host.indexOf('/');
+    final String literal = (slash < 0) ? host : host.substring(0, slash);
+    if (LITERAL_PATTERN.matcher(literal).matches()) {
+      try {
+        rule.address = InetAddress.getByName(literal).getAddress();
+      } catch (final Exception e) {
+        throw new IllegalArgumentException("'" + destination + "' is not a valid destination: " + e.getMessage());
+      }
+      rule.prefixLength = 8 * rule.address.length;
+      if (slash >= 0) {
+        try {
+          rule.prefixLength = Integer.parseInt(host.substring(slash + 1));
+        } catch (@SuppressWarnings("unused") final NumberFormatException e) {
+          throw new IllegalArgumentException("'" + destination + "' has an invalid prefix length");
+        }
+      }
+      if ((rule.prefixLength < 0) || (rule.prefixLength > 8 * rule.address.length)) throw new IllegalArgumentException("'" + destination + "' has an invalid prefix length");
+    } else if (NAME_PATTERN.matcher(host).matches()) {
+      rule.name = host.toLowerCase(Locale.ROOT);
+    } else throw new IllegalArgumentException("'" + destination + "' is not a valid destination");
+    return rule;
+  }
+
+  /**
+   * Parse the ports of an allowed destination.
+   * @param destination the destination, for the error messages.
+   * @param ports the ports, either {@code *}, a port number or a range in the form {@code first-last}, {@code null} for all ports.
+   * @param rule the rule to set the ports of.
+   * @throws IllegalArgumentException if the ports are invalid.
+   */
+  private static void parsePorts(final String destination, final String ports, final Rule rule) {
+    if ((ports == null) || "*".equals(ports)) return;
+    final int idx = ports.indexOf('-');
+    try {
+      rule.firstPort = Integer.parseInt((idx < 0) ? ports : ports.substring(0, idx));
+      rule.lastPort = (idx < 0) ? rule.firstPort : Integer.parseInt(ports.substring(idx + 1));
+    } catch (@SuppressWarnings("unused") final NumberFormatException e) {
+      throw new IllegalArgumentException("'" + destination + "' has invalid ports");
+    }
+    if ((rule.firstPort <= 0) || (rule.lastPort < rule.firstPort) || (rule.lastPort > 65535)) throw new IllegalArgumentException("'" + destination + "' has invalid ports");
+  }
+
+  /**
+   * An allowed destination.
+   */
+  private static final class Rule {
+    /**
+     * The host name, or the domain in the form {@code *.domain}, in lower case. {@code null} if the rule is a CIDR range or allows any host.
+     */
+    private String name;
+    /**
+     * The address of the CIDR range, {@code null} if the rule is a host name or allows any host.
+     */
+    private byte[] address;
+    /**
+     * The prefix length of the CIDR range.
+     */
+    private int prefixLength;
+    /**
+     * The first allowed port.
+     */
+    private int firstPort = 1;
+    /**
+     * The last allowed port.
+     */
+    private int lastPort = 65535;
+
+    /**
+     * Determine whether a destination host matches this rule.
+     * @param host the host name requested by the client, or {@code null} if it requested an address.
+     * @param destination the address of the destination.
+     * @return {@code true} if the host matches, {@code false} otherwise.
+     */
+    private boolean matches(final String host, final InetAddress destination) {
+      if (name != null) {
+        if (host == null) return false;
+        if (!name.startsWith("*.")) return name.equalsIgnoreCase(host);
+        final int len = name.length() - 1;
+        // "*.mysite.com" matches "www.mysite.com" but not "mysite.com"
+        return (host.length() > len) && host.regionMatches(true, host.length() - len, name, 1, len);
+      }
+      if (address == null) return true;
+      final byte[] bytes = destination.getAddress();
+      if (bytes.length != address.length) return false;
+      for (int i=0; i<prefixLength; i++) {
+        final int mask = 0x80 >>> (i & 7);
+        if ((bytes[i >>> 3] & mask) != (address[i >>> 3] & mask)) return false;
+      }
+      return true;
+    }
+  }
+}
@@ -18,18 +18,50 @@
 
 package org.forwarder4j.admin;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.forwarder4j.Config;
 import org.forwarder4j.EntryDescriptor;
 import org.forwarder4j.Forwarder;
+import org.forwarder4j.ProxyMode;
 import org.forwarder4j.SocketWrapper;
+import org.forwarder4j.SourceAddressPool;
+import org.forwarder4j.TlsContext;
 import org.forwarder4j.cli.CLIParams;
+import org.forwarder4j.stats.ClientStats;
+import org.forwarder4j.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +82,52 @@ public class Admin implements Runnable {
    * Regex to split a list of commands into individual commands.
    */
   private static final Pattern COMMAND_SPLIT_PATTERN = Pattern.compile(",|;|\\|");
+  /**
+   * Regex to split the forwarding definitions of the "apply" command.
+   */
+  private static final Pattern APPLY_SPLIT_PATTERN = Pattern.compile("\\s+");
+  /**
+   * Maximum number of threads used to bind local ports in parallel. Defaults to 32.
+   */
+  private static final int BIND_THREADS = Config.getConfiguration().getInt("forwarder4j.bind.threads", 32);
+  /**
+   * Maximum length in bytes of a request sent after a {@link #LONG_REQUEST_HEADER} or through a pipelined connection.
+   * Defaults to 4 MB.
+   */
+  private static final int MAX_REQUEST_LENGTH = Config.getConfiguration().getInt("forwarder4j.admin.request.max", 4 * 1024 * 1024);
+  /**
+   * Maximum length in bytes of a response read by a client after sending a {@link #LONG_REQUEST_HEADER}.
+   */
+  static final int MAX_RESPONSE_LENGTH = 64 * 1024 * 1024;
+  /**
+   * Header sent by a client as the first int of a connection to send a single request which may be larger than 64 KB,
+   * as an int length followed by its UTF-8 encoding. The response is sent in the same format.
+   * <p>A request in the format of the released clients starts with its length on two bytes, followed by modified UTF-8
+   * which never contains a zero byte. The headers start with the same two bytes as a 62624 bytes request, but are
+   * followed by a zero byte, so they cannot be mistaken for one.
+   */
+  public static final int LONG_REQUEST_HEADER = 0xF4A00000;
+  /**
+   * Number of threads which execute the requests received through pipelined connections. Defaults to 8.
+   */
+  private static final int COMMAND_THREADS = Config.getConfiguration().getInt("forwarder4j.admin.threads", 8);
+  /**
+   * Maximum number of requests of a single pipelined connection being executed at any time. Defaults to 64.
+   */
+  private static final int PIPELINE_DEPTH = Config.getConfiguration().getInt("forwarder4j.admin.pipeline.depth", 64);
+  /**
+   * Maximum number of admin connections handled at any time. Defaults to 16.
+   */
+  private static final int CONNECTION_THREADS = Math.max(1, Config.getConfiguration().getInt("forwarder4j.admin.connections", 16));
+  /**
+   * Name of the property which defines a file written once all the forwarders defined at startup are bound.
+   */
+  public static final String READY_FILE_PROPERTY = "forwarder4j.ready.file";
+  /**
+   * Header sent by a client as the first int of a connection to switch it to the pipelined protocol, in which the
+   * requests and responses have the same format as those following a {@link #LONG_REQUEST_HEADER}.
+   */
+  public static final int PIPELINE_HEADER = 0xF4A00001;
   /**
    * The default admin port.
    */
@@ -73,9 +151,22 @@ public class Admin implements Runnable {
     "the list of commands to perform, separated with comma (','),_\n_semicolon (';'), or pipe ('|')\n" +
     "  Available commands:\n" +
     "    +<local_port>=<host>:<port> : adds/sets forwarding of host:port through local_port\n" +
+    "    apply <entry> ... <entry>   : replaces all forwarding definitions with the space-separated\n" +
+    "                                  <local_port>=<host>:<port> entries, atomically\n" +
     "    -<local_port>               : removes any port forwarding via local_port\n" +
-    "    list                        : lists all current port forwarding definitions\n" +
+    "    list [<filter> ...]         : lists the current port forwarding definitions. Optional filters:\n" +
+    "                                  <port> or <from>-<to> for local ports, target=<glob> for targets,\n" +
+    "                                  offset=<n> and limit=<n> for pagination\n" +
+    "    top <local_port>            : shows the heaviest clients of the forwarding via local_port\n" +
+    "    tls <local_port>            : shows the TLS handshake statistics of the forwarding via local_port\n" +
+    "    compression <local_port>    : shows the compression statistics of the tunnel via local_port\n" +
+    "    ready                       : tells whether all the forwarders defined at startup are bound\n" +
+    "    sources                     : shows the connection counters of the outbound source addresses\n" +
     "    stop                        : terminates Forwarder4j. Any command after this is ignored";
+  /**
+   * Description of the "apply file" CLI param.
+   */
+  private static final String FILE_PARAM_DESC = "a file with one <local_port>=<host>:<port> entry per line, sent with an 'apply' command";
   /**
    * Description of the "commands" CLI param.
    */
@@ -83,7 +174,34 @@ public class Admin implements Runnable {
   /**
    * Mapping of existing {@link Forwarder forwarders} to their local port.
    */
-  private final Map<Integer, Forwarder> forwarderMap = new HashMap<>();
+  private final ConcurrentSkipListMap<Integer, Forwarder> forwarderMap = new ConcurrentSkipListMap<>();
+  /**
+   * Serializes the changes to the forwarders made by transactional operations, while reads of {@link #forwarderMap}
+   * never block.
+   */
+  private final Object updateLock = new Object();
+  /**
+   * Released once the forwarders defined at startup are all bound, or could not be bound.
+   */
+  private final CountDownLatch readyLatch = new CountDownLatch(1);
+  /**
+   * The message describing the outcome of the startup, {@code null} until it is complete.
+   */
+  private volatile String readyMessage;
+  /**
+   * Handles the admin connections, one thread per connection, up to {@link #CONNECTION_THREADS} connections.
+   */
+  private final ExecutorService connectionExecutor =
+    new ThreadPoolExecutor(0, CONNECTION_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), newThreadFactory("AdminConnection-"));
+  /**
+   * The bytes of the requests sent after a header which are held in memory, up to four times the maximum length of a
+   * request for all the connections together. A request is only read once its length is reserved.
+   */
+  private final Semaphore requestBytes = new Semaphore((int) Math.min(4L * MAX_REQUEST_LENGTH, Integer.MAX_VALUE), true);
+  /**
+   * Executes the requests received through pipelined connections.
+   */
+  private final ExecutorService commandExecutor = Executors.newFixedThreadPool(COMMAND_THREADS, newThreadFactory("AdminCommand-"));
   /**
    * The definitions of the available command line options.
    */
@@ -92,6 +210,7 @@ public class Admin implements Runnable {
     .add("-H", HOST_PARAM_DESC, "--admin-host")
     .add("-p", PORT_PARAM_DESC, "--admin-port")
     .add("-c", COMMANDS_PARAM_DESC, "--admin-commands")
+    .add("-f", FILE_PARAM_DESC, "--admin-apply-file")
     .setTitle("Forwarder4j administration tool usage")
     .setDescription(DESCRIPTION);
 
@@ -104,7 +223,12 @@ public class Admin implements Runnable {
       else {
         final String host = params.getString("-H", "localhost");
         final int port = params.getInt("-p", DEFAULT_PORT);
-        final String command = params.getString("-c", null);
+        String command = params.getString("-c", null);
+        final String file = params.getString("-f", null);
+        if (file != null) {
+          final String apply = readApplyCommand(file);
+          command = (command == null) ? apply : command + ";" + apply;
+        }
         final String response = executeCommand(host, port, command);
         System.out.println(response);
       }
@@ -123,9 +247,30 @@ public class Admin implements Runnable {
    */
   public static String executeCommand(final String host, final int port, final String command) throws Exception {
     try (final SocketWrapper connection = new SocketWrapper(host, port)) {
-      connection.writeString(command);
-      return connection.readString();
+      if (SocketWrapper.utfLength(command) <= SocketWrapper.MAX_UTF_LENGTH) {
+        connection.writeString(command);
+        return connection.readString();
+      }
+      // a server which does not know the header could not have executed such a request anyway
+      connection.writeInt(LONG_REQUEST_HEADER);
+      connection.writeLongString(command);
+      return connection.readLongString(MAX_RESPONSE_LENGTH);
+    }
+  }
+
+  /**
+   * Build an "apply" command from a file with one forwarding definition per line. Empty lines and lines starting with '#' are ignored.
+   * @param path the path of the file to read.
+   * @return the "apply" command.
+   * @throws Exception if the file cannot be read.
+   */
+  private static String readApplyCommand(final String path) throws Exception {
+    final StringBuilder sb = new StringBuilder("apply");
+    for (final String line: Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+      final String entry = line.trim();
+      if (!entry.isEmpty() && !entry.startsWith("#")) sb.append(' ').append(entry);
     }
+    return sb.toString();
   }
 
   //----- admin server methods -----//
@@ -135,13 +280,20 @@ public class Admin implements Runnable {
     try {
       final Config cfg = Config.getConfiguration();
       final int port = cfg.getInt("forwarder4j.admin.port", DEFAULT_PORT);
-      try (final ServerSocket server = new ServerSocket(port)) {
-        final String msg = "admin service running on port " + port;
+      // the admin service can be restricted to a management interface, apart from the forwarded traffic
+      final InetAddress address = cfg.getInetAddress("forwarder4j.admin.address");
+      try (final ServerSocket server = new ServerSocket(port, 0, address)) {
+        final String msg = "admin service running on " + ((address == null) ? "port " + port : address.getHostAddress() + ":" + port);
         System.out.println(msg);
         log.info(msg);
         while (true) {
           final Socket socket = server.accept();
-          execute(socket);
+          try {
+            connectionExecutor.execute(() -> execute(socket));
+          } catch (@SuppressWarnings("unused") final RejectedExecutionException e) {
+            if (debugEnabled) log.debug("too many admin connections, closing the connection from {}", socket.getRemoteSocketAddress());
+            Utils.closeSilent(socket);
+          }
         }
       }
     } catch (final Exception e) {
@@ -150,77 +302,599 @@ public class Admin implements Runnable {
   }
 
   private void setEntry(final int localPort, final Forwarder forwarder) {
-    synchronized(forwarderMap) {
-      forwarderMap.put(localPort, forwarder);
-    }
+    forwarderMap.put(localPort, forwarder);
+  }
+
+  /**
+   * Register the specified forwarder and start it in its own thread.
+   * @param forwarder the forwarder to start.
+   */
+  private void startForwarder(final Forwarder forwarder) {
+    setEntry(forwarder.getInPort(), forwarder);
+    new Thread(forwarder, "Server-" + forwarder.getInPort()).start();
+  }
+
+  /**
+   * Create a factory of daemon threads with the specified name prefix.
+   * @param prefix the prefix of the thread names, followed by a sequence number.
+   * @return a new thread factory.
+   */
+  private static ThreadFactory newThreadFactory(final String prefix) {
+    final AtomicInteger threadCount = new AtomicInteger(0);
+    return r -> {
+      final Thread thread = new Thread(r, prefix + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
   }
 
   /**
-   * Execute a command string from an incoming socket connection.
-   * @param socket the socket connection through which the command string is sent.
+   * Handle an incoming socket connection. A connection either sends a single command string and receives a single
+   * response, possibly after a {@link #LONG_REQUEST_HEADER}, or starts with the {@link #PIPELINE_HEADER} and then
+   * carries any number of requests.
+   * @param socket the socket connection through which the command strings are sent.
    */
   private void execute(final Socket socket) {
     try (final SocketWrapper connection = new SocketWrapper(socket)) {
-      final String str = connection.readString();
-      if (debugEnabled) log.debug("received commands '{}'", str);
-      final String[] cmds = COMMAND_SPLIT_PATTERN.split(str);
-      for (int i=0; i<cmds.length; i++) cmds[i] = cmds[i].trim();
-      final StringBuilder response = new StringBuilder();
-      boolean stopped = false;
-      for (final String cmd: cmds) {
+      final int header = readHeader(connection);
+      if (header == PIPELINE_HEADER) executePipelined(connection);
+      else {
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        if (header == LONG_REQUEST_HEADER) {
+          final int len = reserveRequest(connection);
+          try {
+            connection.writeLongString(executeCommands(connection.readUTF8(len), stopped));
+          } finally {
+            requestBytes.release(len);
+          }
+        } else connection.writeString(truncate(executeCommands(connection.readString(), stopped)));
+        if (stopped.get()) exit();
+      }
+    } catch(final Exception e) {
+      log.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Read the header which starts a connection, if any.
+   * @param connection the connection to read from.
+   * @return the header, or 0 if the connection starts with a request in the format of the released clients, which is not consumed.
+   * @throws Exception if any error occurs.
+   */
+  private static int readHeader(final SocketWrapper connection) throws Exception {
+    // a released client may send an empty request, made of its length only, so the first two bytes are checked on their own
+    if (connection.peekUnsignedShort() != (PIPELINE_HEADER >>> 16)) return 0;
+    final int header = connection.peekInt();
+    if ((header != PIPELINE_HEADER) && (header != LONG_REQUEST_HEADER)) return 0;
+    return connection.readInt();
+  }
+
+  /**
+   * Read the length of a request sent as an int length followed by its UTF-8 bytes, then reserve it from
+   * {@link #requestBytes}, waiting for other requests to be executed if needed. The caller must read the request,
+   * then release the reserved bytes once it is executed.
+   * @param connection the connection to read from.
+   * @return the length in bytes of the request.
+   * @throws Exception if the length is not valid, or if any error occurs.
+   */
+  private int reserveRequest(final SocketWrapper connection) throws Exception {
+    final int len = connection.readInt();
+    if ((len < 0) || (len > MAX_REQUEST_LENGTH)) throw new IOException("invalid request length: " + len);
+    requestBytes.acquire(len);
+    return len;
+  }
+
+  /**
+   * Truncate a response which is too large to be sent to the released clients, at the end of a line.
+   * @param response the response to send.
+   * @return the response itself if it is small enough, otherwise its first lines followed by a truncation notice.
+   */
+  private static String truncate(final String response) {
+    if (SocketWrapper.utfLength(response) <= SocketWrapper.MAX_UTF_LENGTH) return response;
+    final String notice = "... response truncated\n";
+    final StringBuilder sb = new StringBuilder();
+    int len = notice.length();
+    for (final String line: response.split("\n")) {
+      len += SocketWrapper.utfLength(line) + 1;
+      if (len > SocketWrapper.MAX_UTF_LENGTH) break;
+      sb.append(line).append('\n');
+    }
+    return sb.append(notice).toString();
+  }
+
+  /**
+   * Process the requests of a pipelined connection until the client closes it. Each request is made of an int
+   * identifier followed by a command string, and is executed asynchronously. Its response is sent with the same
+   * identifier as soon as it is available, so the responses may be sent in a different order than the requests.
+   * @param connection the connection through which the requests are sent.
+   * @throws Exception if any error occurs.
+   */
+  private void executePipelined(final SocketWrapper connection) throws Exception {
+    if (debugEnabled) log.debug("pipelined connection from {}", connection.getSocket().getRemoteSocketAddress());
+    final Semaphore inFlight = new Semaphore(PIPELINE_DEPTH);
+    try {
+      while (true) {
+        final int id;
+        try {
+          id = connection.readInt();
+        } catch (@SuppressWarnings("unused") final EOFException | SocketException e) {
+          // the client closed the connection
+          break;
+        }
+        // a request is only read once it can be executed, so the requests waiting for a permit are not held in memory
+        inFlight.acquire();
+        int len = 0;
+        boolean submitted = false;
         try {
-          String ret = "";
-          if (debugEnabled) log.debug("processing command '{}'", cmd);
-          if (cmd.startsWith("list")) ret = executeList();
-          else if (cmd.startsWith("stop") || cmd.startsWith("clear")) {
+          len = reserveRequest(connection);
+          final String str = connection.readUTF8(len);
+          final int reserved = len;
+          commandExecutor.execute(() -> {
             try {
-              ret = executeStop();
+              final AtomicBoolean stopped = new AtomicBoolean(false);
+              final String response = executeCommands(str, stopped);
+              synchronized(connection) {
+                connection.writeInt(id);
+                connection.writeLongString(response);
+              }
+              if (stopped.get()) exit();
             } catch (final Exception e) {
-              final String msg = "error stopping the application";
-              log.error(msg, e);
-              ret = msg + ": " + e;
+              log.error("error sending the response to request {}", id, e);
+            } finally {
+              requestBytes.release(reserved);
+              inFlight.release();
             }
-            stopped = cmd.startsWith("stop");
-            response.append(ret).append('\n');
-            break;
+          });
+          submitted = true;
+        } finally {
+          if (!submitted) {
+            requestBytes.release(len);
+            inFlight.release();
           }
-          else if (cmd.startsWith("+")) ret = executeSet(cmd);
-          else if (cmd.startsWith("-")) ret = executeRemove(cmd);
-          else ret = "Command not understood, ignoring it: " + cmd;
-          response.append(ret).append('\n');
-        } catch (final Exception e) {
-          response.append(e.getMessage()).append('\n');
         }
       }
-      connection.writeString(response.toString());
-      if (stopped) {
-        log.info("stop requested, exiting Forwarder4j");
-        System.exit(0);
+    } finally {
+      // wait for the pending responses before the connection is closed
+      inFlight.acquire(PIPELINE_DEPTH);
+    }
+  }
+
+  /**
+   * Terminate the JVM upon a "stop" command, once its response is sent.
+   */
+  private static void exit() {
+    log.info("stop requested, exiting Forwarder4j");
+    System.exit(0);
+  }
+
+  /**
+   * Execute a command string.
+   * @param str the commands to execute, separated with comma, semicolon or pipe.
+   * @param stopped set to {@code true} if a "stop" command was executed.
+   * @return the responses of the commands, one per line.
+   */
+  private String executeCommands(final String str, final AtomicBoolean stopped) {
+    if (debugEnabled) log.debug("received commands '{}'", str);
+    final String[] cmds = COMMAND_SPLIT_PATTERN.split(str);
+    for (int i=0; i<cmds.length; i++) cmds[i] = cmds[i].trim();
+    final StringBuilder response = new StringBuilder();
+    for (final String cmd: cmds) {
+      try {
+        String ret = "";
+        if (debugEnabled) log.debug("processing command '{}'", cmd);
+        if (cmd.startsWith("list")) ret = executeList(cmd);
+        else if (cmd.startsWith("stop") || cmd.startsWith("clear")) {
+          try {
+            ret = executeStop();
+          } catch (final Exception e) {
+            final String msg = "error stopping the application";
+            log.error(msg, e);
+            ret = msg + ": " + e;
+          }
+          stopped.set(cmd.startsWith("stop"));
+          response.append(ret).append('\n');
+          break;
+        }
+        else if (cmd.startsWith("top")) ret = executeTop(cmd);
+        else if (cmd.startsWith("tls")) ret = executeTls(cmd);
+        else if (cmd.startsWith("compression")) ret = executeCompression(cmd);
+        else if (cmd.startsWith("ready")) ret = isReady() ? readyMessage : "starting";
+        else if (cmd.startsWith("sources")) ret = executeSources();
+        else if (cmd.startsWith("apply")) ret = executeApply(cmd);
+        else if (cmd.startsWith("+")) ret = executeSet(cmd);
+        else if (cmd.startsWith("-")) ret = executeRemove(cmd);
+        else ret = "Command not understood, ignoring it: " + cmd;
+        response.append(ret).append('\n');
+      } catch (final Exception e) {
+        response.append(e.getMessage()).append('\n');
       }
-    } catch(final Exception e) {
-      log.error(e.getMessage(), e);
     }
+    return response.toString();
   }
 
   /**
    * Execute the admin command "list".
-   * @return a string that lists all entries, one by line.
+   * <p>The entries are read directly from the sorted registry, without copying it or blocking any change. A local port
+   * range is looked up as a sub-map, so its cost does not depend on the number of entries outside of the range.
+   * @param command a string with the optional space-separated filters.
+   * @return a string that lists the matching entries, one by line.
    * @throws Exception if any error occurs.
    */
-  private String executeList() throws Exception {
-    if (debugEnabled) log.debug("processing list command");
-    final Map<Integer, Forwarder> map;
-    synchronized(forwarderMap) {
-      map = new TreeMap<>(forwarderMap);
+  private String executeList(final String command) throws Exception {
+    if (debugEnabled) log.debug("processing list command '{}'", command);
+    NavigableMap<Integer, Forwarder> map = forwarderMap;
+    Pattern target = null;
+    int offset = 0, limit = Integer.MAX_VALUE;
+    boolean filtered = false;
+    for (final String filter: APPLY_SPLIT_PATTERN.split(command.substring("list".length()).trim())) {
+      if (filter.isEmpty()) continue;
+      filtered = true;
+      try {
+        if (filter.startsWith("target=")) target = globToPattern(filter.substring("target=".length()));
+        else if (filter.startsWith("offset=")) offset = parsePositive(filter.substring("offset=".length()), true);
+        else if (filter.startsWith("limit=")) limit = parsePositive(filter.substring("limit=".length()), false);
+        else {
+          final int idx = filter.indexOf('-', 1);
+          final int from = Integer.parseInt((idx < 0) ? filter : filter.substring(0, idx));
+          final int to = (idx < 0) ? from : Integer.parseInt(filter.substring(idx + 1));
+          if (from > to) return "'" + filter + "' is not a valid port range";
+          map = map.subMap(from, true, to, true);
+        }
+      } catch (@SuppressWarnings("unused") final NumberFormatException e) {
+        return "'" + filter + "' is not a valid list filter";
+      }
+    }
+    final StringBuilder sb = new StringBuilder();
+    int matched = 0;
+    for (final Forwarder forwarder: map.values()) {
+      if ((target != null) && !target.matcher(forwarder.getDescriptor().getTarget().toString()).matches()) continue;
+      if (matched++ < offset) continue;
+      if (matched - offset > limit) {
+        sb.append(String.format("\n- ... more entries, next page with offset=%d", offset + limit));
+        break;
+      }
+      sb.append("\n- ").append(forwarder);
     }
-    final StringBuilder sb = new StringBuilder(map.isEmpty() ? "No entry defined" : "List of entries:");
-    map.forEach((key, value) -> sb.append("\n- ").append(value));
+    sb.insert(0, (sb.length() > 0) ? "List of entries:" : (filtered ? "No matching entry" : "No entry defined"));
     if (debugEnabled) log.debug("sending response:\n{}", sb);
     return sb.toString();
   }
 
+  /**
+   * Parse a non-negative or strictly positive integer value of a list filter.
+   * @param value the string to parse.
+   * @param zeroAllowed whether 0 is a valid value.
+   * @return the parsed value.
+   * @throws NumberFormatException if the value is not a valid integer, or is not in the expected range.
+   */
+  private static int parsePositive(final String value, final boolean zeroAllowed) {
+    final int n = Integer.parseInt(value);
+    if ((n < 0) || ((n == 0) && !zeroAllowed)) throw new NumberFormatException(value);
+    return n;
+  }
+
+  /**
+   * Convert a glob, where '*' matches any sequence of characters and '?' matches any single character,
+   * into a case-insensitive regular expression.
+   * @param glob the glob to convert.
+   * @return a compiled regex {@link Pattern}.
+   */
+  private static Pattern globToPattern(final String glob) {
+    final StringBuilder sb = new StringBuilder();
+    int start = 0;
+    for (int i=0; i<glob.length(); i++) {
+      final char c = glob.charAt(i);
+      if ((c != '*') && (c != '?')) continue;
+      if (i > start) sb.append(Pattern.quote(glob.substring(start, i)));
+      sb.append((c == '*') ? ".*" : ".");
+      start = i + 1;
+    }
+    if (start < glob.length()) sb.append(Pattern.quote(glob.substring(start)));
+    return Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE);
+  }
+
+  /**
+   * Execute the admin command "top".
+   * @param command a string specifying the local port of the forwarder whose statistics to show.
+   * @return a string describing the heaviest clients of the forwarder.
+   * @throws Exception if any error occurs.
+   */
+  private String executeTop(final String command) throws Exception {
+    if (debugEnabled) log.debug("processing top command '{}'", command);
+    final String portStr = command.substring("top".length()).trim();
+    int port = -1;
+    try {
+      port = Integer.valueOf(portStr);
+    } catch (@SuppressWarnings("unused") final NumberFormatException e) {
+      return "'" + portStr + "' is not a valid port number";
+    }
+    final Forwarder forwarder = forwarderMap.get(port);
+    if (forwarder == null) return "port '" + port + "' is not defined";
+    final ClientStats stats = forwarder.getStats();
+    if (stats == null) return "client statistics are disabled";
+    return "client statistics for " + forwarder + ":\n" + stats;
+  }
+
+  /**
+   * Execute the admin command "tls".
+   * @param command a string specifying the local port of the forwarder whose statistics to show.
+   * @return a string describing the TLS handshakes of the forwarder.
+   * @throws Exception if any error occurs.
+   */
+  private String executeTls(final String command) throws Exception {
+    if (debugEnabled) log.debug("processing tls command '{}'", command);
+    final String portStr = command.substring("tls".length()).trim();
+    int port = -1;
+    try {
+      port = Integer.valueOf(portStr);
+    } catch (@SuppressWarnings("unused") final NumberFormatException e) {
+      return "'" + portStr + "' is not a valid port number";
+    }
+    final Forwarder forwarder = forwarderMap.get(port);
+    if (forwarder == null) return "port '" + port + "' is not defined";
+    final TlsContext tls = forwarder.getDescriptor().getTlsContext();
+    if (tls == null) return "TLS is not used by " + forwarder;
+    return "TLS handshakes for " + forwarder + ":\n- clients: " + forwarder.getClientHandshakes() + "\n- upstream: " + forwarder.getUpstreamHandshakes();
+  }
+
+  /**
+   * Execute the admin command "compression".
+   * @param command a string specifying the local port of the forwarder whose statistics to show.
+   * @return a string describing the compression of the tunneled connections of the forwarder.
+   * @throws Exception if any error occurs.
+   */
+  private String executeCompression(final String command) throws Exception {
+    if (debugEnabled) log.debug("processing compression command '{}'", command);
+    final String portStr = command.substring("compression".length()).trim();
+    int port = -1;
+    try {
+      port = Integer.valueOf(portStr);
+    } catch (@SuppressWarnings("unused") final NumberFormatException e) {
+      return "'" + portStr + "' is not a valid port number";
+    }
+    final Forwarder forwarder = forwarderMap.get(port);
+    if (forwarder == null) return "port '" + port + "' is not defined";
+    final EntryDescriptor desc = forwarder.getDescriptor();
+    // the exit side compresses the connections of the entry sides which ask for it
+    if (!desc.isTunnelCompressed() && (desc.getTarget().getProxyMode() != ProxyMode.TUNNEL)) return "compression is not used by " + forwarder;
+    return "compression for " + forwarder + ":\n" + forwarder.getCompressionStats();
+  }
+
+  /**
+   * Execute the admin command "sources".
+   * @return a string with the connection counters of each source address.
+   */
+  private static String executeSources() {
+    final String statistics = SourceAddressPool.getStatistics();
+    return statistics.isEmpty() ? "No source address used" : "source addresses:\n" + statistics;
+  }
+
+  /**
+   * Execute the admin command "apply", which replaces all the forwarding definitions with the specified ones.
+   * <p>All the definitions are validated before any change is made. A definition is rejected if it changes the local
+   * ports or listen addresses of an existing forwarder to overlapping ones, since the current ones would have to be
+   * released before the new ones are bound, which could not be rolled back. The new local ports are then bound in parallel,
+   * without holding {@link #updateLock}, and if any of them cannot be bound, all are released and no change is made.
+   * Otherwise, the lock is taken only to swap in the new forwarders: they are started, those whose target or options
+   * changed are reconfigured in place or replaced, and those that are not in the specified definitions are removed.
+   * If another change was made in the meantime, the operation starts over. Unchanged forwarders and their established
+   * connections are left untouched.
+   * @param command a string with the space-separated forwarding definitions.
+   * @return a message describing the result of the operation for each local port.
+   * @throws Exception if any error occurs.
+   */
+  private String executeApply(final String command) throws Exception {
+    if (debugEnabled) log.debug("processing apply command");
+    final Map<Integer, EntryDescriptor> desired = new TreeMap<>();
+    final List<String> errors = new ArrayList<>();
+    for (final String spec: APPLY_SPLIT_PATTERN.split(command.substring("apply".length()).trim())) {
+      if (spec.isEmpty()) continue;
+      try {
+        final EntryDescriptor desc = EntryDescriptor.from(spec);
+        if (desired.putIfAbsent(desc.getPort(), desc) != null) errors.add(String.format("port %d: defined more than once", desc.getPort()));
+      } catch (final Exception e) {
+        errors.add(String.format("'%s': invalid definition (%s)", spec, e.getMessage()));
+      }
+    }
+    if (!errors.isEmpty()) return "apply rejected, no change was made:\n" + String.join("\n", errors);
+    while (true) {
+      // the ports are bound without holding the lock, then the forwarders are swapped in if no other change was made meanwhile
+      final Map<Integer, Forwarder> snapshot = new TreeMap<>(forwarderMap);
+      final Map<Integer, Forwarder> added = new TreeMap<>(), replacements = new TreeMap<>();
+      for (final EntryDescriptor desc: desired.values()) {
+        final Forwarder existing = snapshot.get(desc.getPort());
+        if (existing == null) continue;
+        final EntryDescriptor current = existing.getDescriptor();
+        // the new bindings could only be bound once the current ones are released, which could not be rolled back
+        if (!current.hasSameBindings(desc) && current.overlapsBindings(desc))
+          errors.add(String.format("port %d: the new local ports or listen addresses overlap the current ones, use '+' to change them", desc.getPort()));
+      }
+      if (!errors.isEmpty()) return "apply rejected, no change was made:\n" + String.join("\n", errors);
+      for (final EntryDescriptor desc: desired.values()) {
+        final Forwarder existing = snapshot.get(desc.getPort());
+        if (existing == null) added.put(desc.getPort(), new Forwarder(desc));
+        else if (!existing.getDescriptor().hasSameBindings(desc)) replacements.put(desc.getPort(), new Forwarder(desc));
+      }
+      final List<Forwarder> bound = new ArrayList<>(added.values());
+      bound.addAll(replacements.values());
+      final Map<Integer, Exception> failures = bindAll(bound);
+      if (!failures.isEmpty()) {
+        for (final Forwarder forwarder: bound) Utils.close(forwarder, log);
+        final StringBuilder sb = new StringBuilder("apply rolled back, no change was made:");
+        for (final int port: desired.keySet()) {
+          final Exception e = failures.get(port);
+          if (e != null) sb.append(String.format("\nport %d: could not be bound (%s)", port, e));
+          else if (added.containsKey(port) || replacements.containsKey(port)) sb.append(String.format("\nport %d: rolled back", port));
+        }
+        return sb.toString();
+      }
+      synchronized(updateLock) {
+        if (snapshot.equals(forwarderMap)) return commitApply(desired, added, replacements);
+      }
+      if (debugEnabled) log.debug("forwarders were changed concurrently, retrying apply");
+      for (final Forwarder forwarder: bound) Utils.close(forwarder, log);
+    }
+  }
+
+  /**
+   * Commit the changes of an "apply" command, once the new local ports are bound. Must be called while holding {@link #updateLock}.
+   * @param desired the new forwarding definitions, mapped to their local port.
+   * @param added the bound forwarders for the local ports that are not yet forwarded.
+   * @param replacements the bound forwarders which replace existing ones whose bindings change.
+   * @return a message describing the result of the operation for each local port.
+   * @throws Exception if any error occurs.
+   */
+  private String commitApply(final Map<Integer, EntryDescriptor> desired, final Map<Integer, Forwarder> added, final Map<Integer, Forwarder> replacements) throws Exception {
+    final StringBuilder sb = new StringBuilder();
+    int changed = 0, removed = 0, unchanged = 0;
+    for (final int port: forwarderMap.keySet()) {
+      if (!desired.containsKey(port)) {
+        executeRemove(port);
+        sb.append(String.format("\nport %d: removed", port));
+        removed++;
+      }
+    }
+    for (final EntryDescriptor desc: desired.values()) {
+      final int port = desc.getPort();
+      final Forwarder forwarder = added.get(port);
+      if (forwarder != null) {
+        startForwarder(forwarder);
+        sb.append(String.format("\nport %d: added, forwarding to %s", port, desc.getTarget()));
+      } else {
+        final Forwarder existing = forwarderMap.get(port);
+        if (existing.getDescriptor().equals(desc)) {
+          sb.append(String.format("\nport %d: unchanged", port));
+          unchanged++;
+        } else {
+          // the replacements are already bound, so this cannot fail
+          replace(existing, desc, replacements.get(port));
+          sb.append(String.format("\nport %d: changed, forwarding to %s", port, desc.getTarget()));
+          changed++;
+        }
+      }
+    }
+    return String.format("apply committed: %d added, %d changed, %d removed, %d unchanged", added.size(), changed, removed, unchanged) + sb;
+  }
+
+  /**
+   * Create and start the forwarders of the specified definitions at startup. All the local ports are bound in parallel
+   * before any forwarder accepts connections, then the ready signal is given: it is printed and logged, written to the
+   * file defined with {@link #READY_FILE_PROPERTY} if any, and reported by the "ready" command.
+   * <p>When several definitions have the same local port, only the first one is kept. The definitions whose port could
+   * not be bound are reported and dropped, without delaying the other ones.
+   * @param entries the forwarding definitions.
+   * @return the number of started forwarders.
+   * @throws InterruptedException if the calling thread is interrupted while waiting for the binds.
+   */
+  public int startAll(final Collection<EntryDescriptor> entries) throws InterruptedException {
+    final long start = System.nanoTime();
+    final Map<Integer, Forwarder> created = new TreeMap<>();
+    for (final EntryDescriptor desc: entries) {
+      final int port = desc.getPort();
+      final Forwarder other = created.containsKey(port) ? created.get(port) : forwarderMap.get(port);
+      if (other != null) System.out.printf("Port %d is already mapped to %s, cannot map it again to %s%n", port, other.getOutDest(), desc.getTarget());
+      else created.put(port, new Forwarder(desc));
+    }
+    final Map<Integer, Exception> failures = bindAll(created.values());
+    synchronized(updateLock) {
+      for (final Forwarder forwarder: created.values()) {
+        final int port = forwarder.getInPort();
+        final Exception e = failures.get(port);
+        if (e == null) {
+          System.out.printf("Forwarding local %s to %s%n", describePorts(forwarder.getDescriptor()), forwarder.getOutDest());
+          startForwarder(forwarder);
+        } else {
+          System.out.printf("Could not bind local port %d: %s%n", port, e);
+          log.error("could not bind local port {}", port, e);
+          Utils.close(forwarder, log);
+        }
+      }
+    }
+    final int started = created.size() - failures.size();
+    final long elapsed = (System.nanoTime() - start) / 1_000_000L;
+    signalReady(String.format("ready: %d local port(s) bound in %d ms", started, elapsed) + (failures.isEmpty() ? "" : String.format(", %d failed", failures.size())));
+    return started;
+  }
+
+  /**
+   * Give the ready signal with the specified message.
+   * @param message describes the outcome of the startup.
+   */
+  private void signalReady(final String message) {
+    readyMessage = message;
+    readyLatch.countDown();
+    System.out.println(message);
+    log.info(message);
+    final String path = Config.getConfiguration().getString(READY_FILE_PROPERTY);
+    if ((path == null) || path.trim().isEmpty()) return;
+    try {
+      // write a temporary file then rename it, so a process polling the ready file never sees it partially written
+      final Path file = Paths.get(path.trim()).toAbsolutePath();
+      final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      Files.write(tmp, (message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    } catch (final Exception e) {
+      log.error("could not write the ready file {}", path, e);
+    }
+  }
+
+  /**
+   * @return whether the forwarders defined at startup are all bound, or could not be bound.
+   */
+  public boolean isReady() {
+    return readyLatch.getCount() == 0L;
+  }
+
+  /**
+   * Wait until the forwarders defined at startup are all bound, or could not be bound.
+   * @param timeout the maximum time to wait.
+   * @param unit the unit of the timeout.
+   * @return {@code true} if the startup is complete, {@code false} if the timeout expired before.
+   * @throws InterruptedException if the calling thread is interrupted while waiting.
+   */
+  public boolean awaitReady(final long timeout, final TimeUnit unit) throws InterruptedException {
+    return readyLatch.await(timeout, unit);
+  }
+
+  /**
+   * Bind the specified forwarders to their local port in parallel, using at most {@link #BIND_THREADS} threads.
+   * @param forwarders the forwarders to bind.
+   * @return the exceptions raised by the forwarders that could not be bound, mapped to their local port.
+   * @throws InterruptedException if the calling thread is interrupted while waiting.
+   */
+  public Map<Integer, Exception> bindAll(final Collection<Forwarder> forwarders) throws InterruptedException {
+    final Map<Integer, Exception> failures = new TreeMap<>();
+    if (forwarders.isEmpty()) return failures;
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.min(forwarders.size(), BIND_THREADS), newThreadFactory("Bind-"));
+    try {
+      final Map<Integer, Future<?>> futures = new TreeMap<>();
+      for (final Forwarder forwarder: forwarders) {
+        futures.put(forwarder.getInPort(), executor.submit(() -> {
+          forwarder.bind();
+          return null;
+        }));
+      }
+      for (final Map.Entry<Integer, Future<?>> entry: futures.entrySet()) {
+        try {
+          entry.getValue().get();
+        } catch (final ExecutionException e) {
+          final Throwable cause = e.getCause();
+          failures.put(entry.getKey(), (cause instanceof Exception) ? (Exception) cause : e);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return failures;
+  }
+
   /**
    * Add a new entry or change an existing one.
+   * <p>An existing entry is reconfigured in place, without releasing its local port. A new local port is bound by the
+   * calling thread before the entry is registered, so no lock is held while waiting for the bind to complete. The entry
+   * is then registered while holding {@link #updateLock}, provided it was not changed in the meantime; otherwise the
+   * operation starts over with the current entry. An entry whose new bindings overlap its current ones is rebound with
+   * {@link #rebind(Forwarder, EntryDescriptor)}.
    * @param command a string describing the entry to add or change.
    * @return a meesage desribing the result of the operation.
    * @throws Exception if any error occurs.
@@ -229,17 +903,106 @@ public class Admin implements Runnable {
     if (debugEnabled) log.debug("processing add/set command '{}'", command);
     final EntryDescriptor desc = EntryDescriptor.from(command.substring(1));
     final int port = desc.getPort();
-    synchronized(forwarderMap) {
-      if (forwarderMap.containsKey(port)) {
-        forwarderMap.remove(port);
-        executeRemove(desc.getPort());
+    try {
+      while (true) {
+        final Forwarder existing = forwarderMap.get(port);
+        if ((existing != null) && !existing.getDescriptor().hasSameBindings(desc) && existing.getDescriptor().overlapsBindings(desc)) {
+          if (rebind(existing, desc)) break;
+          continue;
+        }
+        final Forwarder prepared = prepare(existing, desc);
+        synchronized(updateLock) {
+          if (forwarderMap.get(port) == existing) {
+            replace(existing, desc, prepared);
+            break;
+          }
+        }
+        if (debugEnabled) log.debug("port {} was changed concurrently, retrying", port);
+        if (prepared != null) Utils.close(prepared, log);
       }
-      final Forwarder forwarder = createForwarder(desc, null);
-      if (forwarder != null) {
-        while (!forwarder.isBound() && !forwarder.isClosed()) Thread.sleep(50L);
+    } catch (final Exception e) {
+      return String.format("port %d could not be bound (%s)", port, e);
+    }
+    return String.format("forwarding port %d to %s", port, desc.getTarget());
+  }
+
+  /**
+   * Create and bind the forwarder which replaces an existing one, or is added for a new local port. This may wait for
+   * the bind to be retried, so it should not be called while holding {@link #updateLock}.
+   * @param existing the forwarder to replace, or {@code null} if the local port is not yet forwarded.
+   * @param desc the new forwarding definition, whose bindings are either the same as those of the existing forwarder,
+   * or do not overlap them.
+   * @return a new forwarder bound to its local ports, or {@code null} if the existing forwarder is reconfigured in place.
+   * @throws Exception if the new forwarder could not be bound.
+   */
+  private Forwarder prepare(final Forwarder existing, final EntryDescriptor desc) throws Exception {
+    if ((existing != null) && existing.getDescriptor().hasSameBindings(desc)) return null;
+    final Forwarder forwarder = new Forwarder(desc);
+    try {
+      forwarder.bind();
+    } catch (final Exception e) {
+      Utils.close(forwarder, log);
+      throw e;
+    }
+    return forwarder;
+  }
+
+  /**
+   * Swap in the forwarder created by {@link #prepare(Forwarder, EntryDescriptor)} and close the one it replaces, or
+   * reconfigure the existing forwarder in place. Must be called while holding {@link #updateLock}.
+   * @param existing the forwarder to replace, or {@code null} if the local port is not yet forwarded.
+   * @param desc the new forwarding definition.
+   * @param prepared the bound replacement, or {@code null} if the existing forwarder is reconfigured in place.
+   */
+  private void replace(final Forwarder existing, final EntryDescriptor desc, final Forwarder prepared) {
+    if (prepared == null) existing.reconfigure(desc);
+    else {
+      startForwarder(prepared);
+      if (existing != null) Utils.close(existing, log);
+    }
+  }
+
+  /**
+   * Replace a forwarder whose new bindings overlap its current ones, which it must release before the new ones can be
+   * bound. The existing forwarder is unregistered and closed while holding {@link #updateLock}, then the new one is
+   * bound without holding the lock. If that fails, a forwarder with the previous definition is bound in its place, so the
+   * local port remains forwarded. The resulting forwarder is registered unless another one was registered for the
+   * local port in the meantime, in which case it is discarded.
+   * @param existing the forwarder to replace.
+   * @param desc the new forwarding definition.
+   * @return {@code true} if the forwarder was replaced, {@code false} if it was changed concurrently and is left as is.
+   * @throws Exception if the new forwarder could not be bound.
+   */
+  private boolean rebind(final Forwarder existing, final EntryDescriptor desc) throws Exception {
+    final int port = existing.getInPort();
+    synchronized(updateLock) {
+      if (forwarderMap.get(port) != existing) return false;
+      forwarderMap.remove(port);
+      Utils.close(existing, log);
+    }
+    if (debugEnabled) log.debug("rebinding {} as {}", existing, desc);
+    Exception error = null;
+    Forwarder forwarder = new Forwarder(desc);
+    try {
+      forwarder.bind();
+    } catch (final Exception e) {
+      Utils.close(forwarder, log);
+      error = e;
+      forwarder = new Forwarder(existing.getDescriptor());
+      try {
+        forwarder.bind();
+      } catch (final Exception e2) {
+        Utils.close(forwarder, log);
+        e.addSuppressed(e2);
+        throw e;
       }
-      return String.format("forwarding port %d to %s", desc.getPort(), desc.getTarget());
     }
+    synchronized(updateLock) {
+      if (forwarderMap.containsKey(port)) Utils.close(forwarder, log);
+      else startForwarder(forwarder);
+    }
+    if (error != null) throw error;
+    return true;
   }
 
   /**
@@ -267,11 +1030,9 @@ public class Admin implements Runnable {
    * @throws Exception if any error occurs.
    */
   private String executeRemove(final int port) throws Exception {
-    synchronized(forwarderMap) {
-      if (!forwarderMap.containsKey(port)) return "port '" + port + "' was not defined and couldn't be removed";
-      final Forwarder forwarder = forwarderMap.remove(port);
-      forwarder.close();
-    }
+    final Forwarder forwarder = forwarderMap.remove(port);
+    if (forwarder == null) return "port '" + port + "' was not defined and couldn't be removed";
+    forwarder.close();
     return "port definition for '" + port + "' was removed";
   }
 
@@ -282,17 +1043,120 @@ public class Admin implements Runnable {
    */
   private String executeStop() throws Exception {
     if (debugEnabled) log.debug("stopping the application");
-    synchronized(forwarderMap) {
-      for (final Map.Entry<Integer, Forwarder> entry: forwarderMap.entrySet()) {
-        final Forwarder forwarder = entry.getValue();
+    for (final Forwarder forwarder: forwarderMap.values()) {
+      try {
+        forwarder.close();
+      } catch (final Exception e) {
+        log.error("error stopiing Forwarder[{}]", forwarder, e);
+      }
+    }
+    return "the application is now ready to terminate";
+  }
+
+  /**
+   * Apply the differences between two sets of forwarding definitions, typically the previous and new entries of the
+   * configuration file. Only the forwarders whose definitions changed are started, stopped or reconfigured,
+   * while the others, along with their established connections, are left untouched.
+   * <p>A port currently forwarded according to another definition than the previous one, for instance as the result
+   * of an admin command, is considered as not managed by the configuration and is not modified.
+   * <p>As for the "apply" command, the new local ports are bound in parallel without holding {@link #updateLock}, which
+   * is then taken only to swap in the new forwarders, provided no other change was made in the meantime. A forwarder
+   * whose new bindings overlap its current ones is rebound afterwards, also without holding the lock.
+   * @param previous the previous forwarding definitions, mapped to their local port.
+   * @param desired the new forwarding definitions, mapped to their local port.
+   * @return a list of messages describing each change.
+   * @throws InterruptedException if the calling thread is interrupted while waiting for the binds.
+   */
+  public List<String> applyChanges(final Map<Integer, EntryDescriptor> previous, final Map<Integer, EntryDescriptor> desired) throws InterruptedException {
+    final List<String> messages = new ArrayList<>();
+    final Map<Integer, Forwarder> rebinds = new TreeMap<>();
+    while (true) {
+      final Map<Integer, Forwarder> snapshot = new TreeMap<>(forwarderMap);
+      final Map<Integer, Forwarder> prepared = new TreeMap<>();
+      for (final EntryDescriptor desc: desired.values()) {
+        final Forwarder existing = snapshot.get(desc.getPort());
+        if (existing == null) prepared.put(desc.getPort(), new Forwarder(desc));
+        else {
+          final EntryDescriptor current = existing.getDescriptor();
+          if (current.equals(previous.get(desc.getPort())) && !current.hasSameBindings(desc) && !current.overlapsBindings(desc))
+            prepared.put(desc.getPort(), new Forwarder(desc));
+        }
+      }
+      final Map<Integer, Exception> failures = bindAll(prepared.values());
+      synchronized(updateLock) {
+        if (snapshot.equals(forwarderMap)) {
+          commitChanges(previous, desired, prepared, failures, messages, rebinds);
+          break;
+        }
+      }
+      if (debugEnabled) log.debug("forwarders were changed concurrently, retrying the configuration changes");
+      for (final Forwarder forwarder: prepared.values()) Utils.close(forwarder, log);
+    }
+    for (final Map.Entry<Integer, Forwarder> entry: rebinds.entrySet()) {
+      final int port = entry.getKey();
+      final EntryDescriptor desc = desired.get(port);
+      try {
+        if (rebind(entry.getValue(), desc)) messages.add(String.format("port %d is now forwarded to %s", port, desc.getTarget()));
+        else messages.add(String.format("port %d was changed concurrently, cannot map it to %s", port, desc.getTarget()));
+      } catch (final Exception e) {
+        log.error("error rebinding port {}", port, e);
+        messages.add(String.format("port %d could not be bound (%s)", port, e));
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Commit the changes of the configuration, once the new local ports are bound. Must be called while holding {@link #updateLock}.
+   * @param previous the previous forwarding definitions, mapped to their local port.
+   * @param desired the new forwarding definitions, mapped to their local port.
+   * @param prepared the forwarders created for the new local ports and for the replaced forwarders, mapped to their local port.
+   * @param failures the exceptions raised by the prepared forwarders that could not be bound, mapped to their local port.
+   * @param messages the list to which the messages describing each change are added.
+   * @param rebinds the map to which the forwarders whose new bindings overlap their current ones are added, to be rebound
+   * once the lock is released.
+   */
+  private void commitChanges(final Map<Integer, EntryDescriptor> previous, final Map<Integer, EntryDescriptor> desired, final Map<Integer, Forwarder> prepared,
+    final Map<Integer, Exception> failures, final List<String> messages, final Map<Integer, Forwarder> rebinds) {
+    for (final Map.Entry<Integer, EntryDescriptor> entry: previous.entrySet()) {
+      final int port = entry.getKey();
+      if (desired.containsKey(port)) continue;
+      final Forwarder forwarder = forwarderMap.get(port);
+      if ((forwarder != null) && forwarder.getDescriptor().equals(entry.getValue())) {
         try {
-          forwarder.close();
+          messages.add(executeRemove(port));
         } catch (final Exception e) {
-          log.error("error stopiing Forwarder[{}]", forwarder, e);
+          log.error("error removing port {}", port, e);
+          messages.add(String.format("error removing port %d: %s", port, e));
         }
       }
     }
-    return "the application is now ready to terminate";
+    for (final Map.Entry<Integer, EntryDescriptor> entry: desired.entrySet()) {
+      final int port = entry.getKey();
+      final EntryDescriptor desc = entry.getValue();
+      final Forwarder forwarder = forwarderMap.get(port);
+      final Forwarder replacement = prepared.get(port);
+      final Exception failure = failures.get(port);
+      if (failure != null) {
+        log.error("error binding port {}", port, failure);
+        messages.add(String.format("port %d could not be bound (%s)", port, failure));
+        Utils.close(replacement, log);
+      } else if (forwarder == null) {
+        System.out.printf("Forwarding local %s to %s%n", describePorts(desc), desc.getTarget());
+        startForwarder(replacement);
+        messages.add(String.format("forwarding port %d to %s", port, desc.getTarget()));
+      } else if (forwarder.getDescriptor().equals(desc)) {
+        continue;
+      } else if (forwarder.getDescriptor().equals(previous.get(port))) {
+        if ((replacement == null) && !forwarder.getDescriptor().hasSameBindings(desc)) rebinds.put(port, forwarder);
+        else {
+          replace(forwarder, desc, replacement);
+          messages.add(String.format("port %d is now forwarded to %s", port, desc.getTarget()));
+        }
+      } else {
+        messages.add(String.format("port %d is already mapped to %s, cannot map it to %s", port, forwarder.getOutDest(), desc.getTarget()));
+      }
+    }
   }
 
   /**
@@ -305,10 +1169,9 @@ public class Admin implements Runnable {
   public Forwarder createForwarder(final EntryDescriptor desc, final Map<Integer, String> allPorts) {
     if ((allPorts == null) || !allPorts.containsKey(desc.getPort())) {
       if (allPorts != null) allPorts.put(desc.getPort(), desc.getTarget().toString());
-      Forwarder server = new Forwarder(desc.getPort(), desc.getTarget());
-      System.out.printf("Forwarding local port %d to %s%n", desc.getPort(), desc.getTarget());
-      setEntry(desc.getPort(), server);
-      new Thread(server, "Server-" + desc.getPort()).start();
+      Forwarder server = new Forwarder(desc);
+      System.out.printf("Forwarding local %s to %s%n", describePorts(desc), desc.getTarget());
+      startForwarder(server);
       return server;
     } else {
       System.out.printf("Port %d is already mapped to %s, cannot map it again to %s\n",
@@ -317,7 +1180,19 @@ public class Admin implements Runnable {
     }
   }
 
-  public Map<Integer, Forwarder> getForwarderMap() {
+  /**
+   * Describe the local ports of a forwarding definition for the console messages.
+   * @param desc the forwarding definition.
+   * @return a string in the form "port &lt;port&gt;" or "ports &lt;first&gt;-&lt;last&gt;".
+   */
+  private static String describePorts(final EntryDescriptor desc) {
+    return desc.isRange() ? String.format("ports %d-%d", desc.getPort(), desc.getLastPort()) : "port " + desc.getPort();
+  }
+
+  /**
+   * @return the existing forwarders, sorted by local port. Reading or iterating this map never blocks.
+   */
+  public ConcurrentNavigableMap<Integer, Forwarder> getForwarderMap() {
     return forwarderMap;
   }
 }
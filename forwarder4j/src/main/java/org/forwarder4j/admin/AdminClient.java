@@ -0,0 +1,150 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.admin;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forwarder4j.SocketWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client of the administration service which keeps its connection open and sends pipelined requests through it.
+ * <p>Requests can be submitted from any number of threads without waiting for the previous responses. Each request
+ * is tagged with an identifier which the server sends back with its response, so the responses are matched with
+ * their requests even when they arrive in a different order. The commands within a single request, separated with
+ * comma, semicolon or pipe, are executed in order.
+ * @author Laurent Cohen
+ */
+public class AdminClient implements AutoCloseable {
+  /**
+   * Logger for this class.
+   */
+  private static final Logger log = LoggerFactory.getLogger(AdminClient.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static final boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * The connection to the admin server.
+   */
+  private final SocketWrapper connection;
+  /**
+   * The requests awaiting a response, mapped to their identifier.
+   */
+  private final Map<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+  /**
+   * Generates the request identifiers.
+   */
+  private final AtomicInteger nextId = new AtomicInteger(0);
+  /**
+   * Whether the connection is closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Connect to the admin server running on the specified host and port.
+   * @param host the host on which the admin server is running.
+   * @param port the admin port.
+   * @throws IOException if the connection fails.
+   */
+  public AdminClient(final String host, final int port) throws IOException {
+    connection = new SocketWrapper(host, port);
+    connection.writeInt(Admin.PIPELINE_HEADER);
+    connection.flush();
+    final Thread reader = new Thread(this::readResponses, "AdminClient-" + host + ":" + port);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Send the specified command(s) without waiting for the response.
+   * @param command the command(s) to send.
+   * @return a future which completes with the response, or exceptionally if the connection is closed before the response is received.
+   * @throws IOException if the request could not be sent.
+   */
+  public CompletableFuture<String> submit(final String command) throws IOException {
+    if (closed) throw new IOException("the admin connection is closed");
+    final int id = nextId.incrementAndGet();
+    final CompletableFuture<String> future = new CompletableFuture<>();
+    pending.put(id, future);
+    try {
+      synchronized(connection) {
+        connection.writeInt(id);
+        connection.writeLongString(command);
+      }
+    } catch (final IOException e) {
+      pending.remove(id);
+      throw e;
+    }
+    // the reader may have failed the pending requests before this one was registered
+    if (closed && (pending.remove(id) != null)) future.completeExceptionally(new IOException("the admin connection is closed"));
+    return future;
+  }
+
+  /**
+   * Send the specified command(s) and wait for the response.
+   * @param command the command(s) to send.
+   * @return the response from the admin server.
+   * @throws Exception if any error occurs.
+   */
+  public String execute(final String command) throws Exception {
+    try {
+      return submit(command).get();
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw (cause instanceof Exception) ? (Exception) cause : e;
+    }
+  }
+
+  /**
+   * Read the responses and complete the corresponding requests, until the connection is closed.
+   */
+  private void readResponses() {
+    Exception error = null;
+    try {
+      while (true) {
+        final int id = connection.readInt();
+        final String response = connection.readLongString(Admin.MAX_RESPONSE_LENGTH);
+        final CompletableFuture<String> future = pending.remove(id);
+        if (future != null) future.complete(response);
+        else if (debugEnabled) log.debug("received a response for unknown request {}", id);
+      }
+    } catch (final Exception e) {
+      if (!closed) error = e;
+    }
+    closed = true;
+    final IOException e = new IOException("the admin connection is closed", error);
+    for (final Integer id: pending.keySet()) {
+      final CompletableFuture<String> future = pending.remove(id);
+      if (future != null) future.completeExceptionally(e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    connection.close();
+  }
+}
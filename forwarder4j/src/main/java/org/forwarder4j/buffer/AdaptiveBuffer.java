@@ -0,0 +1,119 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.buffer;
+
+/**
+ * A read buffer whose size adapts to the amount of data actually read, within a minimum and a maximum size.
+ * <p>The buffer starts at its minimum size. When a read fills it, it grows by two size classes, that is four times
+ * larger, so a bulk transfer quickly reaches the maximum size. When two consecutive reads would have fit in the next
+ * smaller size class, it shrinks by one size class, so an idle or interactive connection goes back to a small buffer.
+ * The arrays are taken from and returned to the {@link BufferPool}.
+ * <p>Instances of this class are not thread-safe and are meant to be used by the single thread which reads into them.
+ * @author Laurent Cohen
+ */
+public class AdaptiveBuffer {
+  /**
+   * Number of size classes to grow by when a read fills the buffer.
+   */
+  private static final int GROW_STEP = 2;
+  /**
+   * The smallest size class of the buffer.
+   */
+  private final int minClass;
+  /**
+   * The largest size class of the buffer.
+   */
+  private final int maxClass;
+  /**
+   * The current size class.
+   */
+  private int sizeClass;
+  /**
+   * The current array.
+   */
+  private byte[] buffer;
+  /**
+   * Whether the previous read would have fit in the next smaller size class.
+   */
+  private boolean shrinkNext;
+
+  /**
+   * Initialize with the specified minimum and maximum sizes, which are rounded up to the nearest size classes.
+   * @param minSize the minimum size in bytes.
+   * @param maxSize the maximum size in bytes.
+   */
+  public AdaptiveBuffer(final int minSize, final int maxSize) {
+    this.minClass = BufferPool.sizeClass(minSize);
+    this.maxClass = Math.max(minClass, BufferPool.sizeClass(maxSize));
+    this.sizeClass = minClass;
+  }
+
+  /**
+   * Get the array to read into. The same array is returned until the next call to {@link #record(int)} changes the size.
+   * @return the current array.
+   */
+  public byte[] get() {
+    if (buffer == null) buffer = BufferPool.acquire(sizeClass);
+    return buffer;
+  }
+
+  /**
+   * Record the number of bytes read into the current array and adapt the size for the next read.
+   * The current array must not be used after this call, since it may be returned to the pool.
+   * @param count the number of bytes read.
+   */
+  public void record(final int count) {
+    if (count >= BufferPool.sizeOf(sizeClass)) {
+      shrinkNext = false;
+      resize(Math.min(sizeClass + GROW_STEP, maxClass));
+    } else if ((sizeClass > minClass) && (count <= BufferPool.sizeOf(sizeClass - 1))) {
+      if (shrinkNext) {
+        shrinkNext = false;
+        resize(sizeClass - 1);
+      } else shrinkNext = true;
+    } else shrinkNext = false;
+  }
+
+  /**
+   * @return the size in bytes of the array used for the next read.
+   */
+  public int size() {
+    return BufferPool.sizeOf(sizeClass);
+  }
+
+  /**
+   * Return the current array to the pool.
+   */
+  public void release() {
+    if (buffer != null) {
+      BufferPool.release(buffer);
+      buffer = null;
+    }
+  }
+
+  /**
+   * Change the size class, returning the current array to the pool if the size changes.
+   * @param newClass the new size class.
+   */
+  private void resize(final int newClass) {
+    if (newClass == sizeClass) return;
+    sizeClass = newClass;
+    release();
+  }
+}
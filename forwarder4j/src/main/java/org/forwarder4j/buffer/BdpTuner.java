@@ -0,0 +1,227 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.buffer;
+
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.forwarder4j.HostPort;
+import org.forwarder4j.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Estimates the bandwidth-delay product of the path to a target and derives the socket and relay buffer sizes from it.
+ * <p>The round-trip time is estimated from the time it takes to connect to the target, keeping the lowest values since
+ * they are the least affected by queuing. The throughput is measured over windows of continuous transfer, in both
+ * directions. The buffer size is set to twice the bandwidth-delay product. When a measured throughput is close to the
+ * limit imposed by the current buffer size, the transfer is considered window-limited and the buffer size is doubled.
+ * The buffer size is always kept within [{@link Utils#BUFFER_AUTO_MIN_SIZE}, {@link Utils#BUFFER_AUTO_MAX_SIZE}].
+ * @author Laurent Cohen
+ */
+public class BdpTuner {
+  /**
+   * Logger for this class.
+   */
+  private static final Logger log = LoggerFactory.getLogger(BdpTuner.class);
+  /**
+   * Determines whether the debug level is enabled in the log configuration, without the cost of a method call.
+   */
+  private static final boolean debugEnabled = log.isDebugEnabled();
+  /**
+   * Maximum number of targets for which an estimate is kept.
+   */
+  private static final int MAX_TARGETS = 10_000;
+  /**
+   * Duration of the throughput measurement windows, in nanoseconds.
+   */
+  private static final long WINDOW_NANOS = 100_000_000L;
+  /**
+   * Fraction of the throughput allowed by the buffer size above which a transfer is considered window-limited.
+   */
+  private static final double LIMITED_RATIO = 0.8d;
+  /**
+   * The tuners of the known targets, mapped to their {@code host:port}.
+   */
+  private static final Map<String, BdpTuner> tuners = new ConcurrentHashMap<>();
+  /**
+   * The target of this tuner.
+   */
+  private final String target;
+  /**
+   * The estimated round-trip time in nanoseconds, or a negative value if none was measured yet.
+   */
+  private long rttNanos = -1L;
+  /**
+   * The estimated throughput in bytes per second.
+   */
+  private double throughput;
+  /**
+   * The current buffer size.
+   */
+  private volatile int bufferSize;
+
+  /**
+   * Initialize this tuner with the specified target and initial buffer size.
+   * @param target the target, as {@code host:port}.
+   * @param initialSize the initial buffer size.
+   */
+  BdpTuner(final String target, final int initialSize) {
+    this.target = target;
+    this.bufferSize = clamp(initialSize);
+  }
+
+  /**
+   * Get the tuner of the specified target, creating it if needed.
+   * @param target the target.
+   * @param initialSize the buffer size to start with for a new target.
+   * @return a {@code BdpTuner} instance.
+   */
+  public static BdpTuner forTarget(final HostPort target, final int initialSize) {
+    final String key = target.toString();
+    final BdpTuner tuner = tuners.get(key);
+    if (tuner != null) return tuner;
+    // beyond the maximum number of targets, the estimates are not shared between connections
+    if (tuners.size() >= MAX_TARGETS) return new BdpTuner(key, initialSize);
+    return tuners.computeIfAbsent(key, k -> new BdpTuner(k, initialSize));
+  }
+
+  /**
+   * Record the time it took to connect to the target.
+   * @param nanos the connection time in nanoseconds.
+   */
+  public synchronized void connected(final long nanos) {
+    if (nanos <= 0L) return;
+    // keep the lowest values, but let the estimate slowly follow a longer route
+    if ((rttNanos < 0L) || (nanos < rttNanos)) rttNanos = nanos;
+    else rttNanos += (nanos - rttNanos) / 16L;
+  }
+
+  /**
+   * Record the number of bytes transferred during a measurement window and update the buffer size.
+   * @param bytes the number of bytes.
+   * @param nanos the duration of the window in nanoseconds.
+   */
+  synchronized void sample(final long bytes, final long nanos) {
+    if ((nanos <= 0L) || (rttNanos <= 0L)) return;
+    final double rate = bytes * 1e9d / nanos;
+    // follow increases immediately and decreases slowly
+    throughput = (rate >= throughput) ? rate : throughput + (rate - throughput) / 8d;
+    final double rtt = rttNanos / 1e9d;
+    final int current = bufferSize;
+    long size = (long) (2d * throughput * rtt);
+    if (rate >= LIMITED_RATIO * current / rtt) size = Math.max(size, 2L * current);
+    final int newSize = clamp(size);
+    if (newSize != current) {
+      bufferSize = newSize;
+      if (debugEnabled) log.debug("buffer size for {} changed from {} to {} (rtt={} ms, throughput={} B/s)", target, current, newSize, rttNanos / 1_000_000d, (long) throughput);
+    }
+  }
+
+  /**
+   * @return the buffer size that matches the estimated bandwidth-delay product.
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Create a meter which measures the throughput of one direction of a tunnel to the target.
+   * @param socket the socket connected to the target, whose buffer sizes are updated as the estimate changes.
+   * @return a new {@link Meter}.
+   */
+  public Meter newMeter(final Socket socket) {
+    return new Meter(socket);
+  }
+
+  /**
+   * Clamp a buffer size to [{@link Utils#BUFFER_AUTO_MIN_SIZE}, {@link Utils#BUFFER_AUTO_MAX_SIZE}].
+   * @param size the size to clamp.
+   * @return the clamped size.
+   */
+  private static int clamp(final long size) {
+    return (int) Math.max(Utils.BUFFER_AUTO_MIN_SIZE, Math.min(Utils.BUFFER_AUTO_MAX_SIZE, size));
+  }
+
+  /**
+   * Measures the throughput of one direction of a tunnel over windows of continuous transfer. A gap between two reads
+   * longer than a window starts a new window, so idle periods do not lower the measured throughput.
+   * <p>Instances of this class are not thread-safe and are meant to be used by the single thread which reads the data.
+   */
+  public class Meter {
+    /**
+     * The socket connected to the target.
+     */
+    private final Socket socket;
+    /**
+     * The buffer size applied to the socket.
+     */
+    private int appliedSize;
+    /**
+     * Start of the current window.
+     */
+    private long windowStart;
+    /**
+     * Time of the last read.
+     */
+    private long lastRead;
+    /**
+     * Bytes transferred in the current window.
+     */
+    private long bytes;
+
+    /**
+     * Initialize this meter with the specified socket.
+     * @param socket the socket connected to the target.
+     */
+    Meter(final Socket socket) {
+      this.socket = socket;
+      this.appliedSize = bufferSize;
+    }
+
+    /**
+     * Record the specified number of bytes transferred.
+     * @param count the number of bytes.
+     */
+    public void record(final int count) {
+      final long now = System.nanoTime();
+      if ((bytes == 0L) || (now - lastRead > WINDOW_NANOS)) {
+        windowStart = now;
+        bytes = 0L;
+      }
+      bytes += count;
+      lastRead = now;
+      if (now - windowStart >= WINDOW_NANOS) {
+        sample(bytes, now - windowStart);
+        bytes = 0L;
+        final int size = bufferSize;
+        if (size > appliedSize) {
+          appliedSize = size;
+          try {
+            socket.setReceiveBufferSize(size);
+            socket.setSendBufferSize(size);
+          } catch (final Exception e) {
+            if (debugEnabled) log.debug("could not resize the buffers of {} : {}", socket, e.toString());
+          }
+        }
+      }
+    }
+  }
+}
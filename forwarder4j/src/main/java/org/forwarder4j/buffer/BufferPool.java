@@ -0,0 +1,126 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.buffer;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forwarder4j.Config;
+
+/**
+ * A pool of byte arrays whose sizes are powers of two, from {@link #MIN_SIZE} to {@link #MAX_SIZE}. Each size class
+ * retains at most {@link #RETAINED_BYTES} bytes of released arrays, any array released beyond that is left to the
+ * garbage collector. The most recently released array is reused first, while it is likely still in the CPU caches.
+ * @author Laurent Cohen
+ */
+public final class BufferPool {
+  /**
+   * Base 2 logarithm of the smallest size class.
+   */
+  private static final int MIN_SHIFT = 8;
+  /**
+   * Base 2 logarithm of the largest size class.
+   */
+  private static final int MAX_SHIFT = 20;
+  /**
+   * Size of the smallest size class.
+   */
+  public static final int MIN_SIZE = 1 << MIN_SHIFT;
+  /**
+   * Size of the largest size class.
+   */
+  public static final int MAX_SIZE = 1 << MAX_SHIFT;
+  /**
+   * Maximum number of bytes retained by each size class. Defaults to 1 MB.
+   */
+  public static final int RETAINED_BYTES = Config.getConfiguration().getInt("forwarder4j.buffer.pool.size", 1024 * 1024);
+  /**
+   * The released arrays of each size class.
+   */
+  @SuppressWarnings("unchecked")
+  private static final Deque<byte[]>[] queues = (Deque<byte[]>[]) new Deque<?>[MAX_SHIFT - MIN_SHIFT + 1];
+  /**
+   * The number of arrays in each queue, since {@link ConcurrentLinkedDeque#size()} is not a constant time operation.
+   */
+  private static final AtomicInteger[] counts = new AtomicInteger[queues.length];
+  static {
+    for (int i=0; i<queues.length; i++) {
+      queues[i] = new ConcurrentLinkedDeque<>();
+      counts[i] = new AtomicInteger(0);
+    }
+  }
+
+  /**
+   * Instantiation is not permitted.
+   */
+  private BufferPool() {
+  }
+
+  /**
+   * Get the smallest size class that can hold the specified number of bytes.
+   * @param size a number of bytes.
+   * @return the index of the size class, clamped to the range of available size classes.
+   */
+  public static int sizeClass(final int size) {
+    if (size <= MIN_SIZE) return 0;
+    if (size >= MAX_SIZE) return queues.length - 1;
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  /**
+   * Get the size of the arrays in the specified size class.
+   * @param sizeClass the index of the size class.
+   * @return the size in bytes of the arrays.
+   */
+  public static int sizeOf(final int sizeClass) {
+    return 1 << (sizeClass + MIN_SHIFT);
+  }
+
+  /**
+   * @return the number of size classes.
+   */
+  public static int sizeClassCount() {
+    return queues.length;
+  }
+
+  /**
+   * Get an array of the specified size class, either a released one or a new one.
+   * @param sizeClass the index of the size class.
+   * @return an array of {@code sizeOf(sizeClass)} bytes.
+   */
+  public static byte[] acquire(final int sizeClass) {
+    final byte[] buffer = queues[sizeClass].pollFirst();
+    if (buffer == null) return new byte[sizeOf(sizeClass)];
+    counts[sizeClass].decrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Release an array obtained with {@link #acquire(int)}, so it can be reused.
+   * @param buffer the array to release.
+   */
+  public static void release(final byte[] buffer) {
+    final int sizeClass = sizeClass(buffer.length);
+    if (sizeOf(sizeClass) != buffer.length) return;
+    final int max = Math.max(1, RETAINED_BYTES / buffer.length);
+    if (counts[sizeClass].incrementAndGet() <= max) queues[sizeClass].offerFirst(buffer);
+    else counts[sizeClass].decrementAndGet();
+  }
+}
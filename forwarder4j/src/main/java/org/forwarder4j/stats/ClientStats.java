@@ -0,0 +1,109 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.stats;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import org.forwarder4j.Config;
+
+/**
+ * Bounded-memory statistics on the clients of a forwarder: the heaviest clients by number of connections and by number
+ * of bytes transferred, along with an estimate of the number of distinct clients.
+ * <p>The memory used by an instance is constant, regardless of how many distinct client addresses are seen.
+ * @author Laurent Cohen
+ */
+public class ClientStats {
+  /**
+   * Whether client statistics are collected. Defaults to {@code true}.
+   */
+  public static final boolean ENABLED = Config.getConfiguration().getBoolean("forwarder4j.stats.enabled", true);
+  /**
+   * Number of heavy hitters tracked for connections and bytes. Defaults to 20.
+   */
+  public static final int TOP_SIZE = Config.getConfiguration().getInt("forwarder4j.stats.top.size", 20);
+  /**
+   * Precision of the distinct clients estimator, in the range [4, 16]. Defaults to 10.
+   */
+  public static final int HLL_PRECISION = Config.getConfiguration().getInt("forwarder4j.stats.hll.precision", 10);
+  /**
+   * Tracks the clients with the most connections.
+   */
+  private final SpaceSaving<String> connections = new SpaceSaving<>(TOP_SIZE);
+  /**
+   * Tracks the clients with the most bytes transferred in either direction.
+   */
+  private final SpaceSaving<String> bytes = new SpaceSaving<>(TOP_SIZE);
+  /**
+   * Estimates the number of distinct clients.
+   */
+  private final HyperLogLog distinct = new HyperLogLog(HLL_PRECISION);
+
+  /**
+   * Record a new connection from the specified client.
+   * @param address the address of the client.
+   * @return the key identifying the client in subsequent calls to {@link #bytesTransferred(String, long)}.
+   */
+  public String connectionAccepted(final InetAddress address) {
+    final String client = address.getHostAddress();
+    connections.add(client, 1L);
+    distinct.add(HyperLogLog.hash(address.getAddress()));
+    return client;
+  }
+
+  /**
+   * Record bytes transferred to or from the specified client.
+   * @param client the key identifying the client.
+   * @param count the number of bytes.
+   */
+  public void bytesTransferred(final String client, final long count) {
+    if (count > 0L) bytes.add(client, count);
+  }
+
+  /**
+   * @return the clients with the most connections, in descending order.
+   */
+  public List<SpaceSaving.Entry<String>> getTopConnections() {
+    return connections.top(TOP_SIZE);
+  }
+
+  /**
+   * @return the clients with the most bytes transferred, in descending order.
+   */
+  public List<SpaceSaving.Entry<String>> getTopBytes() {
+    return bytes.top(TOP_SIZE);
+  }
+
+  /**
+   * @return the estimated number of distinct clients.
+   */
+  public long getDistinctClients() {
+    return distinct.estimate();
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("distinct clients: ~").append(getDistinctClients());
+    sb.append("\ntop clients by connections:");
+    for (final SpaceSaving.Entry<String> entry: getTopConnections()) sb.append("\n- ").append(entry);
+    sb.append("\ntop clients by bytes:");
+    for (final SpaceSaving.Entry<String> entry: getTopBytes()) sb.append("\n- ").append(entry);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.forwarder4j.stats;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics on the compression of the data relayed by a forwarder: the bytes sent compressed and as is, their size
+ * on the wire, the bytes received compressed and their decompressed size, and the CPU time spent compressing and
+ * decompressing.
+ * @author Laurent Cohen
+ */
+public class CompressionStats {
+  /**
+   * Measures the CPU time of the current thread, or {@code null} if it is not supported by the JVM.
+   */
+  private static final ThreadMXBean THREADS = cpuTimeBean();
+  /**
+   * Number of bytes sent compressed, before compression.
+   */
+  private final AtomicLong compressedIn = new AtomicLong(0L);
+  /**
+   * Number of bytes sent compressed, after compression.
+   */
+  private final AtomicLong compressedOut = new AtomicLong(0L);
+  /**
+   * Number of bytes sent as is, because they were not worth compressing.
+   */
+  private final AtomicLong bypassed = new AtomicLong(0L);
+  /**
+   * Number of compressed bytes received.
+   */
+  private final AtomicLong decompressedIn = new AtomicLong(0L);
+  /**
+   * Number of bytes received compressed, after decompression.
+   */
+  private final AtomicLong decompressedOut = new AtomicLong(0L);
+  /**
+   * CPU time spent compressing, in nanoseconds.
+   */
+  private final AtomicLong compressNanos = new AtomicLong(0L);
+  /**
+   * CPU time spent decompressing, in nanoseconds.
+   */
+  private final AtomicLong decompressNanos = new AtomicLong(0L);
+
+  /**
+   * Record data sent compressed.
+   * @param size the size of the data.
+   * @param compressedSize the size of the compressed data.
+   * @param nanos the CPU time spent compressing the data, in nanoseconds.
+   */
+  public void compressed(final int size, final int compressedSize, final long nanos) {
+    compressedIn.addAndGet(size);
+    compressedOut.addAndGet(compressedSize);
+    compressNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Record data sent as is.
+   * @param size the size of the data.
+   * @param nanos the CPU time spent in a compression attempt, in nanoseconds, or 0 if none was made.
+   */
+  public void bypassed(final int size, final long nanos) {
+    bypassed.addAndGet(size);
+    if (nanos > 0L) compressNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Record compressed data received.
+   * @param compressedSize the size of the compressed data.
+   * @param size the size of the decompressed data.
+   * @param nanos the CPU time spent decompressing the data, in nanoseconds.
+   */
+  public void decompressed(final int compressedSize, final int size, final long nanos) {
+    decompressedIn.addAndGet(compressedSize);
+    decompressedOut.addAndGet(size);
+    decompressNanos.addAndGet(nanos);
+  }
+
+  /**
+   * @return the number of bytes sent, compressed or not, before compression.
+   */
+  public long getBytesSent() {
+    return compressedIn.get() + bypassed.get();
+  }
+
+  /**
+   * @return the number of bytes sent, compressed or not, after compression.
+   */
+  public long getWireBytesSent() {
+    return compressedOut.get() + bypassed.get();
+  }
+
+  /**
+   * @return the number of bytes sent as is, because they were not worth compressing.
+   */
+  public long getBytesBypassed() {
+    return bypassed.get();
+  }
+
+  /**
+   * @return the number of compressed bytes received.
+   */
+  public long getCompressedBytesReceived() {
+    return decompressedIn.get();
+  }
+
+  /**
+   * @return the number of bytes received compressed, after decompression.
+   */
+  public long getDecompressedBytesReceived() {
+    return decompressedOut.get();
+  }
+
+  /**
+   * @return the CPU time of the current thread, in nanoseconds, or the current time if it cannot be measured.
+   */
+  public static long cpuTime() {
+    return (THREADS != null) ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  /**
+   * @return the bean which measures the CPU time of the threads, or {@code null} if it is not supported.
+   */
+  private static ThreadMXBean cpuTimeBean() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!bean.isCurrentThreadCpuTimeSupported()) return null;
+    if (!bean.isThreadCpuTimeEnabled()) bean.setThreadCpuTimeEnabled(true);
+    return bean;
+  }
+
+  /**
+   * Compute a compression ratio.
+   * @param compressedSize the size of the compressed data.
+   * @param size the size of the data.
+   * @return the ratio of the compressed size to the size, or 1 if there was no data.
+   */
+  private static double ratio(final long compressedSize, final long size) {
+    return (size == 0L) ? 1d : (double) compressedSize / size;
+  }
+
+  @Override
+  public String toString() {
+    final long sent = getBytesSent(), wire = getWireBytesSent(), in = decompressedIn.get(), out = decompressedOut.get();
+    final long millis = TimeUnit.MILLISECONDS.toNanos(1L);
+    return String.format("sent: %d bytes as %d (ratio %.3f, %d bypassed, cpu %.1f ms), received: %d bytes from %d (ratio %.3f, cpu %.1f ms)",
+      sent, wire, ratio(wire, sent), bypassed.get(), (double) compressNanos.get() / millis, out, in, ratio(in, out), (double) decompressNanos.get() / millis);
+  }
+}
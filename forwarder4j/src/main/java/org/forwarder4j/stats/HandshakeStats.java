@@ -0,0 +1,106 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics on the TLS handshakes of one side of a forwarder: the number of full and resumed handshakes, of failed
+ * handshakes, and the time spent in each kind of successful handshake.
+ * @author Laurent Cohen
+ */
+public class HandshakeStats {
+  /**
+   * Number of full handshakes.
+   */
+  private final AtomicLong full = new AtomicLong(0L);
+  /**
+   * Number of handshakes which resumed a cached session.
+   */
+  private final AtomicLong resumed = new AtomicLong(0L);
+  /**
+   * Number of failed handshakes.
+   */
+  private final AtomicLong failed = new AtomicLong(0L);
+  /**
+   * Total time of the full handshakes, in nanoseconds.
+   */
+  private final AtomicLong fullNanos = new AtomicLong(0L);
+  /**
+   * Total time of the resumed handshakes, in nanoseconds.
+   */
+  private final AtomicLong resumedNanos = new AtomicLong(0L);
+
+  /**
+   * Record a successful handshake.
+   * @param wasResumed whether the handshake resumed a cached session.
+   * @param nanos the duration of the handshake, in nanoseconds.
+   */
+  public void handshakeCompleted(final boolean wasResumed, final long nanos) {
+    (wasResumed ? resumed : full).incrementAndGet();
+    (wasResumed ? resumedNanos : fullNanos).addAndGet(nanos);
+  }
+
+  /**
+   * Record a failed handshake.
+   */
+  public void handshakeFailed() {
+    failed.incrementAndGet();
+  }
+
+  /**
+   * @return the number of full handshakes.
+   */
+  public long getFullHandshakes() {
+    return full.get();
+  }
+
+  /**
+   * @return the number of handshakes which resumed a cached session.
+   */
+  public long getResumedHandshakes() {
+    return resumed.get();
+  }
+
+  /**
+   * @return the number of failed handshakes.
+   */
+  public long getFailedHandshakes() {
+    return failed.get();
+  }
+
+  /**
+   * Compute the average duration of a kind of handshake.
+   * @param count the number of handshakes.
+   * @param nanos their total duration, in nanoseconds.
+   * @return the average duration in milliseconds, or 0 if there was no handshake.
+   */
+  private static double averageMillis(final long count, final long nanos) {
+    return (count == 0L) ? 0d : (double) nanos / count / TimeUnit.MILLISECONDS.toNanos(1L);
+  }
+
+  @Override
+  public String toString() {
+    final long f = full.get(), r = resumed.get();
+    final long total = f + r;
+    return String.format("full: %d (avg %.2f ms), resumed: %d (avg %.2f ms, %.1f%%), failed: %d",
+      f, averageMillis(f, fullNanos.get()), r, averageMillis(r, resumedNanos.get()), (total == 0L) ? 0d : 100d * r / total, failed.get());
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.stats;
+
+/**
+ * A HyperLogLog cardinality estimator, which uses {@code 2^precision} bytes of memory
+ * and has a relative standard error of about {@code 1.04 / sqrt(2^precision)}.
+ * @author Laurent Cohen
+ */
+public class HyperLogLog {
+  /**
+   * Number of bits of the hash used to select a register.
+   */
+  private final int precision;
+  /**
+   * The registers, each holding the maximum observed rank for the hashes that map to it.
+   */
+  private final byte[] registers;
+
+  /**
+   * Initialize with the specified precision.
+   * @param precision the number of bits used to select a register, in the range [4, 16].
+   */
+  public HyperLogLog(final int precision) {
+    if ((precision < 4) || (precision > 16)) throw new IllegalArgumentException("precision must be in the range [4, 16]");
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  /**
+   * Add an element, given its 64 bits hash.
+   * @param hash a well distributed hash of the element to add.
+   */
+  public synchronized void add(final long hash) {
+    final int index = (int) (hash >>> (64 - precision));
+    final byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+    if (rank > registers[index]) registers[index] = rank;
+  }
+
+  /**
+   * Compute the estimated number of distinct elements added so far.
+   * @return the estimated cardinality.
+   */
+  public synchronized long estimate() {
+    final int m = registers.length;
+    double sum = 0d;
+    int zeros = 0;
+    for (final byte rank: registers) {
+      sum += 1d / (1L << rank);
+      if (rank == 0) zeros++;
+    }
+    final double alpha;
+    switch(m) {
+      case 16: alpha = 0.673d; break;
+      case 32: alpha = 0.697d; break;
+      case 64: alpha = 0.709d; break;
+      default: alpha = 0.7213d / (1d + 1.079d / m);
+    }
+    double estimate = alpha * m * m / sum;
+    // small range correction with linear counting
+    if ((estimate <= 2.5d * m) && (zeros > 0)) estimate = m * Math.log((double) m / zeros);
+    return Math.round(estimate);
+  }
+
+  /**
+   * Compute a 64 bits hash of the specified bytes, suitable for {@link #add(long)}.
+   * @param data the bytes to hash.
+   * @return the computed hash.
+   */
+  public static long hash(final byte[] data) {
+    long h = 0x9E3779B97F4A7C15L ^ data.length;
+    for (final byte b: data) h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+    // finalization mix from MurmurHash3, to spread the entropy over all the bits
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
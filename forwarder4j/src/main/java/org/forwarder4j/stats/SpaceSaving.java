@@ -0,0 +1,247 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.stats;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of the Space-Saving algorithm, which tracks the approximate top-k most frequent keys of a stream
+ * in a fixed amount of memory, regardless of the number of distinct keys in the stream.
+ * <p>The counters are kept in an indexed binary min-heap, so that updating a tracked key or evicting the smallest counter
+ * is done in {@code O(log(capacity))}.
+ * @param <K> the type of keys to count.
+ * @author Laurent Cohen
+ */
+public class SpaceSaving<K> {
+  /**
+   * The maximum number of tracked keys.
+   */
+  private final int capacity;
+  /**
+   * Mapping of the tracked keys to their counter.
+   */
+  private final Map<K, Counter<K>> counters;
+  /**
+   * Min-heap of the counters, ordered by count.
+   */
+  private final Counter<K>[] heap;
+  /**
+   * The current number of tracked keys.
+   */
+  private int size;
+
+  /**
+   * Initialize with the specified maximum number of tracked keys.
+   * @param capacity the maximum number of tracked keys.
+   */
+  @SuppressWarnings("unchecked")
+  public SpaceSaving(final int capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+    this.capacity = capacity;
+    this.counters = new HashMap<>(2 * capacity);
+    this.heap = (Counter<K>[]) new Counter<?>[capacity];
+  }
+
+  /**
+   * Add the specified increment to the count of the specified key.
+   * @param key the key to update.
+   * @param increment the value to add to the key's count.
+   */
+  public synchronized void add(final K key, final long increment) {
+    Counter<K> counter = counters.get(key);
+    if (counter != null) {
+      counter.count += increment;
+      siftDown(counter.index);
+    } else if (size < capacity) {
+      counter = new Counter<>(key, increment, 0L, size);
+      heap[size++] = counter;
+      counters.put(key, counter);
+      siftUp(counter.index);
+    } else {
+      // evict the key with the smallest count, whose count becomes the maximum overestimation error of the new key
+      counter = heap[0];
+      counters.remove(counter.key);
+      counter.key = key;
+      counter.error = counter.count;
+      counter.count += increment;
+      counters.put(key, counter);
+      siftDown(0);
+    }
+  }
+
+  /**
+   * Get the tracked keys with the highest counts, in descending order of count.
+   * @param max the maximum number of entries to return.
+   * @return a list of {@link Entry} objects, possibly empty.
+   */
+  public synchronized List<Entry<K>> top(final int max) {
+    final List<Entry<K>> result = new ArrayList<>(size);
+    for (int i=0; i<size; i++) result.add(new Entry<>(heap[i].key, heap[i].count, heap[i].error));
+    result.sort((e1, e2) -> Long.compare(e2.count, e1.count));
+    return (result.size() > max) ? result.subList(0, max) : result;
+  }
+
+  /**
+   * @return the maximum number of tracked keys.
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Move the counter at the specified heap position up, until the heap property is restored.
+   * @param pos the position of the counter to move.
+   */
+  private void siftUp(final int pos) {
+    int i = pos;
+    final Counter<K> counter = heap[i];
+    while (i > 0) {
+      final int parent = (i - 1) >>> 1;
+      if (heap[parent].count <= counter.count) break;
+      place(heap[parent], i);
+      i = parent;
+    }
+    place(counter, i);
+  }
+
+  /**
+   * Move the counter at the specified heap position down, until the heap property is restored.
+   * @param pos the position of the counter to move.
+   */
+  private void siftDown(final int pos) {
+    int i = pos;
+    final Counter<K> counter = heap[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) break;
+      if ((child + 1 < size) && (heap[child + 1].count < heap[child].count)) child++;
+      if (counter.count <= heap[child].count) break;
+      place(heap[child], i);
+      i = child;
+    }
+    place(counter, i);
+  }
+
+  /**
+   * Put the specified counter at the specified position in the heap.
+   * @param counter the counter to place.
+   * @param pos its new position.
+   */
+  private void place(final Counter<K> counter, final int pos) {
+    heap[pos] = counter;
+    counter.index = pos;
+  }
+
+  /**
+   * A mutable counter associated with a tracked key.
+   * @param <K> the type of key.
+   */
+  private static final class Counter<K> {
+    /**
+     * The tracked key.
+     */
+    private K key;
+    /**
+     * The estimated count.
+     */
+    private long count;
+    /**
+     * The maximum overestimation of the count.
+     */
+    private long error;
+    /**
+     * The position of this counter in the heap.
+     */
+    private int index;
+
+    /**
+     * Initialize this counter.
+     * @param key the tracked key.
+     * @param count the estimated count.
+     * @param error the maximum overestimation of the count.
+     * @param index the position of this counter in the heap.
+     */
+    private Counter(final K key, final long count, final long error, final int index) {
+      this.key = key;
+      this.count = count;
+      this.error = error;
+      this.index = index;
+    }
+  }
+
+  /**
+   * An immutable snapshot of a tracked key and its estimated count.
+   * @param <K> the type of key.
+   */
+  public static final class Entry<K> {
+    /**
+     * The tracked key.
+     */
+    private final K key;
+    /**
+     * The estimated count.
+     */
+    private final long count;
+    /**
+     * The maximum overestimation of the count.
+     */
+    private final long error;
+
+    /**
+     * Initialize this entry.
+     * @param key the tracked key.
+     * @param count the estimated count.
+     * @param error the maximum overestimation of the count.
+     */
+    private Entry(final K key, final long count, final long error) {
+      this.key = key;
+      this.count = count;
+      this.error = error;
+    }
+
+    /**
+     * @return the tracked key.
+     */
+    public K getKey() {
+      return key;
+    }
+
+    /**
+     * @return the estimated count, which may exceed the true count by at most {@link #getError()}.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return the maximum overestimation of the count.
+     */
+    public long getError() {
+      return error;
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + count + " (+/- " + error + ")";
+    }
+  }
+}
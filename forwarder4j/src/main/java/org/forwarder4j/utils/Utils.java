@@ -23,7 +23,10 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 
 import org.forwarder4j.Config;
+import org.forwarder4j.SocketProfile;
+import org.forwarder4j.SourceAddressPool;
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -32,21 +35,110 @@ import org.slf4j.Logger;
  */
 public class Utils {
   /**
-   * Size of send and receive buffer for socket connections. Defaults to 32768.
+   * Logger for this class.
    */
-  public static int SOCKET_BUFFER_SIZE = Config.getConfiguration().getInt("forwarder4j.socket.buffer.size", 32*1024);
+  private static final Logger log = LoggerFactory.getLogger(Utils.class);
   /**
-   * Disable Nagle's algorithm to improve performance. Defaults to true.
+   * Initial and minimum size of the buffers used to read from the sockets. Defaults to 1024.
    */
-  public static boolean SOCKET_TCP_NODELAY = Config.getConfiguration().getBoolean("forwarder4j.socket.tcp_nodelay", true);
+  public static volatile int BUFFER_MIN_SIZE;
   /**
-   * Enable / disable keepalive. Defaults to false.
+   * Maximum size of the buffers used to read from the sockets. Defaults to 262144.
    */
-  public static boolean SOCKET_KEEPALIVE = Config.getConfiguration().getBoolean("forwarder4j.socket.keepalive", false);
+  public static volatile int BUFFER_MAX_SIZE;
   /**
-   * Size of temporary buffers (including direct buffers) used in I/O transfers. Defaults to 32768.
+   * Whether the socket and read buffer sizes are tuned from the measured bandwidth-delay product of each target. Defaults to false.
    */
-  public static int TEMP_BUFFER_SIZE = Config.getConfiguration().getInt("forwarder4j.temp.buffer.size", 32*1024);
+  public static volatile boolean BUFFER_AUTO_TUNING;
+  /**
+   * Minimum size of the auto-tuned buffers. Defaults to 16384.
+   */
+  public static volatile int BUFFER_AUTO_MIN_SIZE;
+  /**
+   * Maximum size of the auto-tuned buffers. Defaults to 4194304.
+   */
+  public static volatile int BUFFER_AUTO_MAX_SIZE;
+  /**
+   * Maximum number of bytes of queued data coalesced into a single socket write. Defaults to 65536.
+   */
+  public static volatile int SEND_BATCH_SIZE;
+  /**
+   * Maximum number of attempts to bind a local port. Defaults to 5.
+   */
+  public static volatile int BIND_ATTEMPTS;
+  /**
+   * Delay in millis before the first retry to bind a local port, doubled after each failed retry. Defaults to 100.
+   */
+  public static volatile long BIND_RETRY_DELAY;
+  /**
+   * Maximum delay in millis between two attempts to bind a local port. Defaults to 5000.
+   */
+  public static volatile long BIND_RETRY_MAX_DELAY;
+  /**
+   * How long a UDP session can stay idle before it expires, in millis. Defaults to 60000.
+   */
+  public static volatile int UDP_SESSION_TIMEOUT;
+  /**
+   * Maximum number of UDP sessions of each forwarder. Defaults to 10000.
+   */
+  public static volatile int UDP_MAX_SESSIONS;
+  /**
+   * How long the clients of a proxy mode have to name their destination, in millis. Defaults to 10000.
+   */
+  public static volatile int HANDSHAKE_TIMEOUT;
+  /**
+   * Maximum number of threads, shared by all the forwarders, which perform the handshakes of the accepted connections. Defaults to 256.
+   */
+  public static volatile int HANDSHAKE_THREADS;
+  /**
+   * Maximum number of cached TLS sessions of each SSL context. Defaults to 20480.
+   */
+  public static volatile int TLS_SESSION_CACHE_SIZE;
+  /**
+   * How long a cached TLS session can be resumed, in seconds. Defaults to 86400.
+   */
+  public static volatile int TLS_SESSION_TIMEOUT;
+  /**
+   * Number of bytes each tunneled connection can receive before its data is written to its socket. Defaults to 262144.
+   */
+  public static volatile int TUNNEL_WINDOW;
+  /**
+   * Maximum number of concurrent streams which the entry side of each tunnel connection can open. Defaults to 256.
+   */
+  public static volatile int TUNNEL_MAX_STREAMS;
+  static {
+    loadSettings(Config.getConfiguration());
+  }
+
+  /**
+   * Load the socket and buffer settings from the specified configuration. The new settings apply to the connections
+   * established from then on.
+   * @param config the configuration to load the settings from.
+   */
+  public static void loadSettings(final Config config) {
+    SocketProfile.load(config);
+    SourceAddressPool.load(config);
+    BUFFER_MIN_SIZE = config.getInt("forwarder4j.buffer.min", 1024);
+    // the fixed size read buffers were replaced with the adaptive ones, their size remains the maximum if none is set
+    final int legacySize = config.getInt("forwarder4j.temp.buffer.size", -1);
+    if (legacySize > 0) log.warn("forwarder4j.temp.buffer.size is deprecated, use forwarder4j.buffer.max instead");
+    BUFFER_MAX_SIZE = config.getInt("forwarder4j.buffer.max", (legacySize > 0) ? legacySize : 256*1024);
+    BUFFER_AUTO_TUNING = config.getBoolean("forwarder4j.buffer.auto", false);
+    BUFFER_AUTO_MIN_SIZE = config.getInt("forwarder4j.buffer.auto.min", 16 * 1024);
+    BUFFER_AUTO_MAX_SIZE = config.getInt("forwarder4j.buffer.auto.max", 4 * 1024 * 1024);
+    SEND_BATCH_SIZE = config.getInt("forwarder4j.send.batch.size", 64*1024);
+    BIND_ATTEMPTS = Math.max(1, config.getInt("forwarder4j.bind.attempts", 5));
+    BIND_RETRY_DELAY = Math.max(1L, config.getLong("forwarder4j.bind.retry.delay", 100L));
+    BIND_RETRY_MAX_DELAY = Math.max(BIND_RETRY_DELAY, config.getLong("forwarder4j.bind.retry.max.delay", 5000L));
+    UDP_SESSION_TIMEOUT = Math.max(1, config.getInt("forwarder4j.udp.session.timeout", 60_000));
+    UDP_MAX_SESSIONS = Math.max(1, config.getInt("forwarder4j.udp.sessions.max", 10_000));
+    HANDSHAKE_TIMEOUT = Math.max(1, config.getInt("forwarder4j.handshake.timeout", 10_000));
+    HANDSHAKE_THREADS = Math.max(1, config.getInt("forwarder4j.handshake.threads", 256));
+    TLS_SESSION_CACHE_SIZE = Math.max(0, config.getInt("forwarder4j.tls.session.cache.size", 20_480));
+    TLS_SESSION_TIMEOUT = Math.max(0, config.getInt("forwarder4j.tls.session.timeout", 86_400));
+    TUNNEL_WINDOW = Math.max(1, config.getInt("forwarder4j.tunnel.window", 256 * 1024));
+    TUNNEL_MAX_STREAMS = Math.max(1, config.getInt("forwarder4j.tunnel.streams.max", 256));
+  }
 
   /**
    * Attempt to close the specified closeable without logging an eventual error.
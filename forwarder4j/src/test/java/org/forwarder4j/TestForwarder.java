@@ -20,13 +20,45 @@ package org.forwarder4j;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.forwarder4j.acl.DestinationFilter;
 import org.forwarder4j.admin.Admin;
+import org.forwarder4j.buffer.AdaptiveBuffer;
+import org.forwarder4j.buffer.BufferPool;
+import org.forwarder4j.stats.CompressionStats;
 import org.forwarder4j.test.ClientConnection;
 import org.forwarder4j.test.Server;
 import org.forwarder4j.test.ServerConnection;
+import org.forwarder4j.utils.Utils;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -71,6 +103,841 @@ public class TestForwarder extends BaseTest {
     }
   }
 
+  @Test()
+  public void testListenAddresses() throws Exception {
+    final int forwardingPort = 11_000;
+    final Config options = new Config();
+    options.setString(EntryDescriptor.LISTEN_OPTION, "127.0.0.3, 127.0.0.1");
+    final EntryDescriptor desc = EntryDescriptor.from("127.0.0.1:11000,127.0.0.2:11000", "localhost:" + REMOTE_PORT, options);
+    assertEquals("127.0.0.1:11000,127.0.0.2:11000,127.0.0.3:11000=localhost:" + REMOTE_PORT, desc.toString());
+    try (final Forwarder forwarder = new Forwarder(desc)) {
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+      for (final String host: new String[] { "127.0.0.1", "127.0.0.2", "127.0.0.3" }) {
+        try (final ClientConnection connection = new ClientConnection(host, forwardingPort)) {
+          final String msg = "hello " + host;
+          assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, msg), connection.send(msg).receive());
+        }
+      }
+      assertThrows(IOException.class, () -> new Socket("127.0.0.4", forwardingPort).close());
+    }
+    assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from("127.0.0.1:11000,11001=localhost:10000"));
+  }
+
+  @Test()
+  public void testSourceAddresses() throws Exception {
+    final int forwardingPort = 11_000;
+    final Config options = new Config();
+    options.setString(EntryDescriptor.SOURCE_ADDRESSES_OPTION, "127.0.0.2, 127.0.0.3");
+    final EntryDescriptor desc = EntryDescriptor.from(forwardingPort, HostPort.from("127.0.0.1:" + REMOTE_PORT), options);
+    try (final Forwarder forwarder = new Forwarder(desc)) {
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+      try (final ClientConnection connection1 = new ClientConnection(forwardingPort); final ClientConnection connection2 = new ClientConnection(forwardingPort)) {
+        for (final ClientConnection connection: new ClientConnection[] { connection1, connection2 }) {
+          assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "hello"), connection.send("hello").receive());
+        }
+        // each connection to the target is bound to the least loaded source address
+        final String stats = SourceAddressPool.getStatistics();
+        assertTrue(stats.contains("- 127.0.0.2: 1 active, 1 total, 0 failed") && stats.contains("- 127.0.0.3: 1 active, 1 total, 0 failed"), stats);
+      }
+      assertConditionTimeout(2000L, 50L, () -> SourceAddressPool.getStatistics().contains("- 127.0.0.3: 0 active"));
+    }
+  }
+
+  @Test()
+  public void testPortRanges() throws Exception {
+    final Config options = new Config();
+    options.setString(RelayMode.OPTION, "direct");
+    final EntryDescriptor desc1 = EntryDescriptor.from("11000-11001", "localhost:" + REMOTE_PORT + "-" + (REMOTE_PORT + 1));
+    final EntryDescriptor desc2 = EntryDescriptor.from("11002-11003", "localhost:" + REMOTE_PORT, options);
+    assertEquals("11000-11001=localhost:" + REMOTE_PORT + "-" + (REMOTE_PORT + 1), desc1.toString());
+    assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from("11000-11002", "localhost:10000-10001"));
+    assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from("11000", "localhost:10000-10001"));
+    try (final Server server2 = new Server(REMOTE_PORT + 1); final Forwarder forwarder1 = new Forwarder(desc1); final Forwarder forwarder2 = new Forwarder(desc2)) {
+      new Thread(server2).start();
+      new Thread(forwarder1).start();
+      new Thread(forwarder2).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder1.isBound() && forwarder2.isBound());
+      // each port of the first range goes to its own target port, all ports of the second range go to the same one
+      final int[][] expected = { { 11000, REMOTE_PORT }, { 11001, REMOTE_PORT + 1 }, { 11002, REMOTE_PORT }, { 11003, REMOTE_PORT } };
+      for (final int[] ports: expected) {
+        try (final ClientConnection connection = new ClientConnection(ports[0])) {
+          final String msg = "hello " + ports[0];
+          assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, ports[1], msg), connection.send(msg).receive());
+        }
+      }
+      // the ports of a range share the same statistics
+      assertEquals(2L, forwarder1.getStats().getTopConnections().get(0).getCount());
+    }
+  }
+
+  @Test()
+  public void testSlowTargetDoesNotHoldUpAccepts() throws Exception {
+    final EntryDescriptor desc = EntryDescriptor.from("11000-11001", "localhost:" + REMOTE_PORT + "-" + (REMOTE_PORT + 1));
+    final List<Socket> backlog = new ArrayList<>();
+    // a target which never accepts, and whose backlog is full, so it cannot be connected to
+    try (final ServerSocket slow = new ServerSocket(REMOTE_PORT + 1, 1, InetAddress.getLoopbackAddress()); final Forwarder forwarder = new Forwarder(desc)) {
+      for (int i=0; i<4; i++) {
+        final Socket socket = new Socket();
+        backlog.add(socket);
+        try {
+          socket.connect(slow.getLocalSocketAddress(), 200);
+        } catch (@SuppressWarnings("unused") final IOException e) {
+          break;
+        }
+      }
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+      try (final Socket stalled = new Socket("localhost", 11001); final Socket socket = new Socket("localhost", 11000)) {
+        // the connection to the slow target is made apart from the selector thread, which keeps accepting on the other port
+        assertTrue(stalled.isConnected());
+        socket.setSoTimeout(5000);
+        try (final ClientConnection connection = new ClientConnection(socket)) {
+          assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "hello"), connection.send("hello").receive());
+        }
+      }
+    } finally {
+      for (final Socket socket: backlog) socket.close();
+    }
+  }
+
+  @Test()
+  public void testUnixSockets() throws Exception {
+    final Path dir = Files.createTempDirectory("forwarder4j");
+    final Path file = dir.resolve("forwarder.sock");
+    // tcp 11000 -> unix socket -> tcp REMOTE_PORT
+    final EntryDescriptor desc1 = EntryDescriptor.from("11000", "unix:" + file);
+    final Config options = new Config();
+    options.setString(EntryDescriptor.LISTEN_OPTION, "unix:" + file);
+    final EntryDescriptor desc2 = EntryDescriptor.from("11001", "localhost:" + REMOTE_PORT, options);
+    assertEquals("unix:" + file + ":11001=localhost:" + REMOTE_PORT, desc2.toString());
+    assertTrue(desc2.hasSameBindings(EntryDescriptor.from(desc2.toString())));
+    assertFalse(desc2.listensOnPorts());
+    assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from("udp:11000", "unix:" + file));
+    try (final Forwarder forwarder1 = new Forwarder(desc1); final Forwarder forwarder2 = new Forwarder(desc2)) {
+      new Thread(forwarder1).start();
+      new Thread(forwarder2).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder1.isBound() && forwarder2.isBound());
+      assertTrue(Files.exists(file));
+      assertThrows(IOException.class, () -> new Socket("localhost", 11001).close());
+      try (final ClientConnection connection = new ClientConnection(11000)) {
+        for (final String msg: new String[] { "hello", "unix sockets" }) {
+          assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, msg), connection.send(msg).receive());
+        }
+      }
+    }
+    // the socket file is deleted when the forwarder is closed
+    assertFalse(Files.exists(file));
+    // a socket file left over by a closed channel is deleted before binding again
+    Utils.closeSilent(UnixSocket.bind(file.toString(), 0));
+    assertTrue(Files.exists(file));
+    UnixSocket.unbind(UnixSocket.bind(file.toString(), 0), file.toString());
+    assertFalse(Files.exists(file));
+    // but any other kind of file, such as a named pipe, is left untouched
+    final Path fifo = dir.resolve("forwarder.fifo");
+    if (new ProcessBuilder("mkfifo", fifo.toString()).start().waitFor() == 0) {
+      assertThrows(IOException.class, () -> UnixSocket.bind(fifo.toString(), 0).close());
+      assertTrue(Files.exists(fifo));
+      Files.delete(fifo);
+    }
+    // the read timeouts apply to unix sockets as they do to TCP sockets
+    final Path timeoutFile = dir.resolve("timeout.sock");
+    final ServerSocketChannel server = UnixSocket.bind(timeoutFile.toString(), 0);
+    try (final Socket client = UnixSocket.connect(timeoutFile.toString(), SocketProfile.getDefault());
+      final Socket socket = new UnixSocket(server.accept(), timeoutFile.toString(), 0)) {
+      socket.setSoTimeout(300);
+      assertEquals(300, socket.getSoTimeout());
+      assertThrows(SocketTimeoutException.class, () -> socket.getInputStream().read());
+      client.getOutputStream().write(1);
+      assertEquals(1, socket.getInputStream().read());
+    } finally {
+      UnixSocket.unbind(server, timeoutFile.toString());
+    }
+    // the handshake timeout applies to the clients of a unix socket
+    final Path proxyFile = dir.resolve("proxy.sock");
+    final Config proxyOptions = new Config();
+    proxyOptions.setString(EntryDescriptor.LISTEN_OPTION, "unix:" + proxyFile);
+    proxyOptions.setString(DestinationFilter.OPTION, "localhost:" + REMOTE_PORT);
+    proxyOptions.setString(EntryDescriptor.HANDSHAKE_TIMEOUT_OPTION, "300");
+    try (final Forwarder forwarder = new Forwarder(EntryDescriptor.from("11002", "socks5", proxyOptions))) {
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+      try (final Socket socket = UnixSocket.connect(proxyFile.toString(), SocketProfile.getDefault())) {
+        socket.setSoTimeout(5000);
+        // an idle client is disconnected once the timeout expires
+        assertEquals(-1, socket.getInputStream().read());
+      }
+    }
+    Files.delete(dir);
+  }
+
+  @Test()
+  public void testSocks5() throws Exception {
+    final Config options = new Config();
+    options.setString(DestinationFilter.OPTION, "localhost:" + REMOTE_PORT + ", 127.0.0.0/8:" + (REMOTE_PORT + 1));
+    final EntryDescriptor desc = EntryDescriptor.from("11000", "socks5", options);
+    assertEquals(ProxyMode.SOCKS5, desc.getTarget().getProxyMode());
+    assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from("11000=socks5"));
+    try (final Forwarder forwarder = new Forwarder(desc)) {
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+      // allowed by name
+      try (final ClientConnection connection = new ClientConnection(socks5Connect(11_000, socks5Request("localhost", REMOTE_PORT), 0))) {
+        assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "hello"), connection.send("hello").receive());
+      }
+      // a name which is not allowed is rejected without being resolved
+      socks5Connect(11_000, socks5Request("unknown.invalid", REMOTE_PORT), 2).close();
+      // the address of localhost is not allowed on this port
+      final byte[] byAddress = { 5, 1, 0, 1, 127, 0, 0, 1, (byte) (REMOTE_PORT >> 8), (byte) REMOTE_PORT };
+      socks5Connect(11_000, byAddress, 2).close();
+      // allowed by address, but nothing listens on the port
+      byAddress[9]++;
+      socks5Connect(11_000, byAddress, 5).close();
+    }
+  }
+
+  /**
+   * Build a SOCKS5 connection request with a host name.
+   * @param name the host name of the destination.
+   * @param port the port of the destination.
+   * @return the request.
+   */
+  private static byte[] socks5Request(final String name, final int port) {
+    final byte[] host = name.getBytes(StandardCharsets.US_ASCII);
+    final byte[] request = new byte[7 + host.length];
+    request[0] = 5; request[1] = 1; request[3] = 3; request[4] = (byte) host.length;
+    System.arraycopy(host, 0, request, 5, host.length);
+    request[request.length - 2] = (byte) (port >> 8); request[request.length - 1] = (byte) port;
+    return request;
+  }
+
+  /**
+   * Perform a SOCKS5 handshake without authentication.
+   * @param port the port of the SOCKS5 forwarder.
+   * @param request the connection request.
+   * @param expectedReply the expected reply code.
+   * @return the socket connected to the forwarder.
+   * @throws Exception if any error occurs.
+   */
+  private static Socket socks5Connect(final int port, final byte[] request, final int expectedReply) throws Exception {
+    final Socket socket = new Socket("localhost", port);
+    socket.getOutputStream().write(new byte[] { 5, 1, 0 });
+    final DataInputStream in = new DataInputStream(socket.getInputStream());
+    assertEquals(5, in.readByte());
+    assertEquals(0, in.readByte());
+    socket.getOutputStream().write(request);
+    final byte[] reply = new byte[10];
+    in.readFully(reply);
+    assertEquals(expectedReply, reply[1]);
+    return socket;
+  }
+
+  @Test()
+  public void testHttpConnect() throws Exception {
+    final Config options = new Config();
+    options.setString(DestinationFilter.OPTION, "localhost:" + REMOTE_PORT);
+    try (final Forwarder forwarder = new Forwarder(EntryDescriptor.from("11000", "http", options))) {
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+      // the first message is sent along with the request, before the response
+      final byte[] msg = "hello".getBytes(StandardCharsets.UTF_8);
+      final ByteArrayOutputStream request = new ByteArrayOutputStream();
+      request.write(("CONNECT localhost:" + REMOTE_PORT + " HTTP/1.1\r\nHost: localhost:" + REMOTE_PORT + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      new DataOutputStream(request).writeInt(msg.length);
+      request.write(msg);
+      final Socket socket = httpConnect(11_000, request.toByteArray(), "HTTP/1.1 200 ");
+      try (final ClientConnection connection = new ClientConnection(socket)) {
+        assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "hello"), connection.receive());
+        assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "again"), connection.send("again").receive());
+      }
+      httpConnect(11_000, ("CONNECT localhost:" + (REMOTE_PORT + 1) + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII), "HTTP/1.1 403 ").close();
+      // a name which is not allowed is rejected without being resolved
+      httpConnect(11_000, ("CONNECT unknown.invalid:" + REMOTE_PORT + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII), "HTTP/1.1 403 ").close();
+      httpConnect(11_000, "GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII), "HTTP/1.1 405 ").close();
+      for (final String port: new String[] { "0", "65536", "-1" }) {
+        httpConnect(11_000, ("CONNECT localhost:" + port + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII), "HTTP/1.1 400 ").close();
+      }
+    }
+  }
+
+  /**
+   * Send an HTTP request and read the head of the response.
+   * @param port the port of the HTTP proxy forwarder.
+   * @param request the request.
+   * @param expectedStatus the expected start of the response.
+   * @return the socket connected to the forwarder.
+   * @throws Exception if any error occurs.
+   */
+  private static Socket httpConnect(final int port, final byte[] request, final String expectedStatus) throws Exception {
+    final Socket socket = new Socket("localhost", port);
+    socket.getOutputStream().write(request);
+    final StringBuilder head = new StringBuilder();
+    final InputStream in = socket.getInputStream();
+    while (!head.toString().endsWith("\r\n\r\n")) head.append((char) in.read());
+    assertTrue(head.toString().startsWith(expectedStatus), head.toString());
+    return socket;
+  }
+
+  @Test()
+  public void testProtocolSniffing() throws Exception {
+    final Router router = new Router("tls:*.example.com=10.0.0.1:443, tls=10.0.0.2:443, http:www.example.com=10.0.0.3:80, ssh=10.0.0.4:22,"
+      + " postgres=10.0.0.5:5432, redis=10.0.0.6:6379, default=10.0.0.7:80");
+    // a ClientHello with a server name indication, as sent by the JDK
+    final SSLEngine engine = SSLContext.getDefault().createSSLEngine();
+    engine.setUseClientMode(true);
+    final SSLParameters params = engine.getSSLParameters();
+    params.setServerNames(Arrays.asList(new SNIHostName("api.example.com")));
+    engine.setSSLParameters(params);
+    final ByteBuffer hello = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    engine.wrap(ByteBuffer.allocate(0), hello);
+    assertRoute(router, "10.0.0.1:443", Arrays.copyOf(hello.array(), hello.position()));
+    // without its last bytes, the ClientHello still has its server name
+    assertRoute(router, "10.0.0.1:443", Arrays.copyOf(hello.array(), hello.position() - 10));
+    assertRoute(router, "10.0.0.3:80", "GET / HTTP/1.1\r\nAccept: */*\r\nHost: WWW.example.com:8080\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+    assertRoute(router, "10.0.0.7:80", "GET / HTTP/1.1\r\nHost: other.example.com\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+    assertRoute(router, "10.0.0.4:22", "SSH-2.0-OpenSSH_9.0\r\n".getBytes(StandardCharsets.US_ASCII));
+    assertRoute(router, "10.0.0.5:5432", new byte[] { 0, 0, 0, 8, 0x04, (byte) 0xD2, 0x16, 0x2F });
+    assertRoute(router, "10.0.0.6:6379", "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.US_ASCII));
+    assertRoute(router, "10.0.0.7:80", new byte[0]);
+    assertNull(Router.sniff("SS".getBytes(StandardCharsets.US_ASCII), 2, false));
+    assertThrows(IllegalArgumentException.class, () -> new Router("ssh:host=10.0.0.4:22"));
+    assertThrows(IllegalArgumentException.class, () -> new Router("ftp=10.0.0.4:21"));
+    assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from("11000", "route"));
+    final Config options = new Config();
+    options.setString(Router.OPTION, "ssh=127.0.0.1:1, default=localhost:" + REMOTE_PORT);
+    options.setString(EntryDescriptor.PEEK_TIMEOUT_OPTION, "200");
+    try (final Forwarder forwarder = new Forwarder(EntryDescriptor.from("11000", "route", options))) {
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+      // the test protocol is not recognized, and goes to the default route with its first bytes
+      try (final ClientConnection connection = new ClientConnection(11_000)) {
+        assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "hello"), connection.send("hello").receive());
+      }
+      // a client which waits for the server to speak first also goes to the default route
+      try (final ClientConnection connection = new ClientConnection(11_000)) {
+        Thread.sleep(400L);
+        assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "hello"), connection.send("hello").receive());
+      }
+    }
+  }
+
+  @Test()
+  public void testProxyProtocol() throws Exception {
+    // a text header with IPv6 addresses, decoded from what was encoded
+    final byte[] buffer = new byte[ProxyProtocol.MAX_HEADER_SIZE];
+    final InetSocketAddress source = new InetSocketAddress(InetAddress.getByName("fd00::1:2"), 56324), destination = new InetSocketAddress(InetAddress.getByName("10.0.0.5"), 443);
+    final int length = ProxyProtocol.V1.encode(buffer, source, destination);
+    assertEquals("PROXY TCP6 fd00:0:0:0:0:0:1:2 0:0:0:0:0:ffff:a00:5 56324 443\r\n", new String(buffer, 0, length, StandardCharsets.US_ASCII));
+    final ProxyProtocol.Header header = ProxyProtocol.read(new ByteArrayInputStream(buffer, 0, length), new byte[ProxyProtocol.MAX_HEADER_SIZE]);
+    assertEquals(source, header.getSource());
+    assertEquals(InetAddress.getByName("::ffff:10.0.0.5"), header.getDestination().getAddress());
+    assertThrows(IOException.class, () -> ProxyProtocol.read(new ByteArrayInputStream("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII)), buffer));
+    final ProxyProtocol.Header v4 = ProxyProtocol.read(new ByteArrayInputStream("PROXY TCP4 192.168.0.1 10.0.0.255 1 2\r\n".getBytes(StandardCharsets.US_ASCII)), buffer);
+    assertEquals(new InetSocketAddress(InetAddress.getByName("192.168.0.1"), 1), v4.getSource());
+    assertEquals(new InetSocketAddress(InetAddress.getByName("10.0.0.255"), 2), v4.getDestination());
+    // only address literals of the declared family, which are never resolved
+    for (final String addresses: new String[] { "TCP4 dead.beef cafe", "TCP4 1.2.3 1.2.3.4", "TCP4 1.2.3.256 1.2.3.4", "TCP4 1.2.3.4. 1.2.3.4", "TCP4 ::1 1.2.3.4", "TCP6 10.0.0.5 ::1", "TCP6 beef ::1", "TCP5 1.2.3.4 1.2.3.4" }) {
+      final byte[] bytes = ("PROXY " + addresses + " 1 2\r\n").getBytes(StandardCharsets.US_ASCII);
+      assertThrows(IOException.class, () -> ProxyProtocol.read(new ByteArrayInputStream(bytes), buffer), addresses);
+    }
+    // the first forwarder sends a binary header to the second, which passes the client addresses on in a text header
+    final Config sendOptions = new Config();
+    sendOptions.setString(ProxyProtocol.OPTION, "v2");
+    final Config relayOptions = new Config();
+    relayOptions.setString(ProxyProtocol.ACCEPT_OPTION, "true");
+    relayOptions.setString(ProxyProtocol.OPTION, "v1");
+    try (final ServerSocket upstream = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+      final Forwarder first = new Forwarder(EntryDescriptor.from("11000", "127.0.0.1:11001", sendOptions));
+      final Forwarder second = new Forwarder(EntryDescriptor.from("11001", "127.0.0.1:" + upstream.getLocalPort(), relayOptions))) {
+      new Thread(first).start();
+      new Thread(second).start();
+      assertConditionTimeout(2000L, 50L, () -> first.isBound() && second.isBound());
+      try (final Socket client = new Socket("127.0.0.1", 11_000)) {
+        client.getOutputStream().write("hello".getBytes(StandardCharsets.US_ASCII));
+        try (final Socket target = upstream.accept()) {
+          final byte[] expected = ("PROXY TCP4 127.0.0.1 127.0.0.1 " + client.getLocalPort() + " 11000\r\nhello").getBytes(StandardCharsets.US_ASCII);
+          final byte[] received = new byte[expected.length];
+          new DataInputStream(target.getInputStream()).readFully(received);
+          assertEquals(new String(expected, StandardCharsets.US_ASCII), new String(received, StandardCharsets.US_ASCII));
+        }
+      }
+    }
+  }
+
+  @Test()
+  public void testTls() throws Exception {
+    final Path dir = Files.createTempDirectory("forwarder4j");
+    final Path keystore = dir.resolve("keystore.p12");
+    final Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(), "-genkeypair", "-alias", "forwarder4j",
+      "-keyalg", "EC", "-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1", "-validity", "2", "-storetype", "PKCS12",
+      "-keystore", keystore.toString(), "-storepass", "secret", "-keypass", "secret").redirectErrorStream(true).start();
+    while (keytool.getInputStream().read() >= 0);
+    assertEquals(0, keytool.waitFor());
+    // the first forwarder originates TLS to the second, which terminates it
+    final Config upstreamOptions = new Config();
+    upstreamOptions.setString(TlsContext.UPSTREAM_OPTION, "true");
+    upstreamOptions.setString(TlsContext.TRUSTSTORE_OPTION, keystore.toString());
+    upstreamOptions.setString(TlsContext.TRUSTSTORE_PASSWORD_OPTION, "secret");
+    upstreamOptions.setString(TlsContext.KEYSTORE_TYPE_OPTION, "PKCS12");
+    final Config serverOptions = new Config();
+    serverOptions.setString(TlsContext.KEYSTORE_OPTION, keystore.toString());
+    serverOptions.setString(TlsContext.KEYSTORE_PASSWORD_OPTION, "secret");
+    try (final Forwarder origin = new Forwarder(EntryDescriptor.from("11000", "localhost:11001", upstreamOptions));
+      final Forwarder terminator = new Forwarder(EntryDescriptor.from("11001", "localhost:" + REMOTE_PORT, serverOptions))) {
+      new Thread(origin).start();
+      new Thread(terminator).start();
+      assertConditionTimeout(2000L, 50L, () -> origin.isBound() && terminator.isBound());
+      for (int i=0; i<2; i++) {
+        try (final ClientConnection connection = new ClientConnection(11_000)) {
+          assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "hello"), connection.send("hello").receive());
+        }
+      }
+      // the second connection resumes the session of the first
+      assertEquals(1L, origin.getUpstreamHandshakes().getFullHandshakes());
+      assertEquals(1L, origin.getUpstreamHandshakes().getResumedHandshakes());
+      assertEquals(1L, terminator.getClientHandshakes().getFullHandshakes());
+      assertEquals(1L, terminator.getClientHandshakes().getResumedHandshakes());
+      // a plain client cannot complete the handshake
+      try (final Socket plain = new Socket("localhost", 11_001)) {
+        plain.getOutputStream().write("hello\r\n".getBytes(StandardCharsets.US_ASCII));
+        while (plain.getInputStream().read() >= 0);
+      }
+      assertConditionTimeout(2000L, 50L, () -> terminator.getClientHandshakes().getFailedHandshakes() == 1L);
+    } finally {
+      Files.delete(keystore);
+      Files.delete(dir);
+    }
+  }
+
+  @Test()
+  public void testTunnel() throws Exception {
+    final Config exitOptions = new Config();
+    exitOptions.setString(DestinationFilter.OPTION, "localhost:" + REMOTE_PORT);
+    final Config entryOptions = new Config();
+    entryOptions.setString(EntryDescriptor.TUNNEL_OPTION, "localhost:11001");
+    entryOptions.setString(EntryDescriptor.TUNNEL_CONNECTIONS_OPTION, "1");
+    try (final Forwarder exit = new Forwarder(EntryDescriptor.from("11001", "tunnel", exitOptions));
+      final Forwarder entry = new Forwarder(EntryDescriptor.from("11000", "localhost:" + REMOTE_PORT, entryOptions));
+      final Forwarder denied = new Forwarder(EntryDescriptor.from("11002", "localhost:" + (REMOTE_PORT + 1), entryOptions))) {
+      for (final Forwarder forwarder: Arrays.asList(exit, entry, denied)) new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> exit.isBound() && entry.isBound() && denied.isBound());
+      // concurrent connections multiplexed over the same tunnel connection, with more data than the flow-control window
+      final char[] chars = new char[1024 * 1024];
+      Arrays.fill(chars, 'x');
+      final String large = new String(chars);
+      try (final ClientConnection c1 = new ClientConnection(11_000); final ClientConnection c2 = new ClientConnection(11_000)) {
+        c1.send(large);
+        assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "small"), c2.send("small").receive());
+        final String response = c1.receive();
+        // not compared with assertEquals, whose failure message would hold the whole response
+        assertTrue(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, large).equals(response), "response of " + response.length() + " chars: " + response.substring(0, Math.min(80, response.length())));
+        assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "again"), c2.send("again").receive());
+      }
+      // a destination which is not allowed by the exit side is closed
+      try (final Socket socket = new Socket("localhost", 11_002)) {
+        assertEquals(-1, socket.getInputStream().read());
+      }
+      // the streams beyond the maximum are reset by the exit side
+      final int maxStreams = Utils.TUNNEL_MAX_STREAMS;
+      Utils.TUNNEL_MAX_STREAMS = 1;
+      // a new forwarder, whose tunnel connection has no stream left by the previous clients
+      try (final Forwarder limited = new Forwarder(EntryDescriptor.from("11003", "localhost:" + REMOTE_PORT, entryOptions))) {
+        new Thread(limited).start();
+        assertConditionTimeout(2000L, 50L, () -> limited.isBound());
+        try (final ClientConnection client = new ClientConnection(11_003)) {
+          assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "open"), client.send("open").receive());
+          try (final Socket socket = new Socket("localhost", 11_003)) {
+            assertEquals(-1, socket.getInputStream().read());
+          }
+          assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "still open"), client.send("still open").receive());
+        }
+      } finally {
+        Utils.TUNNEL_MAX_STREAMS = maxStreams;
+      }
+    }
+  }
+
+  @Test()
+  public void testTunnelCompression() throws Exception {
+    final Config exitOptions = new Config();
+    exitOptions.setString(DestinationFilter.OPTION, "localhost:" + REMOTE_PORT);
+    final Config entryOptions = new Config();
+    entryOptions.setString(EntryDescriptor.TUNNEL_OPTION, "localhost:11001");
+    entryOptions.setString(EntryDescriptor.TUNNEL_COMPRESSION_OPTION, "deflate");
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 5000; i++) sb.append("GET /api/items/").append(i).append(" HTTP/1.1\r\nHost: www.mysite.com\r\nAccept: application/json\r\n\r\n");
+    final String text = sb.toString();
+    try (final Forwarder exit = new Forwarder(EntryDescriptor.from("11001", "tunnel", exitOptions));
+      final Forwarder entry = new Forwarder(EntryDescriptor.from("11000", "localhost:" + REMOTE_PORT, entryOptions))) {
+      for (final Forwarder forwarder: Arrays.asList(exit, entry)) new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> exit.isBound() && entry.isBound());
+      try (final ClientConnection client = new ClientConnection(11_000)) {
+        final String response = client.send(text).receive();
+        assertTrue(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, text).equals(response), "response of " + response.length() + " chars");
+      }
+      // compressed by the entry side, and by the exit side for the response
+      for (final Forwarder forwarder: Arrays.asList(entry, exit)) {
+        final CompressionStats stats = forwarder.getCompressionStats(), other = ((forwarder == entry) ? exit : entry).getCompressionStats();
+        assertTrue(stats.getBytesSent() >= text.length());
+        assertTrue(stats.getWireBytesSent() < stats.getBytesSent() / 4, String.valueOf(stats));
+        assertConditionTimeout(2000L, 50L, () -> other.getDecompressedBytesReceived() == stats.getBytesSent() - stats.getBytesBypassed());
+      }
+    }
+    // incompressible data is sent as is, and the next frames skip compression
+    final StreamCompressor sender = new StreamCompressor(new CompressionStats()), receiver = new StreamCompressor(new CompressionStats());
+    final byte[] random = new byte[4096], compressed = new byte[4096];
+    new Random(42L).nextBytes(random);
+    final byte[] textBytes = text.substring(0, 1024).getBytes(StandardCharsets.US_ASCII);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // too short to be worth compressing, without skipping the next frames
+    assertTrue(sender.bypass(StreamCompressor.MIN_LENGTH - 1));
+    assertFalse(sender.bypass(textBytes.length));
+    int n = sender.compress(textBytes, 0, textBytes.length, compressed, 0);
+    assertTrue(n > 0);
+    receiver.decompress(compressed, 0, n, out, new byte[1024]);
+    assertEquals(-1, sender.compress(random, 0, random.length, compressed, 0));
+    receiver.uncompressedReceived();
+    assertTrue(sender.bypass(random.length));
+    assertFalse(sender.bypass(textBytes.length));
+    n = sender.compress(textBytes, 0, textBytes.length, compressed, 0);
+    assertTrue(n > 0);
+    receiver.decompress(compressed, 0, n, out, new byte[1024]);
+    assertEquals(new String(textBytes, StandardCharsets.US_ASCII) + new String(textBytes, StandardCharsets.US_ASCII), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    sender.endCompression();
+    receiver.endDecompression();
+  }
+
+  @Test()
+  public void testUpstreamPool() throws Exception {
+    final Config options = new Config();
+    options.setString(EntryDescriptor.UPSTREAM_POOL_OPTION, "2");
+    assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from("11000", "socks5", options));
+    // a target which sends a greeting as soon as it is connected to
+    final Forwarder forwarder = new Forwarder(EntryDescriptor.from("11000", "localhost:" + REMOTE_PORT, options));
+    try (final ServerSocket greeter = new ServerSocket(REMOTE_PORT + 1);
+      final Forwarder greeted = new Forwarder(EntryDescriptor.from("11001", "localhost:" + (REMOTE_PORT + 1), options))) {
+      new Thread(() -> {
+        try {
+          while (true) {
+            final Socket socket = greeter.accept();
+            socket.getOutputStream().write("220 ready\r\n".getBytes(StandardCharsets.US_ASCII));
+          }
+        } catch (@SuppressWarnings("unused") final IOException e) {
+          // closed at the end of the test
+        }
+      }).start();
+      for (final Forwarder f: Arrays.asList(forwarder, greeted)) new Thread(f).start();
+      assertConditionTimeout(2000L, 50L, () -> (forwarder.getUpstreamPool() != null) && (forwarder.getUpstreamPool().getIdleCount() == 2));
+      final UpstreamPool pool = forwarder.getUpstreamPool();
+      try (final ClientConnection client = new ClientConnection(11_000)) {
+        assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, "hello"), client.send("hello").receive());
+      }
+      assertEquals(1L, pool.getHits());
+      assertEquals(0L, pool.getMisses());
+      // refilled in the background
+      assertConditionTimeout(2000L, 50L, () -> pool.getIdleCount() == 2);
+      // the greeting is read by the check of the idle connections, then written to the client
+      assertConditionTimeout(2000L, 50L, () -> (greeted.getUpstreamPool() != null) && (greeted.getUpstreamPool().getIdleCount() == 2));
+      assertConditionTimeout(3L * UpstreamPool.CHECK_INTERVAL, 50L, () -> greeted.getUpstreamPool().getPendingCount() == 2);
+      try (final Socket socket = new Socket("localhost", 11_001)) {
+        socket.setSoTimeout(2000);
+        final byte[] greeting = new byte[11];
+        new DataInputStream(socket.getInputStream()).readFully(greeting);
+        assertEquals("220 ready\r\n", new String(greeting, StandardCharsets.US_ASCII));
+      }
+      assertEquals(1L, greeted.getUpstreamPool().getHits());
+      forwarder.close();
+      assertNull(forwarder.getUpstreamPool());
+      assertEquals(0, pool.getIdleCount());
+    } finally {
+      forwarder.close();
+    }
+  }
+
+  @Test()
+  public void testUpstreamPoolClosedConnections() throws Exception {
+    final Config options = new Config();
+    options.setString(EntryDescriptor.UPSTREAM_POOL_OPTION, "2");
+    // a target which greets only the connections accepted after it closed the first ones
+    final List<Socket> accepted = new ArrayList<>();
+    final boolean[] greet = { false };
+    try (final ServerSocket target = new ServerSocket(REMOTE_PORT + 1);
+      final Forwarder forwarder = new Forwarder(EntryDescriptor.from("11000", "localhost:" + (REMOTE_PORT + 1), options))) {
+      new Thread(() -> {
+        try {
+          while (true) {
+            final Socket socket = target.accept();
+            synchronized(accepted) {
+              accepted.add(socket);
+              if (greet[0]) socket.getOutputStream().write("220 fresh\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+          }
+        } catch (@SuppressWarnings("unused") final IOException e) {
+          // closed at the end of the test
+        }
+      }).start();
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> (forwarder.getUpstreamPool() != null) && (forwarder.getUpstreamPool().getIdleCount() == 2));
+      synchronized(accepted) {
+        for (final Socket socket: accepted) socket.close();
+        greet[0] = true;
+      }
+      // the closed connections are discarded when they are taken, before the next check of the idle connections
+      try (final Socket socket = new Socket("localhost", 11_000)) {
+        socket.setSoTimeout(2000);
+        final byte[] greeting = new byte[11];
+        new DataInputStream(socket.getInputStream()).readFully(greeting);
+        assertEquals("220 fresh\r\n", new String(greeting, StandardCharsets.US_ASCII));
+      }
+    } finally {
+      synchronized(accepted) {
+        for (final Socket socket: accepted) socket.close();
+      }
+    }
+  }
+
+  /**
+   * Check the target to which the specified first bytes of a connection are routed.
+   * @param router the router.
+   * @param expected the expected target.
+   * @param data the first bytes of the connection.
+   */
+  private static void assertRoute(final Router router, final String expected, final byte[] data) {
+    final Object[] result = Router.sniff(data, data.length, true);
+    assertEquals(expected, String.valueOf(router.route((Router.Kind) result[0], (String) result[1])));
+  }
+
+  @Test()
+  public void testUdpForwarding() throws Exception {
+    final EntryDescriptor desc = EntryDescriptor.from("udp:11000", "127.0.0.1:" + REMOTE_PORT);
+    assertEquals(Protocol.UDP, desc.getProtocol());
+    assertEquals("udp:11000=127.0.0.1:" + REMOTE_PORT, desc.toString());
+    final Config options = new Config();
+    options.setString(Protocol.OPTION, "udp");
+    assertEquals(desc, EntryDescriptor.from("11000", "127.0.0.1:" + REMOTE_PORT, options));
+    try (final DatagramSocket echo = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), REMOTE_PORT));
+      final Forwarder forwarder = new Forwarder(desc); final DatagramSocket client = new DatagramSocket()) {
+      new Thread(() -> {
+        final DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+        try {
+          while (true) {
+            echo.receive(packet);
+            echo.send(packet);
+          }
+        } catch (@SuppressWarnings("unused") final IOException e) {
+          // closed at the end of the test
+        }
+      }).start();
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+      client.setSoTimeout(2000);
+      for (final String msg: new String[] { "hello", "forwarder4j!" }) {
+        final byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        client.send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), 11_000));
+        final DatagramPacket response = new DatagramPacket(new byte[1024], 1024);
+        client.receive(response);
+        assertEquals(msg, new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8));
+      }
+      // both datagrams went through the same session
+      assertEquals(1L, forwarder.getStats().getTopConnections().get(0).getCount());
+      // the new sessions drop their datagrams while the target cannot be resolved, without holding up the relay
+      final byte[] bytes = "again".getBytes(StandardCharsets.UTF_8);
+      forwarder.reconfigure(EntryDescriptor.from("udp:11000", "unknown.invalid:" + REMOTE_PORT));
+      try (final DatagramSocket other = new DatagramSocket()) {
+        other.setSoTimeout(200);
+        other.send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), 11_000));
+        assertThrows(SocketTimeoutException.class, () -> other.receive(new DatagramPacket(new byte[1024], 1024)));
+        // the previous target is resolved again, in the background
+        forwarder.reconfigure(desc);
+        assertConditionTimeout(10_000L, 100L, (ThrowingCondition) () -> {
+          other.send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), 11_000));
+          other.receive(new DatagramPacket(new byte[1024], 1024));
+          return true;
+        });
+      }
+    }
+  }
+
+  @Test()
+  public void testUdpCloseWithSessions() throws Exception {
+    final EntryDescriptor desc = EntryDescriptor.from("udp:11000", "127.0.0.1:" + REMOTE_PORT);
+    final DatagramSocket[] clients = new DatagramSocket[3];
+    final byte[] bytes = "hello".getBytes(StandardCharsets.UTF_8);
+    try (final DatagramSocket echo = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), REMOTE_PORT))) {
+      new Thread(() -> {
+        final DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+        try {
+          while (true) {
+            echo.receive(packet);
+            echo.send(packet);
+          }
+        } catch (@SuppressWarnings("unused") final IOException e) {
+          // closed at the end of the test
+        }
+      }).start();
+      final Forwarder forwarder = new Forwarder(desc);
+      try {
+        new Thread(forwarder).start();
+        assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+        // each client has its own live session
+        for (int i=0; i<clients.length; i++) {
+          clients[i] = new DatagramSocket();
+          clients[i].setSoTimeout(2000);
+          clients[i].send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), 11_000));
+          clients[i].receive(new DatagramPacket(new byte[1024], 1024));
+        }
+        assertEquals(clients.length, forwarder.getStats().getTopConnections().get(0).getCount());
+      } finally {
+        forwarder.close();
+      }
+      // all the sessions are closed by the selector thread, which accounts for their pending bytes in both directions
+      final long expected = 2L * clients.length * bytes.length;
+      assertConditionTimeout(2000L, 50L, () -> !forwarder.getStats().getTopBytes().isEmpty() && (forwarder.getStats().getTopBytes().get(0).getCount() == expected));
+    } finally {
+      for (final DatagramSocket client: clients) {
+        if (client != null) client.close();
+      }
+    }
+  }
+
+  @Test()
+  public void testDirectRelay() throws Exception {
+    final int forwardingPort = 11_000;
+    final Config options = new Config();
+    options.setString(RelayMode.OPTION, "direct");
+    options.setString(EntryDescriptor.BUFFER_AUTO_OPTION, "true");
+    final EntryDescriptor desc = EntryDescriptor.from(forwardingPort, HostPort.from("localhost:" + REMOTE_PORT), options);
+    assertEquals(RelayMode.DIRECT, desc.getRelayMode());
+    try (final Forwarder forwarder = new Forwarder(desc)) {
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+      try (final ClientConnection connection = new ClientConnection(forwardingPort)) {
+        // larger than the relay buffers, so it is relayed in several chunks
+        final char[] chars = new char[100_000];
+        Arrays.fill(chars, 'x');
+        for (final String msg: new String[] { "hello forwarder4j!", new String(chars) }) {
+          final String response = connection.send(msg).receive();
+          assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, msg), response);
+        }
+      }
+    }
+    // a target which only responds once the client finished sending, as with a half-closed connection
+    try (final ServerSocket target = new ServerSocket(REMOTE_PORT + 1);
+      final Forwarder forwarder = new Forwarder(EntryDescriptor.from(forwardingPort, HostPort.from("localhost:" + (REMOTE_PORT + 1)), options))) {
+      new Thread(() -> {
+        try {
+          while (true) {
+            final Socket accepted = target.accept();
+            new Thread(() -> {
+              try (final Socket socket = accepted) {
+                int count = 0;
+                while (socket.getInputStream().read() >= 0) count++;
+                socket.getOutputStream().write(("received " + count).getBytes(StandardCharsets.US_ASCII));
+              } catch (@SuppressWarnings("unused") final IOException e) {
+                // closed by the client
+              }
+            }).start();
+          }
+        } catch (@SuppressWarnings("unused") final IOException e) {
+          // closed at the end of the test
+        }
+      }).start();
+      new Thread(forwarder).start();
+      assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+      try (final Socket socket = new Socket("localhost", forwardingPort)) {
+        socket.setSoTimeout(2000);
+        socket.getOutputStream().write("hello".getBytes(StandardCharsets.US_ASCII));
+        socket.shutdownOutput();
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int b;
+        while ((b = socket.getInputStream().read()) >= 0) response.write(b);
+        assertEquals("received 5", new String(response.toByteArray(), StandardCharsets.US_ASCII));
+      }
+    }
+  }
+
+  @Test()
+  public void testSendBatching() throws Exception {
+    final int batchSize = Utils.SEND_BATCH_SIZE;
+    Utils.SEND_BATCH_SIZE = 8;
+    try (final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+      final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+      final Socket peer = server.accept()) {
+      final Connection connection = new Connection(socket, new AdaptiveBuffer(Utils.BUFFER_MIN_SIZE, Utils.BUFFER_MAX_SIZE));
+      try {
+        // queued before the sender starts: batches of at most 8 bytes, a buffer larger than a batch,
+        // then the end of the stream in the middle of a batch, after which nothing is sent
+        for (final String part: new String[] { "abc", "def", "gh", "ijklmnopqrst", "uv", "wx", "", "yz" }) {
+          final byte[] data = BufferPool.acquire(0);
+          System.arraycopy(part.getBytes(StandardCharsets.UTF_8), 0, data, 0, part.length());
+          connection.offer(part.isEmpty() ? new byte[0] : data, part.length());
+        }
+        connection.run();
+        final String expected = "abcdefghijklmnopqrstuvwx";
+        final byte[] received = new byte[expected.length()];
+        peer.setSoTimeout(5000);
+        new DataInputStream(peer.getInputStream()).readFully(received);
+        assertEquals(expected, new String(received, StandardCharsets.UTF_8));
+        peer.setSoTimeout(500);
+        assertThrows(SocketTimeoutException.class, () -> peer.getInputStream().read());
+      } finally {
+        connection.close();
+      }
+    } finally {
+      Utils.SEND_BATCH_SIZE = batchSize;
+    }
+  }
+
+  @Test()
+  public void testSocketProfiles() throws Exception {
+    final Config config = new Config();
+    config.setString("forwarder4j.socket.buffer.size", "65536");
+    config.setString("forwarder4j.socket.profile.interactive.keepalive", "true");
+    config.setString("forwarder4j.socket.profile.interactive.linger", "0");
+    config.setString("forwarder4j.socket.profile.interactive.traffic_class", "0x10");
+    config.setString("forwarder4j.socket.profile.bulk.tcp_nodelay", "false");
+    config.setString("forwarder4j.socket.profile.bulk.send.buffer.size", "262144");
+    config.setString("forwarder4j.socket.profile.bad.linger", "abc");
+    SocketProfile.load(config);
+    try {
+      assertTrue(SocketProfile.exists("interactive"));
+      assertTrue(SocketProfile.exists("bulk"));
+      assertFalse(SocketProfile.exists("bad"));
+      try (final Socket socket = new Socket()) {
+        SocketProfile.get("interactive").applyTo(socket);
+        assertTrue(socket.getTcpNoDelay());
+        assertTrue(socket.getKeepAlive());
+        assertEquals(0, socket.getSoLinger());
+      }
+      try (final Socket socket = new Socket()) {
+        SocketProfile.get("bulk").applyTo(socket);
+        assertFalse(socket.getTcpNoDelay());
+        assertFalse(socket.getKeepAlive());
+        assertEquals(-1, socket.getSoLinger());
+      }
+      final Config options = new Config();
+      options.setString(EntryDescriptor.CLIENT_PROFILE_OPTION, "interactive");
+      options.setString(EntryDescriptor.UPSTREAM_PROFILE_OPTION, "bulk");
+      options.setString(EntryDescriptor.BUFFER_AUTO_OPTION, "true");
+      final EntryDescriptor desc = EntryDescriptor.from(11_000, HostPort.from("localhost:" + REMOTE_PORT), options);
+      assertEquals("interactive", desc.getClientProfile().getName());
+      assertEquals("bulk", desc.getUpstreamProfile().getName());
+      try (final Forwarder forwarder = new Forwarder(desc)) {
+        new Thread(forwarder).start();
+        assertConditionTimeout(2000L, 50L, () -> forwarder.isBound());
+        try (final ClientConnection connection = new ClientConnection(11_000)) {
+          final String msg = "hello forwarder4j!";
+          assertEquals(String.format(ServerConnection.RESPONSE_FORMAT, REMOTE_PORT, msg), connection.send(msg).receive());
+        }
+      }
+      options.setString(EntryDescriptor.UPSTREAM_PROFILE_OPTION, "unknown");
+      assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from(11_000, HostPort.from("localhost:" + REMOTE_PORT), options));
+    } finally {
+      SocketProfile.load(Config.getConfiguration());
+    }
+  }
+
   @Test()
   public void testSimpleForwarderMain() throws Exception {
     final Integer[] ports = { 11000, 11001 };
@@ -0,0 +1,121 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.acl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import org.forwarder4j.BaseTest;
+import org.forwarder4j.Config;
+import org.forwarder4j.EntryDescriptor;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ * @author Laurent Cohen
+ */
+public class TestAccessControl extends BaseTest {
+  @Test()
+  public void testLongestPrefixMatch() throws Exception {
+    final CidrTrie trie = new CidrTrie()
+      .add(address("10.0.0.0"), 8, (byte) 1)
+      .add(address("10.1.0.0"), 16, (byte) 2)
+      .add(address("10.1.2.3"), 32, (byte) 3)
+      .add(address("fd00::"), 8, (byte) 4)
+      .compact();
+    assertEquals(1, trie.lookup(address("10.200.0.1")));
+    assertEquals(2, trie.lookup(address("10.1.0.1")));
+    assertEquals(3, trie.lookup(address("10.1.2.3")));
+    assertEquals(CidrTrie.NO_MATCH, trie.lookup(address("11.0.0.1")));
+    assertEquals(4, trie.lookup(address("fd12::1")));
+    assertEquals(CidrTrie.NO_MATCH, trie.lookup(address("fe80::1")));
+  }
+
+  @Test()
+  public void testAllowAndDeny() throws Exception {
+    final AccessControl acl = new AccessControl("10.0.0.0/8, fd00::/8", "10.1.0.0/16");
+    assertTrue(acl.isAllowed(InetAddress.getByName("10.2.3.4")));
+    assertTrue(acl.isAllowed(InetAddress.getByName("fd00::1")));
+    assertFalse(acl.isAllowed(InetAddress.getByName("10.1.3.4")));
+    assertFalse(acl.isAllowed(InetAddress.getByName("192.168.1.1")));
+    assertFalse(acl.isAllowed(InetAddress.getByName("::1")));
+    final AccessControl denyOnly = new AccessControl(null, "127.0.0.1 ::ffff:192.168.0.0/112");
+    assertFalse(denyOnly.isAllowed(InetAddress.getByName("127.0.0.1")));
+    assertFalse(denyOnly.isAllowed(InetAddress.getByName("192.168.3.4")));
+    assertTrue(denyOnly.isAllowed(InetAddress.getByName("127.0.0.2")));
+    assertThrows(IllegalArgumentException.class, () -> new AccessControl("10.0.0.0/33", null));
+    assertThrows(IllegalArgumentException.class, () -> new AccessControl("localhost", null));
+  }
+
+  @Test()
+  public void testDestinationFilter() throws Exception {
+    final DestinationFilter filter = new DestinationFilter("db.mysite.com:5432, *.internal:80-443, 10.0.0.0/8, [fd00::]/8:22");
+    final InetAddress address = InetAddress.getByName("192.168.1.1");
+    assertTrue(filter.isAllowed("DB.mysite.com", address, 5432));
+    assertFalse(filter.isAllowed("db.mysite.com", address, 5433));
+    assertTrue(filter.isAllowed("www.internal", address, 443));
+    assertFalse(filter.isAllowed("internal", address, 443));
+    assertFalse(filter.isAllowed("www.internal", address, 8080));
+    assertTrue(filter.isAllowed("anything", InetAddress.getByName("10.1.2.3"), 8080));
+    assertTrue(filter.isAllowed(null, InetAddress.getByName("fd00::1"), 22));
+    assertFalse(filter.isAllowed(null, InetAddress.getByName("fd00::1"), 23));
+    // names are only matched against the requested name
+    assertFalse(filter.isAllowed(null, address, 5432));
+    // a name is only resolved if a name rule allows it, or a CIDR range may allow it
+    assertTrue(filter.isAllowedByName("www.internal", 80));
+    assertFalse(filter.isAllowedByName("www.internal", 22));
+    assertTrue(filter.hasAddressRule(22));
+    assertFalse(new DestinationFilter("db.mysite.com:5432, [fd00::]/8:22").hasAddressRule(80));
+    assertTrue(new DestinationFilter("*:80").isAllowedByName("anything", 80));
+    // a name which cannot be allowed is rejected without a lookup, which would fail for this one
+    assertNull(new DestinationFilter("db.mysite.com:5432, [fd00::]/8:22").resolve("unknown.invalid", null, 80));
+    assertEquals(InetAddress.getByName("localhost"), new DestinationFilter("localhost:80").resolve("localhost", null, 80));
+    assertNull(filter.resolve(null, address, 5432));
+    assertTrue(new DestinationFilter("*").isAllowed(null, address, 1));
+    assertThrows(IllegalArgumentException.class, () -> new DestinationFilter("10.0.0.0/33"));
+    assertThrows(IllegalArgumentException.class, () -> new DestinationFilter("host:0"));
+    assertThrows(IllegalArgumentException.class, () -> new DestinationFilter("ho st?:80"));
+  }
+
+  @Test()
+  public void testOptionsFromConfig() throws Exception {
+    final Config config = new Config();
+    config.setString("forwarder4j.service.8080", "localhost:80");
+    config.setString("forwarder4j.service.8080.allow", "10.0.0.0/8");
+    config.setString("forwarder4j.service.8080.deny", "10.1.0.0/16");
+    config.setString("forwarder4j.service.8081", "localhost:81");
+    config.setString("forwarder4j.service.8082", "localhost:82");
+    config.setString("forwarder4j.service.8082.allow", "not a range");
+    final List<EntryDescriptor> entries = EntryDescriptor.fromConfig(config);
+    assertEquals(2, entries.size());
+    final EntryDescriptor desc = entries.get(0);
+    assertEquals(8080, desc.getPort());
+    assertEquals("10.0.0.0/8", desc.getOptions().getString("allow"));
+    assertNotNull(desc.getAccessControl());
+    assertFalse(desc.getAccessControl().isAllowed(InetAddress.getByName("10.1.0.1")));
+    assertEquals(8081, entries.get(1).getPort());
+    assertNull(entries.get(1).getAccessControl());
+  }
+
+  private static byte[] address(final String literal) throws Exception {
+    return InetAddress.getByName(literal).getAddress();
+  }
+}
@@ -19,9 +19,25 @@
 package org.forwarder4j.admin;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.forwarder4j.BaseTest;
+import org.forwarder4j.EntryDescriptor;
 import org.forwarder4j.Forwarder;
+import org.forwarder4j.test.ClientConnection;
 import org.forwarder4j.test.Server;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -66,4 +82,294 @@ public class TestAdmin extends BaseTest {
     output = Admin.executeCommand("localhost", 8192, "list").trim();
     assertEquals("No entry defined", output);
   }
+
+  @Test()
+  public void testApplyChanges() throws Exception {
+    final Admin admin = Forwarder.getAdmin();
+    final Map<Integer, EntryDescriptor> previous = new TreeMap<>();
+    previous.put(11000, EntryDescriptor.from("11000", "localhost:10000"));
+    previous.put(11001, EntryDescriptor.from("11001", "localhost:10000"));
+    admin.applyChanges(new TreeMap<>(), previous);
+    String output = Admin.executeCommand("localhost", 8192, "list").trim();
+    assertEquals("List of entries:\n- 11000=localhost:10000\n- 11001=localhost:10000", output);
+    // port 11002 is defined outside of the configuration and must not be changed
+    output = Admin.executeCommand("localhost", 8192, "+11002=localhost:10000").trim();
+    final Map<Integer, EntryDescriptor> desired = new TreeMap<>();
+    desired.put(11000, EntryDescriptor.from("11000", "localhost:10001"));
+    desired.put(11002, EntryDescriptor.from("11002", "localhost:10001"));
+    desired.put(11003, EntryDescriptor.from("11003", "localhost:10000"));
+    final Forwarder forwarder = admin.getForwarderMap().get(11000);
+    admin.applyChanges(previous, desired);
+    assertEquals(forwarder, admin.getForwarderMap().get(11000));
+    output = Admin.executeCommand("localhost", 8192, "list").trim();
+    assertEquals("List of entries:\n- 11000=localhost:10001\n- 11002=localhost:10000\n- 11003=localhost:10000", output);
+    output = Admin.executeCommand("localhost", 8192, "-11000;-11002;-11003").trim();
+    assertEquals("port definition for '11000' was removed\nport definition for '11002' was removed\nport definition for '11003' was removed", output);
+  }
+
+  @Test()
+  public void testApplyChangesBindsWithoutLock() throws Exception {
+    final Admin admin = Forwarder.getAdmin();
+    final Map<Integer, EntryDescriptor> previous = new TreeMap<>(), desired = new TreeMap<>();
+    previous.put(11000, EntryDescriptor.from("127.0.0.1:11000", "localhost:10000"));
+    previous.put(11002, EntryDescriptor.from("11002", "localhost:10000"));
+    admin.applyChanges(new TreeMap<>(), previous);
+    // 127.0.0.2:11000 is already in use, so the new addresses keep being retried before the previous definition is restored
+    desired.put(11000, EntryDescriptor.from("127.0.0.1:11000,127.0.0.2:11000", "localhost:10000"));
+    // port 10000 is already in use as well
+    desired.put(10000, EntryDescriptor.from("10000", "localhost:10000"));
+    final ServerSocket socket = new ServerSocket(11000, 0, InetAddress.getByName("127.0.0.2"));
+    final List<String> messages;
+    try {
+      final CompletableFuture<List<String>> changes = CompletableFuture.supplyAsync(() -> {
+        try {
+          return admin.applyChanges(previous, desired);
+        } catch (final Exception e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      // meanwhile, other changes are not blocked
+      final String output = Admin.executeCommand("localhost", 8192, "+11005=localhost:10000").trim();
+      assertEquals("forwarding port 11005 to localhost:10000", output);
+      assertFalse(changes.isDone());
+      messages = changes.get(30L, TimeUnit.SECONDS);
+    } finally {
+      socket.close();
+    }
+    assertEquals(3, messages.size(), messages.toString());
+    assertEquals("port definition for '11002' was removed", messages.get(0));
+    assertTrue(messages.get(1).startsWith("port 10000 could not be bound ("), messages.toString());
+    assertTrue(messages.get(2).startsWith("port 11000 could not be bound ("), messages.toString());
+    String output = Admin.executeCommand("localhost", 8192, "list").trim();
+    assertEquals("List of entries:\n- 127.0.0.1:11000=localhost:10000\n- 11005=localhost:10000", output);
+    output = Admin.executeCommand("localhost", 8192, "-11000;-11005").trim();
+    assertEquals("port definition for '11000' was removed\nport definition for '11005' was removed", output);
+  }
+
+  @Test()
+  public void testApplyOutput() throws Exception {
+    String output = Admin.executeCommand("localhost", 8192, "+11002=localhost:10000").trim();
+    output = Admin.executeCommand("localhost", 8192, "apply 11000=localhost:10000 11001=localhost:10000").trim();
+    assertEquals("apply committed: 2 added, 0 changed, 1 removed, 0 unchanged\n" +
+      "port 11002: removed\nport 11000: added, forwarding to localhost:10000\nport 11001: added, forwarding to localhost:10000", output);
+    try (final ClientConnection connection = new ClientConnection(11001)) {
+      assertEquals("response from 10000: hello", connection.send("hello").receive());
+    }
+    // invalid definitions: nothing is changed
+    output = Admin.executeCommand("localhost", 8192, "apply 11000=localhost:10001 11000=localhost:10002 abc").trim();
+    assertEquals("apply rejected, no change was made:\nport 11000: defined more than once\n" +
+      "'abc': invalid definition ('abc' is not a valid forwarding definition, ignoring it)", output);
+    // port 10000 is already in use: nothing is changed
+    output = Admin.executeCommand("localhost", 8192, "apply 11000=localhost:10001 11003=localhost:10000 10000=localhost:10000").trim();
+    assertTrue(output.startsWith("apply rolled back, no change was made:\nport 10000: could not be bound ("), output);
+    assertTrue(output.endsWith("\nport 11003: rolled back"), output);
+    output = Admin.executeCommand("localhost", 8192, "list").trim();
+    assertEquals("List of entries:\n- 11000=localhost:10000\n- 11001=localhost:10000", output);
+    output = Admin.executeCommand("localhost", 8192, "apply 11000=localhost:10001 11001=localhost:10000").trim();
+    assertEquals("apply committed: 0 added, 1 changed, 0 removed, 1 unchanged\n" +
+      "port 11000: changed, forwarding to localhost:10001\nport 11001: unchanged", output);
+    // the new listen addresses must be bound once the current ones are released: nothing is changed
+    output = Admin.executeCommand("localhost", 8192, "apply 11000=localhost:10000 127.0.0.1:11001=localhost:10000").trim();
+    assertEquals("apply rejected, no change was made:\n" +
+      "port 11001: the new local ports or listen addresses overlap the current ones, use '+' to change them", output);
+    output = Admin.executeCommand("localhost", 8192, "list").trim();
+    assertEquals("List of entries:\n- 11000=localhost:10001\n- 11001=localhost:10000", output);
+    output = Admin.executeCommand("localhost", 8192, "apply").trim();
+    assertEquals("apply committed: 0 added, 0 changed, 2 removed, 0 unchanged\nport 11000: removed\nport 11001: removed", output);
+  }
+
+  @Test()
+  public void testApplyBindsWithoutLock() throws Exception {
+    // port 10000 is already in use, so this apply keeps retrying to bind it before it is rolled back
+    final CompletableFuture<String> apply = CompletableFuture.supplyAsync(() -> {
+      try {
+        return Admin.executeCommand("localhost", 8192, "apply 11000=localhost:10000 10000=localhost:10000").trim();
+      } catch (final Exception e) {
+        return e.toString();
+      }
+    });
+    // meanwhile, other changes are not blocked
+    String output = Admin.executeCommand("localhost", 8192, "+11005=localhost:10000").trim();
+    assertEquals("forwarding port 11005 to localhost:10000", output);
+    assertFalse(apply.isDone());
+    output = apply.get(30L, TimeUnit.SECONDS);
+    assertTrue(output.startsWith("apply rolled back, no change was made:\nport 10000: could not be bound ("), output);
+    output = Admin.executeCommand("localhost", 8192, "-11005").trim();
+    assertEquals("port definition for '11005' was removed", output);
+  }
+
+  @Test()
+  public void testListFilters() throws Exception {
+    String output = Admin.executeCommand("localhost", 8192, "+11000=localhost:10000;+11001=127.0.0.1:10000;+11002=localhost:10001;+11003=LOCALHOST:10000").trim();
+    output = Admin.executeCommand("localhost", 8192, "list 11001-11002").trim();
+    assertEquals("List of entries:\n- 11001=127.0.0.1:10000\n- 11002=localhost:10001", output);
+    output = Admin.executeCommand("localhost", 8192, "list 11002").trim();
+    assertEquals("List of entries:\n- 11002=localhost:10001", output);
+    output = Admin.executeCommand("localhost", 8192, "list target=local*:10000").trim();
+    assertEquals("List of entries:\n- 11000=localhost:10000\n- 11003=LOCALHOST:10000", output);
+    output = Admin.executeCommand("localhost", 8192, "list 11001-11003 target=?ocalhost:*").trim();
+    assertEquals("List of entries:\n- 11002=localhost:10001\n- 11003=LOCALHOST:10000", output);
+    output = Admin.executeCommand("localhost", 8192, "list limit=2").trim();
+    assertEquals("List of entries:\n- 11000=localhost:10000\n- 11001=127.0.0.1:10000\n- ... more entries, next page with offset=2", output);
+    output = Admin.executeCommand("localhost", 8192, "list offset=2 limit=2").trim();
+    assertEquals("List of entries:\n- 11002=localhost:10001\n- 11003=LOCALHOST:10000", output);
+    output = Admin.executeCommand("localhost", 8192, "list 12000-12999").trim();
+    assertEquals("No matching entry", output);
+    output = Admin.executeCommand("localhost", 8192, "list limit=0").trim();
+    assertEquals("'limit=0' is not a valid list filter", output);
+    output = Admin.executeCommand("localhost", 8192, "list 11002-11001").trim();
+    assertEquals("'11002-11001' is not a valid port range", output);
+    output = Admin.executeCommand("localhost", 8192, "-11000;-11001;-11002;-11003").trim();
+  }
+
+  @Test()
+  public void testRequestFormats() throws Exception {
+    // the format of the released clients
+    for (final String command: new String[] { "list 12000-12999", "" }) {
+      try (final Socket socket = new Socket("localhost", 8192)) {
+        final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF(command);
+        out.flush();
+        final String expected = command.isEmpty() ? "Command not understood, ignoring it:" : "No matching entry";
+        assertEquals(expected, new DataInputStream(socket.getInputStream()).readUTF().trim());
+      }
+    }
+    // a request larger than 64 KB is sent after a header
+    final StringBuilder sb = new StringBuilder("list");
+    for (int i=0; i<70_000; i++) sb.append(' ');
+    assertEquals("No matching entry", Admin.executeCommand("localhost", 8192, sb.append("12000-12999").toString()).trim());
+    // a request larger than the maximum length is rejected before it is read
+    try (final Socket socket = new Socket("localhost", 8192)) {
+      final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeInt(Admin.LONG_REQUEST_HEADER);
+      out.writeInt(Integer.MAX_VALUE);
+      out.flush();
+      assertEquals(-1, socket.getInputStream().read());
+    }
+  }
+
+  @Test()
+  public void testPipelinedClient() throws Exception {
+    try (final AdminClient client = new AdminClient("localhost", 8192)) {
+      assertEquals("forwarding port 11000 to localhost:10000", client.execute("+11000=localhost:10000").trim());
+      final List<CompletableFuture<String>> futures = new ArrayList<>();
+      for (int i=0; i<50; i++) futures.add(client.submit((i % 2 == 0) ? "list 11000" : "top 11001"));
+      // a single-request client is served while the pipelined connection is open
+      assertEquals("List of entries:\n- 11000=localhost:10000", Admin.executeCommand("localhost", 8192, "list").trim());
+      for (int i=0; i<50; i++) {
+        final String expected = (i % 2 == 0) ? "List of entries:\n- 11000=localhost:10000" : "port '11001' is not defined";
+        assertEquals(expected, futures.get(i).get(5L, TimeUnit.SECONDS).trim());
+      }
+      assertEquals("port definition for '11000' was removed", client.execute("-11000").trim());
+    }
+  }
+
+  @Test()
+  public void testConnectionLimits() throws Exception {
+    // a pipelined request larger than the maximum length closes the connection before it is read
+    try (final Socket socket = new Socket("localhost", 8192)) {
+      final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeInt(Admin.PIPELINE_HEADER);
+      out.writeInt(1);
+      out.writeInt(Integer.MAX_VALUE);
+      out.flush();
+      assertEquals(-1, socket.getInputStream().read());
+    }
+    // beyond the maximum number of connections, a new connection is closed right away
+    final List<Socket> idle = new ArrayList<>();
+    try {
+      for (int i=0; i<16; i++) idle.add(new Socket("localhost", 8192));
+      try (final Socket socket = new Socket("localhost", 8192)) {
+        socket.setSoTimeout(5000);
+        assertEquals(-1, socket.getInputStream().read());
+      }
+    } finally {
+      for (final Socket socket: idle) socket.close();
+    }
+    assertConditionTimeout(5000L, 50L, (ThrowingCondition) () -> "No matching entry".equals(Admin.executeCommand("localhost", 8192, "list 12000").trim()));
+  }
+
+  @Test()
+  public void testConcurrentSet() throws Exception {
+    final List<CompletableFuture<String>> futures = new ArrayList<>();
+    for (int i=0; i<8; i++) {
+      final String command = "+11000=localhost:" + (REMOTE_PORT + (i % 2));
+      futures.add(CompletableFuture.supplyAsync(() -> {
+        try {
+          return Admin.executeCommand("localhost", 8192, command).trim();
+        } catch (final Exception e) {
+          return e.toString();
+        }
+      }));
+    }
+    for (final CompletableFuture<String> future: futures) {
+      final String output = future.get(30L, TimeUnit.SECONDS);
+      assertTrue(output.startsWith("forwarding port 11000 to ") || output.startsWith("port 11000 could not be bound ("), output);
+    }
+    assertEquals(1, Forwarder.getAdmin().getForwarderMap().size());
+    String output = Admin.executeCommand("localhost", 8192, "-11000").trim();
+    assertEquals("port definition for '11000' was removed", output);
+    // no forwarder was left bound to the local port without being registered, once the closed one has released it
+    assertConditionTimeout(5000L, 50L, (ThrowingCondition) () -> {
+      new ServerSocket(11000).close();
+      return true;
+    });
+  }
+
+  @Test()
+  public void testFailedRebindKeepsForwarder() throws Exception {
+    String output = Admin.executeCommand("localhost", 8192, "+127.0.0.1:11000=localhost:10000").trim();
+    assertEquals("forwarding port 11000 to localhost:10000", output);
+    final Forwarder forwarder = Forwarder.getAdmin().getForwarderMap().get(11000);
+    // 127.0.0.2:11000 is already in use, so the new address cannot be bound and the previous definition is restored
+    final ServerSocket socket = new ServerSocket(11000, 0, InetAddress.getByName("127.0.0.2"));
+    try {
+      output = Admin.executeCommand("localhost", 8192, "+127.0.0.2:11000=localhost:10000").trim();
+      assertTrue(output.startsWith("port 11000 could not be bound ("), output);
+    } finally {
+      socket.close();
+    }
+    assertTrue(forwarder.isClosed());
+    output = Admin.executeCommand("localhost", 8192, "list").trim();
+    assertEquals("List of entries:\n- 127.0.0.1:11000=localhost:10000", output);
+    try (final ClientConnection connection = new ClientConnection(11000)) {
+      assertEquals("response from 10000: hello", connection.send("hello").receive());
+    }
+    output = Admin.executeCommand("localhost", 8192, "-11000").trim();
+    assertEquals("port definition for '11000' was removed", output);
+  }
+
+  @Test()
+  public void testStartAll() throws Exception {
+    final Admin admin = Forwarder.getAdmin();
+    assertTrue(admin.awaitReady(5L, TimeUnit.SECONDS));
+    final List<EntryDescriptor> entries = new ArrayList<>();
+    entries.add(EntryDescriptor.from("11000", "localhost:10000"));
+    entries.add(EntryDescriptor.from("11001", "localhost:10000"));
+    entries.add(EntryDescriptor.from("11000", "localhost:10001"));
+    // already bound by the test server, so this one is retried then dropped
+    entries.add(EntryDescriptor.from(Integer.toString(REMOTE_PORT), "localhost:10000"));
+    assertEquals(2, admin.startAll(entries));
+    String output = Admin.executeCommand("localhost", 8192, "list").trim();
+    assertEquals("List of entries:\n- 11000=localhost:10000\n- 11001=localhost:10000", output);
+    output = Admin.executeCommand("localhost", 8192, "ready").trim();
+    assertTrue(output.startsWith("ready: 2 local port(s) bound in ") && output.endsWith(" ms, 1 failed"), output);
+    output = Admin.executeCommand("localhost", 8192, "-11000;-11001").trim();
+    assertEquals("port definition for '11000' was removed\nport definition for '11001' was removed", output);
+  }
+
+  @Test()
+  public void testTopOutput() throws Exception {
+    String output = Admin.executeCommand("localhost", 8192, "+11000=localhost:10000").trim();
+    assertEquals("forwarding port 11000 to localhost:10000", output);
+    try (final ClientConnection connection = new ClientConnection(11000)) {
+      connection.send("hello").receive();
+    }
+    output = Admin.executeCommand("localhost", 8192, "top 11000").trim();
+    assertTrue(output.startsWith("client statistics for 11000=localhost:10000:\ndistinct clients: ~1\ntop clients by connections:\n- 127.0.0.1=1 (+/- 0)"), output);
+    output = Admin.executeCommand("localhost", 8192, "top 11001").trim();
+    assertEquals("port '11001' is not defined", output);
+    output = Admin.executeCommand("localhost", 8192, "-11000").trim();
+    assertEquals("port definition for '11000' was removed", output);
+  }
 }
@@ -0,0 +1,170 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.buffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.forwarder4j.BaseTest;
+import org.forwarder4j.Config;
+import org.forwarder4j.EntryDescriptor;
+import org.forwarder4j.HostPort;
+import org.forwarder4j.utils.Utils;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ * @author Laurent Cohen
+ */
+public class TestAdaptiveBuffer extends BaseTest {
+  @Test()
+  public void testSizeClasses() throws Exception {
+    assertEquals(0, BufferPool.sizeClass(1));
+    assertEquals(0, BufferPool.sizeClass(BufferPool.MIN_SIZE));
+    assertEquals(1, BufferPool.sizeClass(BufferPool.MIN_SIZE + 1));
+    assertEquals(BufferPool.sizeClassCount() - 1, BufferPool.sizeClass(Integer.MAX_VALUE));
+    for (int i=0; i<BufferPool.sizeClassCount(); i++) assertEquals(i, BufferPool.sizeClass(BufferPool.sizeOf(i)));
+    assertEquals(16 * 1024, BufferPool.sizeOf(BufferPool.sizeClass(12 * 1024)));
+  }
+
+  @Test()
+  public void testGrowAndShrink() throws Exception {
+    final AdaptiveBuffer buffer = new AdaptiveBuffer(1024, 64 * 1024);
+    assertEquals(1024, buffer.get().length);
+    // full reads grow the buffer 4 times at once, up to the maximum
+    buffer.record(1024);
+    assertEquals(4 * 1024, buffer.get().length);
+    buffer.record(4 * 1024);
+    assertEquals(16 * 1024, buffer.get().length);
+    buffer.record(16 * 1024);
+    assertEquals(64 * 1024, buffer.get().length);
+    buffer.record(64 * 1024);
+    assertEquals(64 * 1024, buffer.get().length);
+    // a single small read does not shrink the buffer, two consecutive ones do
+    buffer.record(100);
+    assertEquals(64 * 1024, buffer.size());
+    buffer.record(40_000);
+    buffer.record(100);
+    assertEquals(64 * 1024, buffer.size());
+    buffer.record(100);
+    assertEquals(32 * 1024, buffer.size());
+    for (int i=0; i<20; i++) buffer.record(100);
+    assertEquals(1024, buffer.get().length);
+    buffer.release();
+  }
+
+  @Test()
+  public void testPoolReuse() throws Exception {
+    final int sizeClass = BufferPool.sizeClass(8 * 1024);
+    final byte[] array = BufferPool.acquire(sizeClass);
+    BufferPool.release(array);
+    assertSame(array, BufferPool.acquire(sizeClass));
+    // the most recently released array is reused first
+    final byte[] other = BufferPool.acquire(sizeClass);
+    BufferPool.release(array);
+    BufferPool.release(other);
+    assertSame(other, BufferPool.acquire(sizeClass));
+    assertSame(array, BufferPool.acquire(sizeClass));
+    // arrays whose size is not a size class are not pooled
+    BufferPool.release(new byte[1000]);
+    assertEquals(1024, BufferPool.acquire(BufferPool.sizeClass(1000)).length);
+  }
+
+  @Test()
+  public void testBdpTuner() throws Exception {
+    // remote target: 50 ms round trip, the transfers are limited by the buffer size, which doubles up to the maximum
+    final BdpTuner remote = new BdpTuner("remote:80", 32 * 1024);
+    remote.connected(50_000_000L);
+    long previous = remote.getBufferSize();
+    for (int i=0; i<20; i++) {
+      // 90% of the throughput allowed by the current buffer size, over 100 ms
+      remote.sample((long) (0.9d * remote.getBufferSize() / 0.05d * 0.1d), 100_000_000L);
+      assertTrue(remote.getBufferSize() >= previous);
+      previous = remote.getBufferSize();
+    }
+    assertEquals(Utils.BUFFER_AUTO_MAX_SIZE, remote.getBufferSize());
+    // local target: 100 us round trip, 100 MB/s needs about 2 * 10 KB
+    final BdpTuner local = new BdpTuner("local:80", 32 * 1024);
+    local.connected(100_000L);
+    local.sample(10_000_000L, 100_000_000L);
+    assertEquals(20_000, local.getBufferSize());
+    // the estimate decreases slowly
+    local.sample(100L, 100_000_000L);
+    assertTrue(local.getBufferSize() > Utils.BUFFER_AUTO_MIN_SIZE);
+    for (int i=0; i<20; i++) local.sample(100L, 100_000_000L);
+    assertEquals(Utils.BUFFER_AUTO_MIN_SIZE, local.getBufferSize());
+    // no estimate before the round-trip time is known
+    final BdpTuner unknown = new BdpTuner("unknown:80", 32 * 1024);
+    unknown.sample(10_000_000L, 100_000_000L);
+    assertEquals(32 * 1024, unknown.getBufferSize());
+    // the range of the tuned sizes is reloaded along with the other settings
+    final Config config = new Config();
+    config.setString("forwarder4j.buffer.auto.max", "65536");
+    try {
+      Utils.loadSettings(config);
+      remote.sample((long) (0.9d * remote.getBufferSize() / 0.05d * 0.1d), 100_000_000L);
+      assertEquals(64 * 1024, remote.getBufferSize());
+    } finally {
+      Utils.loadSettings(Config.getConfiguration());
+    }
+  }
+
+  @Test()
+  public void testDeprecatedBufferSize() throws Exception {
+    final Config config = new Config();
+    config.setString("forwarder4j.temp.buffer.size", "65536");
+    try {
+      // used as the maximum size when none is set
+      Utils.loadSettings(config);
+      assertEquals(64 * 1024, Utils.BUFFER_MAX_SIZE);
+      // ignored otherwise
+      config.setString("forwarder4j.buffer.max", "131072");
+      Utils.loadSettings(config);
+      assertEquals(128 * 1024, Utils.BUFFER_MAX_SIZE);
+    } finally {
+      Utils.loadSettings(Config.getConfiguration());
+    }
+  }
+
+  @Test()
+  public void testForwarderOptions() throws Exception {
+    final HostPort target = HostPort.from("localhost:" + REMOTE_PORT);
+    final Config options = new Config();
+    options.setString(EntryDescriptor.BUFFER_MIN_OPTION, "512");
+    options.setString(EntryDescriptor.BUFFER_MAX_OPTION, "8192");
+    EntryDescriptor desc = EntryDescriptor.from(11000, target, options);
+    assertEquals(512, desc.getBufferMinSize());
+    assertEquals(8192, desc.getBufferMaxSize());
+    assertFalse(desc.isBufferAutoTuning());
+    options.setString(EntryDescriptor.BUFFER_AUTO_OPTION, "true");
+    assertTrue(EntryDescriptor.from(11000, target, options).isBufferAutoTuning());
+    options.setString(EntryDescriptor.BUFFER_AUTO_OPTION, "yes");
+    assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from(11000, target, options));
+    options.remove(EntryDescriptor.BUFFER_AUTO_OPTION);
+    // a minimum size larger than the global maximum raises the maximum
+    final Config minOnly = new Config();
+    minOnly.setString(EntryDescriptor.BUFFER_MIN_OPTION, "1048576");
+    desc = EntryDescriptor.from(11000, target, minOnly);
+    assertEquals(1048576, desc.getBufferMinSize());
+    assertEquals(1048576, desc.getBufferMaxSize());
+    options.setString(EntryDescriptor.BUFFER_MIN_OPTION, "16384");
+    assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from(11000, target, options));
+    options.setString(EntryDescriptor.BUFFER_MIN_OPTION, "abc");
+    assertThrows(IllegalArgumentException.class, () -> EntryDescriptor.from(11000, target, options));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Fowarder4j.
+ * Copyright (C) 2015-2019 Fowarder4j Team.
+ * https://github.com/lolocohen/forwarder4j
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.forwarder4j.stats;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import org.forwarder4j.BaseTest;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ * @author Laurent Cohen
+ */
+public class TestClientStats extends BaseTest {
+  @Test()
+  public void testSpaceSavingHeavyHitters() throws Exception {
+    final SpaceSaving<String> sketch = new SpaceSaving<>(10);
+    // interleave 3 heavy hitters with a large number of distinct light keys,
+    // each heavy hitter is above the guaranteed threshold of total count / capacity
+    for (int i=0; i<10_000; i++) {
+      sketch.add("light-" + i, 1L);
+      if (i % 2 == 0) sketch.add("heavy-1", 3L);
+      sketch.add("heavy-2", 1L);
+      if (i % 4 == 0) sketch.add("heavy-3", 3L);
+    }
+    final List<SpaceSaving.Entry<String>> top = sketch.top(3);
+    assertEquals(3, top.size());
+    assertEquals("heavy-1", top.get(0).getKey());
+    assertEquals("heavy-2", top.get(1).getKey());
+    assertEquals("heavy-3", top.get(2).getKey());
+    assertTrue(top.get(0).getCount() - top.get(0).getError() <= 15_000L);
+    assertTrue(top.get(0).getCount() >= 15_000L);
+    assertEquals(10, sketch.top(100).size());
+  }
+
+  @Test()
+  public void testHyperLogLogEstimate() throws Exception {
+    final HyperLogLog hll = new HyperLogLog(12);
+    final int n = 100_000;
+    final byte[] address = new byte[4];
+    for (int i=0; i<n; i++) {
+      address[0] = 10;
+      address[1] = (byte) (i >>> 16);
+      address[2] = (byte) (i >>> 8);
+      address[3] = (byte) i;
+      // add each address twice, duplicates must not be counted
+      hll.add(HyperLogLog.hash(address));
+      hll.add(HyperLogLog.hash(address));
+    }
+    final long estimate = hll.estimate();
+    assertTrue(Math.abs(estimate - n) < n / 20, "estimate = " + estimate);
+    assertEquals(0L, new HyperLogLog(12).estimate());
+  }
+
+  @Test()
+  public void testClientStats() throws Exception {
+    final ClientStats stats = new ClientStats();
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final String client = stats.connectionAccepted(localhost);
+    stats.connectionAccepted(localhost);
+    stats.bytesTransferred(client, 1024L);
+    assertEquals("127.0.0.1", client);
+    assertEquals(1L, stats.getDistinctClients());
+    assertEquals(2L, stats.getTopConnections().get(0).getCount());
+    assertEquals(1024L, stats.getTopBytes().get(0).getCount());
+  }
+}
@@ -57,12 +57,12 @@ public abstract class BaseConnection<T extends BaseConnection<T>> implements Aut
   @SuppressWarnings("unchecked")
   public T send(final String message) throws IOException {
     if (debugEnabled) log.debug("{} sending '{}'", this, message);
-    socketWrapper.writeString(message);
+    socketWrapper.writeLongString(message);
     return (T) this;
   }
 
   public String receive() throws IOException {
-    final String message = socketWrapper.readString();
+    final String message = socketWrapper.readLongString(Integer.MAX_VALUE);
     if (debugEnabled) log.debug("{} received '{}'", this, message);
     return message;
   }
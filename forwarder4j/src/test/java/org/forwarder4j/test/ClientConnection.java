@@ -18,6 +18,7 @@
 package org.forwarder4j.test;
 
 import java.io.IOException;
+import java.net.Socket;
 
 /**
  * 
@@ -28,6 +29,14 @@ public class ClientConnection extends BaseConnection<ClientConnection> {
     super("localhost", port);
   }
 
+  public ClientConnection(final String host, final int port) throws IOException {
+    super(host, port);
+  }
+
+  public ClientConnection(final Socket socket) throws IOException {
+    super(socket);
+  }
+
   @Override
   public void run() {
   }